@@ -1,5 +1,6 @@
 package com.senchas.salvo;
 
+import java.util.Random;
 
 /**
  * Represents a game background.
@@ -17,9 +18,9 @@ public enum Background {
     stars_s(R.drawable.stars_s);
 
     /*================= Static =================*/
-    public static Background getRandomBackground() {
+    public static Background getRandomBackground(Random random) {
         Background bg[] = Background.values();
-        int i = Util.mRandom.nextInt(bg.length);
+        int i = random.nextInt(bg.length);
         return bg[i];
     }
 
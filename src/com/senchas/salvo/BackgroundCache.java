@@ -0,0 +1,120 @@
+package com.senchas.salvo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Keeps the last few decoded background images.
+ *
+ * Decoding a background JPEG is slow, and it makes a big allocation. Rounds
+ * often reuse a background, so we keep up to MAX_ENTRIES of them, and
+ * recycle the least recently used one when we need room.
+ *
+ * Images are decoded straight at the size of the playfield. The JPEG
+ * decoder is asked to subsample as much as it can while staying at least
+ * that big. Whatever is left is taken care of with one scaling pass.
+ * Images are decoded in the config given to the constructor. Backgrounds
+ * are opaque, so RGB_565 is a good choice: it takes half the memory of
+ * ARGB_8888.
+ *
+ * This class is thread-safe. Don't recycle the bitmaps it returns; it
+ * does that itself.
+ */
+public class BackgroundCache {
+    /*================= Constants =================*/
+    /** How many images we keep. This must be at least two, so that
+     * decoding the next round's background never throws out the one on
+     * screen. */
+    private static final int MAX_ENTRIES = 3;
+
+    /*================= Data =================*/
+    private final Resources mResources;
+
+    private final Bitmap.Config mConfig;
+
+    private final int mWidth, mHeight;
+
+    /** The images, least recently used first */
+    private final LinkedHashMap < Background, Bitmap > mImages;
+
+    /*================= Access =================*/
+    /** Returns the image for 'bg', decoding it if we don't have it */
+    public Bitmap get(Background bg) {
+        synchronized (this) {
+            Bitmap ret = mImages.get(bg);
+            if (ret != null)
+                return ret;
+        }
+        // Don't hold the lock while decoding. If two threads decode the
+        // same image, the second one just throws its copy away.
+        Bitmap image = decode(bg);
+        synchronized (this) {
+            Bitmap ret = mImages.get(bg);
+            if (ret != null) {
+                image.recycle();
+                return ret;
+            }
+            mImages.put(bg, image);
+            return image;
+        }
+    }
+
+    /** Decodes the image for 'bg' at mWidth x mHeight */
+    private Bitmap decode(Background bg) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(mResources, bg.getResId(), opts);
+        int sample = 1;
+        while ((opts.outWidth / (sample * 2) >= mWidth) &&
+               (opts.outHeight / (sample * 2) >= mHeight))
+            sample *= 2;
+
+        opts = new BitmapFactory.Options();
+        opts.inSampleSize = sample;
+        opts.inPreferredConfig = mConfig;
+        opts.inDither = true;
+        Bitmap image = BitmapFactory.decodeResource(mResources,
+                                                    bg.getResId(), opts);
+        if ((image.getWidth() == mWidth) && (image.getHeight() == mHeight))
+            return image;
+        Bitmap scaled = Bitmap.createScaledBitmap(image, mWidth, mHeight,
+                                                  true);
+        if (scaled != image)
+            image.recycle();
+        return scaled;
+    }
+
+    /*================= Operations =================*/
+    /** Recycles all of the images */
+    public synchronized void clear() {
+        for (Bitmap b : mImages.values())
+            b.recycle();
+        mImages.clear();
+    }
+
+    /*================= Lifecycle =================*/
+    public BackgroundCache(Resources resources, Bitmap.Config config,
+                           int width, int height) {
+        mResources = resources;
+        mConfig = config;
+        mWidth = width;
+        mHeight = height;
+        mImages = new LinkedHashMap < Background, Bitmap >(
+                    MAX_ENTRIES + 1, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry < Background, Bitmap > eldest) {
+                if (size() <= MAX_ENTRIES)
+                    return false;
+                eldest.getValue().recycle();
+                return true;
+            }
+        };
+    }
+}
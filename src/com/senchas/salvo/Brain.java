@@ -1,8 +1,9 @@
 package com.senchas.salvo;
 
-import com.senchas.salvo.RunGameAct.RunGameActAccessor;
 import com.senchas.salvo.WeaponType.Armory;
 
+import java.util.Random;
+
 import android.os.Bundle;
 import android.util.Log;
 
@@ -153,7 +154,7 @@ public abstract class Brain {
 
         /** Chooses a random weapon from this ArmoryView.
          */
-        public WeaponType getRandomWeapon()
+        public WeaponType getRandomWeapon(Random random)
         {
             int total = 0;
             for (int i = 0; i < mProbs.length; i++) {
@@ -166,7 +167,7 @@ public abstract class Brain {
                         "unreasonable 'total' value of " + total);
                 logStats();
             }
-            int val = Util.mRandom.nextInt(total);
+            int val = random.nextInt(total);
             int sum = 0;
             for (int i = 0; i < mProbs.length; i++) {
                 if (mProbs[i] != INVALID_PROB) {
@@ -229,6 +230,19 @@ public abstract class Brain {
     /*================= Access =================*/
     public abstract boolean isHuman();
 
+    /** Returns true if this Brain can make a move right now.
+     *
+     * Most Brains can always make a move. Brains that wait on some outside
+     * source of input return false until that input shows up. The game will
+     * ask again once someone has notified the game's state lock.
+     *
+     * @param game              The game
+     * @param playerId          The player who is about to move
+     */
+    public boolean isReadyToMove(GameHost game, int playerId) {
+        return true;
+    }
+
     /*================= Inputs =================*/
     /** Notify us that player 'playerId' has teleported. */
     public void notifyPlayerTeleported(int playerId)
@@ -254,10 +268,11 @@ public abstract class Brain {
 
     /*================= Outputs =================*/
     /** Make a move */
-    public abstract void makeMove(RunGameActAccessor game, Move out);
+    public abstract void makeMove(Random random, GameHost game, Move out);
 
     /** Buy weapons for the next round */
-    public abstract void buyWeapons(Cosmos.PlayerInfo playerInfo);
+    public abstract void buyWeapons(Random random,
+                                    Cosmos.PlayerInfo playerInfo);
 
     /*================= Operations =================*/
     public abstract void saveState(int index, Bundle map);
@@ -383,11 +398,12 @@ public abstract class Brain {
         /*================= Input =================*/
 
         /*================= Output =================*/
-        public void makeMove(RunGameActAccessor game, Move out) {
+        public void makeMove(Random random, GameHost game, Move out) {
             out.initializeAsHuman();
         }
 
-        public void buyWeapons(Cosmos.PlayerInfo playerInfo) {
+        public void buyWeapons(Random random,
+                               Cosmos.PlayerInfo playerInfo) {
             // Yes, it's lame to have methods-of-a-class that aren't
             // implemented.
             throw new RuntimeException("HumanBrain doesn't " +
@@ -439,28 +455,29 @@ public abstract class Brain {
 
         /*================= Outputs =================*/
         /** Make a move */
-        public void makeMove(RunGameActAccessor game, Move out) {
+        public void makeMove(Random random, GameHost game, Move out) {
             Player curPlayer = game.getModel().getCurPlayer();
-            int power = Util.mRandom.nextInt(Player.MAX_POWER);
-            int angle = Util.mRandom.nextInt(Player.MAX_TURRET_ANGLE + 1);
+            int power = random.nextInt(Player.MAX_POWER);
+            int angle = random.nextInt(Player.MAX_TURRET_ANGLE + 1);
 
             // Decide which weapon to choose
             Armory armory = curPlayer.getArmory(game.getCosmos());
             mArmTmp.initialize(armory);
             mArmTmp.setUniformlyRandomProbs();
 
-            WeaponType weapon = mArmTmp.getRandomWeapon();
+            WeaponType weapon = mArmTmp.getRandomWeapon(random);
             out.initializeAsCpu(angle, power, weapon);
         }
 
-        public void buyWeapons(Cosmos.PlayerInfo playerInfo) {
+        public void buyWeapons(Random random,
+                               Cosmos.PlayerInfo playerInfo) {
             // RandomBrain buys weapons... randomly
             int cash = playerInfo.getCash();
             Armory armory = playerInfo.getArmory();
             while (cash > WeaponType.sMinimumWeaponCost) {
                 mArmTmp.initialize(cash);
                 mArmTmp.setUniformlyRandomProbs();
-                WeaponType weapon = mArmTmp.getRandomWeapon();
+                WeaponType weapon = mArmTmp.getRandomWeapon(random);
                 armory.addWeapon(weapon);
                 playerInfo.spendMoney(weapon.getPrice());
                 cash = playerInfo.getCash();
@@ -521,25 +538,28 @@ public abstract class Brain {
 
         /*================= Utility =================*/
         /** Get an initial fix for our targetting */
-        protected abstract void getInitialFix(RunGameActAccessor game,
+        protected abstract void getInitialFix(Random random,
+                                              GameHost game,
                                               Player target,
                                               RefinementBrain r);
 
         /** Improve our targetting */
-        protected abstract void refinementStep(RunGameActAccessor game,
+        protected abstract void refinementStep(Random random,
+                                               GameHost game,
                                                Player target,
                                                RefinementBrain r);
 
         // Get a random float from [minVal, maxVal].
         //
-        private float getSkewedRandom(float minVal, float maxVal, int error)
+        private float getSkewedRandom(Random random,
+                                      float minVal, float maxVal, int error)
         {
             if (error > 350) {
                 // These results will have a distribution which is sort of a
                 // truncated and reversed gaussian which emphasizes the
                 // extremes.
                 // This reflects the fact that our current fix is very bad.
-                float r = (float)Util.mRandom.nextGaussian();
+                float r = (float)random.nextGaussian();
                 if (r < -3f)
                     return minVal;
                 if (r > 3f)
@@ -555,14 +575,14 @@ public abstract class Brain {
             if (error > 100) {
                 // These results will be uniformly distributed and large.
                 // This reflects the fact that we still don't have a good fix.
-                float r = Util.mRandom.nextFloat();
+                float r = random.nextFloat();
                 return (r * (maxVal - minVal)) + minVal;
             }
             else {
                 // These results will have a distribution which is sort of a
                 // truncated gaussian. This reflects the fact that we're already
                 // doing pretty well and we want to be conservative.
-                float r = (float)Util.mRandom.nextGaussian();
+                float r = (float)random.nextGaussian();
                 if (r < -3f)
                     return minVal;
                 if (r > 3f)
@@ -575,7 +595,7 @@ public abstract class Brain {
 
         // Simulate what firing with the given angle and power would do.
         // The result will be in mProjTmp.getCurX() and mProjTmp.getCurY()
-        private void computeImpact(RunGameActAccessor game,
+        private void computeImpact(GameHost game,
                                    float angle, int power)
         {
             Projectile.launchProjectile(game.getModel(), angle,
@@ -602,12 +622,13 @@ public abstract class Brain {
 
         // Computes the error between (tx, ty) and where mProjTmp
         // landed.
-        private int computeError(int tx, int ty)
+        private int computeError(GameHost game, int tx, int ty)
         {
             float px = mProjTmp.getCurX();
             float py = mProjTmp.getCurY();
 
-            if ((px < 0) || (px > Terrain.MAX_X)) {
+            int width = game.getModel().getTerrain().getWidth();
+            if ((px < 0) || (px > width)) {
                 // If our projectile ran into the edge of the screen,
                 // include the Y error in the error metric.
                 // If we don't do this, shooting at the edge of the screen (which is
@@ -625,7 +646,7 @@ public abstract class Brain {
 
         // Test some alternate shots and pick the best one.
         // Returns the current error between the shot we're making and the target.
-        protected int refinementPass(RunGameActAccessor game,
+        protected int refinementPass(Random random, GameHost game,
                                      Player target, int error,
                                      boolean allowRegression)
         {
@@ -635,7 +656,7 @@ public abstract class Brain {
 
             if (error == INVALID_ERROR) {
                 computeImpact(game, angleRad, mV.mPower);
-                error = computeError(tx, ty);
+                error = computeError(game, tx, ty);
             }
             StringBuilder b = new StringBuilder(80);
             b.append("refinementPass: error = ");
@@ -647,57 +668,57 @@ public abstract class Brain {
             // Smaller angle shot.
             // Remember that we are dealing with angles in radians from
             // 0 to pi.
-            float smallerAngle = getSkewedRandom
-                (Player.MIN_TURRET_ANGLE_RAD, angleRad, error);
+            float smallerAngle = getSkewedRandom(random,
+                Player.MIN_TURRET_ANGLE_RAD, angleRad, error);
             computeImpact(game, smallerAngle, mV.mPower);
-            int smallerAngleError = computeError(tx, ty);
+            int smallerAngleError = computeError(game, tx, ty);
 
             // Larger angle shot.
-            float biggerAngle = getSkewedRandom
-                (angleRad, Player.MAX_TURRET_ANGLE_RAD, error);
+            float biggerAngle = getSkewedRandom(random,
+                angleRad, Player.MAX_TURRET_ANGLE_RAD, error);
             computeImpact(game, biggerAngle, mV.mPower);
-            int biggerAngleError = computeError(tx, ty);
+            int biggerAngleError = computeError(game, tx, ty);
 
             // Different power shot
             int differentPower;
-            if (Util.mRandom.nextBoolean()) {
+            if (random.nextBoolean()) {
                 // Smaller power shot.
-                differentPower = (int)getSkewedRandom
-                    (0, mV.mPower, error);
+                differentPower = (int)getSkewedRandom(random,
+                    0, mV.mPower, error);
             }
             else {
                 // Bigger power shot.
-                differentPower = (int)getSkewedRandom
-                    (mV.mPower, Player.MAX_POWER, error);
+                differentPower = (int)getSkewedRandom(random,
+                    mV.mPower, Player.MAX_POWER, error);
             }
             computeImpact(game, angleRad, differentPower);
-            int differentPowerError = computeError(tx, ty);
+            int differentPowerError = computeError(game, tx, ty);
 
             // Combined change shot
             int combinedPower;
-            if (Util.mRandom.nextBoolean()) {
+            if (random.nextBoolean()) {
                 // Smaller power shot.
-                combinedPower = (int)getSkewedRandom
-                    (0, mV.mPower, error);
+                combinedPower = (int)getSkewedRandom(random,
+                    0, mV.mPower, error);
             }
             else {
                 // Bigger power shot.
-                combinedPower = (int)getSkewedRandom
-                    (mV.mPower, Player.MAX_POWER, error);
+                combinedPower = (int)getSkewedRandom(random,
+                    mV.mPower, Player.MAX_POWER, error);
             }
             float combinedAngle;
-            if (Util.mRandom.nextBoolean()) {
+            if (random.nextBoolean()) {
                 // Smaller angle shot
-                combinedAngle = getSkewedRandom
-                    (Player.MIN_TURRET_ANGLE_RAD, angleRad, error);
+                combinedAngle = getSkewedRandom(random,
+                    Player.MIN_TURRET_ANGLE_RAD, angleRad, error);
             }
             else {
                 // Bigger angle shot
-                combinedAngle = getSkewedRandom
-                    (angleRad, Player.MAX_TURRET_ANGLE_RAD, error);
+                combinedAngle = getSkewedRandom(random,
+                    angleRad, Player.MAX_TURRET_ANGLE_RAD, error);
             }
             computeImpact(game, combinedAngle, combinedPower);
-            int combinedError = computeError(tx, ty);
+            int combinedError = computeError(game, tx, ty);
 
             // This switch statement is pretty clumsy, but at least it avoids
             // memory allocations.
@@ -821,7 +842,7 @@ public abstract class Brain {
 
         /*================= Outputs =================*/
         /** Make a move */
-        public void makeMove(RunGameActAccessor game, Move out) {
+        public void makeMove(Random random, GameHost game, Move out) {
             Model model = game.getModel();
             Player curPlayer = model.getCurPlayer();
             Player players[] = model.getPlayers();
@@ -829,7 +850,7 @@ public abstract class Brain {
 
             if (mV.mTargetId == Player.INVALID_PLAYER_ID) {
                 while (true) {
-                    mV.mTargetId = Util.mRandom.nextInt(players.length);
+                    mV.mTargetId = random.nextInt(players.length);
                     if (mV.mTargetId != curPlayer.getId()) {
                         if (players[mV.mTargetId].isAlive())
                             break;
@@ -844,11 +865,11 @@ public abstract class Brain {
                     Log.w(this.getClass().getName(), b.toString());
                 }
 
-                getInitialFix(game, target, this);
+                getInitialFix(random, game, target, this);
             }
             else {
                 target = players[mV.mTargetId];
-                refinementStep(game, target, this);
+                refinementStep(random, game, target, this);
             }
 
             // Decide which weapon to choose
@@ -884,11 +905,12 @@ public abstract class Brain {
             mArmTmp.initialize(armory);
             mArmTmp.setProbabilitiesByClass(
                 defensiveProb, smallProb, aggroProb);
-            WeaponType weapon = mArmTmp.getRandomWeapon();
+            WeaponType weapon = mArmTmp.getRandomWeapon(random);
             out.initializeAsCpu(mV.mAngle, mV.mPower, weapon);
         }
 
-        public void buyWeapons(Cosmos.PlayerInfo playerInfo) {
+        public void buyWeapons(Random random,
+                               Cosmos.PlayerInfo playerInfo) {
             // RefinementBrain tries to have roughly equal numbers of each
             // type of weapon
             Armory armory = playerInfo.getArmory();
@@ -920,7 +942,7 @@ public abstract class Brain {
                     mArmTmp.logStats();
                 }
 
-                WeaponType weapon = mArmTmp.getRandomWeapon();
+                WeaponType weapon = mArmTmp.getRandomWeapon(random);
                 armory.addWeapon(weapon);
                 playerInfo.spendMoney(weapon.getPrice());
             }
@@ -973,26 +995,30 @@ public abstract class Brain {
         /*================= Data =================*/
 
         /*================= Utility =================*/
-        protected void getInitialFix(RunGameActAccessor game,
+        protected void getInitialFix(Random random,
+                                     GameHost game,
                                      Player target,
                                      RefinementBrain r)
         {
-            r.mV.mAngle = Util.mRandom.nextInt(Player.MAX_TURRET_ANGLE);
-            r.mV.mPower = Util.mRandom.nextInt(Player.MAX_POWER);
-            r.mV.mError = refinementPass(game, target, INVALID_ERROR, true);
+            r.mV.mAngle = random.nextInt(Player.MAX_TURRET_ANGLE);
+            r.mV.mPower = random.nextInt(Player.MAX_POWER);
+            r.mV.mError = refinementPass(random, game, target,
+                                         INVALID_ERROR, true);
         }
 
-        protected void refinementStep(RunGameActAccessor game,
+        protected void refinementStep(Random random,
+                                      GameHost game,
                                       Player target,
                                       RefinementBrain r)
         {
-            r.mV.mError = refinementPass(game, target, r.mV.mError, true);
+            r.mV.mError = refinementPass(random, game, target,
+                                         r.mV.mError, true);
         }
 
         /*================= Outputs =================*/
         /** Make a move */
-        public void makeMove(RunGameActAccessor game, Move out) {
-            super.makeMove(game, out);
+        public void makeMove(Random random, GameHost game, Move out) {
+            super.makeMove(random, game, out);
         }
 
         /*================= Operations =================*/
@@ -1027,7 +1053,8 @@ public abstract class Brain {
         /*================= Data =================*/
 
         /*================= Utility =================*/
-        protected void getInitialFix(RunGameActAccessor game,
+        protected void getInitialFix(Random random,
+                                     GameHost game,
                                      Player target,
                                      RefinementBrain r)
         {
@@ -1036,11 +1063,11 @@ public abstract class Brain {
                 int oldPower = r.mV.mPower;
                 int oldError = r.mV.mError;
 
-                r.mV.mAngle = Util.mRandom.nextInt(Player.MAX_TURRET_ANGLE);
-                r.mV.mPower = Util.mRandom.nextInt(Player.MAX_POWER);
-                r.mV.mError = refinementPass(game, target,
+                r.mV.mAngle = random.nextInt(Player.MAX_TURRET_ANGLE);
+                r.mV.mPower = random.nextInt(Player.MAX_POWER);
+                r.mV.mError = refinementPass(random, game, target,
                                              INVALID_ERROR, false);
-                r.mV.mError = refinementPass(game, target,
+                r.mV.mError = refinementPass(random, game, target,
                                              r.mV.mError, false);
 
                 if (i != 0) {
@@ -1053,20 +1080,21 @@ public abstract class Brain {
             }
         }
 
-        protected void refinementStep(RunGameActAccessor game,
+        protected void refinementStep(Random random,
+                                      GameHost game,
                                       Player target,
                                       RefinementBrain r)
         {
             for (int i = 0; i < 3; i++) {
-                r.mV.mError = refinementPass(game, target,
+                r.mV.mError = refinementPass(random, game, target,
                                              r.mV.mError, false);
             }
         }
 
         /*================= Outputs =================*/
         /** Make a move */
-        public void makeMove(RunGameActAccessor game, Move out) {
-            super.makeMove(game, out);
+        public void makeMove(Random random, GameHost game, Move out) {
+            super.makeMove(random, game, out);
         }
 
         /*================= Operations =================*/
@@ -1085,6 +1113,139 @@ public abstract class Brain {
         }
     }
 
+    /** A player whose moves come from outside the game, for example from a
+     * network client.
+     *
+     * A RemoteBrain doesn't make any decisions of its own. When its player's
+     * turn comes up, it tells its Listener that it needs a move, and the game
+     * waits in TurnStartState until somebody calls submitMove(). While it is
+     * waiting, the game uses no CPU at all.
+     *
+     * RemoteBrains don't buy weapons.
+     *
+     * This class does its own locking, since moves may be submitted from any
+     * thread.
+     */
+    public static class RemoteBrain extends Brain {
+        /*================= Constants =================*/
+        public static final short ID = 5;
+
+        /*================= Types =================*/
+        /** Gets told when a RemoteBrain needs a move */
+        public static interface Listener {
+            /** Called when it is this player's turn, and no move has been
+             * submitted yet.
+             *
+             * This is called with the game's state lock held, so it must not
+             * block. It may call submitMove() directly.
+             */
+            public void onMoveRequested(RemoteBrain brain, GameHost game,
+                                        int playerId);
+        }
+
+        /*================= Static =================*/
+        public static RemoteBrain fromBundle(int index, Bundle map) {
+            // A pending move is not worth saving. The remote side will be
+            // asked again.
+            return new RemoteBrain();
+        }
+
+        /*================= Data =================*/
+        /** Who to tell when we need a move */
+        private Listener mListener;
+
+        /** True if a move has been submitted, but not yet made */
+        private boolean mMovePending;
+
+        /** True if we have already told mListener that we need a move */
+        private boolean mMoveRequested;
+
+        private int mAngle;
+
+        private int mPower;
+
+        private WeaponType mWeapon;
+
+        /*================= Access =================*/
+        public boolean isHuman() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isReadyToMove(GameHost game,
+                                                  int playerId) {
+            if (mMovePending)
+                return true;
+            if (! mMoveRequested) {
+                mMoveRequested = true;
+                if (mListener != null)
+                    mListener.onMoveRequested(this, game, playerId);
+            }
+            return mMovePending;
+        }
+
+        /*================= Input =================*/
+        /** Submit the next move.
+         *
+         * After calling this, the caller must wake up the game so that it
+         * notices the move.
+         *
+         * @return      false if the move is out of range and was ignored
+         */
+        public synchronized boolean submitMove(int angle, int power,
+                                               WeaponType weapon) {
+            if ((angle < Player.MIN_TURRET_ANGLE) ||
+                (angle > Player.MAX_TURRET_ANGLE))
+                return false;
+            if ((power < 0) || (power > Player.MAX_POWER))
+                return false;
+            if (weapon == null)
+                return false;
+            mAngle = angle;
+            mPower = power;
+            mWeapon = weapon;
+            mMovePending = true;
+            return true;
+        }
+
+        /*================= Output =================*/
+        public synchronized void makeMove(Random random, GameHost game,
+                                          Move out) {
+            if (! mMovePending)
+                throw new RuntimeException("RemoteBrain.makeMove: no " +
+                                           "move has been submitted");
+            // The remote side doesn't get to fire weapons it doesn't have.
+            Player curPlayer = game.getModel().getCurPlayer();
+            Armory armory = curPlayer.getArmory(game.getCosmos());
+            WeaponType weapon = mWeapon;
+            int amount = armory.getAmount(weapon);
+            if (((amount != WeaponType.Const.UNLIMITED) && (amount <= 0)) ||
+                (weapon.isExtraArmor() && (!curPlayer.canUseExtraArmor())))
+                weapon = armory.getFirstValidWeapon();
+            out.initializeAsCpu(mAngle, mPower, weapon);
+            mMovePending = false;
+            mMoveRequested = false;
+        }
+
+        public void buyWeapons(Random random,
+                               Cosmos.PlayerInfo playerInfo) {
+        }
+
+        /*================= Operations =================*/
+        public void saveState(int index, Bundle map) {
+            map.putShort(Util.indexToString(index, KEY_BRAIN_TYPE_ID), ID);
+        }
+
+        public synchronized void setListener(Listener listener) {
+            mListener = listener;
+        }
+
+        /*================= Lifecycle =================*/
+        public RemoteBrain() {
+            super();
+        }
+    }
+
     /*================= Static =================*/
     public static final String KEY_BRAIN_TYPE_ID = "BRAIN_TYPE_ID";
 
@@ -1101,6 +1262,8 @@ public abstract class Brain {
                 return MediumBrain.fromBundle(i, b);
             case HardBrain.ID:
                 return HardBrain.fromBundle(i, b);
+            case RemoteBrain.ID:
+                return RemoteBrain.fromBundle(i, b);
             default:
                 throw new RuntimeException("unknown brain type id: " +
                                             brainTypeId);
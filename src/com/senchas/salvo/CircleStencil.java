@@ -0,0 +1,118 @@
+package com.senchas.salvo;
+
+/**
+ * A precomputed table of the half-chords of a circle.
+ *
+ * Carving an explosion out of the terrain, or checking a projectile
+ * against it, needs the top and bottom of a circle at every column it
+ * covers. Working that out with a square root per column is wasteful when
+ * there are only a handful of radii in the whole game. So we work out the
+ * half-chord for every horizontal offset once, when the class is loaded,
+ * and after that finding the span of a circle at a column is a table
+ * lookup and two integer adds.
+ *
+ * The half-chords are computed with integer square roots. So unlike
+ * floating point, the tables come out the same on every device, which
+ * matters for lockstep games.
+ *
+ * CircleStencils are immutable and shared.
+ */
+public class CircleStencil {
+    /*================= Constants =================*/
+    /** Stencils for radii below this are built in advance */
+    private static final int MAX_CACHED_RADIUS = 64;
+
+    private static final CircleStencil sCache[];
+
+    static {
+        sCache = new CircleStencil[MAX_CACHED_RADIUS];
+        for (int r = 0; r < MAX_CACHED_RADIUS; r++)
+            sCache[r] = new CircleStencil(r);
+    }
+
+    /*================= Data =================*/
+    private final int mRadius;
+
+    /** mFloor[dx] is the half-chord at horizontal offset dx, rounded down
+     */
+    private final short mFloor[];
+
+    /** mCeil[dx] is the half-chord at horizontal offset dx, rounded up */
+    private final short mCeil[];
+
+    /*================= Static =================*/
+    /** Returns the stencil for a circle of the given radius */
+    public static CircleStencil get(int radius) {
+        if (radius < MAX_CACHED_RADIUS)
+            return sCache[radius];
+        else
+            return new CircleStencil(radius);
+    }
+
+    /*================= Access =================*/
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /** Returns true if the circle covers horizontal offset dx */
+    public boolean covers(int dx) {
+        return ((dx >= -mRadius) && (dx <= mRadius));
+    }
+
+    /** Returns the half-chord at horizontal offset dx, rounded down.
+     * dx must be covered by the circle. */
+    public int getHalfChord(int dx) {
+        return mFloor[(dx < 0) ? -dx : dx];
+    }
+
+    /** Returns the bottom of a circle centered at (x0, y0), at column x.
+     * (Remember that y increases downwards.) */
+    public int getLower(int x0, int y0, int x) {
+        int dx = x - x0;
+        return y0 + mFloor[(dx < 0) ? -dx : dx];
+    }
+
+    /** Returns the top of a circle centered at (x0, y0), at column x */
+    public int getUpper(int x0, int y0, int x) {
+        int dx = x - x0;
+        return y0 - mCeil[(dx < 0) ? -dx : dx];
+    }
+
+    /** Returns the top and bottom y-coordinates of a circle centered at
+     * (x0, y0) at column x.
+     *
+     * If the circle doesn't have a y coordinate at x, returns 0 in both
+     * y-coordinates, like Util.circAt.
+     */
+    public void getSpan(int x0, int y0, int x, Util.Pair out) {
+        int dx = x - x0;
+        if (dx < 0)
+            dx = -dx;
+        if (dx > mRadius) {
+            out.yLower = out.yUpper = 0;
+        }
+        else {
+            out.yLower = y0 + mFloor[dx];
+            out.yUpper = y0 - mCeil[dx];
+        }
+    }
+
+    /*================= Lifecycle =================*/
+    private CircleStencil(int radius) {
+        mRadius = radius;
+        mFloor = new short[radius + 1];
+        mCeil = new short[radius + 1];
+        int r2 = radius * radius;
+        for (int dx = 0; dx <= radius; dx++) {
+            int t = r2 - (dx * dx);
+            int s = (int)Math.sqrt(t);
+            // Fix up any rounding in the floating point square root
+            while (s * s > t)
+                s--;
+            while ((s + 1) * (s + 1) <= t)
+                s++;
+            mFloor[dx] = (short)s;
+            mCeil[dx] = (short)((s * s == t) ? s : s + 1);
+        }
+    }
+}
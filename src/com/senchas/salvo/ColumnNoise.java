@@ -0,0 +1,152 @@
+package com.senchas.salvo;
+
+/**
+ * Seeded noise functions for generating terrain, one column at a time.
+ *
+ * Every function here gives the height of a single column, and depends
+ * only on the seed and the column's x coordinate. So any range of columns
+ * can be generated on its own, in any order, on any thread, and the seams
+ * between ranges don't show. That is what lets us generate huge worlds in
+ * parallel, and generate chunks on demand.
+ *
+ * Everything is done in integer math, so every device gets exactly the same
+ * terrain from the same seed. Network games depend on that.
+ */
+public class ColumnNoise {
+    /*================= Constants =================*/
+    /** The height that noise is centered on */
+    private static final int MID_HEIGHT = (Terrain.MAX_Y * 11) / 20;
+
+    /*================= Hashing =================*/
+    /** Returns a pseudo-random number in [-32768, 32767] for lattice
+     * point x */
+    public static int hash(long seed, int x) {
+        long z = seed + ((x + 1L) * 0x9e3779b97f4a7c15L);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z = z ^ (z >>> 31);
+        return (int)(z >> 48);
+    }
+
+    /*================= Value Noise =================*/
+    /** Returns multi-octave value noise at column x.
+     *
+     * Each octave puts a random value on every (1 << shift)th column and
+     * blends between them with a smoothstep. The next octave has half the
+     * spacing and half the amplitude.
+     *
+     * @param topShift      log2 of the spacing of the first octave
+     * @param octaves       how many octaves to add up
+     * @param amplitude     the amplitude of the first octave, in pixels
+     */
+    public static int valueNoise(long seed, int x, int topShift,
+                                 int octaves, int amplitude) {
+        int sum = 0;
+        int shift = topShift;
+        for (int o = 0; (o < octaves) && (shift >= 0); o++) {
+            long octSeed = seed + (o * 0x632be59bd9b4e019L);
+            int xi = x >> shift;
+            int frac = x & ((1 << shift) - 1);
+            // t and s are fixed point, with 16 fraction bits
+            long t = ((long)frac << 16) >> shift;
+            long s = (t * t * ((3L << 16) - (2 * t))) >> 32;
+            int v0 = hash(octSeed, xi);
+            int v1 = hash(octSeed, xi + 1);
+            int v = v0 + (int)(((v1 - v0) * s) >> 16);
+            sum += (v * amplitude) >> 15;
+            shift--;
+            amplitude >>= 1;
+        }
+        return clampHeight(MID_HEIGHT + sum);
+    }
+
+    /*================= Midpoint Displacement =================*/
+    /** Returns the midpoint displacement height at column x.
+     *
+     * Columns that are a multiple of (1 << topShift) get random heights.
+     * Halfway between two of those, the height is the average of the two,
+     * plus a random displacement. Then halfway between those, and so on,
+     * with the displacement shrinking by 'roughness' / 16 each time.
+     *
+     * Normally you'd fill in a whole array level by level. But we only
+     * want one column, so we just follow the intervals that contain x,
+     * which takes topShift steps.
+     */
+    public static int midpoint(long seed, int x, int topShift,
+                               int amplitude, int roughness) {
+        int a = (x >> topShift) << topShift;
+        int b = a + (1 << topShift);
+        int va = (hash(seed, a) * amplitude) >> 15;
+        int vb = (hash(seed, b) * amplitude) >> 15;
+        int amp = (amplitude * roughness) >> 4;
+        // Every point is the midpoint of exactly one interval, so its
+        // x coordinate is enough to give it its own displacement.
+        long midSeed = seed ^ 0x2545f4914f6cdd1dL;
+        for (int s = topShift - 1; s >= 0; s--) {
+            int mid = a + (1 << s);
+            int vm = ((va + vb) >> 1) +
+                     ((hash(midSeed, mid) * amp) >> 15);
+            if (x < mid) {
+                b = mid;
+                vb = vm;
+            }
+            else {
+                a = mid;
+                va = vm;
+            }
+            amp = (amp * roughness) >> 4;
+        }
+        return clampHeight(MID_HEIGHT + va);
+    }
+
+    /*================= Erosion =================*/
+    /** Runs 'iterations' passes of thermal erosion over h[0, len).
+     *
+     * Wherever a column stands more than 'talus' pixels above its
+     * neighbor, a quarter of the excess slides over. All of the columns
+     * are updated at once from the previous pass, so after k passes each
+     * column depends only on the k columns on either side of it. The first
+     * and last 'iterations' columns come out wrong, since they can't see
+     * their neighbors. Callers generate that many extra columns on each
+     * side, and throw them away.
+     *
+     * @param tmp           scratch space, at least len long
+     */
+    public static void erode(short h[], short tmp[], int len,
+                             int iterations, int talus) {
+        short cur[] = h, next[] = tmp;
+        for (int it = 0; it < iterations; it++) {
+            for (int i = 0; i < len; i++) {
+                int y = cur[i];
+                int d = 0;
+                if (i > 0)
+                    d += flow(cur[i - 1] - y, talus);
+                if (i < len - 1)
+                    d += flow(cur[i + 1] - y, talus);
+                next[i] = (short)(y + d);
+            }
+            short t[] = cur;
+            cur = next;
+            next = t;
+        }
+        if (cur != h)
+            System.arraycopy(cur, 0, h, 0, len);
+    }
+
+    /** Returns how much a column's height goes up, when its neighbor's
+     * height is 'diff' more than its own. (Remember that Y increases
+     * downwards.) */
+    private static int flow(int diff, int talus) {
+        if (diff > talus)
+            return (diff - talus) >> 2;
+        else if (-diff > talus)
+            return -((-diff - talus) >> 2);
+        else
+            return 0;
+    }
+
+    /*================= Utility =================*/
+    private static int clampHeight(int y) {
+        return Math.max(0, Math.min(Terrain.MAX_Y, y));
+    }
+}
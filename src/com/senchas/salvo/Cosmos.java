@@ -4,6 +4,7 @@ import com.senchas.salvo.PlayerColor;
 import com.senchas.salvo.WeaponType.Armory;
 
 import java.util.Arrays;
+import java.util.Random;
 
 import android.content.Context;
 import android.os.Bundle;
@@ -25,6 +26,9 @@ public class Cosmos {
     /*================= Constants =================*/
     public static final String KEY_NUM_PLAYERS = "KEY_NUM_PLAYERS";
 
+    /** Keeps the plan seeds apart from the seeds that getRandom() uses */
+    private static final long PLAN_SEED_SALT = 0xC2B2AE3D27D4EB4FL;
+
     /*================= Types =================*/
     /** Player information which is preserved across rounds */
     public static class PlayerInfo {
@@ -329,9 +333,21 @@ public class Cosmos {
 
         /** The total number of rounds we expect to play */
         public short mNumRounds;
+
+        /** The seed that all of this game's randomness is derived from */
+        public long mSeed;
     }
     private MyVars mV;
 
+    /** The source of random numbers for this game.
+     *
+     * Everything that happens inside a game draws its random numbers from
+     * here, rather than from a global Random. That way, two games running
+     * in the same process don't interfere with each other, and a game can
+     * be replayed from its seed.
+     */
+    private final Random mRandom;
+
     /** The player information */
     private final PlayerInfo mPlayerInfo[];
 
@@ -355,9 +371,50 @@ public class Cosmos {
         return (mV.mCurRound < mV.mNumRounds);
     }
 
+    public Random getRandom() {
+        return mRandom;
+    }
+
+    public long getSeed() {
+        return mV.mSeed;
+    }
+
+    /** Returns the seed for planning the current round: its scenery,
+     * wind, terrain and player positions.
+     *
+     * This is a sequence of its own, apart from getRandom(). A round's plan
+     * then doesn't depend on who bought what, or on whether it was made
+     * ahead of time or on the spot.
+     */
+    public long getPlanSeed() {
+        return getPlanSeed(mV.mCurRound);
+    }
+
+    /** Returns the seed that getPlanSeed() will return after nextRound() */
+    public long getNextPlanSeed() {
+        return getPlanSeed(mV.mCurRound + 1);
+    }
+
+    private long getPlanSeed(int round) {
+        return (mV.mSeed ^ PLAN_SEED_SALT) +
+                    (round * 0x9E3779B97F4A7C15L);
+    }
+
     /*================= Operations =================*/
     public void nextRound() {
         mV.mCurRound++;
+        reseedRandom();
+    }
+
+    /** Reseed mRandom for the current round.
+     *
+     * Each round gets its own sequence of random numbers, derived from the
+     * game seed and the round number. So if we are restored from a Bundle
+     * in the middle of a round, we don't have to save the internal state of
+     * mRandom; we simply start the round's sequence over again.
+     */
+    private void reseedRandom() {
+        mRandom.setSeed(mV.mSeed + (mV.mCurRound * 0x9E3779B97F4A7C15L));
     }
 
     public void saveState(Bundle map) {
@@ -369,10 +426,11 @@ public class Cosmos {
 
     /*================= Lifecycle =================*/
     public static Cosmos fromInitial(short numRounds, int numPlayers,
-                                     int startingCash) {
+                                     int startingCash, long seed) {
         MyVars v = new MyVars();
         v.mCurRound = 0;
         v.mNumRounds = numRounds;
+        v.mSeed = seed;
         PlayerInfo pi[] = new PlayerInfo[numPlayers];
         for (int i = 0; i < numPlayers; i++) {
             pi[i] = PlayerInfo.fromInitial(startingCash);
@@ -394,5 +452,7 @@ public class Cosmos {
         mV = v;
         mPlayerInfo = pi;
         mLeaderboardAdaptor = new LeaderboardAdaptor();
+        mRandom = new Random();
+        reseedRandom();
     }
 }
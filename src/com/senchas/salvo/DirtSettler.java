@@ -0,0 +1,176 @@
+package com.senchas.salvo;
+
+/**
+ * Lets loose dirt slide down slopes that are too steep.
+ *
+ * An explosion just lowers the tops of some columns, which can leave cliffs
+ * that no real pile of dirt would hold. When dirt settling is turned on,
+ * ExplosionResolver tells us which columns it changed. We keep a queue of
+ * columns that might be unstable. A column is unstable if it stands more
+ * than MAX_SLOPE pixels above one of its neighbors. Then about half of the
+ * extra dirt slides over to the neighbor, and both of them, and their
+ * neighbors, go back on the queue.
+ *
+ * Only columns on the queue are ever looked at, so the cost is proportional
+ * to the area that was disturbed, not to the width of the world. And we
+ * only handle COLUMNS_PER_STEP columns per step, so a big slide is spread
+ * over a number of frames. You can watch it happen, and BallisticsState
+ * never stalls. Players standing on dirt that slid away fall, like they
+ * would after an explosion. Players that dirt slid in under ride up on it,
+ * unhurt.
+ *
+ * Everything is integer math done in a fixed order, so all the peers in a
+ * network game settle the same way.
+ *
+ * We don't settle terrain with caves. The bitmap would have to move too,
+ * and roofs are meant to stay up.
+ *
+ * This class contains no locking. It is owned by BallisticsState.
+ */
+public class DirtSettler {
+    /*================= Constants =================*/
+    /** The steepest slope that will hold, in pixels per column */
+    public static final int MAX_SLOPE = 3;
+
+    /** The most columns we look at in one step */
+    private static final int COLUMNS_PER_STEP = 24;
+
+    /*================= Data =================*/
+    /** The columns which might be unstable, as a ring */
+    private int mQueue[];
+
+    private int mHead;
+
+    private int mCount;
+
+    /** True for columns which are on mQueue */
+    private boolean mQueued[];
+
+    /** Who to blame for players who fall */
+    private int mPerp;
+
+    /** The players who fell during this step */
+    private final int mFallen[];
+
+    /*================= Access =================*/
+    /** Returns true if there is nothing left to settle */
+    public boolean isIdle() {
+        return (mCount == 0);
+    }
+
+    /*================= Operations =================*/
+    /** Gets ready to settle a terrain. Forgets anything still queued. */
+    public void reset(Terrain terrain) {
+        int width = terrain.getWidth();
+        if ((mQueued == null) || (mQueued.length != width)) {
+            mQueue = new int[width];
+            mQueued = new boolean[width];
+        }
+        else {
+            for (int i = 0; i < mCount; i++)
+                mQueued[mQueue[(mHead + i) % mQueue.length]] = false;
+        }
+        mHead = 0;
+        mCount = 0;
+    }
+
+    /** Tells us that columns [first, last] changed.
+     *
+     * @param perp      The player who changed them
+     */
+    public void disturb(int first, int last, int perp) {
+        first = Math.max(first, 0);
+        last = Math.min(last, mQueued.length - 1);
+        for (int x = first; x <= last; x++)
+            enqueue(x);
+        mPerp = perp;
+    }
+
+    /** Settles some of the queued columns */
+    public void step(GameHost game) {
+        if (mCount == 0)
+            return;
+        Model model = game.getModel();
+        Terrain terrain = model.getTerrain();
+        int width = terrain.getWidth();
+        // The columns that dropped, and the ones that rose
+        int dropLo = Integer.MAX_VALUE, dropHi = Integer.MIN_VALUE;
+        int riseLo = Integer.MAX_VALUE, riseHi = Integer.MIN_VALUE;
+        for (int n = 0; (n < COLUMNS_PER_STEP) && (mCount != 0); n++) {
+            int x = dequeue();
+            for (int side = -1; side <= 1; side += 2) {
+                int nx = x + side;
+                if ((nx < 0) || (nx >= width))
+                    continue;
+                // Y increases downwards, so the neighbor is lower if its
+                // height is bigger.
+                int h = terrain.getVal(x);
+                int diff = terrain.getVal(nx) - h;
+                if (diff <= MAX_SLOPE)
+                    continue;
+                int amount = (diff - MAX_SLOPE + 1) / 2;
+                terrain.setVal(x, h + amount);
+                terrain.setVal(nx, terrain.getVal(nx) - amount);
+                dropLo = Math.min(dropLo, x);
+                dropHi = Math.max(dropHi, x);
+                riseLo = Math.min(riseLo, nx);
+                riseHi = Math.max(riseHi, nx);
+                disturb(Math.min(x, nx) - 1, Math.max(x, nx) + 1, mPerp);
+            }
+        }
+        if (dropLo > dropHi)
+            return;
+        terrain.columnsChanged(Math.min(dropLo, riseLo),
+                               Math.max(dropHi, riseHi));
+        game.cacheTerrain();
+
+        // Lift anyone that dirt slid in under, and drop anyone whose
+        // ground slid out from under them. A column can do both in one
+        // step, so lift first; then doFalling only sees ground that ended
+        // up lower.
+        Player players[] = model.getPlayers();
+        int numFallen = 0;
+        for (Player victim : players) {
+            int px = victim.getX();
+            if ((px >= riseLo) && (px <= riseHi))
+                victim.doRising(terrain);
+            if ((px < dropLo) || (px > dropHi))
+                continue;
+            if (victim.doFalling(terrain))
+                mFallen[numFallen++] = victim.getId();
+        }
+        if (numFallen == 0)
+            return;
+        for (Player p : players) {
+            if (! p.isAlive())
+                continue;
+            Brain brain = p.getBrain();
+            for (int i = 0; i < numFallen; i++)
+                brain.notifyPlayerFell(mPerp, mFallen[i]);
+        }
+    }
+
+    private void enqueue(int x) {
+        if (mQueued[x])
+            return;
+        mQueued[x] = true;
+        mQueue[(mHead + mCount) % mQueue.length] = x;
+        mCount++;
+    }
+
+    private int dequeue() {
+        int x = mQueue[mHead];
+        mHead = (mHead + 1) % mQueue.length;
+        mCount--;
+        mQueued[x] = false;
+        return x;
+    }
+
+    /*================= Lifecycle =================*/
+    public DirtSettler() {
+        mHead = 0;
+        mCount = 0;
+        mPerp = Player.INVALID_PLAYER_ID;
+        mFallen = new int[Model.MAX_PLAYERS];
+    }
+}
@@ -1,7 +1,6 @@
 package com.senchas.salvo;
 
 import com.senchas.salvo.Cosmos.PlayerInfo;
-import com.senchas.salvo.RunGameAct.RunGameActAccessor;
 import com.senchas.salvo.WeaponType.ExplosionAttributes;
 import android.util.Log;
 
@@ -12,7 +11,17 @@ import android.util.Log;
  */
 public class Explosion {
     /*================= Constants =================*/
-    public static final int MAX_TIME = 1000;
+    /** How long an explosion lasts, in milliseconds */
+    private static final int DURATION = 1000;
+
+    /** How many ballistics steps an explosion lasts.
+     *
+     * Explosions are timed in steps, just like projectiles, rather than in
+     * milliseconds. That way, a volley always plays out the same way no
+     * matter how fast the device is. Steps come at a fixed rate, so this
+     * still works out to DURATION. */
+    public static final int MAX_AGE =
+        DURATION / GameState.BallisticsState.STEP_INTERVAL;
 
     /** If a hit is closer than this radius, it is considered a bullseye
      *  which should do full damage.
@@ -41,8 +50,9 @@ public class Explosion {
     /** The perpetrator of this explosion */
     private int mPerp;
 
-    /** The time we started displaying the explosion */
-    private long mStartTime;
+    /** How many steps we have been displaying the explosion for, or -1 if
+     * this explosion is not in use */
+    private int mAge;
 
     /*================= Access =================*/
     public int getX() {
@@ -54,21 +64,19 @@ public class Explosion {
     }
 
     public boolean getInUse() {
-        return (mStartTime != 0);
+        return (mAge >= 0);
     }
 
-    public boolean getFinished(long time) {
-        long diff = time - mStartTime;
-        return (diff > MAX_TIME);
+    public boolean getFinished() {
+        return (mAge > MAX_AGE);
     }
 
-    public int getCurExplosionSize(long time) {
+    public int getCurExplosionSize() {
         int full = mAttr.getRadius();
-        long diff = time - mStartTime;
-        if (diff > MAX_TIME)
+        if (mAge > MAX_AGE)
             return full;
         else {
-            return (int)((full * diff) / MAX_TIME);
+            return (full * mAge) / MAX_AGE;
         }
     }
 
@@ -82,11 +90,16 @@ public class Explosion {
 
     /*================= Operations =================*/
     public void clearInUse() {
-        mStartTime = 0;
+        mAge = -1;
+    }
+
+    /** Advance the explosion by one ballistics step */
+    public void step() {
+        mAge++;
     }
 
     /** Deal direct damage to players */
-    public void doDirectDamage(RunGameActAccessor game) {
+    public void doDirectDamage(GameHost game) {
         int full = mAttr.getFullDamage();
         if (full == 0)
             return;
@@ -130,56 +143,75 @@ public class Explosion {
     }
 
     /** Change the terrain to reflect this explosion */
-    public void editTerrain(RunGameActAccessor game) {
+    public void editTerrain(GameHost game) {
         Terrain terrain = game.getModel().getTerrain();
-        short board[] = terrain.getBoard();
 
-        Util.Pair pair = new Util.Pair();
-        int eSize = mAttr.getRadius();
+        CircleStencil stencil = mAttr.getStencil();
+        int eSize = stencil.getRadius();
         // do the circle collision algorithm on each height
-        for (int slice = Math.max(0, mX - eSize);
-                 slice < Math.min(mX + eSize, Terrain.MAX_X);
-                 slice++) {
-            Util.circAt(mX, mY, eSize, slice, pair);
-            editTerrainSlice(board, slice, pair);
+        int start = Math.max(0, mX - eSize);
+        int end = Math.min(mX + eSize, terrain.getWidth());
+        boolean hitGround = false;
+        for (int slice = start; slice < end; slice++) {
+            if (editTerrainSlice(terrain, slice,
+                                 stencil.getLower(mX, mY, slice),
+                                 stencil.getUpper(mX, mY, slice)))
+                hitGround = true;
         }
+        terrain.columnsChanged(start, end - 1);
+
+        if (hitGround)
+            game.emitParticles(ParticleSystem.Effect.DIRT, mX, mY, eSize);
+        game.emitParticles(ParticleSystem.Effect.SMOKE, mX, mY, eSize);
     }
 
     /** Helper function for editTerrain that does the work at a single
-     * terrain slice. */
-    private void editTerrainSlice(short board[], int slice,
-                                  Util.Pair pair) {
-        if (pair.yLower == 0) {
+     * terrain slice. Returns true if the explosion reached the ground
+     * there. */
+    private boolean editTerrainSlice(Terrain terrain, int slice,
+                                     int yLower, int yUpper) {
+        if (yLower == 0) {
             // The explosion isn't relevant at this terrain slice
-            return;
+            return false;
+        }
+        if (terrain.hasCaves()) {
+            // Just cut a hole. Whatever is left above it stays put.
+            terrain.carve(slice, yUpper, yLower - 1);
+            return true;
         }
-        if (pair.yLower < board[slice]) {
+        short h = terrain.getVal(slice);
+        if (yLower < h) {
             // The explosion is too far up in the air to have hit the ground
             // at this terrain slice.
-            return;
+            return false;
         }
-        if (pair.yUpper > board[slice]) {
+        if (yUpper > h) {
             // The explosion is completely underground
-            board[slice] += (pair.yLower - pair.yUpper);
-            return;
+            terrain.setVal(slice, (short)(h + (yLower - yUpper)));
+            return true;
         }
-        board[slice] += (pair.yLower - board[slice]);
-        if (board[slice] > Terrain.MAX_Y)
-            board[slice] = Terrain.MAX_Y;
-        return;
+        terrain.setVal(slice, Math.min(yLower, Terrain.MAX_Y));
+        return true;
     }
 
     /*================= Lifecycle =================*/
-    public void initialize(int x, int y, ExplosionAttributes attr, int perp) {
+    public void initialize(GameHost game, int x, int y,
+                           ExplosionAttributes attr, int perp) {
         mX = x;
         mY = y;
         mAttr = attr;
         mPerp = perp;
 
-        mStartTime = System.currentTimeMillis();
+        mAge = 0;
+
+        // Only things that do damage throw sparks
+        if (attr.getFullDamage() != 0) {
+            game.emitParticles(ParticleSystem.Effect.SPARKS, x, y,
+                               attr.getRadius());
+        }
     }
 
     public Explosion() {
-        mStartTime = 0;
+        mAge = -1;
     }
 }
@@ -0,0 +1,150 @@
+package com.senchas.salvo;
+
+/**
+ * Applies the effects of all the explosions that finish in a single
+ * ballistics step.
+ *
+ * Cluster bombs and the like finish several explosions at nearly the same
+ * time. We used to handle each one separately: damage the players, carve
+ * the terrain, re-cache the whole terrain, drop every player, and tell
+ * every Brain about every fall. Now BallisticsState hands each finished
+ * explosion to add(), and calls resolve() once per step. That does:
+ *
+ * 1. one damage pass over the explosions
+ * 2. one terrain edit, followed by a single call to cacheTerrain
+ * 3. one falling pass, which only looks at players standing on a column
+ *    that changed
+ * 4. one round of Brain notifications for all of the players who fell
+ *
+ * The explosions are all resolved against the same terrain and the same
+ * player positions, so the order they finished in doesn't matter.
+ *
+ * If there is a DirtSettler, every column we change is handed to it.
+ *
+ * This class contains no locking. It is owned by BallisticsState.
+ */
+public class ExplosionResolver {
+    /*================= Data =================*/
+    /** The explosions that finished during this step */
+    private final Explosion mPending[];
+
+    private int mNumPending;
+
+    /** The first column each pending explosion changed */
+    private final int mDirtyStart[];
+
+    /** One past the last column each pending explosion changed */
+    private final int mDirtyEnd[];
+
+    /** The players who fell during this step */
+    private final int mFallen[];
+
+    /** The perpetrator of the fall, for each player in mFallen */
+    private final int mFallenPerp[];
+
+    /** Gets the columns we change, or null */
+    private DirtSettler mSettler;
+
+    /*================= Access =================*/
+    /** Returns true if there is nothing to resolve */
+    public boolean isEmpty() {
+        return (mNumPending == 0);
+    }
+
+    /*================= Operations =================*/
+    /** Sets the DirtSettler to tell about changed columns. May be null. */
+    public void setSettler(DirtSettler settler) {
+        mSettler = settler;
+    }
+
+    /** Queues a finished explosion to be resolved.
+     *
+     * The caller should clear the explosion's in-use flag, but must not
+     * reuse it until resolve() has been called.
+     */
+    public void add(Explosion expl) {
+        mPending[mNumPending++] = expl;
+    }
+
+    /** Resolves all of the queued explosions */
+    public void resolve(GameHost game) {
+        if (mNumPending == 0)
+            return;
+        Model model = game.getModel();
+
+        // Damage pass
+        for (int i = 0; i < mNumPending; i++)
+            mPending[i].doDirectDamage(game);
+
+        // Terrain pass
+        for (int i = 0; i < mNumPending; i++) {
+            Explosion expl = mPending[i];
+            int eSize = expl.getExplosionAttributes().getRadius();
+            mDirtyStart[i] = Math.max(0, expl.getX() - eSize);
+            mDirtyEnd[i] = Math.min(expl.getX() + eSize,
+                                    model.getTerrain().getWidth());
+            expl.editTerrain(game);
+            if (mSettler != null) {
+                // The neighbors of a changed column may be unstable too
+                mSettler.disturb(mDirtyStart[i] - 1, mDirtyEnd[i],
+                                 expl.getPerp());
+            }
+        }
+        game.cacheTerrain();
+
+        // Falling pass
+        Terrain terrain = model.getTerrain();
+        Player players[] = model.getPlayers();
+        int numFallen = 0;
+        for (Player victim : players) {
+            int perp = findPerp(victim.getX());
+            if (perp == Player.INVALID_PLAYER_ID)
+                continue;
+            if (victim.doFalling(terrain)) {
+                mFallen[numFallen] = victim.getId();
+                mFallenPerp[numFallen] = perp;
+                numFallen++;
+            }
+        }
+
+        // Notification pass
+        if (numFallen != 0) {
+            for (Player p : players) {
+                if (! p.isAlive())
+                    continue;
+                Brain brain = p.getBrain();
+                for (int i = 0; i < numFallen; i++)
+                    brain.notifyPlayerFell(mFallenPerp[i], mFallen[i]);
+            }
+        }
+
+        for (int i = 0; i < mNumPending; i++)
+            mPending[i] = null;
+        mNumPending = 0;
+    }
+
+    /** Returns the perpetrator of the last pending explosion that changed
+     * column x, or INVALID_PLAYER_ID if none of them did. */
+    private int findPerp(int x) {
+        for (int i = mNumPending - 1; i >= 0; i--) {
+            if ((x >= mDirtyStart[i]) && (x < mDirtyEnd[i]))
+                return mPending[i].getPerp();
+        }
+        return Player.INVALID_PLAYER_ID;
+    }
+
+    /*================= Lifecycle =================*/
+    /**
+     * @param maxExplosions     The most explosions that can finish in a
+     *                          single step
+     */
+    public ExplosionResolver(int maxExplosions) {
+        mPending = new Explosion[maxExplosions];
+        mNumPending = 0;
+        mDirtyStart = new int[maxExplosions];
+        mDirtyEnd = new int[maxExplosions];
+        mFallen = new int[Model.MAX_PLAYERS];
+        mFallenPerp = new int[Model.MAX_PLAYERS];
+        mSettler = null;
+    }
+}
@@ -0,0 +1,245 @@
+package com.senchas.salvo;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Looks for a terrain, and player positions on it, that are fair to
+ * everyone.
+ *
+ * Random terrain is sometimes unplayable. A tank can end up at the bottom
+ * of a pit that nothing can get into, or behind a mountain that shelters
+ * it from everyone else. So when fair maps are turned on, we generate
+ * NUM_CANDIDATES terrains. Each one gets the usual evenly spaced positions,
+ * each nudged by up to PLACEMENT_JITTER columns, but never so far that two
+ * tanks end up closer than MIN_SEPARATION. Then we score them and keep the
+ * best one.
+ *
+ * Scoring
+ * -------
+ * From each position, we fire a grid of test shots at every angle and
+ * power in ANGLE_STEP and POWER_STEP increments, using the same physics as
+ * Projectile and the current wind, and note where each one comes down. A
+ * shot which lands within HIT_RADIUS of another position counts as a hit
+ * on that position. The shots only depend on the shooter, so each
+ * position fires its grid once, no matter how many players there are.
+ *
+ * A pair of players within MAX_RANGE of each other, where one can't hit
+ * the other at all, costs UNREACHABLE_PENALTY. Players further apart than
+ * that only count towards exposure. After that, we prefer maps where the
+ * least exposed position is hit about as often as the most exposed one.
+ *
+ * The candidates are generated and scored in parallel by TerrainPipeline.
+ * Every peer in a network game runs the same search and has to pick the
+ * same map. So the budget is a fixed number of candidates, each taking at
+ * most a fixed number of simulated steps, rather than a time limit.
+ */
+public class FairMapSearch {
+    /*================= Constants =================*/
+    public static final int NUM_CANDIDATES = 6;
+
+    /** How far we can move a player from its usual position */
+    private static final int PLACEMENT_JITTER = 24;
+
+    private static final int ANGLE_STEP = 15;
+
+    private static final int POWER_STEP = 75;
+
+    /** How close a test shot has to land to count as a hit. This is
+     * about the size of a small missile's crater. */
+    private static final int HIT_RADIUS = 20;
+
+    /** How close two players can be after they have been moved. Any
+     * closer, and a shot at one would count as a hit on both. */
+    private static final int MIN_SEPARATION = 2 * HIT_RADIUS;
+
+    /** Longest a test shot can fly. The same as Projectile's limit. */
+    private static final int MAX_PROBE_STEPS = 700;
+
+    private static final int UNREACHABLE_PENALTY = 1000;
+
+    /** How far a full power shot goes over flat ground, with no wind.
+     * Players further apart than this can't hit each other on any map, so
+     * we don't hold it against the map. */
+    public static final int MAX_RANGE = (int)
+        (((Player.MAX_POWER / 120f) * (Player.MAX_POWER / 120f)) /
+         Terrain.GRAVITY);
+
+    /*================= Types =================*/
+    /** A terrain and some player positions on it */
+    public static class Candidate {
+        /*================= Data =================*/
+        private final Terrain mTerrain;
+
+        private final List < Integer > mPositions;
+
+        private int mScore;
+
+        /*================= Access =================*/
+        public Terrain getTerrain() {
+            return mTerrain;
+        }
+
+        /** Returns the x coordinates for the players. The list is a copy
+         * you can modify. */
+        public List < Integer > getPositions() {
+            return new LinkedList < Integer >(mPositions);
+        }
+
+        public int getScore() {
+            return mScore;
+        }
+
+        /*================= Lifecycle =================*/
+        private Candidate(Terrain terrain, List < Integer > positions) {
+            mTerrain = terrain;
+            mPositions = positions;
+        }
+    }
+
+    /*================= Static =================*/
+    /** Generates NUM_CANDIDATES maps, and returns the fairest.
+     *
+     * 'random' is only used on the calling thread, to seed the
+     * candidates, so the result depends only on its state.
+     */
+    public static Candidate search(final TerrainFactory fac, Random random,
+                                   final int width, final int numPlayers,
+                                   final int wind) {
+        final long seeds[] = new long[NUM_CANDIDATES];
+        for (int c = 0; c < NUM_CANDIDATES; c++)
+            seeds[c] = random.nextLong();
+        final Candidate cands[] = new Candidate[NUM_CANDIDATES];
+        Runnable tasks[] = new Runnable[NUM_CANDIDATES];
+        for (int c = 0; c < NUM_CANDIDATES; c++) {
+            final int idx = c;
+            tasks[c] = new Runnable() {
+                public void run() {
+                    cands[idx] = makeCandidate(fac, new Random(seeds[idx]),
+                                               width, numPlayers, wind);
+                }
+            };
+        }
+        TerrainPipeline.runAll(tasks);
+
+        Candidate best = cands[0];
+        for (int c = 1; c < NUM_CANDIDATES; c++) {
+            if (cands[c].mScore > best.mScore)
+                best = cands[c];
+        }
+        return best;
+    }
+
+    private static Candidate makeCandidate(TerrainFactory fac,
+                                Random random, int width,
+                                int numPlayers, int wind) {
+        Terrain terrain = fac.createTerrain(random, width);
+        int w = terrain.getWidth();
+        List < Integer > usual =
+            ModelFactory.getValidPlayerPlacements(numPlayers, w);
+
+        // If every player moves by at most half of what the closest two
+        // have to spare, nobody ends up closer than MIN_SEPARATION.
+        int minGap = Integer.MAX_VALUE;
+        int prev = -1;
+        for (Integer p : usual) {
+            if (prev != -1)
+                minGap = Math.min(minGap, p.intValue() - prev);
+            prev = p.intValue();
+        }
+        int jitter = Math.max(0, Math.min(PLACEMENT_JITTER,
+                                          (minGap - MIN_SEPARATION) / 2));
+
+        List < Integer > positions = new LinkedList < Integer >();
+        for (Integer p : usual) {
+            int x = p.intValue() + random.nextInt(2 * jitter + 1) - jitter;
+            x = Math.max(Terrain.SIDE_BUFFER_SIZE,
+                         Math.min(w - Terrain.SIDE_BUFFER_SIZE, x));
+            positions.add(Integer.valueOf(x));
+        }
+        Candidate ret = new Candidate(terrain, positions);
+        ret.mScore = score(terrain, positions, wind);
+        return ret;
+    }
+
+    /** Returns the fairness score for players at 'positions'. Higher is
+     * better. */
+    private static int score(Terrain terrain, List < Integer > positions,
+                             int wind) {
+        int n = positions.size();
+        int xs[] = new int[n];
+        for (int i = 0; i < n; i++)
+            xs[i] = positions.get(i).intValue();
+
+        // hits[j][i] is how many of j's test shots land near i
+        int hits[][] = new int[n][n];
+        for (int j = 0; j < n; j++) {
+            for (int angle = ANGLE_STEP; angle < Player.MAX_TURRET_ANGLE;
+                    angle += ANGLE_STEP) {
+                for (int power = POWER_STEP; power <= Player.MAX_POWER;
+                        power += POWER_STEP) {
+                    int land = probe(terrain, xs[j], angle, power,
+                                     wind);
+                    for (int i = 0; i < n; i++) {
+                        if ((i != j) &&
+                                (Math.abs(land - xs[i]) <= HIT_RADIUS))
+                            hits[j][i]++;
+                    }
+                }
+            }
+        }
+
+        int unreachable = 0;
+        int minExp = Integer.MAX_VALUE, maxExp = 0;
+        for (int i = 0; i < n; i++) {
+            int exp = 0;
+            for (int j = 0; j < n; j++) {
+                if (j == i)
+                    continue;
+                if ((hits[j][i] == 0) &&
+                        (Math.abs(xs[j] - xs[i]) <= MAX_RANGE))
+                    unreachable++;
+                exp += hits[j][i];
+            }
+            minExp = Math.min(minExp, exp);
+            maxExp = Math.max(maxExp, exp);
+        }
+        int balance = (maxExp == 0) ? 0 : ((minExp * 100) / maxExp);
+        return balance - (unreachable * UNREACHABLE_PENALTY);
+    }
+
+    /** Fires a test shot from a tank at x, and returns the x coordinate
+     * where it comes down, or -1 if it leaves the world or never lands.
+     *
+     * This is the same arithmetic as Projectile.launchProjectile and
+     * Projectile.step, but against the bare height field. It only reads
+     * the columns the shot passes over.
+     */
+    private static int probe(Terrain terrain, int x, int angleDeg,
+                             int power, int wind) {
+        final int w = terrain.getWidth();
+        float angleRad = (float)Math.toRadians(angleDeg);
+        float cos = (float)StrictMath.cos(angleRad);
+        float sin = - (float)StrictMath.sin(angleRad);
+        float dx = (cos * power) / 120f;
+        float dy = (sin * power) / 120f;
+        float px = (int)(x + (Player.TURRET_LENGTH * cos));
+        float py = (int)(terrain.getVal(x) - (Player.PLAYER_Y_SIZE / 4) +
+                         (Player.TURRET_LENGTH * sin));
+        float windDelta = wind;
+        windDelta /= 1300;
+        for (int step = 0; step < MAX_PROBE_STEPS; step++) {
+            px += dx;
+            py += dy;
+            dy += Terrain.GRAVITY;
+            dx += windDelta;
+            int ix = (int)px;
+            if ((px < 0) || (ix >= w) || (py > Terrain.MAX_Y))
+                return -1;
+            if (py >= terrain.getVal(ix))
+                return ix;
+        }
+        return -1;
+    }
+}
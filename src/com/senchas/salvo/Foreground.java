@@ -1,4 +1,6 @@
 package com.senchas.salvo;
+import java.util.Random;
+
 import android.graphics.Color;
 import com.senchas.salvo.Background;
 
@@ -36,12 +38,13 @@ public enum Foreground {
         true);
 
     /*================= Static =================*/
-    public static Foreground getRandomForeground(Background curBg) {
+    public static Foreground getRandomForeground(Random random,
+                                                 Background curBg) {
         Foreground fg[] = Foreground.values();
         int i;
 
         while (true) {
-            i = Util.mRandom.nextInt(fg.length);
+            i = random.nextInt(fg.length);
             if (fg[i].isCompatible(curBg))
                 break;
         }
@@ -1,13 +1,11 @@
 package com.senchas.salvo;
 
-import com.senchas.salvo.RunGameAct.RunGameActAccessor;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -15,6 +13,7 @@ import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Controller for the Scorched Android game.
@@ -26,18 +25,24 @@ import android.view.SurfaceView;
  * We forward all user input and important events up to RunGame.java and the
  * state machine so that they can be handled in a centralized and consistent
  * way.
+ *
+ * Threading
+ * ---------
+ * Drawing happens on a separate render thread. The game thread calls
+ * drawScreen() and drawSky() with the state lock held; those just copy what
+ * is needed into a RenderSnapshot and hand it over through a TripleBuffer.
+ * The render thread draws the newest snapshot whenever one shows up. So the
+ * game thread never waits for lockCanvas() or unlockCanvasAndPost(), and
+ * the simulation and the drawing can run on different cores.
+ *
+ * Fields marked "game thread" are only touched with the state lock held.
+ * Fields marked "render thread" are only touched by the render thread.
  */
 class GameControlView extends SurfaceView  {
     /*================= Constants =================*/
-    /** size of mLineTemp */
-    private static final int LINE_TEMP_SIZE = 80;
-
-    /** number of coordinates needed to describe a line */
-    private static final int COORDS_PER_LINE = 4;
-
     private static final int TURRET_STROKE_WIDTH = 3;
 
-    private static final byte FIRE_BAR_ALPHA= (byte)0xaa;
+    static final byte FIRE_BAR_ALPHA= (byte)0xaa;
 
     private static final int SELECTION_CIRCLE_RADIUS = 32;
 
@@ -45,158 +50,461 @@ class GameControlView extends SurfaceView  {
 
     private static final int BAR_HEIGHT = 50;
 
+    /** The config of the background and cached terrain bitmaps. The
+     * backgrounds are opaque, so we don't need an alpha channel. */
+    private static final Bitmap.Config BACKGROUND_CONFIG =
+        Bitmap.Config.RGB_565;
+
+    private static final TerrainRasterizer.GroundStyle GROUND_STYLE =
+        TerrainRasterizer.GroundStyle.SOLID;
+
+    /** How often we redraw the last frame while particles are moving and
+     * the game has nothing new to show */
+    private static final long PARTICLE_FRAME_NANOS = 33L * 1000L * 1000L;
+
+    private static final long NANOS_PER_MS = 1000L * 1000L;
+
+    /** Where the timings go, when they are shown */
+    private static final int OVERLAY_X = 4;
+
+    private static final int OVERLAY_Y = 14;
+
+    private static final int OVERLAY_TEXT_SIZE = 12;
+
     /*================= Types =================*/
+    /** Draws snapshots as they come in */
+    private class RenderThread extends Thread {
+        /*================= Data =================*/
+        private volatile boolean mStopRequested;
+
+        /** True once we have taken a snapshot. Until then, the front
+         * buffer may be empty, or left over from before the surface went
+         * away. */
+        private boolean mHaveSnapshot;
+
+        /*================= Operations =================*/
+        @Override
+        public void run() {
+            while (! mStopRequested) {
+                RenderSnapshot snap = mSnapshots.takeFront();
+                if (snap == null) {
+                    if ((! mHaveSnapshot) || mParticles.isEmpty()) {
+                        LockSupport.park();
+                        continue;
+                    }
+                    // Keep the particles moving, even if the game has
+                    // stopped sending frames
+                    LockSupport.parkNanos(PARTICLE_FRAME_NANOS);
+                    snap = mSnapshots.takeFront();
+                    if (snap == null)
+                        snap = mSnapshots.getFront();
+                }
+                mHaveSnapshot = true;
+                render(snap);
+            }
+        }
+
+        public void requestStop() {
+            mStopRequested = true;
+            LockSupport.unpark(this);
+        }
+
+        /*================= Lifecycle =================*/
+        public RenderThread() {
+            super("RenderThread");
+            mStopRequested = false;
+            mHaveSnapshot = false;
+        }
+    }
 
     /*================= Data =================*/
-    /** temporary storage for line values */
-    private float mLineTemp[];
+    /** Snapshots on their way from the game thread to the render thread */
+    private final TripleBuffer < RenderSnapshot > mSnapshots;
+
+    /** The render thread, or null if the surface isn't available */
+    private volatile RenderThread mRenderThread;
+
+    /** The scenery for the current round (game thread) */
+    private Background mBackground;
+    private Foreground mForeground;
+
+    /** Increases every time the terrain changes (game thread) */
+    private int mTerrainVersion;
+
+    /** The left edge of the screen, in world coordinates (game thread) */
+    private int mCameraX;
+
+    /** The camera position of the last frame drawn (render thread writes,
+     * anyone reads) */
+    private volatile int mDrawnCameraX;
 
     private Paint mTempPlayerPaint;
 
-    private Path mPathTmp, mPathTmp2;
+    /** Pictures of the tanks (render thread) */
+    private final TankSprites mTankSprites;
+
+    /** Sparks, dirt and smoke (render thread, except for emit and
+     * clear) */
+    private final ParticleSystem mParticles;
+
+    /** When the particles were last updated, from PerfStats.now()
+     * (render thread) */
+    private long mParticleTime;
+
+    /** Where we record timings (any thread) */
+    private volatile PerfStats mPerfStats;
+
+    /** For drawing the timings (render thread) */
+    private final Paint mOverlayPaint;
+    private final StringBuilder mOverlayText;
+    private final char mOverlayChars[];
+
+    /** The scenery that mBackgroundImage and mRasterizer were set up
+     * for (render thread) */
+    private Background mCurBackground;
+    private Foreground mCurForeground;
 
     private Bitmap mBackgroundImage;
 
-    private Paint mForegroundPaint;
+    /** Decoded background images (any thread) */
+    private final BackgroundCache mBackgroundCache;
+
+    /** Draws the terrain into mCachedTerrain (render thread) */
+    private final TerrainRasterizer mRasterizer;
 
     private Bitmap mCachedTerrain;
 
-    private Canvas mCachedTerrainCanvas;
+    /** The terrain version in mCachedTerrain (render thread) */
+    private int mCachedTerrainVersion;
+
+    /** The camera position in mCachedTerrain (render thread) */
+    private int mCachedTerrainCameraX;
+
+    /*================= Access =================*/
+    /** Returns the left edge of the screen in world coordinates, as of
+     * the last frame that was drawn. Touch events need this to find out
+     * where on the terrain the user touched. */
+    public int getCameraX() {
+        return mDrawnCameraX;
+    }
+
+    /** Returns how many playfield pixels there are to each pixel of the
+     * view, across. The surface is stretched to fill the view, so touch
+     * coordinates have to be multiplied by this. */
+    public float getTouchScaleX() {
+        int w = getWidth();
+        return (w <= 0) ? 1f : (Terrain.MAX_X / (float)w);
+    }
+
+    /** Like getTouchScaleX, but up and down */
+    public float getTouchScaleY() {
+        int h = getHeight();
+        return (h <= 0) ? 1f : (Terrain.MAX_Y / (float)h);
+    }
 
     /*================= Operations =================*/
     /** Draws just the sky.
      */
     public void drawSky() {
-        Canvas canvas = null;
-        SurfaceHolder holder = getHolder();
-        try {
-            canvas = holder.lockCanvas(null);
-            canvas.drawBitmap(mBackgroundImage, 0, 0, null);
-        }
-        finally {
-            if (canvas != null) {
-                // Don't leave the Surface in an inconsistent state
-                holder.unlockCanvasAndPost(canvas);
-            }
-        }
+        mSnapshots.getBack().captureSky(mBackground, mForeground);
+        publish();
+    }
+
+    /** Sets where timings are recorded. Call this before rendering
+     * starts. */
+    public void setPerfStats(PerfStats perfStats) {
+        mPerfStats = perfStats;
+    }
+
+    /** Asks for some particles. Can be called from any thread. */
+    public void emitParticles(ParticleSystem.Effect effect, int x, int y,
+                              int size) {
+        mParticles.emit(effect, x, y, size);
     }
 
     /** Draws the screen.
      *
-     * @param acc       The RunGameActAccessor
+     * @param acc       The GameHost
      *
      * @param power     The length of the power bar at the bottom of the
      *                  screen, or Player.INVALID_POWER if the bar should not
      *                  be displayed.
      */
-    public void drawScreen(RunGameActAccessor acc, int power,
+    public void drawScreen(GameHost acc, int power,
                        Projectile projectiles[], Explosion explosions[]) {
-        Canvas canvas = null;
-        SurfaceHolder holder = getHolder();
         Model model = acc.getModel();
-        try {
-            canvas = holder.lockCanvas(null);
-            canvas.drawBitmap(mCachedTerrain, 0, 0, null);
-            for (Player player : model.getPlayers()) {
-                drawPlayer(canvas, model.getCurPlayerId(), player);
-            }
-            if (power != Player.INVALID_POWER) {
-                int bar_x = (power * MAX_BAR_LENGTH) / Player.MAX_POWER;
-                int playerBlendColor =
-                    model.getCurPlayer().getBaseColor().toInt(FIRE_BAR_ALPHA);
-                mTempPlayerPaint.setColor(playerBlendColor);
-                mTempPlayerPaint.setStyle(Paint.Style.FILL);
-                canvas.drawRect(0, Terrain.MAX_Y - BAR_HEIGHT,
-                                bar_x, Terrain.MAX_Y,
-                                mTempPlayerPaint);
+        long start = PerfStats.now();
+        updateCamera(model, projectiles);
+        mSnapshots.getBack().capture(model, power,
+                                     projectiles, explosions,
+                                     mTerrainVersion, mCameraX,
+                                     mBackground, mForeground);
+        publish();
+        mPerfStats.record(PerfStats.Probe.CAPTURE, start);
+    }
+
+    /** Moves the camera so that the action is in the middle of the screen.
+     *
+     * We follow the first projectile in flight. If there isn't one, we
+     * look at the current player. The camera never goes past the edges of
+     * the world. In a world that is one screen wide, it stays at 0.
+     */
+    private void updateCamera(Model model, Projectile projectiles[]) {
+        int width = model.getTerrain().getWidth();
+        if (width <= Terrain.MAX_X) {
+            mCameraX = 0;
+            return;
+        }
+        int target = -1;
+        for (Projectile proj : projectiles) {
+            if (proj.getInUse()) {
+                target = (int)proj.getCurX();
+                break;
             }
-            for (Projectile proj : projectiles) {
-                if (! proj.getInUse())
-                    continue;
-                mTempPlayerPaint.setColor(Projectile.PROJECTILE_COLOR);
-                mTempPlayerPaint.setStyle(Paint.Style.FILL);
-                if (proj.isOffscreen()) {
-                    float x = proj.getCurX();
-                    canvas.drawRect(x - 5, 0, x + 5, 5, mTempPlayerPaint);
-                }
-                else {
-                    canvas.drawCircle(proj.getCurX(), proj.getCurY(),
-                            Projectile.PROJECTILE_RADIUS, mTempPlayerPaint);
-                }
+        }
+        if (target == -1) {
+            if (model.getCurPlayerId() == Player.INVALID_PLAYER_ID)
+                return;
+            target = model.getCurPlayer().getX();
+        }
+        int cam = target - (Terrain.MAX_X / 2);
+        mCameraX = Math.max(0, Math.min(cam, width - Terrain.MAX_X));
+    }
+
+    /** Tells us that the terrain has changed. It will be redrawn with the
+     * next frame. */
+    public void cacheTerrain(GameHost acc) {
+        mTerrainVersion++;
+    }
+
+    /** Hands the back snapshot to the render thread */
+    private void publish() {
+        mSnapshots.publish();
+        RenderThread t = mRenderThread;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    /** Starts the render thread. Call this once the surface exists. */
+    public void startRendering() {
+        if (mRenderThread != null)
+            return;
+        mRenderThread = new RenderThread();
+        mRenderThread.start();
+    }
+
+    /** Stops the render thread, and waits for it to finish. After this
+     * returns, nothing will touch the surface.
+     *
+     * We won't be drawing again until the surface comes back, so we give
+     * up our bitmaps too. They are the biggest things we have.
+     */
+    public void stopRendering() {
+        RenderThread t = mRenderThread;
+        if (t == null)
+            return;
+        mRenderThread = null;
+        t.requestStop();
+        boolean retry = true;
+        while (retry) {
+            try {
+                t.join();
+                retry = false;
             }
-            for (Explosion expl : explosions) {
-                if (! expl.getInUse())
-                    continue;
-                mTempPlayerPaint.setColor(
-                    expl.getExplosionAttributes().getColor());
-                //mTempPlayerPaint.setColor(Projectile.PROJECTILE_COLOR);
-                mTempPlayerPaint.setStyle(Paint.Style.FILL);
-                int size = expl.getCurExplosionSize(System.currentTimeMillis());
-                canvas.drawCircle(expl.getX(), expl.getY(),
-                                  size, mTempPlayerPaint);
+            catch (InterruptedException e) {
             }
         }
+        mBackgroundImage = null;
+        mCurBackground = null;
+        mCurForeground = null;
+        if (mCachedTerrain != null) {
+            mCachedTerrain.recycle();
+            mCachedTerrain = null;
+        }
+        mBackgroundCache.clear();
+        mTankSprites.clear();
+        mParticles.clear();
+    }
+
+    /** Decodes the image for 'bg' now, on the calling thread, so that
+     * the render thread doesn't have to when the next round starts. */
+    public void preloadBackground(Background bg) {
+        mBackgroundCache.get(bg);
+    }
+
+    /*================= Rendering =================*/
+    // Everything below here runs on the render thread.
+
+    /** Draws a snapshot */
+    private void render(RenderSnapshot snap) {
+        final PerfStats perf = mPerfStats;
+        final long start = PerfStats.now();
+
+        updateScenery(snap.mBackground, snap.mForeground);
+        if (! snap.mSkyOnly)
+            updateCachedTerrain(snap);
+        mParticles.update((int)((start - mParticleTime) / NANOS_PER_MS));
+        mParticleTime = start;
+        Canvas canvas = null;
+        SurfaceHolder holder = getHolder();
+        long t = PerfStats.now();
+        perf.record(PerfStats.Probe.TERRAIN, start);
+        try {
+            canvas = holder.lockCanvas(null);
+            if (canvas == null)
+                return;
+            perf.record(PerfStats.Probe.LOCK, t);
+            t = PerfStats.now();
+            if (snap.mSkyOnly)
+                canvas.drawBitmap(mBackgroundImage, 0, 0, null);
+            else
+                drawFrame(canvas, snap);
+            if (perf.isOverlayEnabled())
+                drawPerfOverlay(canvas, perf);
+            perf.record(PerfStats.Probe.DRAW, t);
+        }
         finally {
             if (canvas != null) {
                 // Don't leave the Surface in an inconsistent state
+                t = PerfStats.now();
                 holder.unlockCanvasAndPost(canvas);
+                perf.record(PerfStats.Probe.POST, t);
+                perf.record(PerfStats.Probe.FRAME, start);
+                mParticles.reportFrameTime((int)
+                    ((PerfStats.now() - start) / NANOS_PER_MS));
             }
         }
     }
 
-    /** Cache the terrain in memory */
-    public void cacheTerrain(RunGameActAccessor acc) {
-        //canvas.drawColor(Color.BLACK);
-        mCachedTerrainCanvas.drawBitmap(mBackgroundImage, 0, 0, null);
-
-        short h[] = acc.getModel().getTerrain().getBoard();
-        for (int x = 0; x < Terrain.MAX_X; x += LINE_TEMP_SIZE) {
-            int j = 0;
-            for (int i = 0; i < LINE_TEMP_SIZE; i++) {
-                mLineTemp[j] = x + i;
-                j++;
-                mLineTemp[j] = h[x + i];
-                j++;
-                mLineTemp[j] = x + i;
-                j++;
-                mLineTemp[j] = Terrain.MAX_Y;
-                j++;
+    /** Draws the latest timings in the top left corner */
+    private void drawPerfOverlay(Canvas canvas, PerfStats perf) {
+        StringBuilder b = mOverlayText;
+        b.setLength(0);
+        appendMs(b.append("frame "),
+                 perf.get(PerfStats.Probe.FRAME).getLast());
+        appendMs(b.append(" ms (avg "),
+                 perf.get(PerfStats.Probe.FRAME).getMean());
+        b.append(") steps ");
+        b.append(perf.get(PerfStats.Probe.STEPS_PER_FRAME).getLast());
+        appendMs(b.append(" AI "),
+                 perf.get(PerfStats.Probe.AI_MOVE).getLast());
+        b.append(" ms");
+        int len = Math.min(b.length(), mOverlayChars.length);
+        b.getChars(0, len, mOverlayChars, 0);
+        canvas.drawText(mOverlayChars, 0, len, OVERLAY_X, OVERLAY_Y,
+                        mOverlayPaint);
+    }
+
+    /** Appends a time in microseconds as milliseconds, with one decimal
+     * place */
+    private static StringBuilder appendMs(StringBuilder b, long us) {
+        b.append(us / 1000).append('.').append((us / 100) % 10);
+        return b;
+    }
+
+    private void drawFrame(Canvas canvas, RenderSnapshot snap) {
+        canvas.drawBitmap(mCachedTerrain, 0, 0, null);
+        mDrawnCameraX = snap.mCameraX;
+
+        // The power bar stays put on the screen
+        if (snap.mPower != Player.INVALID_POWER) {
+            int bar_x = (snap.mPower * MAX_BAR_LENGTH) / Player.MAX_POWER;
+            mTempPlayerPaint.setColor(snap.mPowerColor);
+            mTempPlayerPaint.setStyle(Paint.Style.FILL);
+            canvas.drawRect(0, Terrain.MAX_Y - BAR_HEIGHT,
+                            bar_x, Terrain.MAX_Y,
+                            mTempPlayerPaint);
+        }
+
+        // Everything else is in world coordinates
+        canvas.save();
+        canvas.translate(-snap.mCameraX, 0);
+        for (int i = 0; i < snap.mNumPlayers; i++) {
+            drawPlayer(canvas, snap, i);
+        }
+        for (int i = 0; i < snap.mNumProjectiles; i++) {
+            mTempPlayerPaint.setColor(Projectile.PROJECTILE_COLOR);
+            mTempPlayerPaint.setStyle(Paint.Style.FILL);
+            float x = snap.mProjX[i];
+            if (snap.mProjOffscreen[i]) {
+                canvas.drawRect(x - 5, 0, x + 5, 5, mTempPlayerPaint);
+            }
+            else {
+                canvas.drawCircle(x, snap.mProjY[i],
+                        Projectile.PROJECTILE_RADIUS, mTempPlayerPaint);
             }
-            mCachedTerrainCanvas.drawLines(mLineTemp,
-                    0, LINE_TEMP_SIZE * COORDS_PER_LINE,
-                    mForegroundPaint);
         }
+        for (int i = 0; i < snap.mNumExplosions; i++) {
+            mTempPlayerPaint.setColor(snap.mExplColor[i]);
+            mTempPlayerPaint.setStyle(Paint.Style.FILL);
+            canvas.drawCircle(snap.mExplX[i], snap.mExplY[i],
+                              snap.mExplSize[i], mTempPlayerPaint);
+        }
+        mParticles.draw(canvas);
+        canvas.restore();
     }
 
-    private void drawPlayer(Canvas canvas, int curPlayerId,
-                            Player player) {
-        if (! player.isAlive())
+    /** Loads the images for the background and foreground, if they have
+     * changed */
+    private void updateScenery(Background bg, Foreground fg) {
+        if ((bg == mCurBackground) && (fg == mCurForeground))
             return;
+        mBackgroundImage = mBackgroundCache.get(bg);
 
-        final int x = player.getX();
-        final int y = player.getY();
-        final int ty = player.getTurretCenterY();
-        final int sx = Player.PLAYER_X_SIZE;
-        final int sy = Player.PLAYER_Y_SIZE;
-        int playerColor = player.getBodyColor();
-        int playerAuraColor = player.getAuraColor();
-        int outlineColor = player.getOutlineColor();
-
-        if (player.getAuraAlpha() != 0) {
-            mTempPlayerPaint.setColor(playerAuraColor);
-            mTempPlayerPaint.setStyle(Paint.Style.FILL);
-            // Draw selection circle
-            canvas.drawCircle(x, y, SELECTION_CIRCLE_RADIUS,
-                                mTempPlayerPaint);
+        if (Util.mDebug > 1) {
+            StringBuilder b = new StringBuilder(80);
+            b.append("Using foreground=").append(fg.name());
+            b.append(" background=").append(bg.name());
+            Log.w(this.getClass().getName(), b.toString());
+        }
+
+        // Every background is decoded in the same config and size, so the
+        // terrain bitmap can be used for round after round.
+        if (mCachedTerrain == null) {
+            mCachedTerrain = Bitmap.createBitmap(Terrain.MAX_X,
+                                    Terrain.MAX_Y, BACKGROUND_CONFIG);
         }
+        mRasterizer.setScenery(mBackgroundImage, fg.getColor(),
+                               GROUND_STYLE);
+        mParticles.setDirtColor(fg.getColor());
+        mCachedTerrainVersion = -1;
+        mCurBackground = bg;
+        mCurForeground = fg;
+    }
+
+    /** Redraws the cached terrain, if it has changed */
+    private void updateCachedTerrain(RenderSnapshot snap) {
+        if ((snap.mTerrainVersion == mCachedTerrainVersion) &&
+                (snap.mBoardCameraX == mCachedTerrainCameraX))
+            return;
+        mCachedTerrainVersion = snap.mTerrainVersion;
+        mCachedTerrainCameraX = snap.mBoardCameraX;
+        if (snap.mCaves)
+            mRasterizer.drawBitmap(snap.mBitmap);
+        else
+            mRasterizer.drawBoard(snap.mBoard);
+        mRasterizer.upload(mCachedTerrain);
+    }
+
+    private void drawPlayer(Canvas canvas, RenderSnapshot snap, int i) {
+        if (! snap.mAlive[i])
+            return;
+
+        final int x = snap.mX[i];
+        final int y = snap.mY[i];
+        final int ty = snap.mTurretY[i];
+        int playerColor = snap.mBodyColor[i];
+        int outlineColor = snap.mOutlineColor[i];
+
+        if (snap.mHasAura[i])
+            mTankSprites.drawAura(canvas, x, y, snap.mAuraColor[i]);
 
         // Draw turret
         mTempPlayerPaint.setColor(outlineColor);
         mTempPlayerPaint.setStrokeWidth(TURRET_STROKE_WIDTH +
                                         Player.BORDER_SIZE);
-        float angle = player.getAngleRad();
-        float sin = (float)Math.sin(angle);
-        float cos = (float)Math.cos(angle);
+        float sin = TankSprites.turretSin(snap.mAngleDeg[i]);
+        float cos = TankSprites.turretCos(snap.mAngleDeg[i]);
         canvas.drawLine(x, ty,
             x + ((Player.TURRET_LENGTH + Player.BORDER_SIZE) * cos),
             ty - ((Player.TURRET_LENGTH + Player.BORDER_SIZE) * sin),
@@ -211,32 +519,7 @@ class GameControlView extends SurfaceView  {
         mTempPlayerPaint.setStrokeWidth(1);
 
         // Draw tank body
-        mPathTmp.moveTo(x - (sx / 2), y);
-        mPathTmp.lineTo(x - (sx / 4), y - (sy / 5.5f));
-        mPathTmp.lineTo(x + (sx / 4), y - (sy / 5.5f));
-        mPathTmp.lineTo(x + (sx / 2), y);
-        mPathTmp.lineTo(x + ((sx * 3) / 10), y + (sy / 2));
-        mPathTmp.lineTo(x - ((sx * 3) / 10), y + (sy / 2));
-        mPathTmp.lineTo(x - (sx / 2), y);
-
-        mPathTmp2.moveTo(x - (sx / 4), y - (sy / 5.5f));
-        mPathTmp2.lineTo(x - (sx / 4), y - (sy / 2f));
-        mPathTmp2.lineTo(x + (sx / 4), y - (sy / 2f));
-        mPathTmp2.lineTo(x + (sx / 4), y - (sy / 5.5f));
-        mPathTmp2.lineTo(x - (sx / 4), y - (sy / 5.5f));
-
-        mTempPlayerPaint.setStyle(Paint.Style.FILL);
-        mTempPlayerPaint.setColor(playerColor);
-        canvas.drawPath(mPathTmp, mTempPlayerPaint);
-        canvas.drawPath(mPathTmp2, mTempPlayerPaint);
-
-        mTempPlayerPaint.setStyle(Paint.Style.STROKE);
-        mTempPlayerPaint.setColor(outlineColor);
-        canvas.drawPath(mPathTmp, mTempPlayerPaint);
-        canvas.drawPath(mPathTmp2, mTempPlayerPaint);
-
-        mPathTmp.reset();
-        mPathTmp2.reset();
+        mTankSprites.drawBody(canvas, x, y, playerColor, outlineColor);
     }
 
     @Override
@@ -290,28 +573,16 @@ class GameControlView extends SurfaceView  {
     //}
 
     /*================= Lifecycle =================*/
-    /** Initialize this GameControlView.
+    /** Initialize this GameControlView for a new round.
      *
-     * Must be called before trying to draw anything.
+     * Must be called before trying to draw anything. The images are loaded
+     * on the render thread, when the first frame of the round is drawn.
      */
     public void initialize(Background bg, Foreground fg) {
-        mBackgroundImage = BitmapFactory.decodeResource
-            (getContext().getResources(), bg.getResId());
-
-        mForegroundPaint = new Paint();
-        mForegroundPaint.setColor(fg.getColor());
-        mForegroundPaint.setAntiAlias(false);
-
-        if (Util.mDebug > 1) {
-            StringBuilder b = new StringBuilder(80);
-            b.append("Using foreground=").append(fg.name());
-            b.append(" background=").append(bg.name());
-            Log.w(this.getClass().getName(), b.toString());
-        }
-
-        mCachedTerrain = Bitmap.createBitmap(Terrain.MAX_X, Terrain.MAX_Y,
-                                             mBackgroundImage.getConfig());
-        mCachedTerrainCanvas = new Canvas(mCachedTerrain);
+        mBackground = bg;
+        mForeground = fg;
+        mTerrainVersion++;
+        mParticles.clear();
     }
 
     public GameControlView(Context context, AttributeSet attrs) {
@@ -320,10 +591,35 @@ class GameControlView extends SurfaceView  {
         setFocusable(false); // make sure we get key events
         enableHardwareAcceleration();
 
-        mLineTemp = new float[LINE_TEMP_SIZE * COORDS_PER_LINE];
+        // Everything is drawn in playfield coordinates, into a surface
+        // that is exactly the size of the playfield. The compositor
+        // stretches it to fill the view in one pass, so a frame costs the
+        // same no matter how big the screen is.
+        getHolder().setFixedSize(Terrain.MAX_X, Terrain.MAX_Y);
+
+        mSnapshots = new TripleBuffer < RenderSnapshot >(
+            new RenderSnapshot(), new RenderSnapshot(), new RenderSnapshot());
+        mRenderThread = null;
+        mTerrainVersion = 0;
+        mCameraX = 0;
+        mDrawnCameraX = 0;
+        mCachedTerrainVersion = -1;
+        mCachedTerrainCameraX = 0;
+        mBackgroundCache = new BackgroundCache(context.getResources(),
+                                BACKGROUND_CONFIG, Terrain.MAX_X,
+                                Terrain.MAX_Y);
+        mRasterizer = new TerrainRasterizer();
         mTempPlayerPaint = new Paint();
         mTempPlayerPaint.setAntiAlias(true);
-        mPathTmp = new Path();
-        mPathTmp2 = new Path();
+        mTankSprites = new TankSprites(SELECTION_CIRCLE_RADIUS);
+        mParticles = new ParticleSystem();
+        mParticleTime = 0;
+        mPerfStats = new PerfStats();
+        mOverlayPaint = new Paint();
+        mOverlayPaint.setAntiAlias(true);
+        mOverlayPaint.setColor(Color.WHITE);
+        mOverlayPaint.setTextSize(OVERLAY_TEXT_SIZE);
+        mOverlayText = new StringBuilder(80);
+        mOverlayChars = new char[80];
     }
 }
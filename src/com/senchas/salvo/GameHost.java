@@ -0,0 +1,122 @@
+package com.senchas.salvo;
+
+/**
+ * The environment that a game runs in.
+ *
+ * GameStates, Brains and Explosions need to get at the game data and tell
+ * somebody when something interesting happens. They do both through a
+ * GameHost. On the phone, the GameHost is RunGameAct, which draws things on
+ * the screen and pops up dialog boxes. A headless Match implements the
+ * presentation methods as no-ops, so the same state machine can run on a
+ * server with no display at all.
+ *
+ * Locking
+ * -------
+ * Everything in this interface is called with the game's state lock held.
+ *
+ * Threading
+ * ---------
+ * The presentation methods may be called from either the main game thread
+ * or the UI thread. Implementations that care about which thread touches
+ * their widgets must take care of that themselves.
+ */
+public interface GameHost {
+    /*================= Access =================*/
+    /** Returns the game data */
+    public Cosmos getCosmos();
+
+    /** Returns the round data */
+    public Model getModel();
+
+    /*================= Game Flow =================*/
+    /** Starts a new round by creating a new Model.
+     *
+     * @param firstRound  If true, create a new Cosmos as well.
+     */
+    public void startRound(boolean firstRound);
+
+    /** Called once the Model for a new round is ready to be shown */
+    public void continueRound();
+
+    /** Called after the winner has been announced. */
+    public void endGame();
+
+    /** Asks the game to run the current state's main() soon, even though
+     * there's no input. For example, a RemoteBrain has been given a move.
+     * Can be called from any thread. */
+    public void wake();
+
+    /*================= Events =================*/
+    /** Called when a player commits to a move, just before it is carried
+     * out.
+     *
+     * @param playerId    The player making the move
+     * @param angle       The turret angle, in degrees
+     * @param power       The power, or 0 for weapons that aren't fired
+     * @param weapon      The weapon being used
+     */
+    public void notifyMove(int playerId, int angle, int power,
+                           WeaponType weapon);
+
+    /** Called when all the projectiles and explosions of a turn are
+     * finished. */
+    public void notifyBallisticsFinished();
+
+    /*================= Presentation =================*/
+    /** Draws the playing field.
+     *
+     * @param power       The power bar to draw, or Player.INVALID_POWER
+     * @param projectiles Projectiles to draw
+     * @param explosions  Explosions to draw
+     */
+    public void drawScreen(int power, Projectile projectiles[],
+                           Explosion explosions[]);
+
+    /** Draws just the sky */
+    public void drawSky();
+
+    /** Shows some particles around (x, y). This is only for show: nothing
+     * in the game may depend on it.
+     *
+     * @param effect      What kind of particles
+     * @param size        The radius of whatever made them
+     */
+    public void emitParticles(ParticleSystem.Effect effect, int x, int y,
+                              int size);
+
+    /** Notifies the host that the terrain has changed */
+    public void cacheTerrain();
+
+    /** Lets a human player buy weapons. The host must eventually deliver
+     * GameButton.DONE to the current state. */
+    public void showBuyWeapons(Player player);
+
+    /** Shows the leaderboard. The host must eventually deliver
+     * GameButton.OK to the current state. */
+    public void showLeaderboard();
+
+    /** Announces the winner. The host must eventually deliver
+     * GameButton.OK to the current state. */
+    public void showAnnounceWinner();
+
+    /** Briefly displays a message */
+    public void showToast(String text);
+
+    /** Displays a message that the user has to acknowledge */
+    public void showAlert(String text);
+
+    /** Sets the turret angle text */
+    public void setAngleText(String text);
+
+    /** Sets the text in the armory */
+    public void setArmoryText(String main, String secondary);
+
+    /** Un-hides the armory */
+    public void showArmory();
+
+    /** Hides the armory */
+    public void hideArmory();
+
+    /** Changes whether the fire button is highlighted */
+    public void setFireButtonHighlighted(boolean highlighted);
+}
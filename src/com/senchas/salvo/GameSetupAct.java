@@ -12,6 +12,7 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.Spinner;
 
 public class GameSetupAct extends Activity {
@@ -20,6 +21,8 @@ public class GameSetupAct extends Activity {
 
     private static final int LAUNCH_PLAYER_SETUP_ACT = 1;
 
+    private static final int LAUNCH_RUN_GAME_ACT = 2;
+
     /*================= Types =================*/
 
     /*================= Data =================*/
@@ -63,8 +66,22 @@ public class GameSetupAct extends Activity {
             (Spinner)findViewById(R.id.num_rounds_spinner);
         final Spinner cashAmountSpinner =
             (Spinner)findViewById(R.id.starting_cash_spinner);
+        final Spinner worldWidthSpinner =
+            (Spinner)findViewById(R.id.world_width_spinner);
         final CheckBox randPlayer =
             (CheckBox)findViewById(R.id.randomize_player_positions);
+        final CheckBox caves =
+            (CheckBox)findViewById(R.id.caves);
+        final CheckBox settlingDirt =
+            (CheckBox)findViewById(R.id.settling_dirt);
+        final CheckBox fairMaps =
+            (CheckBox)findViewById(R.id.fair_maps);
+        final CheckBox hostGame =
+            (CheckBox)findViewById(R.id.host_game);
+        final EditText joinAddress =
+            (EditText)findViewById(R.id.join_address);
+        final Button joinGame =
+            (Button)findViewById(R.id.join_game);
         final Button choosePlayers =
             (Button)findViewById(R.id.choose_players);
 
@@ -115,6 +132,28 @@ public class GameSetupAct extends Activity {
                 (mModelFactory.getStartingCash())
                     .ordinal());
 
+        ArrayAdapter < ModelFactory.WorldWidth > worldWidthA =
+            new ArrayAdapter < ModelFactory.WorldWidth >
+                (this,
+                R.layout.game_setup_spinner_item,
+                R.id.game_setup_spinner_item_text,
+                ModelFactory.WorldWidth.values());
+        worldWidthSpinner.setAdapter(worldWidthA);
+        worldWidthSpinner.setOnItemSelectedListener(
+            new Spinner.OnItemSelectedListener(){
+                public void onItemSelected(AdapterView<?> parent,
+                                    View v, int position, long id) {
+                    ModelFactory.WorldWidth w[] =
+                        ModelFactory.WorldWidth.values();
+                    mModelFactory.setWorldWidth(w[position].toInt());
+                }
+                public void onNothingSelected(AdapterView<?> arg0) { }
+            });
+        worldWidthSpinner.setSelection
+            (ModelFactory.WorldWidth.fromInt
+                (mModelFactory.getWorldWidth())
+                    .ordinal());
+
         randPlayer.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
                 mModelFactory.modifyRandomPlayerPlacement
@@ -123,6 +162,27 @@ public class GameSetupAct extends Activity {
         });
         randPlayer.setChecked(mModelFactory.getRandomPlayerPlacement());
 
+        caves.setOnClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                mModelFactory.setCaves(caves.isChecked());
+            }
+        });
+        caves.setChecked(mModelFactory.getCaves());
+
+        settlingDirt.setOnClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                mModelFactory.setSettlingDirt(settlingDirt.isChecked());
+            }
+        });
+        settlingDirt.setChecked(mModelFactory.getSettlingDirt());
+
+        fairMaps.setOnClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                mModelFactory.setFairMaps(fairMaps.isChecked());
+            }
+        });
+        fairMaps.setChecked(mModelFactory.getFairMaps());
+
         choosePlayers.setOnClickListener(new OnClickListener() {
             public void onClick(View arg0) {
                 Intent myIntent = new Intent().
@@ -130,9 +190,27 @@ public class GameSetupAct extends Activity {
                 Bundle map = new Bundle();
                 onSaveInstanceState(map);
                 myIntent.putExtra(GameSetupAct.GAME_SETUP_BUNDLE, map);
+                myIntent.putExtra(RunGameAct.HOST_GAME,
+                                  hostGame.isChecked());
                 startActivityForResult(myIntent, LAUNCH_PLAYER_SETUP_ACT);
             }
         });
+
+        joinGame.setOnClickListener(new OnClickListener() {
+            public void onClick(View arg0) {
+                String address = joinAddress.getText().toString().trim();
+                if (address.length() == 0) {
+                    new Util.DoToast(GameSetupAct.this, "Type in the " +
+                        "address of the phone hosting the game").run();
+                    return;
+                }
+                // The host picks the settings and the players.
+                Intent myIntent = new Intent().
+                        setClass(GameSetupAct.this, RunGameAct.class);
+                myIntent.putExtra(RunGameAct.JOIN_ADDRESS, address);
+                startActivityForResult(myIntent, LAUNCH_RUN_GAME_ACT);
+            }
+        });
     }
 
     @Override
@@ -147,6 +225,13 @@ public class GameSetupAct extends Activity {
 
     protected void onActivityResult(
             int requestCode, int resultCode, Intent data) {
+        if (requestCode == LAUNCH_RUN_GAME_ACT) {
+            if (resultCode != RunGameAct.RESULT_USER_PRESSED_BACK) {
+                setResult(PlayerSetupAct.RESULT_EXIT_OUT);
+                finish();
+            }
+            return;
+        }
         if (requestCode != LAUNCH_PLAYER_SETUP_ACT) {
             Log.e(this.getClass().getName(), "can't understand " +
                         "requestCode " + requestCode);
@@ -1,25 +1,15 @@
 package com.senchas.salvo;
 
-import android.app.AlertDialog;
-import android.content.Context;
-import android.content.DialogInterface;
-import android.graphics.Color;
 import android.os.Bundle;
 import java.lang.System;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import android.util.Log;
 import android.view.MotionEvent;
-import android.view.View;
-import android.widget.TextView;
 
 import com.senchas.salvo.Cosmos.PlayerInfo;
-import com.senchas.salvo.RunGameAct.AnnounceWinnerDialog;
-import com.senchas.salvo.RunGameAct.BuyWeaponsDialog;
-import com.senchas.salvo.RunGameAct.LeaderboardDialog;
-import com.senchas.salvo.RunGameAct.RunGameActAccessor;
-import com.senchas.salvo.RunGameAct.XmlColors;
 import com.senchas.salvo.WeaponType.Armory;
 
 
@@ -43,8 +33,9 @@ import com.senchas.salvo.WeaponType.Armory;
  * Threading
  * ---------
  * Some GameState callbacks are called by the UI thread; others are called by
- * the main game thread. There are a lot of things that you can only do in the
- * UI thread, so use runOnUiThread() for those if you must.
+ * the main game thread. GameStates never touch widgets directly. Instead,
+ * they ask the GameHost to show things, and the GameHost worries about which
+ * thread it is on.
  *
  * Memory management
  * -----------------
@@ -53,17 +44,18 @@ import com.senchas.salvo.WeaponType.Armory;
  * amount of times the garbage collector runs, because it is rather slow and
  * high-latency.
  *
- * So, GameState classes are singletons, stored in static data.
- * Instead of new(), each time we enter a new GameState we call initialize()
- * to set up the relevant private data.
+ * So, each game owns a GameStateFactory, which holds exactly one instance
+ * of each GameState class. Instead of new(), each time we enter a new
+ * GameState we call create(), which calls initialize() to set up the
+ * relevant private data and returns the preallocated object.
  *
- * In android, it sometimes happens that an Activity is destroyed, but the
- * containing Application (and associated static data) is preserved.
- * If that static data holds references to the destroyed Activity,
- * the garbage collector will never finalize it.
+ * GameStates are not stored in static data. That way, several independent
+ * games can run in the same process without stepping on each other's
+ * toes.
  *
- * So, you must never hold a reference to an Activity in a GameState's
- * private data-- or else you will create a potential memory leak.
+ * The GameStateFactory lives as long as the game does, which may be longer
+ * than the Activity that displays it. So you should still avoid holding a
+ * reference to an Activity in a GameState's private data.
  *
  */
 public abstract class GameState {
@@ -88,83 +80,10 @@ public abstract class GameState {
         }
     }
 
-    /** Runnable which sets a text view to a specified string. */
-    private static class SetTextView implements Runnable {
-        /*================= Operations =================*/
-        public void run() {
-            mTextView.setText(mStr);
-        }
-        /*================= Data =================*/
-        private TextView mTextView;
-        private String mStr;
-
-        /*================= Lifecycle =================*/
-        SetTextView(TextView textView, String str) {
-            mTextView = textView;
-            mStr = str;
-        }
-    }
-
-    /** Runnable which starts the 'buy weapons' dialog box */
-    private static class StartBuyWeaponsDialog implements Runnable {
-        /*================= Data =================*/
-        private RunGameAct mRunGameAct;
-
-        private Cosmos mCosmos;
-
-        private Player mPlayer;
-
-        /*================= Operations =================*/
-        public void run() {
-            BuyWeaponsDialog buyWeapons = mRunGameAct.new
-                    BuyWeaponsDialog(mRunGameAct, mCosmos, mPlayer);
-            buyWeapons.show();
-        }
-
-        /*================= Lifecycle=================*/
-        StartBuyWeaponsDialog(RunGameAct runGameAct,
-                              Cosmos cosmos, Player player) {
-            mRunGameAct = runGameAct;
-            mCosmos = cosmos;
-            mPlayer = player;
-        }
-    }
-
-    /** Runnable which starts the 'leaderboard' dialog box */
-    private static class StartLeaderboardDialog implements Runnable {
-        /*================= Data =================*/
-        RunGameAct mRunGameAct;
-
-        /*================= Operations =================*/
-        public void run() {
-            LeaderboardDialog leaderboard =
-                mRunGameAct.new LeaderboardDialog(mRunGameAct);
-            leaderboard.show();
-        }
-
-        /*================= Lifecycle=================*/
-        StartLeaderboardDialog(RunGameAct runGameAct) {
-            mRunGameAct = runGameAct;
-        }
-    }
-
-    /** Runnable which starts the announce winner dialog box */
-    private static class StartAnnounceWinnerDialog implements Runnable {
-        /*================= Data =================*/
-        RunGameAct mRunGameAct;
-
-        /*================= Operations =================*/
-        public void run() {
-            AnnounceWinnerDialog announceWinner =
-                mRunGameAct.new AnnounceWinnerDialog(mRunGameAct);
-            announceWinner.show();
-        }
-
-        /*================= Lifecycle=================*/
-        StartAnnounceWinnerDialog(RunGameAct runGameAct) {
-            mRunGameAct = runGameAct;
-        }
-    }
+    /*================= Data =================*/
+    /** The factory that owns this GameState. We use it to get hold of the
+     * next state when making a state transition. */
+    protected final GameStateFactory mFactory;
 
     /*================= Operations =================*/
     /** Pack this GameState into a Bundle.
@@ -178,7 +97,7 @@ public abstract class GameState {
      * Any "side effects" to entering the state should be performed here,
      * rather than in the initialization function.
      */
-    public void onEnter(RunGameActAccessor game) { }
+    public void onEnter(GameHost game) { }
 
     /** The function that will be executed for this state in the main event
      *  loop.
@@ -186,22 +105,39 @@ public abstract class GameState {
      * @return          the next state, or null if we want to stay in this
      *                  state
      */
-    public abstract GameState main(RunGameActAccessor game);
+    public abstract GameState main(GameHost game);
 
     /** Called when we exit the state.
      */
-    public void onExit(RunGameActAccessor game) { }
+    public void onExit(GameHost game) { }
 
     /** Returns the minimum of time that should elapse between calls to
      *  main(). If this is 0, we just block forever waiting for user input.
       */
     public abstract int getBlockingDelay();
 
+    /** Returns how long the game loop can sleep before calling main()
+     * again, taking into account any timers the state has scheduled.
+     * If this is 0, we just block forever waiting for user input.
+     */
+    public final int getWakeDelay() {
+        int delay = getBlockingDelay();
+        int timerDelay = mFactory.getTimers().getDelay();
+        if (timerDelay == TimerWheel.NO_DEADLINE)
+            return delay;
+        // 0 would mean "wait for input," so never return that for a timer
+        // which is already due.
+        timerDelay = Math.max(1, timerDelay);
+        if ((delay == 0) || (timerDelay < delay))
+            return timerDelay;
+        return delay;
+    }
+
     /** Called when the user presses a button
      *
      * @return  true if the main thread needs to be notified of a change
      */
-    public boolean onButton(RunGameActAccessor game, GameButton b) {
+    public boolean onButton(GameHost game, GameButton b) {
         return false;
     }
 
@@ -209,7 +145,7 @@ public abstract class GameState {
      *
      * @return  true if the main thread needs to be notified of a change
      */
-    public boolean onTouchEvent(RunGameActAccessor game, MotionEvent event) {
+    public boolean onTouchEvent(GameHost game, MotionEvent event) {
         return false;
     }
 
@@ -274,13 +210,15 @@ public abstract class GameState {
         /*================= Constants =================*/
         public static final byte ID = 0;
 
-        /*================= Static =================*/
-        private static LeaderboardState sMe = new LeaderboardState();
-
         /*================= Data =================*/
         private boolean mFinished;
         private boolean mDisplayActive;
-        private long mDisplayTime;
+
+        /** How long to wait before showing the leaderboard */
+        private int mInitialDelay;
+
+        /** Expires when it's time to show the leaderboard */
+        private final TimerWheel.Timer mDisplayTimer;
 
         /*================= Operations =================*/
         @Override
@@ -289,40 +227,42 @@ public abstract class GameState {
         }
 
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
+            mFactory.getTimers().schedule(mDisplayTimer, mInitialDelay);
         }
 
         @Override
-        public GameState main(RunGameActAccessor game) {
+        public GameState main(GameHost game) {
             if (! mDisplayActive) {
-                long curTime = System.currentTimeMillis();
-                if (curTime < mDisplayTime)
+                if (! mDisplayTimer.isExpired())
                     return null;
                 mDisplayActive = true;
-                RunGameAct runGameAct = game.getRunGameAct();
-                StartLeaderboardDialog dial =
-                    new StartLeaderboardDialog(runGameAct);
-                runGameAct.runOnUiThread(dial);
-                game.getGameControlView().drawSky();
+                game.showLeaderboard();
+                game.drawSky();
             }
 
             if (!mFinished)
                 return null;
             else if (game.getCosmos().moreRoundsRemaining()) {
                 game.getCosmos().nextRound();
-                return BuyWeaponsState.create(0);
+                return mFactory.getBuyWeaponsState().create(0);
             }
             else
-                return AnnounceWinnerState.create();
+                return mFactory.getAnnounceWinnerState().create();
+        }
+
+        @Override
+        public void onExit(GameHost game) {
+            mFactory.getTimers().cancel(mDisplayTimer);
         }
 
         @Override
         public int getBlockingDelay() {
-            return mDisplayActive ? 0 : 100;
+            return 0;
         }
 
         @Override
-        public boolean onButton(RunGameActAccessor game, GameButton b) {
+        public boolean onButton(GameHost game, GameButton b) {
             if (b == GameButton.OK) {
                 mFinished = true;
                 return true;
@@ -336,20 +276,24 @@ public abstract class GameState {
         private void initialize(int initialDelay) {
             mFinished = false;
             mDisplayActive = false;
-            mDisplayTime = System.currentTimeMillis() + initialDelay;
+            mInitialDelay = initialDelay;
+            mDisplayTimer.reset();
         }
 
-        public static LeaderboardState create(int initialDelay) {
-            sMe.initialize(initialDelay);
-            return sMe;
+        public LeaderboardState create(int initialDelay) {
+            initialize(initialDelay);
+            return this;
         }
 
-        public static LeaderboardState createFromBundle(Bundle map) {
-            sMe.initialize(0);
-            return sMe;
+        public LeaderboardState createFromBundle(Bundle map) {
+            initialize(0);
+            return this;
         }
 
-        private LeaderboardState() { }
+        LeaderboardState(GameStateFactory factory) {
+            super(factory);
+            mDisplayTimer = new TimerWheel.Timer();
+        }
     }
 
     ///** Displays the "and the winner is..." message */
@@ -357,9 +301,6 @@ public abstract class GameState {
         /*================= Constants =================*/
         public static final byte ID = 1;
 
-        /*================= Static =================*/
-        private static AnnounceWinnerState sMe = new AnnounceWinnerState();
-
         /*================= Data =================*/
         private boolean mFinished;
 
@@ -372,22 +313,19 @@ public abstract class GameState {
         }
 
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
         }
 
         @Override
-        public GameState main(RunGameActAccessor game) {
+        public GameState main(GameHost game) {
             if (!mDisplayActive) {
-                RunGameAct runGameAct = game.getRunGameAct();
-                StartAnnounceWinnerDialog dial =
-                    new StartAnnounceWinnerDialog(runGameAct);
-                runGameAct.runOnUiThread(dial);
-                game.getGameControlView().drawSky();
+                game.showAnnounceWinner();
+                game.drawSky();
                 mDisplayActive = true;
             }
 
             if (mFinished) {
-                game.getRunGameAct().endGame();
+                game.endGame();
                 return null;
             }
             else {
@@ -401,7 +339,7 @@ public abstract class GameState {
         }
 
         @Override
-        public boolean onButton(RunGameActAccessor game, GameButton b) {
+        public boolean onButton(GameHost game, GameButton b) {
             if (b == GameButton.OK) {
                 mFinished = true;
                 return true;
@@ -417,17 +355,19 @@ public abstract class GameState {
             mDisplayActive = false;
         }
 
-        public static AnnounceWinnerState create() {
-            sMe.initialize();
-            return sMe;
+        public AnnounceWinnerState create() {
+            initialize();
+            return this;
         }
 
-        public static AnnounceWinnerState createFromBundle(Bundle map) {
-            sMe.initialize();
-            return sMe;
+        public AnnounceWinnerState createFromBundle(Bundle map) {
+            initialize();
+            return this;
         }
 
-        private AnnounceWinnerState() { }
+        AnnounceWinnerState(GameStateFactory factory) {
+            super(factory);
+        }
     }
 
     /** Allows the user to buy weapons */
@@ -435,9 +375,6 @@ public abstract class GameState {
         /*================= Constants =================*/
         public static final byte ID = 5;
 
-        /*================= Static =================*/
-        private static BuyWeaponsState sMe = new BuyWeaponsState();
-
         /*================= Data =================*/
         private boolean mFinished;
 
@@ -456,7 +393,7 @@ public abstract class GameState {
         }
 
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
             if (Util.mDebug > 1)
                 Log.w(this.getClass().getName(),
                     "entering BuyWeaonsState (idx=" +
@@ -469,18 +406,12 @@ public abstract class GameState {
                     [mV.mPlayerIdx].getBrain().isHuman())
                 return;
 
-            RunGameAct runGameAct = game.getRunGameAct();
-            StartBuyWeaponsDialog dial =
-                new StartBuyWeaponsDialog(runGameAct,
-                        game.getCosmos(),
-                        game.getModel().getPlayers()[mV.mPlayerIdx]);
-            runGameAct.runOnUiThread(dial);
-
-            game.getGameControlView().drawSky();
+            game.showBuyWeapons(game.getModel().getPlayers()[mV.mPlayerIdx]);
+            game.drawSky();
         }
 
         @Override
-        public GameState main(RunGameActAccessor game) {
+        public GameState main(GameHost game) {
             Model model = game.getModel();
             PlayerInfo playerInfo = game.getCosmos().
                 getPlayerInfo()[mV.mPlayerIdx];
@@ -491,23 +422,24 @@ public abstract class GameState {
                         return null;
                 }
                 else {
-                    playerBrain.buyWeapons(playerInfo);
+                    playerBrain.buyWeapons(game.getCosmos().getRandom(),
+                                           playerInfo);
                 }
             }
 
             int nextIdx = mV.mPlayerIdx + 1;
             if (nextIdx >= model.getPlayers().length) {
-                game.getRunGameAct().startRound(false);
-                game.getRunGameAct().continueRound();
+                game.startRound(false);
+                game.continueRound();
                 mV.mPlayerIdx = -1;
-                return TurnStartState.create();
+                return mFactory.getTurnStartState().create();
             }
             else
-                return BuyWeaponsState.create(nextIdx);
+                return mFactory.getBuyWeaponsState().create(nextIdx);
         }
 
         @Override
-        public void onExit(RunGameActAccessor game) {
+        public void onExit(GameHost game) {
         }
 
         @Override
@@ -516,7 +448,7 @@ public abstract class GameState {
         }
 
         @Override
-        public boolean onButton(RunGameActAccessor game, GameButton b) {
+        public boolean onButton(GameHost game, GameButton b) {
             if (b == GameButton.DONE) {
                 mFinished = true;
                 return true;
@@ -537,19 +469,20 @@ public abstract class GameState {
             mFinished = false;
         }
 
-        public static BuyWeaponsState create(int playerIdx) {
-            sMe.initialize(playerIdx);
-            return sMe;
+        public BuyWeaponsState create(int playerIdx) {
+            initialize(playerIdx);
+            return this;
         }
 
-        public static BuyWeaponsState createFromBundle(Bundle map) {
+        public BuyWeaponsState createFromBundle(Bundle map) {
             MyVars v = (MyVars)AutoPack.
                 autoUnpack(map, AutoPack.EMPTY_STRING, MyVars.class);
-            sMe.initialize(v);
-            return sMe;
+            initialize(v);
+            return this;
         }
 
-        private BuyWeaponsState() {
+        BuyWeaponsState(GameStateFactory factory) {
+            super(factory);
             mV = new MyVars();
             mV.mPlayerIdx = -1;
         }
@@ -561,9 +494,6 @@ public abstract class GameState {
         public static final byte ID = 10;
         public static final int AFTER_ROUND_PAUSE = 3000;
 
-        /*================= Static =================*/
-        private static TurnStartState sMe = new TurnStartState();
-
         /*================= Data =================*/
         private Model.NextTurnInfo mInfo;
         private Brain.Move mMove;
@@ -575,60 +505,73 @@ public abstract class GameState {
         }
 
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
             game.getModel().getNextPlayerInfo(mInfo);
         }
 
         @Override
-        public GameState main(RunGameActAccessor game) {
+        public GameState main(GameHost game) {
             if (mInfo.isDraw()) {
-                return LeaderboardState.create(AFTER_ROUND_PAUSE);
+                return mFactory.getLeaderboardState().
+                    create(AFTER_ROUND_PAUSE);
             }
             else if (mInfo.curPlayerHasWon()) {
                 // Someone won the round.
                 game.getCosmos().getPlayerInfo()
                     [ game.getModel().getCurPlayer().getId() ].
                         earnMoney(Explosion.SURVIVOR_BONUS);
-                return LeaderboardState.create(AFTER_ROUND_PAUSE);
+                return mFactory.getLeaderboardState().
+                    create(AFTER_ROUND_PAUSE);
             }
             else {
                 Model model = game.getModel();
                 int nextPlayerId = mInfo.getNextPlayerId();
                 Player play = model.getPlayers()[nextPlayerId];
-                Util.DoToast doToast = new Util.DoToast(
-                    game.getGameControlView().getContext(),
-                    play.getIntroductionString());
+                model.setCurPlayerId(nextPlayerId);
 
-                model.setCurPlayerId(mInfo.getNextPlayerId());
+                if (! play.getBrain().isReadyToMove(game, nextPlayerId)) {
+                    // Wait for the Brain to tell us what it wants to do.
+                    return null;
+                }
 
-                play.getBrain().makeMove(game, mMove);
+                Tracer.begin(Tracer.Span.AI_MOVE, play.getBrain());
+                long start = PerfStats.now();
+                play.getBrain().makeMove(game.getCosmos().getRandom(),
+                                         game, mMove);
+                PerfStats perf = mFactory.getPerfStats();
+                if (perf != null)
+                    perf.record(PerfStats.Probe.AI_MOVE, start);
+                Tracer.end(Tracer.Span.AI_MOVE);
                 if (mMove.isHuman())
-                    return HumanMoveState.create();
+                    return mFactory.getHumanMoveState().create();
                 else
-                    return ComputerMoveState.create(mMove);
+                    return mFactory.getComputerMoveState().create(mMove);
             }
         }
 
         @Override
         public int getBlockingDelay() {
-            throw new RuntimeException("unreachable");
+            // We only stay in this state if the next player's Brain is
+            // waiting for input.
+            return 0;
         }
 
         /*================= Lifecycle =================*/
         private void initialize() {
         }
 
-        public static TurnStartState create() {
-            sMe.initialize();
-            return sMe;
+        public TurnStartState create() {
+            initialize();
+            return this;
         }
 
-        public static TurnStartState createFromBundle(Bundle map) {
-            sMe.initialize();
-            return sMe;
+        public TurnStartState createFromBundle(Bundle map) {
+            initialize();
+            return this;
         }
 
-        private TurnStartState() {
+        TurnStartState(GameStateFactory factory) {
+            super(factory);
             mInfo = new Model.NextTurnInfo();
             mMove = new Brain.Move();
         }
@@ -643,12 +586,17 @@ public abstract class GameState {
 
         /*================= Data =================*/
 
+        /*================= Lifecycle =================*/
+        protected MoveState(GameStateFactory factory) {
+            super(factory);
+        }
+
         /*================= Operations =================*/
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
             GameState.setCurPlayerAngleText(game);
-            game.getGameControlView().cacheTerrain(game);
-            game.getRunGameAct().runOnUiThread(new DoShowArmory(game));
+            game.cacheTerrain();
+            game.showArmory();
             GameState.setCurPlayerArmoryText(game);
             game.getModel().getCurPlayer().setAuraAlpha(
                 Player.SELECTED_AURA_ALPHA);
@@ -681,10 +629,19 @@ public abstract class GameState {
          *                the move was aborted. Computer moves should never be
          *                aborted.
          */
-        protected GameState doNonProjectileMove(RunGameActAccessor game,
+        protected GameState doNonProjectileMove(GameHost game,
                                         boolean isHuman) {
             Player curPlayer = game.getModel().getCurPlayer();
             WeaponType weapon = curPlayer.getCurWeaponType();
+            if (weapon.isExtraArmor() && isHuman &&
+                    (!curPlayer.canUseExtraArmor())) {
+                // Special sanity check for humans only. Will bring up
+                // dialog box if we can't use the armor.
+                ExtraArmorState.notifyPlayerThatArmorIsMaxed(game);
+                return null;
+            }
+            game.notifyMove(curPlayer.getId(), curPlayer.getAngleDeg(),
+                            0, weapon);
             if (weapon.isTeleporter()) {
                 Armory armory = curPlayer.getArmory(game.getCosmos());
                 armory.useWeapon(weapon);
@@ -692,24 +649,16 @@ public abstract class GameState {
                     curPlayer.setCurWeaponType(armory.
                         getNextWeapon(curPlayer.getCurWeaponType()));
                 }
-                return doTeleport(game);
+                return doTeleport(game, mFactory);
             }
             else if (weapon.isExtraArmor()) {
-                if (isHuman) {
-                    // Special sanity check for humans only. Will bring up
-                    // dialog box if we can't use the armor.
-                    if (!curPlayer.canUseExtraArmor()) {
-                        ExtraArmorState.notifyPlayerThatArmorIsMaxed(game);
-                        return null;
-                    }
-                }
                 Armory armory = curPlayer.getArmory(game.getCosmos());
                 armory.useWeapon(weapon);
                 if (armory.getAmount(weapon) == 0) {
                     curPlayer.setCurWeaponType(armory.
                         getNextWeapon(curPlayer.getCurWeaponType()));
                 }
-                return ExtraArmorState.create();
+                return mFactory.getExtraArmorState().create();
             }
             else {
                 throw new RuntimeException("don't know how to handle " +
@@ -721,32 +670,24 @@ public abstract class GameState {
          *
          * @return        the state we're in after the move
          */
-        protected GameState doProjectileMove(RunGameActAccessor game,
+        protected GameState doProjectileMove(GameHost game,
                                           int power) {
             Player curPlayer = game.getModel().getCurPlayer();
             WeaponType weapon = curPlayer.getCurWeaponType();
+            game.notifyMove(curPlayer.getId(), curPlayer.getAngleDeg(),
+                            power, weapon);
             Armory arm = curPlayer.getArmory(game.getCosmos());
             arm.useWeapon(weapon);
             if (arm.getAmount(weapon) == 0)
                 curPlayer.setCurWeaponType(arm.getNextWeapon(weapon));
-            return BallisticsState.create(power, weapon);
+            return mFactory.getBallisticsState().create(power, weapon);
         }
 
         @Override
-        public void onExit(RunGameActAccessor game) {
+        public void onExit(GameHost game) {
             GameState.setCustomAngleText(game, EMPTY_STRING);
             GameState.clearCurPlayerArmoryText(game);
         }
-
-        class DoShowArmory implements Runnable {
-            private RunGameActAccessor mGame;
-            public void run() {
-                showArmory(mGame);
-            }
-            DoShowArmory(RunGameActAccessor game) {
-                mGame = game;
-            }
-        }
     }
 
     /** A human turn. We will accept input from the touchscreen and do all
@@ -755,16 +696,14 @@ public abstract class GameState {
         /*================= Constants =================*/
         public static final byte ID = 15;
 
-        /*================= Static =================*/
-        private static HumanMoveState sMe = new HumanMoveState();
-
         /*================= Data =================*/
         /** True only if the user pressed the fire button to fire a
          * special weapon. */
         private boolean mFireSpecial;
 
-        /** The time at which the user pressed the fire button */
-        private long mFireTime;
+        /** Started when the user presses the fire button. It expires when
+         * the power bar is full. */
+        private final TimerWheel.Tween mFireTween;
 
         /** The time at which the user released the fire button, or 0 if
          * the user has not yet released the fire button. */
@@ -777,12 +716,12 @@ public abstract class GameState {
         }
 
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
             super.onEnter(game);
         }
 
         @Override
-        public GameState main(RunGameActAccessor game) {
+        public GameState main(GameHost game) {
             if (mFireSpecial) {
                 GameState ret = doNonProjectileMove(game, true);
                 if (ret != null)
@@ -791,14 +730,13 @@ public abstract class GameState {
             }
 
             int power = 0;
-            if (mFireTime == 0) {
-                game.getGameControlView().
-                    drawScreen(game, Player.INVALID_POWER,
+            if (! mFireTween.isStarted()) {
+                game.drawScreen(Player.INVALID_POWER,
                             Projectile.EMPTY_ARRAY, Explosion.EMPTY_ARRAY);
             }
             else {
-                power = timeToPower(System.currentTimeMillis() - mFireTime);
-                game.getGameControlView().drawScreen(game, power,
+                power = timeToPower(mFireTween.getElapsed());
+                game.drawScreen(power,
                         Projectile.EMPTY_ARRAY, Explosion.EMPTY_ARRAY);
                 if (power == Player.MAX_POWER)
                     doReleaseFire(game);
@@ -815,33 +753,27 @@ public abstract class GameState {
         }
 
         @Override
-        public void onExit(RunGameActAccessor game) {
+        public void onExit(GameHost game) {
             super.onExit(game);
+            mFactory.getTimers().cancel(mFireTween);
         }
 
         @Override
         public int getBlockingDelay() {
-            if (mFireTime == 0) {
-                // If the user hasn't pressed the fire button yet, block
-                // until we get some input.
-                return 0;
-            }
-            else {
-                // If the user has already pressed the fire button, update
-                // every 1 ms or so
-                return 1;
-            }
+            // Block until we get some input. Once the user has pressed the
+            // fire button, mFireTween wakes us up to draw the power bar.
+            return 0;
         }
 
-        private void doReleaseFire(RunGameActAccessor game) {
-            if (mFireTime != 0) {
-                mFireReleaseTime = System.currentTimeMillis();
-                game.getRunGameAct().runOnUiThread(new DoShowArmory(game));
+        private void doReleaseFire(GameHost game) {
+            if (mFireTween.isStarted() && (mFireReleaseTime == 0)) {
+                mFireReleaseTime = TimerWheel.now();
+                game.showArmory();
             }
         }
 
         @Override
-        public boolean onButton(RunGameActAccessor game, GameButton b) {
+        public boolean onButton(GameHost game, GameButton b) {
             switch (b) {
                 case ARMORY_LEFT: {
                     Player curPlayer = game.getModel().getCurPlayer();
@@ -864,11 +796,12 @@ public abstract class GameState {
                 case PRESS_FIRE: {
                     Player curPlayer = game.getModel().getCurPlayer();
                     if (curPlayer.getCurWeaponType().isProjectile()) {
-                        hideArmory(game);
-                        mFireTime = System.currentTimeMillis();
+                        game.hideArmory();
+                        mFactory.getTimers().startTween(mFireTween,
+                            (int)powerToDuration(Player.MAX_POWER));
                     }
                     else {
-                        highlightFireButton(game);
+                        game.setFireButtonHighlighted(true);
                     }
                     return true;
                 }
@@ -878,7 +811,7 @@ public abstract class GameState {
                         doReleaseFire(game);
                     }
                     else {
-                        deHighlightFireButton(game);
+                        game.setFireButtonHighlighted(false);
                         mFireSpecial = true;
                     }
                     return true;
@@ -890,7 +823,7 @@ public abstract class GameState {
 
         @Override
         public boolean onTouchEvent(
-                RunGameActAccessor game, MotionEvent event) {
+                GameHost game, MotionEvent event) {
 
             Player curPlayer = game.getModel().getCurPlayer();
             int startAngle = curPlayer.getAngleDeg();
@@ -933,21 +866,24 @@ public abstract class GameState {
         /*================= Lifecycle =================*/
         private void initialize() {
             mFireSpecial = false;
-            mFireTime = 0;
+            mFactory.getTimers().cancel(mFireTween);
+            mFireTween.reset();
             mFireReleaseTime = 0;
         }
 
-        public static HumanMoveState create() {
-            sMe.initialize();
-            return sMe;
+        public HumanMoveState create() {
+            initialize();
+            return this;
         }
 
-        public static HumanMoveState createFromBundle(Bundle map) {
-            sMe.initialize();
-            return sMe;
+        public HumanMoveState createFromBundle(Bundle map) {
+            initialize();
+            return this;
         }
 
-        public HumanMoveState() {
+        HumanMoveState(GameStateFactory factory) {
+            super(factory);
+            mFireTween = new TimerWheel.Tween();
         }
     }
 
@@ -958,9 +894,6 @@ public abstract class GameState {
         /*================= Constants =================*/
         public static final byte ID = 16;
 
-        /*================= Static =================*/
-        private static ComputerMoveState sMe = new ComputerMoveState();
-
         /*================= Types =================*/
         private abstract class Stage {
             /*================= Data =================*/
@@ -972,7 +905,7 @@ public abstract class GameState {
             }
 
             /*================= Operations =================*/
-            public abstract GameState doStage(RunGameActAccessor game);
+            public abstract GameState doStage(GameHost game);
 
             /*================= Lifecycle =================*/
             private Stage(long timeAfterStart) {
@@ -982,10 +915,9 @@ public abstract class GameState {
 
         private class Initial extends Stage {
             /*================= Operations =================*/
-            public GameState doStage(RunGameActAccessor game) {
+            public GameState doStage(GameHost game) {
                 // just draw the screen
-                game.getGameControlView().
-                    drawScreen(game, Player.INVALID_POWER,
+                game.drawScreen(Player.INVALID_POWER,
                             Projectile.EMPTY_ARRAY, Explosion.EMPTY_ARRAY);
                 return null;
             }
@@ -998,14 +930,13 @@ public abstract class GameState {
 
         private class SetWeapon extends Stage {
             /*================= Operations =================*/
-            public GameState doStage(RunGameActAccessor game) {
+            public GameState doStage(GameHost game) {
                 // change which weapon we're pointing to in the armory
                 Player curPlayer = game.getModel().getCurPlayer();
                 curPlayer.setCurWeaponType(mMove.getWeapon());
                 GameState.setCurPlayerArmoryText(game);
 
-                game.getGameControlView().
-                    drawScreen(game, Player.INVALID_POWER,
+                game.drawScreen(Player.INVALID_POWER,
                             Projectile.EMPTY_ARRAY, Explosion.EMPTY_ARRAY);
                 return null;
             }
@@ -1018,7 +949,7 @@ public abstract class GameState {
 
         private class SetTurret extends Stage {
             /*================= Operations =================*/
-            public GameState doStage(RunGameActAccessor game) {
+            public GameState doStage(GameHost game) {
                 // No need to rotate the turret for non-projectile moves
                 if (!mMove.isProjectile())
                     return null;
@@ -1027,8 +958,7 @@ public abstract class GameState {
                 game.getModel().getCurPlayer().setAngleDeg(mMove.getAngle());
                 GameState.setCurPlayerAngleText(game);
 
-                game.getGameControlView().
-                    drawScreen(game, Player.INVALID_POWER,
+                game.drawScreen(Player.INVALID_POWER,
                             Projectile.EMPTY_ARRAY, Explosion.EMPTY_ARRAY);
                 return null;
             }
@@ -1041,7 +971,7 @@ public abstract class GameState {
 
         private class StartFire extends Stage {
             /*================= Operations =================*/
-            public GameState doStage(RunGameActAccessor game) {
+            public GameState doStage(GameHost game) {
                 // For non-projectile moves, we immediately transition to
                 // some other state
                 if (!mMove.isProjectile()) {
@@ -1050,9 +980,8 @@ public abstract class GameState {
 
                 // For projectile moves, we set the stage for the firing
                 // animation
-                mFireStartTime = System.currentTimeMillis();
-                mFireReleaseTime = mFireStartTime +
-                                powerToDuration(mMove.getPower());
+                mFactory.getTimers().startTween(mFireTween,
+                                (int)powerToDuration(mMove.getPower()));
                 return null;
             }
 
@@ -1075,11 +1004,12 @@ public abstract class GameState {
         /** The time when the state began */
         private long mStartTime;
 
-        /** The time when we started pressing the fire button */
-        private long mFireStartTime;
+        /** Expires when it's time for the next stage */
+        private final TimerWheel.Timer mStageTimer;
 
-        /** The time when we're going to release the fire button */
-        private long mFireReleaseTime;
+        /** Started when we press the fire button. It expires when it's
+         * time to release it. */
+        private final TimerWheel.Tween mFireTween;
 
         /*================= Operations =================*/
         @Override
@@ -1089,51 +1019,57 @@ public abstract class GameState {
         }
 
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
             super.onEnter(game);
             mCurStage = 0;
-            mStartTime = System.currentTimeMillis();
-            mFireStartTime = 0;
-            mFireReleaseTime = 0;
+            mStartTime = TimerWheel.now();
+            mFireTween.reset();
+            mFactory.getTimers().schedule(mStageTimer,
+                                mStages[0].getTimeAfterStart());
         }
 
         @Override
-        public GameState main(RunGameActAccessor game) {
-            long curTime = System.currentTimeMillis();
-            if (mCurStage < mStages.length) {
-                long diff = curTime - mStartTime;
+        public GameState main(GameHost game) {
+            if ((mCurStage < mStages.length) && mStageTimer.isExpired()) {
                 Stage stage = mStages[mCurStage];
-                if (diff > stage.getTimeAfterStart()) {
-                    mCurStage++;
-                    GameState ret = stage.doStage(game);
-                    if (ret != null)
-                        return ret;
+                mCurStage++;
+                if (mCurStage < mStages.length) {
+                    long next = mStartTime +
+                        mStages[mCurStage].getTimeAfterStart();
+                    mFactory.getTimers().schedule(mStageTimer,
+                        next - TimerWheel.now());
                 }
+                GameState ret = stage.doStage(game);
+                if (ret != null)
+                    return ret;
             }
 
-            if (mFireReleaseTime == 0)
+            if (! mFireTween.isStarted())
                 return null;
             else {
-                if (curTime > mFireReleaseTime) {
+                if (mFireTween.isExpired()) {
                     return doProjectileMove(game, mMove.getPower());
                 }
                 // Draw the power bar
-                int power = timeToPower(curTime - mFireStartTime);
-                game.getGameControlView().drawScreen(game, power,
+                int power = timeToPower(mFireTween.getElapsed());
+                game.drawScreen(power,
                         Projectile.EMPTY_ARRAY, Explosion.EMPTY_ARRAY);
                 return null;
             }
         }
 
         @Override
-        public void onExit(RunGameActAccessor game) {
+        public void onExit(GameHost game) {
             GameState.setCustomAngleText(game, EMPTY_STRING);
             GameState.clearCurPlayerArmoryText(game);
+            mFactory.getTimers().cancel(mStageTimer);
+            mFactory.getTimers().cancel(mFireTween);
         }
 
         @Override
         public int getBlockingDelay() {
-            return 1;
+            // mStageTimer and mFireTween wake us up
+            return 0;
         }
 
         /*================= Lifecycle =================*/
@@ -1141,18 +1077,21 @@ public abstract class GameState {
             mMove = move;
         }
 
-        public static ComputerMoveState create(Brain.Move move) {
-            sMe.initialize(move);
-            return sMe;
+        public ComputerMoveState create(Brain.Move move) {
+            initialize(move);
+            return this;
         }
 
-        public static ComputerMoveState createFromBundle(Bundle map) {
+        public ComputerMoveState createFromBundle(Bundle map) {
             Brain.Move move = Brain.Move.fromBundle(map);
-            sMe.initialize(move);
-            return sMe;
+            initialize(move);
+            return this;
         }
 
-        public ComputerMoveState() {
+        ComputerMoveState(GameStateFactory factory) {
+            super(factory);
+            mStageTimer = new TimerWheel.Timer();
+            mFireTween = new TimerWheel.Tween();
             mStages = new Stage[4];
             mStages[0] = new Initial();
             mStages[1] = new SetWeapon();
@@ -1169,6 +1108,15 @@ public abstract class GameState {
         public static final String WEAPON_TYPE = "WEAPON_TYPE";
         private static final int MAX_PROJECTILES = 6;
 
+        /** How long one step of the simulation lasts, in milliseconds.
+         * Projectiles, explosions and loose dirt all move by steps. */
+        public static final int STEP_INTERVAL = 16;
+
+        /** The most steps we will run in one go to catch up. If we fall
+         * further behind than this, the volley slows down instead of the
+         * game thread doing nothing but catch up. */
+        private static final int MAX_CATCH_UP = 4;
+
         /*================= Types =================*/
         /** The Accessor is a convenient way for other classes to interface
          * with BallisticsState */
@@ -1200,10 +1148,12 @@ public abstract class GameState {
             public int getPerp() {
                 return mCurPlayerId;
             }
-        }
 
-        /*================= Static =================*/
-        private static BallisticsState sMe = new BallisticsState();
+            /** Returns the GameHost we are running in */
+            public GameHost getGame() {
+                return mGame;
+            }
+        }
 
         /*================= Data =================*/
         private int mPower;
@@ -1213,6 +1163,12 @@ public abstract class GameState {
         private Explosion mExplosions[];
         private Accessor mAcc;
         private int mCurPlayerId;
+        /** The GameHost passed to onEnter and main */
+        private GameHost mGame;
+        private final ExplosionResolver mResolver;
+        private final DirtSettler mSettler;
+        /** Goes off once per STEP_INTERVAL */
+        private final TimerWheel.Ticker mStepTicker;
 
         /*================= Access =================*/
 
@@ -1225,7 +1181,8 @@ public abstract class GameState {
         }
 
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
+            mGame = game;
             Model model = game.getModel();
             Player curPlayer = model.getCurPlayer();
             mCurPlayerId = curPlayer.getId();
@@ -1234,11 +1191,52 @@ public abstract class GameState {
                 model, curPlayer.getAngleRad(), mPower, mInitWeapon,
                 mAcc.newProjectile());
 
-            game.getGameControlView().cacheTerrain(game);
+            Terrain terrain = model.getTerrain();
+            mSettler.reset(terrain);
+            if (model.getSettlingDirt() && (! terrain.hasCaves()))
+                mResolver.setSettler(mSettler);
+            else
+                mResolver.setSettler(null);
+
+            game.cacheTerrain();
+            mFactory.getTimers().startTicker(mStepTicker, STEP_INTERVAL);
         }
 
         @Override
-        public GameState main(RunGameActAccessor game) {
+        public GameState main(GameHost game) {
+            mGame = game;
+            // Run a step for every tick since the last time. If drawing
+            // or a busy CPU made us late, we catch up, so the volley plays
+            // out at the same speed whatever the frame rate is.
+            int steps = Math.min(mStepTicker.takeTicks(), MAX_CATCH_UP);
+            if (steps == 0) {
+                // Woken up early, by input. It isn't time for a step yet.
+                return null;
+            }
+            PerfStats perf = mFactory.getPerfStats();
+            if (perf != null)
+                perf.recordValue(PerfStats.Probe.STEPS_PER_FRAME, steps);
+            boolean finished = false;
+            for (int i = 0; (i < steps) && (! finished); i++)
+                finished = step(game);
+
+            // Only the latest step needs to be drawn
+            game.drawScreen(Player.INVALID_POWER,
+                           mProjectiles, mExplosions);
+
+            if (finished) {
+                game.notifyBallisticsFinished();
+                return mFactory.getTurnStartState().create();
+            }
+            else
+                return null;
+        }
+
+        /** Moves everything along by one step.
+         *
+         * @return      true if there is nothing left to move
+         */
+        private boolean step(GameHost game) {
             boolean finished = true;
             final Model model = game.getModel();
             final Player allPlayers[] = model.getPlayers();
@@ -1252,27 +1250,20 @@ public abstract class GameState {
                 if (! expl.getInUse())
                     continue;
                 finished = false;
-                if (expl.getFinished(System.currentTimeMillis())) {
+                expl.step();
+                if (expl.getFinished()) {
                     expl.clearInUse();
-                    expl.doDirectDamage(game);
-                    expl.editTerrain(game);
-                    game.getGameControlView().cacheTerrain(game);
-
-                    Terrain terrain = model.getTerrain();
-                    for (Player victim : allPlayers) {
-                        if (victim.doFalling(terrain)) {
-                            // notify Brains about the fall
-                            int perp = expl.getPerp();
-                            for (Player p : allPlayers) {
-                                if (! p.isAlive())
-                                    continue;
-                                p.getBrain().notifyPlayerFell(
-                                    perp, victim.getId());
-                            }
-                        }
-                    }
+                    mResolver.add(expl);
                 }
             }
+            // Explosions which finished together are resolved together
+            mResolver.resolve(game);
+
+            // Loose dirt slides a little bit each step
+            if (! mSettler.isIdle()) {
+                finished = false;
+                mSettler.step(game);
+            }
 
             for (Player p : allPlayers) {
                 if (p.getDeathExplosionPending()) {
@@ -1282,26 +1273,21 @@ public abstract class GameState {
                         p.getX(), p.getY(), mAcc);
                 }
             }
-
-            game.getGameControlView().
-                drawScreen(game, Player.INVALID_POWER,
-                           mProjectiles, mExplosions);
-
-            if (finished)
-                return TurnStartState.create();
-            else
-                return null;
+            return finished;
         }
 
         @Override
-        public void onExit(RunGameActAccessor game) {
+        public void onExit(GameHost game) {
             game.getModel().getCurPlayer().setAuraAlpha(
                     Player.DESELECTED_AURA_ALPHA);
+            mFactory.getTimers().cancel(mStepTicker);
+            mGame = null;
         }
 
         @Override
         public int getBlockingDelay() {
-            return 1;
+            // mStepTicker wakes us up
+            return 0;
         }
 
         /*================= Lifecycle =================*/
@@ -1314,22 +1300,23 @@ public abstract class GameState {
                 e.clearInUse();
         }
 
-        public static BallisticsState create(int power,
-                                            WeaponType initWeapon) {
-            sMe.initialize(power, initWeapon);
-            return sMe;
+        public BallisticsState create(int power,
+                                      WeaponType initWeapon) {
+            initialize(power, initWeapon);
+            return this;
         }
 
-        public static BallisticsState createFromBundle(Bundle map) {
+        public BallisticsState createFromBundle(Bundle map) {
             int power = map.getInt(BALLISTICS_POWER);
             int wType = map.getInt(WEAPON_TYPE);
             WeaponType weapons[] = WeaponType.values();
             WeaponType initWeapon = weapons[wType];
-            sMe.initialize(power, initWeapon);
-            return sMe;
+            initialize(power, initWeapon);
+            return this;
         }
 
-        private BallisticsState() {
+        BallisticsState(GameStateFactory factory) {
+            super(factory);
             mProjectiles = new Projectile[MAX_PROJECTILES];
             for (int i = 0; i < mProjectiles.length; i++) {
                 mProjectiles[i] = new Projectile();
@@ -1338,6 +1325,9 @@ public abstract class GameState {
             for (int i = 0; i < mExplosions.length; i++) {
                 mExplosions[i] = new Explosion();
             }
+            mResolver = new ExplosionResolver(mExplosions.length);
+            mSettler = new DirtSettler();
+            mStepTicker = new TimerWheel.Ticker();
             mAcc = new Accessor();
         }
     }
@@ -1405,9 +1395,6 @@ public abstract class GameState {
             }
         }
 
-        /*================= Static =================*/
-        private static TeleportState sMe = new TeleportState();
-
         /*================= Data =================*/
         public static class MyVars {
             /** Index of the first player being teleported */
@@ -1436,8 +1423,8 @@ public abstract class GameState {
         /** The current animation state */
         private State mCurState;
 
-        /** The time when the current animation state began */
-        private long mStateStartTime;
+        /** Runs for the length of the current animation state */
+        private final TimerWheel.Tween mStateTween;
 
 
         /*================= Access =================*/
@@ -1450,7 +1437,7 @@ public abstract class GameState {
         }
 
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
             Model model = game.getModel();
             stateTransition(State.values()[0]);
 
@@ -1470,42 +1457,33 @@ public abstract class GameState {
             }
             else
                 s.append(" has teleported!");
-            Util.DoToast doToast = new Util.DoToast(
-                game.getGameControlView().getContext(),
-                s.toString());
-            game.getRunGameAct().runOnUiThread(doToast);
+            game.showToast(s.toString());
         }
 
         private void stateTransition(State val) {
             mCurState = val;
-            mStateStartTime = System.currentTimeMillis();
+            mFactory.getTimers().startTween(mStateTween,
+                                            mCurState.getDuration());
         }
 
         @Override
-        public GameState main(RunGameActAccessor game) {
+        public GameState main(GameHost game) {
             Model model = game.getModel();
             Player p1 = getPlayer1(model);
             Player p2 = getPlayer2(model);
-            long d = System.currentTimeMillis() - mStateStartTime;
-            int percent;
-            if (d >= mCurState.getDuration())
-                percent = 100;
-            else {
-                percent = (int) ((d * 100) / mCurState.getDuration());
-            }
+            int percent = mStateTween.getPercent();
             mCurState.applySpecialEffect(p1, percent);
             if ((p2 != null) && (p2.isAlive()))
                 mCurState.applySpecialEffect(p2, percent);
 
-            game.getGameControlView().
-                drawScreen(game, Player.INVALID_POWER,
+            game.drawScreen(Player.INVALID_POWER,
                         Projectile.EMPTY_ARRAY, Explosion.EMPTY_ARRAY);
 
             if (percent == 100) {
                 State values[] = State.values();
                 int next = mCurState.ordinal() + 1;
                 if (next == values.length)
-                    return TurnStartState.create();
+                    return mFactory.getTurnStartState().create();
                 stateTransition(values[next]);
 
                 if (mCurState == State.START_PAUSE) {
@@ -1520,7 +1498,8 @@ public abstract class GameState {
         }
 
         @Override
-        public void onExit(RunGameActAccessor game) {
+        public void onExit(GameHost game) {
+            mFactory.getTimers().cancel(mStateTween);
             game.getModel().getCurPlayer().setAuraAlpha(
                     Player.DESELECTED_AURA_ALPHA);
 
@@ -1538,7 +1517,8 @@ public abstract class GameState {
 
         @Override
         public int getBlockingDelay() {
-            return 1;
+            // mStateTween wakes us up
+            return 0;
         }
 
         private Player getPlayer1(Model model) {
@@ -1566,25 +1546,26 @@ public abstract class GameState {
             mV.mP1xf = p1xf; mV.mP2xf = p2xf;
         }
 
-        public static TeleportState create(int p1Index, int p2index,
-                                           int p1x0, int p2x0,
-                                           int p1xf, int p2xf) {
-            sMe.initialize(p1Index, p2index,
-                            p1x0, p2x0,
-                            p1xf, p2xf);
-            return sMe;
+        public TeleportState create(int p1Index, int p2index,
+                                    int p1x0, int p2x0,
+                                    int p1xf, int p2xf) {
+            initialize(p1Index, p2index,
+                       p1x0, p2x0,
+                       p1xf, p2xf);
+            return this;
         }
 
-        public static TeleportState createFromBundle(Bundle map) {
+        public TeleportState createFromBundle(Bundle map) {
             MyVars v = (MyVars)AutoPack.
                 autoUnpack(map, AutoPack.EMPTY_STRING, MyVars.class);
-            sMe.initialize(v);
-            return sMe;
+            initialize(v);
+            return this;
         }
 
-        private TeleportState() {
+        TeleportState(GameStateFactory factory) {
+            super(factory);
             mCurState = null;
-            mStateStartTime = 0;
+            mStateTween = new TimerWheel.Tween();
             mV = new MyVars();
         }
     }
@@ -1595,54 +1576,22 @@ public abstract class GameState {
         public static final byte ID = 26;
         public static final int EXTRA_ARMOR_AMOUNT = 100;
 
-        /*================= Types =================*/
-        /** Runnable that creates a dialog box and displays it */
-        public static class DoDialog implements Runnable {
-            /*================= Data =================*/
-            private Context mContext;
-            private String mString;
-
-            /*================= Operations =================*/
-            public void run() {
-                AlertDialog.Builder b = new AlertDialog.Builder(mContext);
-
-                b.setMessage(mString);
-                b.setCancelable(true);
-                b.setPositiveButton("OK",
-                    new DialogInterface.OnClickListener() {
-                        public void onClick(DialogInterface dialog,
-                                            int whichButton) {
-                        }
-                    });
-                b.show();
-            }
-
-            /*================= Lifecycle =================*/
-            public DoDialog(Context context, String string) {
-                mContext = context;
-                mString = string;
-            }
-        }
-
-        /*================= Static =================*/
-        private static ExtraArmorState sMe = new ExtraArmorState();
+        /** How long the aura takes to whiten, and then to dim again */
+        private static final int HALF_DURATION = 2000;
 
         /** Display an alert dialog box informing the (human) player that
          * it is futile to use extra armor, since he is already at
          * maximum life.
          */
         private static void
-                notifyPlayerThatArmorIsMaxed(RunGameActAccessor game) {
-            DoDialog doDialog = new DoDialog(
-                game.getGameControlView().getContext(),
-                "Can't use Extra Armor.\nYou already " +
-                "have maximum armor!");
-            game.getRunGameAct().runOnUiThread(doDialog);
+                notifyPlayerThatArmorIsMaxed(GameHost game) {
+            game.showAlert("Can't use Extra Armor.\nYou already " +
+                           "have maximum armor!");
         };
 
         /*================= Data =================*/
-        /** The time when the state began */
-        private long mStartTime;
+        /** Runs for the length of the animation */
+        private final TimerWheel.Tween mTween;
 
         /*================= Access =================*/
 
@@ -1653,52 +1602,48 @@ public abstract class GameState {
         }
 
         @Override
-        public void onEnter(RunGameActAccessor game) {
+        public void onEnter(GameHost game) {
             Player curPlayer = game.getModel().getCurPlayer();
 
-            mStartTime = System.currentTimeMillis();
+            mFactory.getTimers().startTween(mTween, 2 * HALF_DURATION);
 
             // display Toast
             StringBuilder s = new StringBuilder(80);
             s.append(curPlayer.getName());
             s.append(" has gained extra armor!");
-            Util.DoToast doToast = new Util.DoToast(
-                game.getGameControlView().getContext(),
-                s.toString());
-            game.getRunGameAct().runOnUiThread(doToast);
+            game.showToast(s.toString());
         }
 
         @Override
-        public GameState main(RunGameActAccessor game) {
+        public GameState main(GameHost game) {
             Player curPlayer = game.getModel().getCurPlayer();
-            long d = System.currentTimeMillis() - mStartTime;
-            boolean finished = false;
+            boolean finished = mTween.isExpired();
+            long d = Math.min(mTween.getElapsed(), 2 * HALF_DURATION);
 
-            if (d < 2000) {
-                int percent = (int) ((d * 100) / 2000);
+            if (finished)
+                curPlayer.setAuraWhitening(0);
+            else if (d < HALF_DURATION) {
+                int percent = (int) ((d * 100) / HALF_DURATION);
                 curPlayer.setAuraWhitening(percent);
             }
             else {
-                int percent = (int) (((d - 2000) * 100) / 2000);
-                if (percent > 100) {
-                    finished = true;
-                    percent = 100;
-                }
+                int percent = (int)
+                    (((d - HALF_DURATION) * 100) / HALF_DURATION);
                 curPlayer.setAuraWhitening(100 - percent);
             }
 
-            game.getGameControlView().
-                drawScreen(game, Player.INVALID_POWER,
+            game.drawScreen(Player.INVALID_POWER,
                         Projectile.EMPTY_ARRAY, Explosion.EMPTY_ARRAY);
 
             if (finished)
-                return TurnStartState.create();
+                return mFactory.getTurnStartState().create();
             else
                 return null;
         }
 
         @Override
-        public void onExit(RunGameActAccessor game) {
+        public void onExit(GameHost game) {
+            mFactory.getTimers().cancel(mTween);
             Player curPlayer = game.getModel().getCurPlayer();
             curPlayer.setAuraAlpha(Player.DESELECTED_AURA_ALPHA);
             curPlayer.gainLife(EXTRA_ARMOR_AMOUNT);
@@ -1706,25 +1651,27 @@ public abstract class GameState {
 
         @Override
         public int getBlockingDelay() {
-            return 1;
+            // mTween wakes us up
+            return 0;
         }
 
         /*================= Lifecycle =================*/
         private void initialize() {
         }
 
-        public static ExtraArmorState create() {
-            sMe.initialize();
-            return sMe;
+        public ExtraArmorState create() {
+            initialize();
+            return this;
         }
 
-        public static ExtraArmorState createFromBundle(Bundle map) {
-            sMe.initialize();
-            return sMe;
+        public ExtraArmorState createFromBundle(Bundle map) {
+            initialize();
+            return this;
         }
 
-        private ExtraArmorState() {
-            mStartTime = 0;
+        ExtraArmorState(GameStateFactory factory) {
+            super(factory);
+            mTween = new TimerWheel.Tween();
         }
     }
 
@@ -1732,9 +1679,9 @@ public abstract class GameState {
     /** Helper function which takes a list of X positions and a list of
      * players, and returns the first unused X position
      */
-    private static int getFirstUnusedXPosition(List < Short > positions,
+    private static int getFirstUnusedXPosition(List < Integer > positions,
                                               Player players[]) {
-        for (Short s : positions) {
+        for (Integer s : positions) {
             boolean used = false;
             int x = s.intValue();
             for (Player p : players) {
@@ -1752,7 +1699,9 @@ public abstract class GameState {
      *
      * @return  The new GameState
      */
-    private static GameState doTeleport(RunGameActAccessor game) {
+    private static GameState doTeleport(GameHost game,
+                                        GameStateFactory factory) {
+        Random random = game.getCosmos().getRandom();
         Model model = game.getModel();
         Player players[] = model.getPlayers();
         Player curPlayer = model.getCurPlayer();
@@ -1774,7 +1723,7 @@ public abstract class GameState {
         }
         if (deadPlayers.size() != 0) {
             // Switch places with a dead player
-            int i = Util.mRandom.nextInt(deadPlayers.size());
+            int i = random.nextInt(deadPlayers.size());
             p2index = deadPlayers.get(i).getId();
             p1x0 = players[p1index].getX();
             p2x0 = players[p2index].getX();
@@ -1795,8 +1744,9 @@ public abstract class GameState {
                 // Dead player entries still appear in Model.mPlayers,
                 // so we won't have Model.mPlayer.length == 2 unless we only
                 // started with 2.
-                List < Short > positions =
-                    ModelFactory.getValidPlayerPlacements(3);
+                List < Integer > positions =
+                    ModelFactory.getValidPlayerPlacements(3,
+                        model.getTerrain().getWidth());
                 int x = getFirstUnusedXPosition(positions, players);
                 p2index = Player.INVALID_PLAYER_ID;
                 p1x0 = players[p1index].getX();
@@ -1806,7 +1756,7 @@ public abstract class GameState {
             }
             else {
                 // Switch places with a living player
-                p2index = Util.mRandom.nextInt(players.length - 1);
+                p2index = random.nextInt(players.length - 1);
                 // make sure that we don't swap p1 with itself
                 if (p2index >= p1index)
                     p2index++;
@@ -1817,22 +1767,17 @@ public abstract class GameState {
             }
         }
 
-        return TeleportState.create(p1index, p2index,
-                                    p1x0, p2x0,
-                                    p1xf, p2xf);
+        return factory.getTeleportState().create(p1index, p2index,
+                                                  p1x0, p2x0,
+                                                  p1xf, p2xf);
     }
 
-    private static void setCurPlayerArmoryText(RunGameActAccessor game) {
+    private static void setCurPlayerArmoryText(GameHost game) {
         Player curPlayer = game.getModel().getCurPlayer();
         WeaponType type = curPlayer.getCurWeaponType();
         Armory arm = curPlayer.getArmory(game.getCosmos());
         int amount = arm.getAmount(type);
 
-        TextView armoryMain = game.getArmoryMainText();
-        TextView armorySecondary = game.getArmorySecondaryText();
-
-        game.getRunGameAct().runOnUiThread(new SetTextView(armoryMain,
-                                                           type.getName()));
         StringBuilder b = new StringBuilder(14);
         b.append("[");
         if (amount == WeaponType.Const.UNLIMITED)
@@ -1840,118 +1785,63 @@ public abstract class GameState {
         else
             b.append(amount);
         b.append("]");
-        game.getRunGameAct().runOnUiThread(new SetTextView(armorySecondary,
-                                                           b.toString()));
+        game.setArmoryText(type.getName(), b.toString());
     }
 
-    private static void clearCurPlayerArmoryText(RunGameActAccessor game) {
-        TextView armoryMain = game.getArmoryMainText();
-        TextView armorySecondary = game.getArmorySecondaryText();
-
-        game.getRunGameAct().runOnUiThread(
-            new SetTextView(armoryMain, EMPTY_STRING));
-        game.getRunGameAct().runOnUiThread(
-            new SetTextView(armorySecondary, EMPTY_STRING));
+    private static void clearCurPlayerArmoryText(GameHost game) {
+        game.setArmoryText(EMPTY_STRING, EMPTY_STRING);
     }
 
     /** Sets the current angle text to the turret angle of the current
      * player.
      */
-    private static void setCurPlayerAngleText(RunGameActAccessor game) {
+    private static void setCurPlayerAngleText(GameHost game) {
         Player curPlayer = game.getModel().getCurPlayer();
-        TextView angleText = game.getAngleText();
         StringBuilder b = new StringBuilder(10);
         b.append(curPlayer.getAngleDeg()).append("°");
-        game.getRunGameAct().runOnUiThread(new SetTextView(angleText,
-                                                           b.toString()));
+        game.setAngleText(b.toString());
     }
 
     /** Sets the current angle text to a custom string */
-    private static void setCustomAngleText(RunGameActAccessor game,
+    private static void setCustomAngleText(GameHost game,
                                            String text) {
-        TextView angleText = game.getAngleText();
-        game.getRunGameAct().runOnUiThread(new SetTextView(angleText, text));
-    }
-
-    /** Hides the armory in the middle of the screen */
-    private static void hideArmory(RunGameActAccessor game) {
-        hideArmoryTextView(game.getAngleText());
-        hideArmoryTextView(game.getArmoryMainText());
-        hideArmoryTextView(game.getArmorySecondaryText());
-        hideArmoryTextView(game.getArmoryLeftButton());
-        hideArmoryTextView(game.getArmoryRightButton());
-        highlightFireButton(game);
-        int color = game.getXmlColors().getClear();
-        game.getArmoryCenter().setBackgroundColor(color);
-    }
-
-    private static void highlightFireButton(RunGameActAccessor game) {
-        game.getFireButton().setTextColor(Color.argb(0xff, 0xff, 0xff, 0xff));
-    }
-
-    private static void hideArmoryTextView(TextView t) {
-        t.setVisibility(View.INVISIBLE);
-    }
-
-    /** Un-hides the armory in the middle of the screen */
-    private static void showArmory(RunGameActAccessor game) {
-        XmlColors xmlColors = game.getXmlColors();
-        int textColor = game.getModel().foregroundIsLight() ?
-                            xmlColors.getGameTextDark() :
-                            xmlColors.getGameTextGrey();
-
-        showArmoryTextView(game.getAngleText(), textColor);
-        showArmoryTextView(game.getArmoryMainText(), textColor);
-        showArmoryTextView(game.getArmorySecondaryText(), textColor);
-        showArmoryTextView(game.getArmoryLeftButton(), textColor);
-        showArmoryTextView(game.getArmoryRightButton(), textColor);
-        deHighlightFireButton(game);
-        int bgColor = game.getXmlColors().getArmoryBackground();
-        game.getArmoryCenter().setBackgroundColor(bgColor);
-    }
-
-    private static void showArmoryTextView(TextView t, int textColor) {
-        t.setVisibility(View.VISIBLE);
-        t.setTextColor(textColor);
-    }
-
-    private static void deHighlightFireButton(RunGameActAccessor game) {
-        XmlColors xmlColors = game.getXmlColors();
-        int textColor = game.getModel().foregroundIsLight() ?
-                            xmlColors.getGameTextDark() :
-                            xmlColors.getGameTextGrey();
-        game.getFireButton().setTextColor(textColor);
+        game.setAngleText(text);
     }
 
     /** Initialize and return a game state object from a Bundle */
-    public static GameState fromBundle(Bundle map) {
+    public static GameState fromBundle(GameStateFactory factory, Bundle map) {
         byte id = map.getByte(GAME_STATE_ID);
         switch (id) {
             case LeaderboardState.ID:
-                return LeaderboardState.createFromBundle(map);
+                return factory.getLeaderboardState().createFromBundle(map);
             case AnnounceWinnerState.ID:
-                return AnnounceWinnerState.createFromBundle(map);
+                return factory.getAnnounceWinnerState().createFromBundle(map);
             case BuyWeaponsState.ID:
-                return BuyWeaponsState.createFromBundle(map);
+                return factory.getBuyWeaponsState().createFromBundle(map);
             case TurnStartState.ID:
-                return TurnStartState.createFromBundle(map);
+                return factory.getTurnStartState().createFromBundle(map);
             case HumanMoveState.ID:
-                return HumanMoveState.createFromBundle(map);
+                return factory.getHumanMoveState().createFromBundle(map);
             case ComputerMoveState.ID:
-                return ComputerMoveState.createFromBundle(map);
+                return factory.getComputerMoveState().createFromBundle(map);
             case BallisticsState.ID:
-                return BallisticsState.createFromBundle(map);
+                return factory.getBallisticsState().createFromBundle(map);
             case TeleportState.ID:
-                return TeleportState.createFromBundle(map);
+                return factory.getTeleportState().createFromBundle(map);
             case ExtraArmorState.ID:
-                return ExtraArmorState.createFromBundle(map);
+                return factory.getExtraArmorState().createFromBundle(map);
             default:
                 throw new RuntimeException("can't recognize state with ID = "
                                             + id);
         }
     }
 
-    public static GameState createInitialGameState() {
-        return BuyWeaponsState.create(0);
+    public static GameState createInitialGameState(GameStateFactory factory) {
+        return factory.getBuyWeaponsState().create(0);
+    }
+
+    /*================= Lifecycle =================*/
+    protected GameState(GameStateFactory factory) {
+        mFactory = factory;
     }
 }
@@ -0,0 +1,116 @@
+package com.senchas.salvo;
+
+import com.senchas.salvo.GameState.AnnounceWinnerState;
+import com.senchas.salvo.GameState.BallisticsState;
+import com.senchas.salvo.GameState.BuyWeaponsState;
+import com.senchas.salvo.GameState.ComputerMoveState;
+import com.senchas.salvo.GameState.ExtraArmorState;
+import com.senchas.salvo.GameState.HumanMoveState;
+import com.senchas.salvo.GameState.LeaderboardState;
+import com.senchas.salvo.GameState.TeleportState;
+import com.senchas.salvo.GameState.TurnStartState;
+
+/**
+ * Owns the GameState objects for a single game.
+ *
+ * We don't want to allocate a new GameState every time we make a state
+ * transition, so each GameState class has exactly one preallocated
+ * instance per game. The instances live here, rather than in static data,
+ * so that every game has its own set. Two games in the same process will
+ * never share a GameState.
+ *
+ * This class contains no locking. The GameStates it owns are protected by
+ * whatever lock protects the rest of the game.
+ */
+public class GameStateFactory {
+    /*================= Data =================*/
+    private final LeaderboardState mLeaderboardState;
+
+    private final AnnounceWinnerState mAnnounceWinnerState;
+
+    private final BuyWeaponsState mBuyWeaponsState;
+
+    private final TurnStartState mTurnStartState;
+
+    private final HumanMoveState mHumanMoveState;
+
+    private final ComputerMoveState mComputerMoveState;
+
+    private final BallisticsState mBallisticsState;
+
+    private final TeleportState mTeleportState;
+
+    private final ExtraArmorState mExtraArmorState;
+
+    private final TimerWheel mTimers;
+
+    private final PerfStats mPerfStats;
+
+    /*================= Access =================*/
+    public LeaderboardState getLeaderboardState() {
+        return mLeaderboardState;
+    }
+
+    public AnnounceWinnerState getAnnounceWinnerState() {
+        return mAnnounceWinnerState;
+    }
+
+    public BuyWeaponsState getBuyWeaponsState() {
+        return mBuyWeaponsState;
+    }
+
+    public TurnStartState getTurnStartState() {
+        return mTurnStartState;
+    }
+
+    public HumanMoveState getHumanMoveState() {
+        return mHumanMoveState;
+    }
+
+    public ComputerMoveState getComputerMoveState() {
+        return mComputerMoveState;
+    }
+
+    public BallisticsState getBallisticsState() {
+        return mBallisticsState;
+    }
+
+    public TeleportState getTeleportState() {
+        return mTeleportState;
+    }
+
+    public ExtraArmorState getExtraArmorState() {
+        return mExtraArmorState;
+    }
+
+    /** Returns the timers that the states use for their animations */
+    public TimerWheel getTimers() {
+        return mTimers;
+    }
+
+    /** Returns the timings for this game, or null if it isn't being
+     * timed */
+    public PerfStats getPerfStats() {
+        return mPerfStats;
+    }
+
+    /*================= Lifecycle =================*/
+    /**
+     * @param perfStats     Where to record timings, or null. Only the game
+     *                      on the screen is timed; a headless Match passes
+     *                      null, so it doesn't carry the histograms.
+     */
+    public GameStateFactory(PerfStats perfStats) {
+        mTimers = new TimerWheel();
+        mPerfStats = perfStats;
+        mLeaderboardState = new LeaderboardState(this);
+        mAnnounceWinnerState = new AnnounceWinnerState(this);
+        mBuyWeaponsState = new BuyWeaponsState(this);
+        mTurnStartState = new TurnStartState(this);
+        mHumanMoveState = new HumanMoveState(this);
+        mComputerMoveState = new ComputerMoveState(this);
+        mBallisticsState = new BallisticsState(this);
+        mTeleportState = new TeleportState(this);
+        mExtraArmorState = new ExtraArmorState(this);
+    }
+}
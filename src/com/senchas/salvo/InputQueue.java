@@ -0,0 +1,190 @@
+package com.senchas.salvo;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import android.view.MotionEvent;
+
+import com.senchas.salvo.GameState.GameButton;
+
+/**
+ * Carries user input from the UI thread to the game thread.
+ *
+ * The UI thread used to take the state lock to hand each button press to the
+ * current GameState. That meant a button press could sit behind a whole
+ * frame of drawing, or a computer player thinking. Now the UI thread just
+ * puts the event on this queue, unparks the game thread and gets on with its
+ * life. The game thread drains the queue at the start of each tick, with the
+ * state lock held.
+ *
+ * This is a multi-producer, single-consumer linked queue. Producers only do
+ * an atomic swap of the tail pointer, so they never block and never spin.
+ * The consumer is the game thread.
+ *
+ * This class contains no locking. The producer methods can be called from
+ * any thread.
+ */
+public class InputQueue {
+    /*================= Types =================*/
+    /** A button press, a touch event, or a request to run main() */
+    public static class Event {
+        /*================= Data =================*/
+        /** Cleared once the event has been delivered. The queue keeps the
+         * last event it handed out as its head, and we don't want that to
+         * hold on to a MotionEvent that has gone back to the pool. */
+        private GameButton mButton;
+
+        private MotionEvent mTouch;
+
+        /** True if this just asks for the state's main() to run */
+        private boolean mRun;
+
+        private volatile Event mNext;
+
+        /*================= Access =================*/
+        /** Returns the button, or null if this is a touch event or has
+         * been delivered */
+        public GameButton getButton() {
+            return mButton;
+        }
+
+        /** Returns the touch event, or null if this is a button press or
+         * has been delivered */
+        public MotionEvent getTouch() {
+            return mTouch;
+        }
+
+        /*================= Operations =================*/
+        /** Delivers this event to a GameState. An event can only be
+         * delivered once.
+         *
+         * @return  true if the state wants its main() to run again
+         */
+        public boolean dispatch(GameHost game, GameState state) {
+            GameButton button = mButton;
+            MotionEvent touch = mTouch;
+            boolean run = mRun;
+            mButton = null;
+            mTouch = null;
+            mRun = false;
+            if (run)
+                return true;
+            if (button != null)
+                return state.onButton(game, button);
+            if (touch == null)
+                return false;
+            boolean ret = state.onTouchEvent(game, touch);
+            touch.recycle();
+            return ret;
+        }
+
+        /*================= Lifecycle =================*/
+        private Event(GameButton button, MotionEvent touch, boolean run) {
+            mButton = button;
+            mTouch = touch;
+            mRun = run;
+        }
+    }
+
+    /*================= Data =================*/
+    /** The last event that the consumer took. Its mNext is the next event
+     * to take. Only touched by the consumer. */
+    private Event mHead;
+
+    /** The last event to be added */
+    private final AtomicReference < Event > mTail;
+
+    /** The thread that takes events out */
+    private volatile Thread mConsumer;
+
+    /*================= Access =================*/
+    public boolean isEmpty() {
+        return (mHead.mNext == null);
+    }
+
+    /*================= Producers =================*/
+    /** Posts a button press. Can be called from any thread. */
+    public void postButton(GameButton button) {
+        post(new Event(button, null, false));
+    }
+
+    /** Posts a touch event. Can be called from any thread.
+     *
+     * Android reuses MotionEvent objects once the handler returns, so we
+     * keep a copy. The copy is scaled by "scaleX" and "scaleY", to turn
+     * view coordinates into playfield coordinates, and then moved
+     * "offsetX" to the right, to turn those into world coordinates.
+     */
+    public void postTouch(MotionEvent me, float scaleX, float scaleY,
+                          int offsetX) {
+        MotionEvent copy = MotionEvent.obtain(me);
+        if ((scaleX != 1f) || (scaleY != 1f) || (offsetX != 0)) {
+            copy.setLocation((copy.getX() * scaleX) + offsetX,
+                             copy.getY() * scaleY);
+        }
+        post(new Event(null, copy, false));
+    }
+
+    /** Asks the consumer to run the current state's main(), even though
+     * there is no input. Can be called from any thread. */
+    public void postRun() {
+        post(new Event(null, null, true));
+    }
+
+    private void post(Event ev) {
+        Event prev = mTail.getAndSet(ev);
+        prev.mNext = ev;
+        wake();
+    }
+
+    /** Wakes up the consumer, even if there is no input. Use this after
+     * changing anything else the consumer should look at. */
+    public void wake() {
+        Thread consumer = mConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    /*================= Consumer =================*/
+    /** Sets the thread that will take events out of the queue */
+    public void setConsumer(Thread consumer) {
+        mConsumer = consumer;
+    }
+
+    /** Takes the oldest event out of the queue.
+     *
+     * @return  the event, or null if the queue is empty
+     */
+    public Event poll() {
+        Event next = mHead.mNext;
+        if (next == null)
+            return null;
+        mHead = next;
+        return next;
+    }
+
+    /** Parks the consumer until there is input, somebody calls wake(), or
+     * the deadline passes. May return early for no reason.
+     *
+     * @param deadline      the time to give up, in the units of
+     *                      TimerWheel.now(), or 0 to wait forever
+     */
+    public void await(long deadline) {
+        if (! isEmpty())
+            return;
+        if (deadline == 0)
+            LockSupport.park();
+        else {
+            long left = deadline - TimerWheel.now();
+            if (left > 0)
+                LockSupport.parkNanos(left * 1000000L);
+        }
+    }
+
+    /*================= Lifecycle =================*/
+    public InputQueue() {
+        Event dummy = new Event(null, null, false);
+        mHead = dummy;
+        mTail = new AtomicReference < Event >(dummy);
+    }
+}
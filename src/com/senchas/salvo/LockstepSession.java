@@ -0,0 +1,877 @@
+package com.senchas.salvo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.util.Log;
+
+import com.senchas.salvo.Brain.RemoteBrain;
+import com.senchas.salvo.ModelFactory.PlayerFactory;
+
+/**
+ * Plays a game with other phones over the network.
+ *
+ * Lockstep
+ * --------
+ * Every peer runs the whole simulation itself. The only thing that goes over
+ * the wire is the moves: which player, angle, power and weapon. That is 9
+ * bytes a turn, no matter how many projectiles are flying or how much dirt
+ * gets blown up.
+ *
+ * This only works if the simulation is deterministic. Every peer starts with
+ * the same settings and the same random seed. Computer players draw from the
+ * game's Random, explosions age by ballistics steps rather than wall-clock
+ * time, and the trigonometry in the simulation uses StrictMath. So given the
+ * same moves, every peer computes the same terrain and the same damage.
+ *
+ * To catch bugs, each peer hashes the terrain and the players after every
+ * ballistics phase (see Model.getChecksum). The clients send their hashes to
+ * the host. If one doesn't match, the host tells everyone that the game has
+ * desynchronized.
+ *
+ * Topology
+ * --------
+ * The host listens on a port, and the clients connect to it. Each HUMAN
+ * player in the host's ModelFactory is a seat. The host plays the first seat,
+ * the first client to connect plays the second, and so on. Once every seat
+ * has a peer, the host sends out the settings, and everyone starts their
+ * Match.
+ *
+ * A client sends its moves to the host. The host sends its moves and
+ * everyone else's to each client.
+ *
+ * Seats
+ * -----
+ * The session plays the remote seats: they get RemoteBrains, with the
+ * session as their listener. Whoever gets onMatchReady() has to play the
+ * local seat.
+ *
+ * Games
+ * -----
+ * Given a MatchServer, the session runs a headless Match on it. It plays the
+ * remote seats itself and notices the local seat's moves through
+ * Match.Observer. A server or a tool plays the local seat with a
+ * LoopbackClient.
+ *
+ * Without a MatchServer, somebody else runs the game, and onMatchReady()
+ * gets no Match. This is how RunGameAct plays a network game: it starts the
+ * game from getModelFactory() and getSeed(), gives each isRemotePlayer() a
+ * RemoteBrain listened to by the session, and calls notifyMove() and
+ * notifyBallisticsFinished() from its GameHost. The human plays the local
+ * seat on the screen.
+ *
+ * Wire format
+ * -----------
+ * Each message is [length:2][type:1][payload], where length counts the type
+ * and the payload.
+ *
+ * Threading
+ * ---------
+ * All network I/O happens on the session's own thread, which sits in
+ * select(). Game events and RemoteBrain callbacks come in on the game's
+ * threads; they just queue up output and wake the selector.
+ *
+ * This class does its own locking.
+ */
+public class LockstepSession
+    implements Match.Observer, RemoteBrain.Listener, Runnable
+{
+    /*================= Constants =================*/
+    /** The port that the app hosts games on */
+    public static final int DEFAULT_PORT = 24680;
+
+    /** Sent by the host to each client once all seats are filled.
+     * peerId(1) seed(8) rounds(2) cash(2) terrain(1) randomPlacement(1)
+     * worldWidth(4) caves(1) settlingDirt(1) fairMaps(1) numPlayers(1),
+     * then for each player: brain(1) color(1) life(2) nameLength(1) name */
+    private static final byte MSG_SETUP = 1;
+
+    /** A move. player(1) angle(2) power(2) weapon(1) */
+    private static final byte MSG_MOVE = 2;
+
+    /** A client's checksum. turn(4) checksum(4) */
+    private static final byte MSG_HASH = 3;
+
+    /** Sent by the host when checksums don't match. turn(4) */
+    private static final byte MSG_DESYNC = 4;
+
+    /** The biggest message we'll accept */
+    private static final int MAX_MESSAGE_SIZE = 512;
+
+    /** How much output we can buffer for one connection */
+    private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+    /** How many turns of checksums we remember */
+    private static final int HASH_HISTORY = 64;
+
+    /*================= Types =================*/
+    /** Gets told what happens to a LockstepSession.
+     *
+     * These methods may be called from the session's thread or from the
+     * game's threads. They must not block.
+     */
+    public static interface Listener {
+        /** Called once every peer is here, before the game starts.
+         * The listener must arrange for somebody to play
+         * session.getLocalPlayerId().
+         *
+         * @param match     The match, or null if the session has no
+         *                  MatchServer. Then the listener has to start the
+         *                  game itself.
+         */
+        public void onMatchReady(LockstepSession session, Match match);
+
+        /** Called when the peers' checksums disagree */
+        public void onDesync(LockstepSession session, int turn);
+
+        /** Called when a connection is lost. The session is closed. */
+        public void onDisconnected(LockstepSession session);
+    }
+
+    /** Remembers the checksums of recent turns */
+    private static class HashHistory {
+        /*================= Data =================*/
+        private final int mTurns[];
+        private final int mHashes[];
+
+        /*================= Access =================*/
+        /** Returns true if we know the checksum for this turn */
+        public boolean has(int turn) {
+            return mTurns[turn % HASH_HISTORY] == turn;
+        }
+
+        public int get(int turn) {
+            return mHashes[turn % HASH_HISTORY];
+        }
+
+        /*================= Operations =================*/
+        public void put(int turn, int hash) {
+            mTurns[turn % HASH_HISTORY] = turn;
+            mHashes[turn % HASH_HISTORY] = hash;
+        }
+
+        /*================= Lifecycle =================*/
+        public HashHistory() {
+            mTurns = new int[HASH_HISTORY];
+            mHashes = new int[HASH_HISTORY];
+            for (int i = 0; i < HASH_HISTORY; i++)
+                mTurns[i] = -1;
+        }
+    }
+
+    /** One socket */
+    private class Connection {
+        /*================= Data =================*/
+        private final SocketChannel mChannel;
+
+        /** The peer on the other end */
+        private final int mPeerId;
+
+        /** Partial input */
+        private final ByteBuffer mIn;
+
+        /** Output waiting to go out. Protected by the Connection. */
+        private final ByteBuffer mOut;
+
+        /** Checksums that this peer sent before we had our own */
+        private final HashHistory mHashes;
+
+        /** True if a message didn't fit in mOut. Protected by the
+         * Connection. */
+        private boolean mOverflowed;
+
+        /*================= Operations =================*/
+        /** Queues up a message. Can be called from any thread.
+         *
+         * If the peer has stopped reading and mOut is full, the message is
+         * dropped and the connection is marked as overflowed. Without the
+         * message, the peer can't stay in step with us, so the session
+         * thread will drop it as if it had hung up. We don't throw here,
+         * because we may be on a MatchServer thread in the middle of a
+         * step.
+         */
+        public synchronized void send(ByteBuffer msg) {
+            if (mOverflowed)
+                return;
+            if (msg.remaining() > mOut.remaining()) {
+                mOverflowed = true;
+                return;
+            }
+            mOut.put(msg);
+        }
+
+        public synchronized boolean hasOverflowed() {
+            return mOverflowed;
+        }
+
+        /** Writes as much output as the socket will take.
+         *
+         * @return true if there is more left */
+        public synchronized boolean flush() throws IOException {
+            mOut.flip();
+            try {
+                mChannel.write(mOut);
+                return mOut.hasRemaining();
+            }
+            finally {
+                mOut.compact();
+            }
+        }
+
+        public synchronized boolean hasOutput() {
+            return mOut.position() > 0;
+        }
+
+        /*================= Lifecycle =================*/
+        public Connection(SocketChannel channel, int peerId) {
+            mChannel = channel;
+            mPeerId = peerId;
+            mIn = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+            mOut = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+            mHashes = new HashHistory();
+            mOverflowed = false;
+        }
+    }
+
+    /** A move that arrived for a remote seat before the seat was ready
+     * for it */
+    private static class PendingMove {
+        public final int mAngle;
+        public final int mPower;
+        public final WeaponType mWeapon;
+
+        public PendingMove(int angle, int power, WeaponType weapon) {
+            mAngle = angle;
+            mPower = power;
+            mWeapon = weapon;
+        }
+    }
+
+    /** The moves going to one player. Protected by mSeats. */
+    private static class Seat {
+        /** Moves that arrived before the player asked for them */
+        public final LinkedList < PendingMove > mMoves;
+
+        /** The brain that has asked for a move that hasn't arrived yet,
+         * or null */
+        public RemoteBrain mWaitingBrain;
+
+        /** The game to wake up once mWaitingBrain has its move */
+        public GameHost mWaitingGame;
+
+        public Seat() {
+            mMoves = new LinkedList < PendingMove >();
+        }
+    }
+
+    /*================= Data =================*/
+    private final boolean mIsHost;
+
+    private final Listener mListener;
+
+    /** Runs our Match, or null if somebody else runs the game */
+    private final MatchServer mServer;
+
+    private final Selector mSelector;
+
+    /** The host's listening socket, or null */
+    private final ServerSocketChannel mServerChannel;
+
+    /** Our connections. On a client, there is only one: to the host. Only
+     * touched by the session thread, except when sending. */
+    private final ArrayList < Connection > mConnections;
+
+    /** The settings. On a client, this is null until MSG_SETUP arrives. */
+    private ModelFactory mModelFactory;
+
+    private long mSeed;
+
+    /** 0 for the host */
+    private int mPeerId;
+
+    /** The number of peers, including the host */
+    private int mNumPeers;
+
+    /** True once the game has started */
+    private volatile boolean mStarted;
+
+    /** The match, once it has started, or null if we don't have one */
+    private volatile Match mMatch;
+
+    /** Which peer plays each player, or -1 for computer players */
+    private int mOwner[];
+
+    /** The moves going to each player. Also the lock for the Seats. */
+    private Seat mSeats[];
+
+    /** The number of ballistics phases that have finished. Only touched
+     * with the game's state lock held. */
+    private int mTurn;
+
+    /** Our own recent checksums. Protected by the session. */
+    private final HashHistory mHashes;
+
+    /** True if somebody has queued output for the session thread */
+    private volatile boolean mOutputPending;
+
+    private volatile boolean mClosed;
+
+    /*================= Static =================*/
+    /** Hosts a game.
+     *
+     * @param port      The port to listen on, or 0 to pick one
+     * @param fac       The game settings. Every HUMAN player is a seat.
+     * @param seed      The random seed for the match
+     * @param server    Runs the match, or null to run the game yourself
+     */
+    public static LockstepSession host(int port, ModelFactory fac,
+                                       long seed, MatchServer server,
+                                       Listener listener)
+            throws IOException {
+        LockstepSession s = new LockstepSession(true, port, server, listener);
+        s.mModelFactory = fac;
+        s.mSeed = seed;
+        s.mPeerId = 0;
+        s.assignSeats();
+        new Thread(s, "LockstepSession host").start();
+        return s;
+    }
+
+    /** Joins a game that somebody else is hosting. Connecting blocks.
+     *
+     * @param server    Runs the match, or null to run the game yourself
+     */
+    public static LockstepSession join(String hostName, int port,
+                                       MatchServer server,
+                                       Listener listener)
+            throws IOException {
+        LockstepSession s = new LockstepSession(false, 0, server, listener);
+        SocketChannel ch =
+            SocketChannel.open(new InetSocketAddress(hostName, port));
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Connection conn = s.new Connection(ch, 0);
+        s.mConnections.add(conn);
+        ch.register(s.mSelector, SelectionKey.OP_READ, conn);
+        new Thread(s, "LockstepSession client").start();
+        return s;
+    }
+
+    /*================= Access =================*/
+    public boolean isHost() {
+        return mIsHost;
+    }
+
+    /** Returns the port that the host is listening on */
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /** Returns the match, or null if it hasn't started yet or we don't
+     * have one */
+    public Match getMatch() {
+        return mMatch;
+    }
+
+    /** Returns the game settings. On a client, this is null until
+     * onMatchReady(). */
+    public ModelFactory getModelFactory() {
+        return mModelFactory;
+    }
+
+    /** Returns the random seed for the game */
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /** Returns true if another peer plays this player */
+    public boolean isRemotePlayer(int playerId) {
+        return (mOwner[playerId] != -1) && (mOwner[playerId] != mPeerId);
+    }
+
+    /** Returns the player that this peer plays */
+    public int getLocalPlayerId() {
+        for (int i = 0; i < mOwner.length; i++) {
+            if (mOwner[i] == mPeerId)
+                return i;
+        }
+        return Player.INVALID_PLAYER_ID;
+    }
+
+    /*================= Game Events =================*/
+    /** Tells the session that a player has committed to a move. The
+     * local seat's moves go out to the other peers. Call this from
+     * GameHost.notifyMove(). */
+    public void notifyMove(int playerId, int angle, int power,
+                           WeaponType weapon) {
+        if (mOwner[playerId] != mPeerId)
+            return;
+        ByteBuffer msg = makeMove(playerId, angle, power, weapon);
+        for (Connection conn : mConnections)
+            send(conn, msg);
+    }
+
+    /** Tells the session that a ballistics phase has finished, so that
+     * the peers can compare checksums. Call this from
+     * GameHost.notifyBallisticsFinished(), with the game's state lock
+     * held. */
+    public void notifyBallisticsFinished(Model model) {
+        int turn = mTurn++;
+        int hash = model.getChecksum();
+        if (mIsHost) {
+            boolean mismatch = false;
+            synchronized (this) {
+                mHashes.put(turn, hash);
+                for (Connection conn : mConnections) {
+                    if ((conn.mHashes.has(turn)) &&
+                        (conn.mHashes.get(turn) != hash))
+                        mismatch = true;
+                }
+            }
+            if (mismatch)
+                desync(turn);
+        }
+        else {
+            ByteBuffer msg = ByteBuffer.allocate(11);
+            msg.putShort((short)9).put(MSG_HASH).putInt(turn).putInt(hash);
+            msg.flip();
+            send(mConnections.get(0), msg);
+        }
+    }
+
+    /*================= Match.Observer =================*/
+    public void onMove(Match match, int playerId, int angle, int power,
+                       WeaponType weapon) {
+        notifyMove(playerId, angle, power, weapon);
+    }
+
+    public void onBallisticsFinished(Match match) {
+        notifyBallisticsFinished(match.getModel());
+    }
+
+    public void onRoundStarted(Match match) {
+    }
+
+    public void onTerrainChanged(Match match) {
+    }
+
+    public void onColumnsChanged(Match match, int first, int last) {
+    }
+
+    public void onFrame(Match match, Projectile projectiles[],
+                        Explosion explosions[]) {
+    }
+
+    public void onCrashed(Match match, RuntimeException e) {
+        Log.e(getClass().getName(), "onCrashed: match crashed: " +
+              e.toString());
+    }
+
+    /*================= RemoteBrain.Listener =================*/
+    public void onMoveRequested(RemoteBrain brain, GameHost game,
+                                int playerId) {
+        PendingMove move;
+        synchronized (mSeats) {
+            Seat seat = mSeats[playerId];
+            move = seat.mMoves.poll();
+            if (move == null) {
+                seat.mWaitingBrain = brain;
+                seat.mWaitingGame = game;
+                return;
+            }
+        }
+        brain.submitMove(move.mAngle, move.mPower, move.mWeapon);
+    }
+
+    /*================= Operations =================*/
+    /** Closes all the sockets. The game is left alone. */
+    public void close() {
+        mClosed = true;
+        mSelector.wakeup();
+    }
+
+    public void run() {
+        try {
+            if (mIsHost && (mNumPeers == 1)) {
+                // Nobody else to wait for
+                startMatch();
+            }
+            while (! mClosed) {
+                if (mOutputPending) {
+                    mOutputPending = false;
+                    updateInterest();
+                }
+                mSelector.select();
+                Iterator < SelectionKey > it =
+                    mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (! key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        doAccept();
+                    else {
+                        Connection conn = (Connection)key.attachment();
+                        if (key.isReadable())
+                            doRead(conn);
+                        if (key.isValid() && key.isWritable())
+                            doWrite(key, conn);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.w(getClass().getName(), "run: lost connection: " +
+                  e.toString());
+            mClosed = true;
+            mListener.onDisconnected(this);
+        }
+        finally {
+            closeChannels();
+        }
+    }
+
+    private void send(Connection conn, ByteBuffer msg) {
+        conn.send(msg.duplicate());
+        mOutputPending = true;
+        mSelector.wakeup();
+    }
+
+    private void desync(int turn) {
+        Log.e(getClass().getName(), "desync: checksums differ after turn " +
+              turn);
+        if (mIsHost) {
+            ByteBuffer msg = ByteBuffer.allocate(7);
+            msg.putShort((short)5).put(MSG_DESYNC).putInt(turn);
+            msg.flip();
+            for (Connection conn : mConnections)
+                send(conn, msg);
+        }
+        mListener.onDesync(this, turn);
+    }
+
+    /** Figures out which peer plays each player */
+    private void assignSeats() {
+        int numPlayers = mModelFactory.getNumPlayers();
+        mOwner = new int[numPlayers];
+        mNumPeers = 0;
+        for (int i = 0; i < numPlayers; i++) {
+            PlayerFactory p = mModelFactory.getPlayerFactory(i);
+            if (p.getBrainFactory().isHuman())
+                mOwner[i] = mNumPeers++;
+            else
+                mOwner[i] = -1;
+        }
+        if (mNumPeers == 0) {
+            throw new RuntimeException("LockstepSession: there are no " +
+                                       "human players");
+        }
+        mSeats = new Seat[numPlayers];
+        for (int i = 0; i < numPlayers; i++)
+            mSeats[i] = new Seat();
+    }
+
+    /** Creates the match and starts it running, or tells the listener to
+     * start the game if we don't have a MatchServer */
+    private void startMatch() {
+        mStarted = true;
+        if (mServer == null) {
+            mListener.onMatchReady(this, null);
+            return;
+        }
+        Match match = new Match(mModelFactory, mSeed);
+        for (int i = 0; i < mOwner.length; i++) {
+            if (isRemotePlayer(i))
+                match.getSeat(i).setListener(this);
+        }
+        match.addObserver(this);
+        mMatch = match;
+        mListener.onMatchReady(this, match);
+        mServer.addMatch(match);
+    }
+
+    /*================= I/O =================*/
+    private void doAccept() throws IOException {
+        SocketChannel ch = mServerChannel.accept();
+        if (ch == null)
+            return;
+        if (mStarted) {
+            // The game has already started.
+            ch.close();
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Connection conn = new Connection(ch, mConnections.size() + 1);
+        mConnections.add(conn);
+        ch.register(mSelector, SelectionKey.OP_READ, conn);
+        if (mConnections.size() + 1 == mNumPeers) {
+            // Everyone is here. The settings go out before the match can
+            // produce any moves.
+            for (Connection c : mConnections)
+                send(c, makeSetup(c.mPeerId));
+            startMatch();
+        }
+    }
+
+    private void doRead(Connection conn) throws IOException {
+        ByteBuffer in = conn.mIn;
+        if (conn.mChannel.read(in) < 0)
+            throw new IOException("peer " + conn.mPeerId + " hung up");
+        in.flip();
+        while (in.remaining() >= 2) {
+            int len = in.getShort(in.position()) & 0xffff;
+            if ((len < 1) || (len + 2 > MAX_MESSAGE_SIZE))
+                throw new IOException("bad message length " + len);
+            if (in.remaining() < len + 2)
+                break;
+            int end = in.position() + 2 + len;
+            in.position(in.position() + 2);
+            ByteBuffer msg = in.slice();
+            msg.limit(len);
+            in.position(end);
+            handleMessage(conn, msg);
+        }
+        in.compact();
+    }
+
+    private void doWrite(SelectionKey key, Connection conn)
+            throws IOException {
+        if (! conn.flush())
+            key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /** Asks to be told when we can write to connections with output.
+     *
+     * @throws IOException if a peer has fallen so far behind that its
+     *                     output overflowed
+     */
+    private void updateInterest() throws IOException {
+        for (Connection conn : mConnections) {
+            if (conn.hasOverflowed()) {
+                throw new IOException("peer " + conn.mPeerId + " isn't " +
+                                      "reading its messages");
+            }
+            SelectionKey key = conn.mChannel.keyFor(mSelector);
+            if ((key == null) || (! key.isValid()))
+                continue;
+            if (conn.hasOutput()) {
+                key.interestOps(SelectionKey.OP_READ |
+                                SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void closeChannels() {
+        for (Connection conn : mConnections) {
+            try {
+                conn.mChannel.close();
+            }
+            catch (IOException e) {
+            }
+        }
+        try {
+            if (mServerChannel != null)
+                mServerChannel.close();
+            mSelector.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /*================= Messages =================*/
+    private void handleMessage(Connection conn, ByteBuffer msg)
+            throws IOException {
+        byte type = msg.get();
+        switch (type) {
+        case MSG_SETUP:
+            if (mIsHost || mStarted)
+                throw new IOException("unexpected MSG_SETUP");
+            readSetup(msg);
+            startMatch();
+            break;
+        case MSG_MOVE:
+            handleMove(conn, msg);
+            break;
+        case MSG_HASH: {
+            if (! mIsHost)
+                throw new IOException("unexpected MSG_HASH");
+            int turn = msg.getInt();
+            int hash = msg.getInt();
+            boolean mismatch;
+            synchronized (this) {
+                conn.mHashes.put(turn, hash);
+                mismatch = mHashes.has(turn) && (mHashes.get(turn) != hash);
+            }
+            if (mismatch)
+                desync(turn);
+            break;
+        }
+        case MSG_DESYNC:
+            mListener.onDesync(this, msg.getInt());
+            break;
+        default:
+            throw new IOException("unknown message type " + type);
+        }
+    }
+
+    private void handleMove(Connection conn, ByteBuffer msg)
+            throws IOException {
+        if (! mStarted)
+            throw new IOException("MSG_MOVE before the game started");
+        int playerId = msg.get();
+        int angle = msg.getShort();
+        int power = msg.getShort();
+        int weaponIdx = msg.get();
+        WeaponType types[] = WeaponType.values();
+        if ((playerId < 0) || (playerId >= mOwner.length) ||
+            (weaponIdx < 0) || (weaponIdx >= types.length))
+            throw new IOException("bad MSG_MOVE");
+        if (mOwner[playerId] == mPeerId)
+            throw new IOException("peer " + conn.mPeerId +
+                                  " moved for our player");
+        if (mIsHost) {
+            if (mOwner[playerId] != conn.mPeerId) {
+                throw new IOException("peer " + conn.mPeerId +
+                                      " moved for player " + playerId);
+            }
+            ByteBuffer relay = makeMove(playerId, angle, power,
+                                        types[weaponIdx]);
+            for (Connection c : mConnections) {
+                if (c != conn)
+                    send(c, relay);
+            }
+        }
+
+        // If the seat is already waiting for this move, hand it over.
+        // Otherwise, queue it up. Don't call the RemoteBrain while holding
+        // mSeats, since onMoveRequested() takes the locks in the other
+        // order.
+        RemoteBrain brain;
+        GameHost game;
+        synchronized (mSeats) {
+            Seat seat = mSeats[playerId];
+            brain = seat.mWaitingBrain;
+            game = seat.mWaitingGame;
+            if (brain != null) {
+                seat.mWaitingBrain = null;
+                seat.mWaitingGame = null;
+            }
+            else {
+                seat.mMoves.add(
+                    new PendingMove(angle, power, types[weaponIdx]));
+            }
+        }
+        if (brain != null) {
+            brain.submitMove(angle, power, types[weaponIdx]);
+            game.wake();
+        }
+    }
+
+    private static ByteBuffer makeMove(int playerId, int angle, int power,
+                                       WeaponType weapon) {
+        ByteBuffer msg = ByteBuffer.allocate(9);
+        msg.putShort((short)7).put(MSG_MOVE);
+        msg.put((byte)playerId);
+        msg.putShort((short)angle);
+        msg.putShort((short)power);
+        msg.put((byte)weapon.ordinal());
+        msg.flip();
+        return msg;
+    }
+
+    private ByteBuffer makeSetup(int peerId) throws IOException {
+        ByteBuffer msg = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        msg.putShort((short)0).put(MSG_SETUP);
+        msg.put((byte)peerId);
+        msg.putLong(mSeed);
+        msg.putShort(mModelFactory.getNumRounds());
+        msg.putShort(mModelFactory.getStartingCash());
+        msg.put((byte)mModelFactory.getTerrainFactory().ordinal());
+        msg.put((byte)(mModelFactory.getRandomPlayerPlacement() ? 1 : 0));
+        msg.putInt(mModelFactory.getWorldWidth());
+        msg.put((byte)(mModelFactory.getCaves() ? 1 : 0));
+        msg.put((byte)(mModelFactory.getSettlingDirt() ? 1 : 0));
+        msg.put((byte)(mModelFactory.getFairMaps() ? 1 : 0));
+        msg.put((byte)mModelFactory.getNumPlayers());
+        for (int i = 0; i < mModelFactory.getNumPlayers(); i++) {
+            PlayerFactory p = mModelFactory.getPlayerFactory(i);
+            msg.put((byte)p.getBrainFactory().ordinal());
+            msg.put((byte)p.getColor().ordinal());
+            msg.putShort(p.getLife());
+            byte name[] = p.getName().getBytes("UTF-8");
+            msg.put((byte)name.length);
+            msg.put(name);
+        }
+        msg.putShort(0, (short)(msg.position() - 2));
+        msg.flip();
+        return msg;
+    }
+
+    private void readSetup(ByteBuffer msg) throws IOException {
+        try {
+            mPeerId = msg.get();
+            mSeed = msg.getLong();
+            short numRounds = msg.getShort();
+            short cash = msg.getShort();
+            TerrainFactory terrain = TerrainFactory.values()[msg.get()];
+            boolean randomPlacement = (msg.get() != 0);
+            int worldWidth = msg.getInt();
+            boolean caves = (msg.get() != 0);
+            boolean settlingDirt = (msg.get() != 0);
+            boolean fairMaps = (msg.get() != 0);
+            int numPlayers = msg.get();
+            ModelFactory fac = ModelFactory.fromSettings(terrain,
+                                    randomPlacement, numRounds, cash,
+                                    worldWidth, caves, settlingDirt,
+                                    fairMaps);
+            for (int i = 0; i < numPlayers; i++) {
+                BrainFactory brain = BrainFactory.values()[msg.get()];
+                PlayerColor color = PlayerColor.values()[msg.get()];
+                short life = msg.getShort();
+                byte name[] = new byte[msg.get() & 0xff];
+                msg.get(name);
+                fac.addPlayerFactory(new String(name, "UTF-8"), brain,
+                                     color, life);
+            }
+            mModelFactory = fac;
+        }
+        catch (RuntimeException e) {
+            throw new IOException("bad MSG_SETUP: " + e.toString());
+        }
+        assignSeats();
+    }
+
+    /*================= Lifecycle =================*/
+    private LockstepSession(boolean isHost, int port, MatchServer server,
+                            Listener listener) throws IOException {
+        mIsHost = isHost;
+        mListener = listener;
+        mServer = server;
+        mSelector = Selector.open();
+        mConnections = new ArrayList < Connection >();
+        mHashes = new HashHistory();
+        mTurn = 0;
+        mStarted = false;
+        mOutputPending = false;
+        mClosed = false;
+        if (isHost) {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.socket().bind(new InetSocketAddress(port));
+            mServerChannel.configureBlocking(false);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        }
+        else {
+            mServerChannel = null;
+        }
+    }
+}
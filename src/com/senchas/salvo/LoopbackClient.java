@@ -0,0 +1,85 @@
+package com.senchas.salvo;
+
+import java.util.Random;
+
+import com.senchas.salvo.Brain.Move;
+import com.senchas.salvo.Brain.RemoteBrain;
+
+/**
+ * Plays a seat in a headless Match from inside the same process.
+ *
+ * A LoopbackClient stands in for a real player on the other end of a
+ * connection. When its seat needs a move, it asks an ordinary computer Brain
+ * what to do and submits the answer through the seat's RemoteBrain, exactly
+ * as a network client would.
+ *
+ * This is mostly useful for exercising a MatchServer without any real
+ * players.
+ *
+ * This class contains no locking. It is only called with the game's state
+ * lock held.
+ */
+public class LoopbackClient implements RemoteBrain.Listener {
+    /*================= Data =================*/
+    /** The Brain which decides what we do */
+    private final Brain mBrain;
+
+    /** Scratch space for the move */
+    private final Move mMove;
+
+    /** Our own source of random numbers. We must not use the game's,
+     * since the other peers in a networked game don't see our
+     * decisions being made. It is seeded from the match, so that two runs
+     * of the same match play out the same way. */
+    private final Random mRandom;
+
+    /*================= Static =================*/
+    /** Puts a LoopbackClient in every seat of a match.
+     *
+     * @param match     The match
+     * @param fac       The kind of Brain which will make the decisions.
+     *                  Must not be HUMAN.
+     */
+    public static void fillSeats(Match match, BrainFactory fac) {
+        for (int i = 0; i < match.getNumPlayers(); i++) {
+            if (match.getSeat(i) != null)
+                fillSeat(match, i, fac);
+        }
+    }
+
+    /** Puts a LoopbackClient in one seat of a match. */
+    public static void fillSeat(Match match, int playerId, BrainFactory fac) {
+        if (fac.isHuman())
+            throw new RuntimeException("fillSeat: a LoopbackClient " +
+                                       "can't use a human brain");
+        match.getSeat(playerId).setListener(
+            new LoopbackClient(fac.createBrain(),
+                               match.getSeed() ^ playerId));
+    }
+
+    /*================= Operations =================*/
+    public void onMoveRequested(RemoteBrain brain, GameHost game,
+                                int playerId) {
+        mBrain.makeMove(mRandom, game, mMove);
+        WeaponType weapon = mMove.getWeapon();
+        int angle, power;
+        if (mMove.isProjectile()) {
+            angle = mMove.getAngle();
+            power = mMove.getPower();
+        }
+        else {
+            angle = game.getModel().getPlayers()[playerId].getAngleDeg();
+            power = 0;
+        }
+        // We're being called by the state machine, so there's no need to
+        // wake up the match.
+        brain.submitMove(angle, power, weapon);
+    }
+
+    /*================= Lifecycle =================*/
+    public LoopbackClient(Brain brain, long seed) {
+        mBrain = brain;
+        mMove = new Move();
+        mRandom = new Random(seed);
+    }
+}
@@ -0,0 +1,222 @@
+package com.senchas.salvo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A terrain which lives in a memory-mapped file.
+ *
+ * A huge pre-generated map would be megabytes of shorts. We don't want all
+ * of that on the Java heap, and we certainly don't want to push it through
+ * a Bundle every time the activity is paused. So the whole height field
+ * lives in a file, which is mapped with FileChannel.map. Terrain loads
+ * chunks out of the mapping as it needs them, and writes explosion damage
+ * straight back into it. The page cache decides what is actually in
+ * memory.
+ *
+ * File format
+ * -----------
+ * All numbers are big-endian.
+ *
+ * magic(4) version(4) width(4) sourceId(4) seed(8), then the heights of
+ * every column, two bytes each. The width is always a whole number of
+ * chunks.
+ *
+ * The source ID and seed are those of the generator that made the file.
+ * They are just for reference; the file is the terrain.
+ *
+ * This class contains no locking.
+ */
+public class MappedTerrainFile implements Terrain.ChunkStore {
+    /*================= Constants =================*/
+    private static final int MAGIC = 0x53414c54;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 24;
+
+    /** How many chunks create() generates at a time */
+    private static final int CHUNKS_PER_BLOCK = 32;
+
+    /*================= Data =================*/
+    private final File mFile;
+
+    private final FileChannel mChannel;
+
+    private final MappedByteBuffer mMap;
+
+    /** A view of the heights in mMap */
+    private final ShortBuffer mColumns;
+
+    private final int mWidth;
+
+    private final int mSourceId;
+
+    private final long mSeed;
+
+    /*================= Static =================*/
+    /** Creates a terrain file 'width' columns wide, and fills it in from
+     * 'source'. The width is rounded up to a whole number of chunks.
+     * Any existing file is overwritten.
+     *
+     * The chunks are generated a block at a time by TerrainPipeline, so
+     * all of the cores pitch in.
+     */
+    public static MappedTerrainFile create(File file,
+                        Terrain.ChunkSource source, int width)
+                            throws IOException {
+        int numChunks = (width + Terrain.CHUNK_SIZE - 1) /
+                        Terrain.CHUNK_SIZE;
+        width = numChunks * Terrain.CHUNK_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean done = false;
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (2L * width));
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(width);
+            raf.writeInt(source.getSourceId());
+            raf.writeLong(source.getSeed());
+            MappedTerrainFile ret = new MappedTerrainFile(file,
+                                                          raf.getChannel());
+
+            int blockChunks = Math.min(numChunks, CHUNKS_PER_BLOCK);
+            short block[] = new short[blockChunks * Terrain.CHUNK_SIZE];
+            ShortBuffer columns = ret.mColumns.duplicate();
+            for (int c = 0; c < numChunks; c += blockChunks) {
+                int n = Math.min(blockChunks, numChunks - c);
+                TerrainPipeline.loadChunks(source, c, n, block, 0);
+                columns.put(block, 0, n * Terrain.CHUNK_SIZE);
+            }
+            ret.flush();
+            done = true;
+            return ret;
+        }
+        finally {
+            // Whatever went wrong, even a generator that threw a
+            // RuntimeException, don't leave the file open
+            if (! done)
+                raf.close();
+        }
+    }
+
+    /** Opens an existing terrain file */
+    public static MappedTerrainFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean done = false;
+        try {
+            MappedTerrainFile ret = new MappedTerrainFile(file,
+                                                          raf.getChannel());
+            done = true;
+            return ret;
+        }
+        finally {
+            if (! done)
+                raf.close();
+        }
+    }
+
+    /*================= Access =================*/
+    /** Returns the width of the terrain in this file */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /*================= Terrain.ChunkStore =================*/
+    public void loadChunk(int index, short out[]) {
+        ShortBuffer b = mColumns.duplicate();
+        b.position(index * Terrain.CHUNK_SIZE);
+        b.get(out, 0, Terrain.CHUNK_SIZE);
+    }
+
+    public int getSourceId() {
+        return mSourceId;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    public void storeColumns(int index, short chunk[], int first,
+                             int last) {
+        int base = index * Terrain.CHUNK_SIZE;
+        for (int i = first; i <= last; i++)
+            mColumns.put(base + i, chunk[i]);
+    }
+
+    public void flush() {
+        mMap.force();
+    }
+
+    public String getPath() {
+        return mFile.getPath();
+    }
+
+    /*================= Operations =================*/
+    /** Copies the file, as it is now, to 'dest'.
+     *
+     * The copy is done with FileChannel.transferTo, so the heights never
+     * pass through the Java heap. On most systems the kernel does the
+     * whole thing.
+     *
+     * 'dest' is overwritten in place, rather than truncated first. So if
+     * some other MappedTerrainFile still has it mapped, its pages never
+     * disappear from under it.
+     */
+    public void snapshot(File dest) throws IOException {
+        flush();
+        RandomAccessFile out = new RandomAccessFile(dest, "rw");
+        try {
+            FileChannel dst = out.getChannel();
+            long size = mChannel.size();
+            long pos = 0;
+            while (pos < size)
+                pos += mChannel.transferTo(pos, size - pos, dst);
+            if (out.length() > size)
+                out.setLength(size);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** Writes everything out and closes the file. The mapping stays valid
+     * until it is garbage collected, but don't use this object again. */
+    public void close() throws IOException {
+        flush();
+        mChannel.close();
+    }
+
+    /*================= Lifecycle =================*/
+    private MappedTerrainFile(File file, FileChannel channel)
+            throws IOException {
+        mFile = file;
+        mChannel = channel;
+        mMap = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                           channel.size());
+        if ((channel.size() < HEADER_SIZE) || (mMap.getInt(0) != MAGIC))
+            throw new IOException(file + " is not a terrain file");
+        if (mMap.getInt(4) != VERSION) {
+            throw new IOException(file + " has unknown version " +
+                                  mMap.getInt(4));
+        }
+        mWidth = mMap.getInt(8);
+        mSourceId = mMap.getInt(12);
+        mSeed = mMap.getLong(16);
+        if ((mWidth <= 0) || (mWidth % Terrain.CHUNK_SIZE != 0) ||
+                (HEADER_SIZE + (2L * mWidth) > channel.size()))
+            throw new IOException(file + " has a bad width");
+        mMap.position(HEADER_SIZE);
+        mColumns = mMap.slice().asShortBuffer();
+        mMap.position(0);
+    }
+}
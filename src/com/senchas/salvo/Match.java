@@ -0,0 +1,487 @@
+package com.senchas.salvo;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.senchas.salvo.Brain.RemoteBrain;
+import com.senchas.salvo.GameState.GameButton;
+
+/**
+ * A game with no display.
+ *
+ * Purpose
+ * -------
+ * A Match runs the same GameState machine as RunGameAct, but with nobody
+ * looking at it. The presentation methods of GameHost do nothing. Dialogs
+ * that would wait for somebody to press OK are dismissed right away.
+ *
+ * Every HUMAN player in the ModelFactory becomes a "seat". A seat is played by
+ * a RemoteBrain, which gets its moves from submitMove(). The computer players
+ * use their usual Brains.
+ *
+ * Threading
+ * ---------
+ * A Match does not own a thread. It is driven by a MatchServer, which calls
+ * step() on a pool thread. step() runs the state machine until the current
+ * state wants to wait. Then it returns how long to wait for. If the match is
+ * waiting for a seat to move, step() returns WAIT_FOR_INPUT. The Match is not
+ * scheduled again until submitMove() wakes it up. So an idle match holds no
+ * thread and no stack, only the heap objects listed below.
+ *
+ * Memory
+ * ------
+ * A four-player match on a default-sized world costs about 14 KB of heap:
+ *     - Terrain: 480 shorts of height field, and the TerrainIndex over
+ *       them: about 7 KB
+ *     - the GameStateFactory, including BallisticsState's preallocated
+ *       Projectiles and Explosions, and the TimerWheel: about 2.5 KB
+ *     - the Cosmos, with an Armory and leaderboard entry per player:
+ *       about 1 KB
+ *     - the Model, the Players and their Brains, and the ModelFactory:
+ *       about 2 KB
+ * 10,000 idle matches therefore need about 140 MB. A Match has no
+ * PerfStats (about 10 KB) and no trace Ring (64 KB); those are only for
+ * the game on the screen.
+ *
+ * Locking
+ * -------
+ * Everything the GameStates do is done with mStateLock held. The scheduling
+ * fields are protected by the Match object itself. Never take mStateLock
+ * while holding the Match lock.
+ */
+public class Match implements GameHost {
+    /*================= Constants =================*/
+    /** Returned by step() when we should only run again after input. */
+    public static final int WAIT_FOR_INPUT = 0;
+
+    /** Returned by step() when the match is over. */
+    public static final int FINISHED = -1;
+
+    /*================= Types =================*/
+    /** Gets told about interesting things that happen in a Match.
+     *
+     * Observers are called on the thread that is stepping the match, with
+     * the state lock held. They must not block.
+     */
+    public static interface Observer {
+        /** Called when a player commits to a move.
+         * See GameHost.notifyMove. */
+        public void onMove(Match match, int playerId, int angle, int power,
+                           WeaponType weapon);
+
+        /** Called when all the projectiles and explosions of a turn are
+         * finished. */
+        public void onBallisticsFinished(Match match);
+
+        /** Called when a new Model has been created for the next round */
+        public void onRoundStarted(Match match);
+
+        /** Called when the terrain has changed. See GameHost.cacheTerrain. */
+        public void onTerrainChanged(Match match);
+
+        /** Called as soon as columns [first, last] of the terrain have
+         * changed. See Terrain.columnsChanged. */
+        public void onColumnsChanged(Match match, int first, int last);
+
+        /** Called whenever the state machine would draw the screen. See
+         * GameHost.drawScreen. */
+        public void onFrame(Match match, Projectile projectiles[],
+                            Explosion explosions[]);
+
+        /** Called when the state machine threw an exception. The match is
+         * finished, and getCrash() returns the exception. */
+        public void onCrashed(Match match, RuntimeException e);
+    }
+
+    /** Runs one step of a Match. There is one per scheduled step, so that
+     * a step which was superseded while it was starting can tell that
+     * mPendingStep is not its own. */
+    private class StepTask implements Runnable {
+        /*================= Data =================*/
+        /** The future for this task. Set with the Match lock held, before
+         * run() can get the lock. */
+        private ScheduledFuture < ? > mFuture;
+
+        /*================= Operations =================*/
+        public void run() {
+            MatchServer server;
+            synchronized (Match.this) {
+                if (mPendingStep == mFuture)
+                    mPendingStep = null;
+                server = mServer;
+            }
+            if (server == null)
+                return;
+            int delay = step();
+            server.stepFinished(Match.this, delay);
+        }
+    }
+
+    /*================= Data =================*/
+    /** Lock that protects game state */
+    private final Object mStateLock;
+
+    /** Creates a new Model each round */
+    private final ModelFactory mModelFactory;
+
+    /** Owns the GameState objects for this match */
+    private final GameStateFactory mStateFactory;
+
+    /** The Brains for the seats, indexed by player id. This is null for
+     * computer players. */
+    private final RemoteBrain mSeats[];
+
+    /** The seed for this match's random number generator */
+    private final long mSeed;
+
+    /** The game data */
+    private Cosmos mCosmos;
+
+    /** The round data */
+    private Model mModel;
+
+    /** The current game state */
+    private GameState mState;
+
+    /** True if we have called onEnter for mState */
+    private boolean mEntered;
+
+    /** True once the game is over */
+    private boolean mFinished;
+
+    /** The button that we will press on behalf of the nonexistent user the
+     * next time the state machine waits, or null */
+    private GameButton mAutoButton;
+
+    /** The server which runs this match, or null */
+    private MatchServer mServer;
+
+    /** The next scheduled step, or null */
+    private ScheduledFuture < ? > mPendingStep;
+
+    /** The exception that finished the match, or null */
+    private RuntimeException mCrash;
+
+    /** Who to tell about moves and turns */
+    private final CopyOnWriteArrayList < Observer > mObservers;
+
+    /** Passes changes to the terrain on to the observers */
+    private final Terrain.Listener mTerrainListener;
+
+    /*================= Access =================*/
+    public Cosmos getCosmos() {
+        return mCosmos;
+    }
+
+    public Model getModel() {
+        return mModel;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    public int getNumPlayers() {
+        return mSeats.length;
+    }
+
+    /** Returns the RemoteBrain for a seat, or null if the player is a
+     * computer player. */
+    public RemoteBrain getSeat(int playerId) {
+        return mSeats[playerId];
+    }
+
+    public boolean isFinished() {
+        synchronized (mStateLock) {
+            return mFinished;
+        }
+    }
+
+    /** Returns the exception that the state machine threw, if that is why
+     * the match finished. Otherwise null. */
+    public RuntimeException getCrash() {
+        synchronized (mStateLock) {
+            return mCrash;
+        }
+    }
+
+    /** Returns the lock that protects the game state.
+     *
+     * Hold this lock while looking at getModel() or getCosmos() from outside
+     * the state machine.
+     */
+    public Object getStateLock() {
+        return mStateLock;
+    }
+
+    /*================= Operations =================*/
+    /** Runs the state machine until it wants to wait.
+     *
+     * @return  the number of milliseconds to wait before calling step()
+     *          again, WAIT_FOR_INPUT, or FINISHED
+     */
+    public int step() {
+        synchronized (mStateLock) {
+            try {
+                return doStep();
+            }
+            catch (RuntimeException e) {
+                mCrash = e;
+                finish();
+                for (Observer o : mObservers)
+                    o.onCrashed(this, e);
+                return FINISHED;
+            }
+        }
+    }
+
+    private int doStep() {
+        assert (Thread.holdsLock(mStateLock));
+        if (mFinished)
+            return FINISHED;
+        if (! mEntered) {
+            mState.onEnter(this);
+            mEntered = true;
+        }
+        while (true) {
+            mStateFactory.getTimers().runExpired();
+            GameState next = mState.main(this);
+            if (mFinished)
+                return FINISHED;
+            if (next == null) {
+                if (mAutoButton == null)
+                    return mState.getWakeDelay();
+                GameButton b = mAutoButton;
+                mAutoButton = null;
+                mState.onButton(this, b);
+                continue;
+            }
+            mState.onExit(this);
+            mState = next;
+            mState.onEnter(this);
+        }
+    }
+
+    /** Submits a move for a seat and wakes up the match.
+     *
+     * @return  false if the player isn't a seat, or the move is out of
+     *          range
+     */
+    public boolean submitMove(int playerId, int angle, int power,
+                              WeaponType weapon) {
+        if ((playerId < 0) || (playerId >= mSeats.length))
+            return false;
+        RemoteBrain seat = mSeats[playerId];
+        if (seat == null)
+            return false;
+        if (! seat.submitMove(angle, power, weapon))
+            return false;
+        wake();
+        return true;
+    }
+
+    /** Adds an Observer. */
+    public void addObserver(Observer observer) {
+        mObservers.add(observer);
+    }
+
+    /** Asks our server to run step() as soon as possible */
+    public void wake() {
+        MatchServer server;
+        synchronized (this) {
+            server = mServer;
+        }
+        if (server != null)
+            server.wake(this);
+    }
+
+    /** Blocks until the match is over, or until the timeout expires.
+     * A match which crashed is over too; see getCrash().
+     *
+     * @return  true if the match is over
+     */
+    public boolean waitUntilFinished(long timeout)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        synchronized (mStateLock) {
+            while (! mFinished) {
+                long left = end - System.currentTimeMillis();
+                if (left <= 0)
+                    return false;
+                mStateLock.wait(left);
+            }
+            return true;
+        }
+    }
+
+    private void finish() {
+        assert (Thread.holdsLock(mStateLock));
+        mFinished = true;
+        mStateLock.notifyAll();
+    }
+
+    /*================= Scheduling =================*/
+    // These are only called by MatchServer.
+    synchronized void attach(MatchServer server) {
+        mServer = server;
+    }
+
+    /** @return true if we were attached to a server */
+    synchronized boolean detach() {
+        if (mServer == null)
+            return false;
+        mServer = null;
+        if (mPendingStep != null) {
+            mPendingStep.cancel(false);
+            mPendingStep = null;
+        }
+        return true;
+    }
+
+    synchronized ScheduledFuture < ? > getPendingStep() {
+        return mPendingStep;
+    }
+
+    /** Schedules a step to run after 'delay' milliseconds, and makes it
+     * the pending step.
+     *
+     * @throws RejectedExecutionException if the executor has shut down
+     */
+    synchronized void scheduleStep(ScheduledExecutorService executor,
+                                   long delay) {
+        StepTask task = new StepTask();
+        task.mFuture = executor.schedule(task, delay,
+                                         TimeUnit.MILLISECONDS);
+        mPendingStep = task.mFuture;
+    }
+
+    /*================= GameHost =================*/
+    public void startRound(boolean firstRound) {
+        if (firstRound) {
+            mCosmos = Cosmos.fromInitial(mModelFactory.getNumRounds(),
+                                         mModelFactory.getNumPlayers(),
+                                         mModelFactory.getStartingCash(),
+                                         mSeed);
+        }
+        mModel = mModelFactory.createModel(mCosmos);
+        mModel.getTerrain().setListener(mTerrainListener);
+        Player players[] = mModel.getPlayers();
+        for (int i = 0; i < players.length; i++) {
+            if (mSeats[i] != null)
+                players[i].setBrain(mSeats[i]);
+        }
+        if (firstRound) {
+            mState = GameState.createInitialGameState(mStateFactory);
+            mEntered = false;
+        }
+        for (Observer o : mObservers)
+            o.onRoundStarted(this);
+    }
+
+    public void continueRound() {
+    }
+
+    public void endGame() {
+        finish();
+    }
+
+    public void notifyMove(int playerId, int angle, int power,
+                           WeaponType weapon) {
+        for (Observer o : mObservers)
+            o.onMove(this, playerId, angle, power, weapon);
+    }
+
+    public void notifyBallisticsFinished() {
+        for (Observer o : mObservers)
+            o.onBallisticsFinished(this);
+    }
+
+    public void drawScreen(int power, Projectile projectiles[],
+                           Explosion explosions[]) {
+        for (Observer o : mObservers)
+            o.onFrame(this, projectiles, explosions);
+    }
+
+    public void drawSky() {
+    }
+
+    public void emitParticles(ParticleSystem.Effect effect, int x, int y,
+                              int size) {
+    }
+
+    public void cacheTerrain() {
+        for (Observer o : mObservers)
+            o.onTerrainChanged(this);
+    }
+
+    public void showBuyWeapons(Player player) {
+        mAutoButton = GameButton.DONE;
+    }
+
+    public void showLeaderboard() {
+        mAutoButton = GameButton.OK;
+    }
+
+    public void showAnnounceWinner() {
+        mAutoButton = GameButton.OK;
+    }
+
+    public void showToast(String text) {
+    }
+
+    public void showAlert(String text) {
+    }
+
+    public void setAngleText(String text) {
+    }
+
+    public void setArmoryText(String main, String secondary) {
+    }
+
+    public void showArmory() {
+    }
+
+    public void hideArmory() {
+    }
+
+    public void setFireButtonHighlighted(boolean highlighted) {
+    }
+
+    /*================= Lifecycle =================*/
+    /** Creates a new match.
+     *
+     * @param modelFactory      The game settings. HUMAN players become
+     *                          seats.
+     * @param seed              The seed for the match's random numbers
+     */
+    public Match(ModelFactory modelFactory, long seed) {
+        mStateLock = new Object();
+        mModelFactory = modelFactory;
+        mStateFactory = new GameStateFactory(null);
+        mSeed = seed;
+        mSeats = new RemoteBrain[modelFactory.getNumPlayers()];
+        for (int i = 0; i < mSeats.length; i++) {
+            BrainFactory fac =
+                modelFactory.getPlayerFactory(i).getBrainFactory();
+            if (fac.isHuman())
+                mSeats[i] = new RemoteBrain();
+        }
+        mFinished = false;
+        mCrash = null;
+        mAutoButton = null;
+        mObservers = new CopyOnWriteArrayList < Observer >();
+        mTerrainListener = new Terrain.Listener() {
+            public void onColumnsChanged(Terrain terrain, int first,
+                                         int last) {
+                for (Observer o : mObservers)
+                    o.onColumnsChanged(Match.this, first, last);
+            }
+        };
+        synchronized (mStateLock) {
+            startRound(true);
+        }
+    }
+}
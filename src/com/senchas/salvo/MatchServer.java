@@ -0,0 +1,124 @@
+package com.senchas.salvo;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many headless Matches at once.
+ *
+ * A MatchServer has a small, fixed pool of worker threads, usually one per
+ * core. Matches don't own threads. Each Match is a task that the server
+ * schedules whenever the Match has something to do:
+ *
+ *     - A Match whose state wants to be called again in N milliseconds
+ *       (animations, ballistics) is rescheduled N milliseconds later. N is
+ *       never less than the server's minimum tick.
+ *
+ *     - A Match that is waiting for a seat to move is not scheduled at all.
+ *       Match.submitMove() wakes it up.
+ *
+ *     - A Match that has finished is dropped.
+ *
+ * So the number of idle matches is limited only by memory (see Match), and
+ * the number of active ones by how much CPU their steps take.
+ *
+ * This class does its own locking.
+ */
+public class MatchServer {
+    /*================= Data =================*/
+    /** The worker threads */
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    /** The minimum delay between steps of an active match, in
+     * milliseconds */
+    private final int mMinTick;
+
+    /** The number of matches that have not finished yet */
+    private final AtomicInteger mNumMatches;
+
+    /*================= Access =================*/
+    public int getNumMatches() {
+        return mNumMatches.get();
+    }
+
+    /*================= Operations =================*/
+    /** Starts running a match */
+    public void addMatch(Match match) {
+        mNumMatches.incrementAndGet();
+        match.attach(this);
+        wake(match);
+    }
+
+    /** Runs a step of this match as soon as possible */
+    void wake(Match match) {
+        schedule(match, 0);
+    }
+
+    /** Called by a Match after each step.
+     *
+     * @param delay     the value returned by Match.step()
+     */
+    void stepFinished(Match match, int delay) {
+        if (delay == Match.FINISHED) {
+            if (match.detach())
+                mNumMatches.decrementAndGet();
+        }
+        else if (delay != Match.WAIT_FOR_INPUT) {
+            schedule(match, Math.max(delay, mMinTick));
+        }
+    }
+
+    /** Schedules a step of a match.
+     *
+     * If the match already has a step scheduled which will run sooner, we
+     * leave that one alone. That way, a wake-up which arrives while the
+     * match is stepping never gets pushed back.
+     */
+    private void schedule(Match match, long delay) {
+        synchronized (match) {
+            ScheduledFuture < ? > pending = match.getPendingStep();
+            if (pending != null) {
+                if (pending.getDelay(TimeUnit.MILLISECONDS) <= delay)
+                    return;
+                pending.cancel(false);
+            }
+            try {
+                match.scheduleStep(mExecutor, delay);
+            }
+            catch (RejectedExecutionException e) {
+                // We have been shut down. The match is abandoned.
+            }
+        }
+    }
+
+    /** Stops all the worker threads. Matches that haven't finished are
+     * abandoned. */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /*================= Lifecycle =================*/
+    /**
+     * @param numThreads    The number of worker threads
+     * @param minTick       The minimum delay between steps of an active
+     *                      match. Ballistics steps come at a fixed rate,
+     *                      and a late match catches up a few at a time,
+     *                      so this only slows a volley down if it is
+     *                      bigger than a few step intervals. It never
+     *                      changes how a volley ends.
+     */
+    public MatchServer(int numThreads, int minTick) {
+        mExecutor = new ScheduledThreadPoolExecutor(numThreads);
+        mMinTick = minTick;
+        mNumMatches = new AtomicInteger(0);
+    }
+
+    /** Creates a MatchServer with one worker thread per core, which steps
+     * active matches as often as they ask. */
+    public MatchServer() {
+        this(Runtime.getRuntime().availableProcessors(), 1);
+    }
+}
@@ -84,6 +84,9 @@ public class Model {
 
         /** The wind we have this round */
         public int mWind;
+
+        /** If true, loose dirt slides down steep slopes after explosions */
+        public boolean mSettlingDirt;
     }
     private final MyVars mV;
 
@@ -122,6 +125,10 @@ public class Model {
         return mV.mWind;
     }
 
+    public boolean getSettlingDirt() {
+        return mV.mSettlingDirt;
+    }
+
     /** Gets information about who should move next. */
     public void getNextPlayerInfo(NextTurnInfo info) {
         int nextPlayerId = Player.INVALID_PLAYER_ID;
@@ -154,6 +161,23 @@ public class Model {
         return mV.mForeground.isLight();
     }
 
+    /** Returns a hash of everything that the ballistics can change: the
+     * terrain and the players' positions and life.
+     *
+     * Peers in a networked game compare checksums after each turn to make
+     * sure that their simulations haven't drifted apart.
+     */
+    public int getChecksum() {
+        int h = mTerrain.updateChecksum(0x811c9dc5);
+        for (int i = 0; i < mPlayers.length; i++) {
+            Player p = mPlayers[i];
+            h = (h ^ p.getX()) * 0x01000193;
+            h = (h ^ p.getY()) * 0x01000193;
+            h = (h ^ p.getLife()) * 0x01000193;
+        }
+        return h;
+    }
+
     /*================= Operations =================*/
     public void setCurPlayerId(int id) {
         if (id == Player.INVALID_PLAYER_ID) {
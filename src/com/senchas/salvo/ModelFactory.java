@@ -2,9 +2,11 @@ package com.senchas.salvo;
 
 import com.senchas.salvo.WeaponType.Armory;
 
+import java.io.File;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import com.senchas.salvo.PlayerColor;
 
@@ -85,6 +87,52 @@ public class ModelFactory {
         }
     };
 
+    /** Represents the width of the world, in screens */
+    public static enum WorldWidth {
+        ONE(1),
+        TWO(2),
+        FOUR(4),
+        TEN(10),
+        TWENTY(20),
+        FIFTY(50),
+        HUNDRED(100);
+
+        /*================= Static =================*/
+        /** Returns the widest WorldWidth which is no wider than 'width'
+         * columns, or ONE if they all are */
+        public static WorldWidth fromInt(int width) {
+            WorldWidth ret = ONE;
+            for (WorldWidth w : WorldWidth.values()) {
+                if (w.toInt() <= width)
+                    ret = w;
+            }
+            return ret;
+        }
+
+        /*================= Data =================*/
+        private int mScreens;
+
+        /*================= Access =================*/
+        public String toString() {
+            StringBuilder b = new StringBuilder(30);
+            b.append("world: ").append(mScreens).append(" screen");
+            if (this != ONE)
+                b.append("s");
+            b.append(" wide");
+            return b.toString();
+        }
+
+        /** Returns the width in columns */
+        public int toInt() {
+            return mScreens * Terrain.MAX_X;
+        }
+
+        /*================= Lifecycle =================*/
+        WorldWidth(int screens) {
+            mScreens = screens;
+        }
+    };
+
     /** Represents the amount of cash players start with */
     public static enum StartingCash {
         C0(0),
@@ -345,20 +393,56 @@ public class ModelFactory {
         public PlayerListAdapter() { }
     }
 
+    /** Everything about a round that can be decided before the players
+     * are created. See planRound(). */
+    public static class RoundPlan {
+        /*================= Data =================*/
+        private Background mBackground;
+        private Foreground mForeground;
+        private int mWind;
+        private Terrain mTerrain;
+        private List < Integer > mPositions;
+
+        /*================= Access =================*/
+        public Background getBackground() {
+            return mBackground;
+        }
+
+        /*================= Lifecycle =================*/
+        private RoundPlan() { }
+    }
+
     /*================= Constants =================*/
     private final static String KEY_NUM_PLAYERS = "KEY_NUM_PLAYERS";
 
+    /** The furthest apart that getValidPlayerPlacements puts neighbours.
+     * Any further, and they couldn't shoot at each other. */
+    public static final int MAX_PLAYER_SPACING = FairMapSearch.MAX_RANGE;
+
+    /** Worlds at least this wide are kept in a MappedTerrainFile, if
+     * planRound is given a file to put them in */
+    public static final int MAPPED_WORLD_WIDTH = 20 * Terrain.MAX_X;
+
     /*================= Static =================*/
-    /** Return a list of shorts representing valid x-coordinates for players
-     * to be placed in a game with "numPlayers" players
+    /** Return a list of valid x-coordinates for players to be placed in a
+     * game with "numPlayers" players, in a world "width" columns wide
+     *
+     * The players are evenly spaced. In a wide world, they are no more
+     * than MAX_PLAYER_SPACING apart, and the group is in the middle.
      */
-    public static List < Short > getValidPlayerPlacements(int numPlayers) {
-        LinkedList < Short > positions = new LinkedList < Short >();
+    public static List < Integer > getValidPlayerPlacements(int numPlayers,
+                                                            int width) {
+        LinkedList < Integer > positions = new LinkedList < Integer >();
+        int xe = width - (2 * Terrain.SIDE_BUFFER_SIZE);
+        int spacing = xe / (numPlayers - 1);
+        int start = Terrain.SIDE_BUFFER_SIZE;
+        if (spacing > MAX_PLAYER_SPACING) {
+            spacing = MAX_PLAYER_SPACING;
+            start += (xe - (spacing * (numPlayers - 1))) / 2;
+        }
         for (int i = 0; i < numPlayers; i++) {
-            int xe = Terrain.MAX_X - (2 * Terrain.SIDE_BUFFER_SIZE);
-            int yVal = Terrain.SIDE_BUFFER_SIZE +
-                        (i * (xe / (numPlayers - 1)));
-            positions.add(new Short((short)yVal));
+            int yVal = start + (i * spacing);
+            positions.add(Integer.valueOf(yVal));
         }
         return positions;
     }
@@ -369,6 +453,20 @@ public class ModelFactory {
         public boolean mUseRandomPlayerPlacement;
         public short mNumRounds;
         public short mStartingCash;
+
+        /** The width of the world, in columns. 0 means one screen wide.
+         * Wider worlds scroll. */
+        public int mWorldWidth;
+
+        /** If true, the terrain can have caves and overhangs */
+        public boolean mCaves;
+
+        /** If true, loose dirt slides down steep slopes */
+        public boolean mSettlingDirt;
+
+        /** If true, search for a terrain and player positions where
+         * everyone can be hit. See FairMapSearch. */
+        public boolean mFairMaps;
     }
     private MyVars mV;
     private LinkedList < PlayerFactory > mPlayers;
@@ -393,6 +491,23 @@ public class ModelFactory {
         return mV.mStartingCash;
     }
 
+    /** Returns the width of the world, in columns */
+    public int getWorldWidth() {
+        return (mV.mWorldWidth == 0) ? Terrain.MAX_X : mV.mWorldWidth;
+    }
+
+    public boolean getCaves() {
+        return mV.mCaves;
+    }
+
+    public boolean getSettlingDirt() {
+        return mV.mSettlingDirt;
+    }
+
+    public boolean getFairMaps() {
+        return mV.mFairMaps;
+    }
+
     public PlayerFactory getPlayerFactory(int index) {
         return mPlayers.get(index);
     }
@@ -402,18 +517,22 @@ public class ModelFactory {
     }
 
     public Model createModel(Cosmos cosmos) {
-        Background bg = Background.getRandomBackground();
-        Foreground fg = Foreground.getRandomForeground(bg);
+        return createModel(cosmos, planRound(cosmos.getPlanSeed(), null));
+    }
+
+    /** Creates the players for a round that has already been planned,
+     * and puts them on the terrain. The plan can only be used once. */
+    public Model createModel(Cosmos cosmos, RoundPlan plan) {
+        Random random = cosmos.getRandom();
+        Terrain terrain = plan.mTerrain;
+        List < Integer > positions = plan.mPositions;
 
         Model.MyVars v = new Model.MyVars();
         v.mCurPlayerId = Player.INVALID_PLAYER_ID;
-        v.mBackground = bg;
-        v.mForeground = fg;
-        v.mWind =
-            Util.mRandom.nextInt(2 * Terrain.MAX_WIND) - Terrain.MAX_WIND;
-
-        // Create terrain
-        Terrain terrain = mV.mTerrainFac.createTerrain();
+        v.mBackground = plan.mBackground;
+        v.mForeground = plan.mForeground;
+        v.mWind = plan.mWind;
+        v.mSettlingDirt = mV.mSettlingDirt;
 
         // Create players
         Player[] players = new Player[mPlayers.size()];
@@ -422,18 +541,16 @@ public class ModelFactory {
         }
 
         // Place players
-        List < Short > positions = getValidPlayerPlacements(mPlayers.size());
-
         if (mV.mUseRandomPlayerPlacement) {
             for (int i = 0; i < players.length; i++) {
-                int r = Util.mRandom.nextInt(positions.size());
-                short p = positions.remove(r).shortValue();
+                int r = random.nextInt(positions.size());
+                int p = positions.remove(r).intValue();
                 players[i].setX(p, terrain);
             }
         }
         else {
             for (int i = 0; i < players.length; i++) {
-                short p = positions.remove(0).shortValue();
+                int p = positions.remove(0).intValue();
                 players[i].setX(p, terrain);
             }
         }
@@ -441,6 +558,62 @@ public class ModelFactory {
         return new Model(v, terrain, players);
     }
 
+    /** Picks the scenery, wind, terrain and player positions for a round.
+     *
+     * None of this depends on the players' armories, so it can be done
+     * ahead of time, on another thread, while the players are still
+     * looking at the leaderboard. It only uses 'seed' and this factory's
+     * settings. Pass Cosmos.getPlanSeed() for the current round, or
+     * Cosmos.getNextPlanSeed() for the next one; either way, the same
+     * round gets the same plan.
+     *
+     * If 'mapFile' isn't null, and the world is at least
+     * MAPPED_WORLD_WIDTH wide, the terrain is generated into 'mapFile'
+     * rather than kept on the heap. The terrain is the same either way.
+     * Don't pass the file that the current round's terrain lives in.
+     */
+    public RoundPlan planRound(long seed, File mapFile) {
+        Random random = new Random(seed);
+        RoundPlan plan = new RoundPlan();
+        plan.mBackground = Background.getRandomBackground(random);
+        plan.mForeground =
+            Foreground.getRandomForeground(random, plan.mBackground);
+        plan.mWind =
+            random.nextInt(2 * Terrain.MAX_WIND) - Terrain.MAX_WIND;
+
+        // Create terrain
+        int width = getWorldWidth();
+        boolean mapped = (mapFile != null) && (width >= MAPPED_WORLD_WIDTH);
+        if (mV.mFairMaps) {
+            FairMapSearch.Candidate best =
+                FairMapSearch.search(mV.mTerrainFac, random,
+                    width, mPlayers.size(), plan.mWind);
+            plan.mTerrain = best.getTerrain();
+            plan.mPositions = best.getPositions();
+            if (mapped) {
+                // The search only looked at the terrain, so its source
+                // still makes exactly the same thing
+                plan.mTerrain = TerrainFactory.createMappedTerrain(
+                    plan.mTerrain.getChunkSource(), width, mapFile);
+            }
+        }
+        else {
+            if (mapped) {
+                plan.mTerrain = mV.mTerrainFac.
+                    createMappedTerrain(random, width, mapFile);
+            }
+            else {
+                plan.mTerrain =
+                    mV.mTerrainFac.createTerrain(random, width);
+            }
+            plan.mPositions = getValidPlayerPlacements(mPlayers.size(),
+                                    plan.mTerrain.getWidth());
+        }
+        if (mV.mCaves)
+            plan.mTerrain.enableCaves();
+        return plan;
+    }
+
     public  PlayerListAdapter getPlayerListAdapter() {
         return mAdapter;
     }
@@ -506,6 +679,27 @@ public class ModelFactory {
         mV.mStartingCash = startingCash;
     }
 
+    public  void setCaves(boolean caves) {
+        mV.mCaves = caves;
+    }
+
+    public  void setSettlingDirt(boolean settlingDirt) {
+        mV.mSettlingDirt = settlingDirt;
+    }
+
+    public  void setFairMaps(boolean fairMaps) {
+        mV.mFairMaps = fairMaps;
+    }
+
+    /** Sets the width of the world. It will be rounded up to a whole
+     * number of terrain chunks. */
+    public  void setWorldWidth(int width) {
+        if ((width < Terrain.MAX_X) || (width > Terrain.MAX_WORLD_WIDTH))
+            throw new RuntimeException("setWorldWidth: invalid width " +
+                                       width);
+        mV.mWorldWidth = width;
+    }
+
     public  PlayerFactory addPlayerFactory() {
         PlayerFactory p = PlayerFactory.fromDefault(mPlayers);
         mPlayers.add(p);
@@ -514,6 +708,24 @@ public class ModelFactory {
         return p;
     }
 
+    /** Adds a player with the given settings.
+     *
+     * This is for building a ModelFactory from settings that came from
+     * somewhere else, like a network peer.
+     */
+    public  PlayerFactory addPlayerFactory(String name, BrainFactory fac,
+                                           PlayerColor color, short life) {
+        PlayerFactory p = PlayerFactory.fromDefault(mPlayers);
+        p.setName(name);
+        p.setBrainFactory(fac);
+        p.setColor(color);
+        p.setLife(life);
+        mPlayers.add(p);
+        if (mAdapter != null)
+            mAdapter.notifyDataSetChanged();
+        return p;
+    }
+
     /** Notify the ModelFactory that its data set has changed.
      *
      *  You must call this method after mutating a PlayerFactory in order
@@ -591,6 +803,7 @@ public class ModelFactory {
         v.mUseRandomPlayerPlacement = true;
         v.mNumRounds = (short)2;
         v.mStartingCash = (short)0;
+        v.mWorldWidth = Terrain.MAX_X;
 
         // Create some default players
         LinkedList < PlayerFactory > players =
@@ -604,6 +817,28 @@ public class ModelFactory {
         return new ModelFactory(v, players);
     }
 
+    /** Creates a ModelFactory with the given settings and no players.
+     * Use addPlayerFactory to add them. */
+    public static ModelFactory fromSettings(TerrainFactory terrainFac,
+                                            boolean randomPlacement,
+                                            short numRounds,
+                                            short startingCash,
+                                            int worldWidth,
+                                            boolean caves,
+                                            boolean settlingDirt,
+                                            boolean fairMaps) {
+        MyVars v = new MyVars();
+        v.mTerrainFac = terrainFac;
+        v.mUseRandomPlayerPlacement = randomPlacement;
+        v.mNumRounds = numRounds;
+        v.mStartingCash = startingCash;
+        v.mWorldWidth = worldWidth;
+        v.mCaves = caves;
+        v.mSettlingDirt = settlingDirt;
+        v.mFairMaps = fairMaps;
+        return new ModelFactory(v, new LinkedList < PlayerFactory >());
+    }
+
     private ModelFactory(MyVars v, LinkedList < PlayerFactory > players) {
         mV = v;
         mPlayers = players;
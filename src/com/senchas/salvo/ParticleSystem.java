@@ -0,0 +1,339 @@
+package com.senchas.salvo;
+
+import java.util.Random;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/**
+ * Sparks, dirt and smoke.
+ *
+ * Particles are just for show. They never look at or change the Model, and
+ * they have their own Random, so they can't change how a game plays out or
+ * throw the peers in a network game out of sync.
+ *
+ * The game thread asks for particles with emit(). That only records the
+ * request. The render thread turns requests into particles, moves them
+ * with update(), and draws them with draw().
+ *
+ * Storage
+ * -------
+ * There is room for CAPACITY particles, kept in parallel arrays: position,
+ * velocity, time left to live, and effect. The live particles are always
+ * the first mCount entries. When one dies, the last one is moved into its
+ * place. So nothing is allocated after the constructor, update() is a
+ * single loop over a dense range, and draw() makes one drawPoints call per
+ * effect.
+ *
+ * Budget
+ * ------
+ * The render thread tells us how long each frame took. While frames take
+ * longer than TARGET_FRAME_MS on average, the budget shrinks, and
+ * explosions get fewer particles. When there is time to spare, it grows
+ * back towards CAPACITY.
+ *
+ * Locking
+ * -------
+ * emit() and clear() can be called from any thread. Everything else
+ * belongs to the render thread.
+ */
+public class ParticleSystem {
+    /*================= Constants =================*/
+    public static final int CAPACITY = 512;
+
+    /** The budget never gets smaller than this */
+    private static final int MIN_BUDGET = 32;
+
+    /** How long we want a frame to take, in milliseconds */
+    private static final int TARGET_FRAME_MS = 25;
+
+    /** How many requests can wait for the render thread. More than that
+     * are dropped. */
+    private static final int MAX_REQUESTS = 32;
+
+    /** Speeds are in pixels per FRAME_MS milliseconds, and gravity is in
+     * pixels per FRAME_MS squared. */
+    private static final float FRAME_MS = 16f;
+
+    /** The most time update() will let pass at once. After a long pause,
+     * particles just carry on from where they were. */
+    private static final int MAX_ELAPSED_MS = 100;
+
+    /** Particle sizes and speeds are given for explosions of this
+     * radius */
+    private static final int BASE_RADIUS = 20;
+
+    /*================= Types =================*/
+    public static enum Effect {
+        /** Bright bits thrown out when something blows up */
+        SPARKS(Color.argb(0xff, 0xff, 0xd0, 0x40), 2, 3.0f, 0.12f,
+               300, 600, 6),
+
+        /** Clods of ground thrown out of a crater. They take the color of
+         * the foreground. */
+        DIRT(Color.BLACK, 3, 2.0f, 0.15f, 500, 900, 5),
+
+        /** What is left after an explosion. It drifts slowly upwards. */
+        SMOKE(Color.argb(0x90, 0x70, 0x70, 0x70), 5, 0.5f, -0.01f,
+              900, 1500, 3);
+
+        /*================= Data =================*/
+        private final int mColor;
+
+        private final int mPointSize;
+
+        private final float mSpeed;
+
+        private final float mGravity;
+
+        private final int mMinLife;
+
+        private final int mMaxLife;
+
+        /** How many particles an explosion of BASE_RADIUS makes */
+        private final int mCount;
+
+        /*================= Lifecycle =================*/
+        private Effect(int color, int pointSize, float speed,
+                       float gravity, int minLife, int maxLife,
+                       int count) {
+            mColor = color;
+            mPointSize = pointSize;
+            mSpeed = speed;
+            mGravity = gravity;
+            mMinLife = minLife;
+            mMaxLife = maxLife;
+            mCount = count;
+        }
+    }
+
+    private static final Effect EFFECTS[] = Effect.values();
+
+    /*================= Data =================*/
+    // The particles
+    private final float mX[];
+    private final float mY[];
+    private final float mVX[];
+    private final float mVY[];
+    /** Milliseconds left to live */
+    private final short mLife[];
+    private final byte mEffect[];
+    private int mCount;
+
+    /** The most particles we want alive at once */
+    private int mBudget;
+
+    /** A moving average of how long frames take, in milliseconds */
+    private float mAvgFrameMs;
+
+    /** Gravity of each effect */
+    private final float mGravity[];
+
+    /** Color of each effect */
+    private final int mColors[];
+
+    /** Points for drawPoints, one array for each effect */
+    private final float mPoints[][];
+    private final int mNumPoints[];
+
+    private final Paint mPaint;
+
+    private final Random mRandom;
+
+    // Requests from emit(), guarded by 'this'
+    private final int mReqEffect[];
+    private final int mReqX[];
+    private final int mReqY[];
+    private final int mReqSize[];
+    private int mNumReqs;
+    private boolean mClearRequested;
+
+    // Requests that takeRequests() has copied out
+    private final int mTakenEffect[];
+    private final int mTakenX[];
+    private final int mTakenY[];
+    private final int mTakenSize[];
+
+    /*================= Access =================*/
+    /** Returns true if no particles are alive, or they are about to be
+     * cleared (render thread) */
+    public boolean isEmpty() {
+        if (mCount == 0)
+            return true;
+        synchronized (this) {
+            return mClearRequested;
+        }
+    }
+
+    /*================= Operations =================*/
+    /** Asks for some particles around (x, y), in world coordinates.
+     * 'size' is the radius of whatever made them. Can be called from any
+     * thread. */
+    public synchronized void emit(Effect effect, int x, int y, int size) {
+        if (mNumReqs == MAX_REQUESTS)
+            return;
+        mReqEffect[mNumReqs] = effect.ordinal();
+        mReqX[mNumReqs] = x;
+        mReqY[mNumReqs] = y;
+        mReqSize[mNumReqs] = size;
+        mNumReqs++;
+    }
+
+    /** Gets rid of all particles, and any requests for more. Can be
+     * called from any thread. */
+    public synchronized void clear() {
+        mNumReqs = 0;
+        mClearRequested = true;
+    }
+
+    /** Sets the color of dirt particles */
+    public void setDirtColor(int color) {
+        mColors[Effect.DIRT.ordinal()] = color;
+    }
+
+    /** Moves the particles along by 'elapsedMs' milliseconds, and adds
+     * any that were asked for since the last time. */
+    public void update(int elapsedMs) {
+        int numTaken = takeRequests();
+        elapsedMs = Math.max(0, Math.min(elapsedMs, MAX_ELAPSED_MS));
+        final float dt = elapsedMs / FRAME_MS;
+        int n = mCount;
+        int i = 0;
+        while (i < n) {
+            int life = mLife[i] - elapsedMs;
+            if (life <= 0) {
+                n--;
+                mX[i] = mX[n];
+                mY[i] = mY[n];
+                mVX[i] = mVX[n];
+                mVY[i] = mVY[n];
+                mLife[i] = mLife[n];
+                mEffect[i] = mEffect[n];
+                continue;
+            }
+            mLife[i] = (short)life;
+            mVY[i] += mGravity[mEffect[i]] * dt;
+            mX[i] += mVX[i] * dt;
+            mY[i] += mVY[i] * dt;
+            i++;
+        }
+        mCount = n;
+
+        for (int r = 0; r < numTaken; r++) {
+            spawn(EFFECTS[mTakenEffect[r]], mTakenX[r], mTakenY[r],
+                  mTakenSize[r]);
+        }
+    }
+
+    /** Draws the particles. 'canvas' should be in world coordinates. */
+    public void draw(Canvas canvas) {
+        if (mCount == 0)
+            return;
+        for (int e = 0; e < EFFECTS.length; e++)
+            mNumPoints[e] = 0;
+        for (int i = 0; i < mCount; i++) {
+            int e = mEffect[i];
+            int k = mNumPoints[e];
+            float pts[] = mPoints[e];
+            pts[k] = mX[i];
+            pts[k + 1] = mY[i];
+            mNumPoints[e] = k + 2;
+        }
+        for (int e = 0; e < EFFECTS.length; e++) {
+            if (mNumPoints[e] == 0)
+                continue;
+            mPaint.setColor(mColors[e]);
+            mPaint.setStrokeWidth(EFFECTS[e].mPointSize);
+            canvas.drawPoints(mPoints[e], 0, mNumPoints[e], mPaint);
+        }
+    }
+
+    /** Tells us how long the last frame took to draw, in milliseconds.
+     * This is what the budget is based on. */
+    public void reportFrameTime(int ms) {
+        // Averaging means one slow frame doesn't throw the budget out
+        mAvgFrameMs += (ms - mAvgFrameMs) / 8f;
+        if (mAvgFrameMs > TARGET_FRAME_MS)
+            mBudget = Math.max(MIN_BUDGET, (mBudget * 7) / 8);
+        else if (mAvgFrameMs < ((TARGET_FRAME_MS * 3) / 4))
+            mBudget = Math.min(CAPACITY, mBudget + (CAPACITY / 64));
+    }
+
+    /** Copies the pending requests out, so that we don't hold the lock
+     * while spawning. Returns how many there were. */
+    private synchronized int takeRequests() {
+        if (mClearRequested) {
+            mCount = 0;
+            mClearRequested = false;
+        }
+        int n = mNumReqs;
+        System.arraycopy(mReqEffect, 0, mTakenEffect, 0, n);
+        System.arraycopy(mReqX, 0, mTakenX, 0, n);
+        System.arraycopy(mReqY, 0, mTakenY, 0, n);
+        System.arraycopy(mReqSize, 0, mTakenSize, 0, n);
+        mNumReqs = 0;
+        return n;
+    }
+
+    private void spawn(Effect effect, int x, int y, int size) {
+        // Bigger explosions make more particles, and throw them faster.
+        // When the budget is tight, everything makes fewer.
+        int want = (effect.mCount * size) / BASE_RADIUS;
+        want = ((want * mBudget) + CAPACITY - 1) / CAPACITY;
+        int n = Math.min(want, mBudget - mCount);
+        float speed = effect.mSpeed *
+            (0.5f + (size / (2f * BASE_RADIUS)));
+        float spread = size / 2f;
+        int lifeRange = effect.mMaxLife - effect.mMinLife;
+        byte e = (byte)effect.ordinal();
+        for (int k = 0; k < n; k++) {
+            int i = mCount++;
+            // Mostly upwards: from a little below one side of level to a
+            // little below the other
+            double angle = Math.PI * ((1.2 * mRandom.nextFloat()) - 0.1);
+            float v = speed * (0.3f + (0.7f * mRandom.nextFloat()));
+            mX[i] = x + (spread * ((2 * mRandom.nextFloat()) - 1));
+            mY[i] = y + (spread * ((2 * mRandom.nextFloat()) - 1));
+            mVX[i] = v * (float)Math.cos(angle);
+            mVY[i] = -v * (float)Math.sin(angle);
+            mLife[i] = (short)(effect.mMinLife +
+                               mRandom.nextInt(lifeRange + 1));
+            mEffect[i] = e;
+        }
+    }
+
+    /*================= Lifecycle =================*/
+    public ParticleSystem() {
+        mX = new float[CAPACITY];
+        mY = new float[CAPACITY];
+        mVX = new float[CAPACITY];
+        mVY = new float[CAPACITY];
+        mLife = new short[CAPACITY];
+        mEffect = new byte[CAPACITY];
+        mCount = 0;
+        mBudget = CAPACITY;
+        mAvgFrameMs = 0;
+        mGravity = new float[EFFECTS.length];
+        mColors = new int[EFFECTS.length];
+        mPoints = new float[EFFECTS.length][2 * CAPACITY];
+        mNumPoints = new int[EFFECTS.length];
+        for (int e = 0; e < EFFECTS.length; e++) {
+            mGravity[e] = EFFECTS[e].mGravity;
+            mColors[e] = EFFECTS[e].mColor;
+        }
+        mPaint = new Paint();
+        mPaint.setStyle(Paint.Style.STROKE);
+        mRandom = new Random();
+        mReqEffect = new int[MAX_REQUESTS];
+        mReqX = new int[MAX_REQUESTS];
+        mReqY = new int[MAX_REQUESTS];
+        mReqSize = new int[MAX_REQUESTS];
+        mNumReqs = 0;
+        mClearRequested = false;
+        mTakenEffect = new int[MAX_REQUESTS];
+        mTakenX = new int[MAX_REQUESTS];
+        mTakenY = new int[MAX_REQUESTS];
+        mTakenSize = new int[MAX_REQUESTS];
+    }
+}
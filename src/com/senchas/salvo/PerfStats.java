@@ -0,0 +1,309 @@
+package com.senchas.salvo;
+
+import java.io.PrintWriter;
+
+/**
+ * Timings for one game.
+ *
+ * Every probe is a Histogram. Each GameState gets one for onEnter, one for
+ * main, and one for onExit. Then there are the fixed probes in Probe: the
+ * game thread's share of drawing a frame, the render thread's, and the
+ * computer players' thinking.
+ *
+ * Everything is preallocated, so recording a sample is a couple of
+ * arithmetic operations and an array increment. Times are recorded in
+ * microseconds.
+ *
+ * The results can be shown on the screen (see setOverlayEnabled) or
+ * written out with dump(), as comma separated values.
+ *
+ * Locking
+ * -------
+ * None. Each probe is only ever recorded by one thread: the state probes
+ * and AI_MOVE by the game thread, and the render probes by the render
+ * thread. Other threads may read a probe while it is being recorded. They
+ * might see a sample counted in one field but not yet in another, which is
+ * fine for statistics.
+ */
+public class PerfStats {
+    /*================= Constants =================*/
+    /** How many different GameStates we keep track of */
+    private static final int MAX_STATES = 16;
+
+    /*================= Types =================*/
+    /** The things we time, apart from the GameStates */
+    public static enum Probe {
+        /** drawScreen on the game thread: copying the frame into a
+         * RenderSnapshot and handing it over */
+        CAPTURE("capture"),
+
+        /** Bringing the cached terrain up to date on the render thread.
+         * This is where the work for cacheTerrain happens. */
+        TERRAIN("terrain"),
+
+        /** Waiting for lockCanvas */
+        LOCK("lock"),
+
+        /** Drawing the frame */
+        DRAW("draw"),
+
+        /** unlockCanvasAndPost */
+        POST("post"),
+
+        /** The whole of a frame on the render thread */
+        FRAME("frame"),
+
+        /** How many ballistics steps ran for each frame the game thread
+         * sent, after capping at the catch-up limit. This is a count, not
+         * a time. */
+        STEPS_PER_FRAME("steps_per_frame"),
+
+        /** Brain.makeMove */
+        AI_MOVE("ai_move");
+
+        /*================= Data =================*/
+        private final String mName;
+
+        /*================= Access =================*/
+        public String getName() {
+            return mName;
+        }
+
+        /*================= Lifecycle =================*/
+        private Probe(String name) {
+            mName = name;
+        }
+    }
+
+    /** The parts of a GameState that we time */
+    public static enum Phase {
+        ENTER("onEnter"),
+        MAIN("main"),
+        EXIT("onExit");
+
+        /*================= Data =================*/
+        private final String mName;
+
+        /*================= Access =================*/
+        public String getName() {
+            return mName;
+        }
+
+        /*================= Lifecycle =================*/
+        private Phase(String name) {
+            mName = name;
+        }
+    }
+
+    /** Counts samples in power-of-two buckets.
+     *
+     * Bucket 0 holds samples of 0. Bucket i holds samples from 2^(i-1) up
+     * to 2^i - 1. The last bucket holds everything bigger.
+     */
+    public static class Histogram {
+        /*================= Constants =================*/
+        public static final int NUM_BUCKETS = 28;
+
+        /*================= Data =================*/
+        private final int mBuckets[];
+
+        private long mCount;
+
+        private long mTotal;
+
+        private long mMax;
+
+        private long mLast;
+
+        /*================= Access =================*/
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /** Returns the most recent sample */
+        public long getLast() {
+            return mLast;
+        }
+
+        public long getMean() {
+            long count = mCount;
+            return (count == 0) ? 0 : (mTotal / count);
+        }
+
+        /** Returns a value which at least 'pct' percent of the samples
+         * are no bigger than. This is the top of a bucket, so it can be
+         * up to twice the real percentile. */
+        public long getPercentile(int pct) {
+            long want = ((mCount * pct) + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= want)
+                    return Math.min(bucketTop(i), mMax);
+            }
+            return mMax;
+        }
+
+        /** Returns the biggest sample that goes in bucket i */
+        private static long bucketTop(int i) {
+            return (i == 0) ? 0 : ((1L << i) - 1);
+        }
+
+        /*================= Operations =================*/
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+            int b = 64 - Long.numberOfLeadingZeros(value);
+            if (b >= NUM_BUCKETS)
+                b = NUM_BUCKETS - 1;
+            mBuckets[b]++;
+            mCount++;
+            mTotal += value;
+            if (value > mMax)
+                mMax = value;
+            mLast = value;
+        }
+
+        /** Writes one line: the name, the count, the mean, the 50th, 90th
+         * and 99th percentiles, the max, and then every bucket. */
+        public void dump(PrintWriter out, String name) {
+            out.print(name);
+            out.print(',');
+            out.print(mCount);
+            out.print(',');
+            out.print(getMean());
+            out.print(',');
+            out.print(getPercentile(50));
+            out.print(',');
+            out.print(getPercentile(90));
+            out.print(',');
+            out.print(getPercentile(99));
+            out.print(',');
+            out.print(mMax);
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                out.print(',');
+                out.print(mBuckets[i]);
+            }
+            out.println();
+        }
+
+        /*================= Lifecycle =================*/
+        public Histogram() {
+            mBuckets = new int[NUM_BUCKETS];
+        }
+    }
+
+    private static final int NUM_PHASES = Phase.values().length;
+
+    /*================= Static =================*/
+    /** Returns the time to pass to the record functions */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /*================= Data =================*/
+    private final Histogram mProbes[];
+
+    /** The states we have seen, in the order we first saw them */
+    private final GameState mStates[];
+
+    private int mNumStates;
+
+    /** mStateHists[(slot * NUM_PHASES) + phase] */
+    private final Histogram mStateHists[];
+
+    private volatile boolean mOverlayEnabled;
+
+    /*================= Access =================*/
+    public Histogram get(Probe probe) {
+        return mProbes[probe.ordinal()];
+    }
+
+    /** Returns true if the numbers should be drawn on the screen */
+    public boolean isOverlayEnabled() {
+        return mOverlayEnabled;
+    }
+
+    /*================= Operations =================*/
+    /** Records the time since 'start', which came from now() */
+    public void record(Probe probe, long start) {
+        mProbes[probe.ordinal()].record((now() - start) / 1000);
+    }
+
+    /** Records a value which isn't a time */
+    public void recordValue(Probe probe, long value) {
+        mProbes[probe.ordinal()].record(value);
+    }
+
+    /** Records the time 'state' took in 'phase', since 'start'. Game
+     * thread only. */
+    public void recordState(GameState state, Phase phase, long start) {
+        long us = (now() - start) / 1000;
+        mStateHists[(slotOf(state) * NUM_PHASES) + phase.ordinal()].
+            record(us);
+    }
+
+    /** Returns the slot for 'state', giving it one if it doesn't have
+     * one. If we run out, the last slot is shared. */
+    private int slotOf(GameState state) {
+        for (int i = 0; i < mNumStates; i++) {
+            if (mStates[i] == state)
+                return i;
+        }
+        if (mNumStates == MAX_STATES)
+            return MAX_STATES - 1;
+        mStates[mNumStates] = state;
+        return mNumStates++;
+    }
+
+    public void setOverlayEnabled(boolean enabled) {
+        mOverlayEnabled = enabled;
+    }
+
+    /** Writes every histogram that has samples to 'out'.
+     *
+     * The first line names the columns. After that there is one line per
+     * histogram. Times are in microseconds.
+     */
+    public void dump(PrintWriter out) {
+        out.print("name,count,mean,p50,p90,p99,max");
+        for (int i = 0; i < Histogram.NUM_BUCKETS; i++) {
+            out.print(",b");
+            out.print(i);
+        }
+        out.println();
+        for (Probe p : Probe.values()) {
+            Histogram h = mProbes[p.ordinal()];
+            if (h.getCount() != 0)
+                h.dump(out, p.getName());
+        }
+        int numStates = mNumStates;
+        for (int s = 0; s < numStates; s++) {
+            String name = mStates[s].getClass().getSimpleName();
+            for (Phase ph : Phase.values()) {
+                Histogram h = mStateHists[(s * NUM_PHASES) + ph.ordinal()];
+                if (h.getCount() != 0)
+                    h.dump(out, name + "." + ph.getName());
+            }
+        }
+        out.flush();
+    }
+
+    /*================= Lifecycle =================*/
+    public PerfStats() {
+        Probe probes[] = Probe.values();
+        mProbes = new Histogram[probes.length];
+        for (int i = 0; i < probes.length; i++)
+            mProbes[i] = new Histogram();
+        mStates = new GameState[MAX_STATES];
+        mNumStates = 0;
+        mStateHists = new Histogram[MAX_STATES * NUM_PHASES];
+        for (int i = 0; i < mStateHists.length; i++)
+            mStateHists[i] = new Histogram();
+        mOverlayEnabled = false;
+    }
+}
@@ -140,6 +140,10 @@ public class Player {
         return mV.mY;
     }
 
+    public int getLife() {
+        return mV.mLife;
+    }
+
     /** Get the y-coordinate of the center of the turret.
      *
      * Note: the x-coordinate of the center of the turret is the same as
@@ -202,8 +206,9 @@ public class Player {
       * ground. */
     public int getCorrectHeight(Terrain terrain) {
         // TODO: use averaging mechanism here to set tank height ?
-        short h[] = terrain.getBoard();
-        return h[mV.mX];
+        if (terrain.hasCaves())
+            return terrain.getFirstSolidBelow(mV.mX, mV.mY);
+        return terrain.getVal(mV.mX);
     }
 
     public byte getAuraAlpha() {
@@ -221,7 +226,7 @@ public class Player {
 
     public void setX(int x, Terrain terrain) {
         mV.mX = x;
-        mV.mY = getCorrectHeight(terrain);
+        mV.mY = terrain.getVal(x);
     }
 
     /** Drop the player down to the current height of the terrain.
@@ -249,6 +254,18 @@ public class Player {
         return false;
     }
 
+    /** Lift the player up to the current height of the terrain, when the
+     * ground has risen under it. Dirt sliding in underneath does that.
+     *
+     * Being lifted doesn't hurt. If the ground is at or below the player,
+     * do nothing; see doFalling for that.
+     */
+    public void doRising(Terrain terrain) {
+        int cy = getCorrectHeight(terrain);
+        if (mV.mY > cy)
+            mV.mY = cy;
+    }
+
     /** set turret angle.
      *  'val' is scaled to 0...1000 and must be normalized */
     public void setAngleDeg(int angleDeg) {
@@ -266,6 +283,11 @@ public class Player {
         mV.mCurWeaponType = type;
     }
 
+    /** Hands control of this player to a different Brain */
+    public void setBrain(Brain brain) {
+        mBrain = brain;
+    }
+
     public void takeDamage(int damage) {
         if (damage < 0) {
             throw new RuntimeException("takeDamage: damage cannot be " +
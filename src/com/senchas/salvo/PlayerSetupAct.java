@@ -238,7 +238,10 @@ public class PlayerSetupAct extends Activity {
 
         play.setOnClickListener(new OnClickListener() {
             public void onClick(View arg0) {
-                if (mModelFactory.everyoneIsAComputer())
+                if (isHostingGame() && mModelFactory.everyoneIsAComputer())
+                    doDialog_noChoices("A network game needs a human " +
+                                       "player for each phone");
+                else if (mModelFactory.everyoneIsAComputer())
                     doDialog_warnAllCpu();
                 else
                     launchRunGameActivity();
@@ -351,6 +354,11 @@ public class PlayerSetupAct extends Activity {
         b.show();
     }
 
+    /** Returns true if GameSetupAct asked us to host a network game */
+    private boolean isHostingGame() {
+        return getIntent().getBooleanExtra(RunGameAct.HOST_GAME, false);
+    }
+
     /** Starts the RunGameActivity */
     private void launchRunGameActivity() {
         Intent myIntent = new Intent().
@@ -358,6 +366,7 @@ public class PlayerSetupAct extends Activity {
         Bundle map = new Bundle();
         onSaveInstanceState(map);
         myIntent.putExtra(GameSetupAct.GAME_SETUP_BUNDLE, map);
+        myIntent.putExtra(RunGameAct.HOST_GAME, isHostingGame());
         startActivityForResult(myIntent, LAUNCH_RUN_GAME_ACT);
 
     }
@@ -18,6 +18,9 @@ public class Projectile {
     public static final int PROJECTILE_RADIUS = 5;
     public static final int PROJECTILE_COLLISION_RADIUS = 4;
 
+    private static final CircleStencil COLLISION_STENCIL =
+        CircleStencil.get(PROJECTILE_COLLISION_RADIUS);
+
     public static final int PROJECTILE_COLOR = Color.argb(0xff, 0xff, 0, 0);
 
     public static final Projectile EMPTY_ARRAY[] = new Projectile[0];
@@ -107,7 +110,7 @@ public class Projectile {
     private boolean checkBoundaryCollisions(Model model) {
         if (mX < 0)
             return true;
-        else if (mX > Terrain.MAX_X)
+        else if (mX > model.getTerrain().getWidth())
             return true;
         else if (mY > Terrain.MAX_Y)
             return true;
@@ -118,15 +121,26 @@ public class Projectile {
     /** Return true if the projectile has collided with the terrain */
     private boolean checkTerrainCollisions(Model model) {
         // Check collisions against terrain
-        Util.Pair pair = new Util.Pair();
-        short board[] = model.getTerrain().getBoard();
+        Terrain terrain = model.getTerrain();
         int x = (int)mX;
         int y = (int)mY;
-        for (int slice = Math.max(0, x - PROJECTILE_RADIUS);
-                 slice < Math.min(x + PROJECTILE_RADIUS, Terrain.MAX_X);
-                 slice++) {
-            Util.circAt(x, y, PROJECTILE_COLLISION_RADIUS, slice, pair);
-            if (board[slice] < pair.yLower) {
+        int start = Math.max(0, x - PROJECTILE_COLLISION_RADIUS);
+        int end = Math.min(x + PROJECTILE_COLLISION_RADIUS,
+                           terrain.getWidth() - 1);
+        if (start > end)
+            return false;
+
+        // Broad phase: most of the time, we are well above the ground.
+        // Every slice we look at is at least as low as the bound, and the
+        // bottom of the projectile is at most y + radius.
+        if (y + PROJECTILE_COLLISION_RADIUS <=
+                terrain.getHighestPointBound(start, end))
+            return false;
+
+        for (int slice = start; slice <= end; slice++) {
+            if (terrain.isSolidBetween(slice,
+                    COLLISION_STENCIL.getUpper(x, y, slice),
+                    COLLISION_STENCIL.getLower(x, y, slice) - 1)) {
                 return true;
             }
         }
@@ -155,8 +169,8 @@ public class Projectile {
     {
         Player curPlayer = model.getCurPlayer();
 
-        float cos = (float)Math.cos(angleRad);
-        float sin = - (float)Math.sin(angleRad);
+        float cos = (float)StrictMath.cos(angleRad);
+        float sin = - (float)StrictMath.sin(angleRad);
         float dx = (cos * power) / 120f;
         float dy = (sin * power) / 120f;
         float turretX = curPlayer.getX() + (Player.TURRET_LENGTH * cos);
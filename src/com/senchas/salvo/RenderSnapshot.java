@@ -0,0 +1,173 @@
+package com.senchas.salvo;
+
+/**
+ * Everything the render thread needs to draw one frame.
+ *
+ * The game thread fills in a RenderSnapshot while it holds the state lock,
+ * then hands it to the render thread through a TripleBuffer. From then on,
+ * the render thread is the only one looking at it, so it can draw without
+ * any locks while the game thread gets on with the next step.
+ *
+ * Like the MyVars classes, this is just a bag of public fields. Snapshots
+ * are preallocated and reused.
+ */
+public class RenderSnapshot {
+    /*================= Constants =================*/
+    public static final int MAX_PROJECTILES = 16;
+
+    public static final int MAX_EXPLOSIONS = 32;
+
+    /*================= Data =================*/
+    /** If true, draw only the sky. Nothing below is valid except the
+     * scenery. */
+    public boolean mSkyOnly;
+
+    public Background mBackground;
+
+    public Foreground mForeground;
+
+    /** Increases every time the terrain changes */
+    public int mTerrainVersion;
+
+    /** The left edge of the screen, in world coordinates. Everything
+     * below is in world coordinates, except mBoard. */
+    public int mCameraX;
+
+    /** The camera position that mBoard was copied at */
+    public int mBoardCameraX;
+
+    /** The visible part of the terrain, as of mTerrainVersion and
+     * mBoardCameraX. mBoard[0] is the column at mBoardCameraX. */
+    public final short mBoard[];
+
+    /** True if the terrain has caves. Then mBitmap is the visible part
+     * of the terrain, and mBoard is just the surface. */
+    public boolean mCaves;
+
+    public final TerrainBitmap mBitmap;
+
+    /** The power bar, or Player.INVALID_POWER */
+    public int mPower;
+
+    public int mPowerColor;
+
+    public int mNumPlayers;
+    public final boolean mAlive[];
+    public final int mX[];
+    public final int mY[];
+    public final int mTurretY[];
+    public final int mAngleDeg[];
+    public final int mBodyColor[];
+    public final int mAuraColor[];
+    public final boolean mHasAura[];
+    public final int mOutlineColor[];
+
+    public int mNumProjectiles;
+    public final float mProjX[];
+    public final float mProjY[];
+    public final boolean mProjOffscreen[];
+
+    public int mNumExplosions;
+    public final int mExplX[];
+    public final int mExplY[];
+    public final int mExplSize[];
+    public final int mExplColor[];
+
+    /*================= Operations =================*/
+    /** Captures a frame of the game.
+     *
+     * Must be called with the state lock held.
+     */
+    public void capture(Model model, int power, Projectile projectiles[],
+                        Explosion explosions[], int terrainVersion,
+                        int cameraX, Background bg, Foreground fg) {
+        mSkyOnly = false;
+        mBackground = bg;
+        mForeground = fg;
+        mCameraX = cameraX;
+        if ((mTerrainVersion != terrainVersion) ||
+                (mBoardCameraX != cameraX)) {
+            Terrain terrain = model.getTerrain();
+            terrain.copyColumns(cameraX, mBoard, Terrain.MAX_X);
+            mCaves = terrain.hasCaves();
+            if (mCaves)
+                terrain.copyBitmap(cameraX, mBitmap, Terrain.MAX_X);
+            mTerrainVersion = terrainVersion;
+            mBoardCameraX = cameraX;
+        }
+
+        mPower = power;
+        if (power != Player.INVALID_POWER) {
+            mPowerColor = model.getCurPlayer().getBaseColor().
+                toInt(GameControlView.FIRE_BAR_ALPHA);
+        }
+
+        Player players[] = model.getPlayers();
+        mNumPlayers = players.length;
+        for (int i = 0; i < players.length; i++) {
+            Player p = players[i];
+            mAlive[i] = p.isAlive();
+            mX[i] = p.getX();
+            mY[i] = p.getY();
+            mTurretY[i] = p.getTurretCenterY();
+            mAngleDeg[i] = p.getAngleDeg();
+            mBodyColor[i] = p.getBodyColor();
+            mAuraColor[i] = p.getAuraColor();
+            mHasAura[i] = (p.getAuraAlpha() != 0);
+            mOutlineColor[i] = p.getOutlineColor();
+        }
+
+        int n = 0;
+        for (Projectile proj : projectiles) {
+            if (! proj.getInUse())
+                continue;
+            mProjX[n] = proj.getCurX();
+            mProjY[n] = proj.getCurY();
+            mProjOffscreen[n] = proj.isOffscreen();
+            n++;
+        }
+        mNumProjectiles = n;
+
+        n = 0;
+        for (Explosion expl : explosions) {
+            if (! expl.getInUse())
+                continue;
+            mExplX[n] = expl.getX();
+            mExplY[n] = expl.getY();
+            mExplSize[n] = expl.getCurExplosionSize();
+            mExplColor[n] = expl.getExplosionAttributes().getColor();
+            n++;
+        }
+        mNumExplosions = n;
+    }
+
+    /** Captures a frame which shows only the sky */
+    public void captureSky(Background bg, Foreground fg) {
+        mSkyOnly = true;
+        mBackground = bg;
+        mForeground = fg;
+    }
+
+    /*================= Lifecycle =================*/
+    public RenderSnapshot() {
+        mTerrainVersion = -1;
+        mBoard = new short[Terrain.MAX_X];
+        mBitmap = new TerrainBitmap(Terrain.MAX_X);
+        mAlive = new boolean[Model.MAX_PLAYERS];
+        mX = new int[Model.MAX_PLAYERS];
+        mY = new int[Model.MAX_PLAYERS];
+        mTurretY = new int[Model.MAX_PLAYERS];
+        mAngleDeg = new int[Model.MAX_PLAYERS];
+        mBodyColor = new int[Model.MAX_PLAYERS];
+        mAuraColor = new int[Model.MAX_PLAYERS];
+        mHasAura = new boolean[Model.MAX_PLAYERS];
+        mOutlineColor = new int[Model.MAX_PLAYERS];
+        mProjX = new float[MAX_PROJECTILES];
+        mProjY = new float[MAX_PROJECTILES];
+        mProjOffscreen = new boolean[MAX_PROJECTILES];
+        mExplX = new int[MAX_EXPLOSIONS];
+        mExplY = new int[MAX_EXPLOSIONS];
+        mExplSize = new int[MAX_EXPLOSIONS];
+        mExplColor = new int[MAX_EXPLOSIONS];
+    }
+}
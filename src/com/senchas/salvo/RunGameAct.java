@@ -1,11 +1,25 @@
 package com.senchas.salvo;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.LockSupport;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.res.Resources;
+import android.graphics.Color;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -23,6 +37,7 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.senchas.salvo.Model;
+import com.senchas.salvo.Brain.RemoteBrain;
 import com.senchas.salvo.Cosmos.PlayerInfo;
 import com.senchas.salvo.WeaponType.Armory;
 
@@ -38,6 +53,25 @@ public class RunGameAct extends Activity {
 
     /* NOTE: We will return RESULT_CANCELLED if the activity crashes */
 
+    /** Intent extra: if true, host a network game with the settings in
+     * GameSetupAct.GAME_SETUP_BUNDLE */
+    public static final String HOST_GAME = "HOST_GAME";
+
+    /** Intent extra: the address of the phone hosting the network game to
+     * join. Needs no GAME_SETUP_BUNDLE; the settings come from the host. */
+    public static final String JOIN_ADDRESS = "JOIN_ADDRESS";
+
+    /** Where dumpPerfStats writes, in the app's files directory */
+    private static final String PERF_STATS_FILE = "perf_stats.csv";
+
+    /** Where dumpPerfStats writes the trace */
+    private static final String TRACE_FILE = "trace.json";
+
+    /** The files that very wide worlds are kept in, in the app's files
+     * directory. The next round is planned while the current one is still
+     * using its file, so we take turns. */
+    private static final String MAP_FILES[] = { "map0.dat", "map1.dat" };
+
     /*================= Handles to Views =================*/
     /** A view representing the part of the screen where most of the graphics
      * are drawn */
@@ -77,8 +111,22 @@ public class RunGameAct extends Activity {
     /** The main thread */
     private RunGameThread mThread;
 
+    /** User input waiting for the main thread */
+    private InputQueue mInput;
+
     private XmlColors mXmlColors;
 
+    /** The next round, being planned on a worker thread while the
+     * leaderboard is up, or null (game thread) */
+    private FutureTask < ModelFactory.RoundPlan > mNextRound;
+
+    /** Keeps a network game in step with the other phones, or null */
+    private volatile LockstepSession mSession;
+
+    /** Set once we're destroyed, so that a session which connects
+     * afterwards gets closed */
+    private volatile boolean mDestroyed;
+
     /*================= Permanent Data =================*/
     /** The game data */
     private Cosmos mCosmos;
@@ -89,6 +137,9 @@ public class RunGameAct extends Activity {
     /** The current game state. */
     private GameState mState;
 
+    /** Owns the GameState objects for this game */
+    private GameStateFactory mStateFactory;
+
     /*================= Types =================*/
     /** Represents the colors in the colors.xml file */
     public final static class XmlColors {
@@ -137,17 +188,150 @@ public class RunGameAct extends Activity {
         }
     }
 
+    /** Runnable which sets a text view to a specified string. */
+    private static class SetTextView implements Runnable {
+        /*================= Operations =================*/
+        public void run() {
+            mTextView.setText(mStr);
+        }
+        /*================= Data =================*/
+        private TextView mTextView;
+        private String mStr;
+
+        /*================= Lifecycle =================*/
+        SetTextView(TextView textView, String str) {
+            mTextView = textView;
+            mStr = str;
+        }
+    }
+
+    /** Runnable which starts the 'buy weapons' dialog box */
+    private class StartBuyWeaponsDialog implements Runnable {
+        /*================= Data =================*/
+        private Player mPlayer;
+
+        /*================= Operations =================*/
+        public void run() {
+            BuyWeaponsDialog buyWeapons =
+                new BuyWeaponsDialog(RunGameAct.this, mCosmos, mPlayer);
+            buyWeapons.show();
+        }
+
+        /*================= Lifecycle=================*/
+        StartBuyWeaponsDialog(Player player) {
+            mPlayer = player;
+        }
+    }
+
+    /** Runnable which starts the 'leaderboard' dialog box */
+    private class StartLeaderboardDialog implements Runnable {
+        /*================= Operations =================*/
+        public void run() {
+            LeaderboardDialog leaderboard =
+                new LeaderboardDialog(RunGameAct.this);
+            leaderboard.show();
+        }
+    }
+
+    /** Runnable which starts the announce winner dialog box */
+    private class StartAnnounceWinnerDialog implements Runnable {
+        /*================= Operations =================*/
+        public void run() {
+            AnnounceWinnerDialog announceWinner =
+                new AnnounceWinnerDialog(RunGameAct.this);
+            announceWinner.show();
+        }
+    }
+
+    /** Runnable which shows or hides the armory */
+    private class ChangeArmoryVisibility implements Runnable {
+        /*================= Data =================*/
+        private boolean mVisible;
+
+        /*================= Operations =================*/
+        public void run() {
+            int textColor = mModel.foregroundIsLight() ?
+                                mXmlColors.getGameTextDark() :
+                                mXmlColors.getGameTextGrey();
+            TextView views[] = { mAngleText, mArmoryMainText,
+                                 mArmorySecondaryText, mArmoryLeftButton,
+                                 mArmoryRightButton };
+            for (TextView t : views) {
+                if (mVisible) {
+                    t.setVisibility(View.VISIBLE);
+                    t.setTextColor(textColor);
+                }
+                else {
+                    t.setVisibility(View.INVISIBLE);
+                }
+            }
+            changeFireButtonHighlight(! mVisible);
+            mArmoryCenter.setBackgroundColor(mVisible ?
+                                mXmlColors.getArmoryBackground() :
+                                mXmlColors.getClear());
+        }
+
+        /*================= Lifecycle=================*/
+        ChangeArmoryVisibility(boolean visible) {
+            mVisible = visible;
+        }
+    }
+
+    /** Runnable which highlights or de-highlights the fire button */
+    private class ChangeFireButtonHighlight implements Runnable {
+        /*================= Data =================*/
+        private boolean mHighlighted;
+
+        /*================= Operations =================*/
+        public void run() {
+            changeFireButtonHighlight(mHighlighted);
+        }
+
+        /*================= Lifecycle=================*/
+        ChangeFireButtonHighlight(boolean highlighted) {
+            mHighlighted = highlighted;
+        }
+    }
+
+    /** Hears from the LockstepSession of a network game.
+     *
+     * These are called on the session's thread, so they just post to the
+     * UI thread.
+     */
+    private class SessionListener implements LockstepSession.Listener {
+        /*================= Operations =================*/
+        public void onMatchReady(final LockstepSession session,
+                                 Match match) {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    startNetworkGame(session);
+                }
+            });
+        }
+
+        public void onDesync(LockstepSession session, int turn) {
+            runOnUiThread(new Util.DoDialog(RunGameAct.this,
+                "This phone has fallen out of step with the others. " +
+                "You will see different games from here on."));
+        }
+
+        public void onDisconnected(LockstepSession session) {
+            runOnUiThread(new Util.DoDialog(RunGameAct.this,
+                "Lost the connection to the other phones."));
+        }
+    }
+
     /** Provides access to RunGameAct internals.
      *
-     * Normally RunGameAct hides its internals pretty well. For some
-     * classes, we want to be more generous by providing them with this
-     * accessor.
+     * Normally RunGameAct hides its internals pretty well. GameStates,
+     * Brains and Explosions get to see the game through this accessor, which
+     * is RunGameAct's implementation of GameHost.
      *
      * If Java allowed "friend" classes, this code would be a lot shorter.
      *
      * This class contains no locking
      */
-    public class RunGameActAccessor {
+    public class RunGameActAccessor implements GameHost {
         /*================= Access =================*/
         public RunGameAct getRunGameAct() {
             return RunGameAct.this;
@@ -165,36 +349,111 @@ public class RunGameAct extends Activity {
             return mModel;
         }
 
-        public TextView getAngleText() {
-            return mAngleText;
+        public GameStateFactory getStateFactory() {
+            return mStateFactory;
+        }
+
+        /*================= Game Flow =================*/
+        public void startRound(boolean firstRound) {
+            RunGameAct.this.startRound(firstRound);
+        }
+
+        public void continueRound() {
+            RunGameAct.this.continueRound();
+        }
+
+        public void endGame() {
+            RunGameAct.this.endGame();
+        }
+
+        public void wake() {
+            mInput.postRun();
         }
 
-        public TextView getArmoryMainText() {
-            return mArmoryMainText;
+        /*================= Events =================*/
+        public void notifyMove(int playerId, int angle, int power,
+                               WeaponType weapon) {
+            LockstepSession session = mSession;
+            if (session != null)
+                session.notifyMove(playerId, angle, power, weapon);
         }
 
-        public TextView getArmorySecondaryText() {
-            return mArmorySecondaryText;
+        public void notifyBallisticsFinished() {
+            LockstepSession session = mSession;
+            if (session != null)
+                session.notifyBallisticsFinished(mModel);
         }
 
-        public Button getArmoryLeftButton() {
-            return mArmoryLeftButton;
+        /*================= Presentation =================*/
+        public void drawScreen(int power, Projectile projectiles[],
+                               Explosion explosions[]) {
+            Tracer.begin(Tracer.Span.DRAW_SCREEN);
+            mGameControlView.drawScreen(this, power,
+                                        projectiles, explosions);
+            Tracer.end(Tracer.Span.DRAW_SCREEN);
         }
 
-        public Button getArmoryRightButton() {
-            return mArmoryRightButton;
+        public void drawSky() {
+            mGameControlView.drawSky();
         }
 
-        public RelativeLayout getArmoryCenter() {
-            return mArmoryCenter;
+        public void emitParticles(ParticleSystem.Effect effect,
+                                  int x, int y, int size) {
+            mGameControlView.emitParticles(effect, x, y, size);
         }
 
-        public Button getFireButton() {
-            return mFireButton;
+        public void cacheTerrain() {
+            Tracer.begin(Tracer.Span.CACHE_TERRAIN);
+            mGameControlView.cacheTerrain(this);
+            Tracer.end(Tracer.Span.CACHE_TERRAIN);
+        }
+
+        public void showBuyWeapons(Player player) {
+            if (mSession != null) {
+                // The other phones would never find out what we bought.
+                // Their copies of our armory would fall out of step.
+                mInput.postButton(GameState.GameButton.DONE);
+                return;
+            }
+            runOnUiThread(new StartBuyWeaponsDialog(player));
         }
 
-        public XmlColors getXmlColors() {
-            return mXmlColors;
+        public void showLeaderboard() {
+            prefetchNextRound();
+            runOnUiThread(new StartLeaderboardDialog());
+        }
+
+        public void showAnnounceWinner() {
+            runOnUiThread(new StartAnnounceWinnerDialog());
+        }
+
+        public void showToast(String text) {
+            runOnUiThread(new Util.DoToast(RunGameAct.this, text));
+        }
+
+        public void showAlert(String text) {
+            runOnUiThread(new Util.DoDialog(RunGameAct.this, text));
+        }
+
+        public void setAngleText(String text) {
+            runOnUiThread(new SetTextView(mAngleText, text));
+        }
+
+        public void setArmoryText(String main, String secondary) {
+            runOnUiThread(new SetTextView(mArmoryMainText, main));
+            runOnUiThread(new SetTextView(mArmorySecondaryText, secondary));
+        }
+
+        public void showArmory() {
+            runOnUiThread(new ChangeArmoryVisibility(true));
+        }
+
+        public void hideArmory() {
+            runOnUiThread(new ChangeArmoryVisibility(false));
+        }
+
+        public void setFireButtonHighlighted(boolean highlighted) {
+            runOnUiThread(new ChangeFireButtonHighlight(highlighted));
         }
     }
 
@@ -207,6 +466,7 @@ public class RunGameAct extends Activity {
         /** Callback invoked when the Surface has been created and is
          * ready to be used. */
         public void surfaceCreated(SurfaceHolder holder) {
+            mGameControlView.startRendering();
             synchronized (mStateLock) {
                 mThread.getStateController().setSurfaceAvailable();
             }
@@ -221,14 +481,12 @@ public class RunGameAct extends Activity {
             // We have to tell thread to shut down and wait for it to finish,
             // or else it might touch the Surface after we return and explode
             boolean retry = true;
-            synchronized (mStateLock) {
-                mThread.getStateController().changeTerminateRequested(true);
-                // Get the thread out of blocking state.
-                // If we ever start doing old-style IO or using sockets, will
-                // have to do some additional rain dances here to get the
-                // thread out of blocking state.
-                mThread.interrupt();
-            }
+            mThread.getStateController().changeTerminateRequested(true);
+            // Get the thread out of blocking state.
+            // If we ever start doing old-style IO or using sockets, will
+            // have to do some additional rain dances here to get the
+            // thread out of blocking state.
+            mThread.interrupt();
             while (retry) {
                 try {
                     mThread.join();
@@ -237,12 +495,14 @@ public class RunGameAct extends Activity {
                 catch (InterruptedException e) {
                 }
             }
+            mGameControlView.stopRendering();
         }
     }
 
     /** Controls the state of the RunGameThread.
      *
-     * This class contains no locking
+     * Starting the thread happens with mStateLock held. Stop and terminate
+     * requests don't need the lock; they just wake the thread up.
      */
     private class RunGameThreadStateController {
         /*================= Data =================*/
@@ -254,11 +514,11 @@ public class RunGameAct extends Activity {
         private boolean mInitializationComplete;
 
         /** mRunGameThread has been told to stop; it either is
-         * blocking on mStateLock or is about to do so. */
-        private boolean mStopRequested;
+         * parked or is about to be. */
+        private volatile boolean mStopRequested;
 
         /** mRunGameThread has been told to terminate itself */
-        private boolean mTerminateRequested;
+        private volatile boolean mTerminateRequested;
 
         /*================= Access =================*/
         public boolean getStopRequested() {
@@ -289,13 +549,13 @@ public class RunGameAct extends Activity {
         }
 
         public void changeStopRequested(boolean stopRequested) {
-            assert (Thread.holdsLock(mStateLock));
             mStopRequested = stopRequested;
+            mInput.wake();
         }
 
         public void changeTerminateRequested(boolean terminateRequested) {
-            assert (Thread.holdsLock(mStateLock));
             mTerminateRequested = terminateRequested;
+            mInput.wake();
         }
 
         /*================= Lifecycle =================*/
@@ -311,11 +571,15 @@ public class RunGameAct extends Activity {
      *
      * State transitions can only happen in the main thread.
      *
-     * The main thread also draws everything on the screen.
+     * The main thread also decides what goes on the screen. The actual
+     * drawing happens on GameControlView's render thread.
      *
-     * If you have done anything that might require a screen redraw, or
-     * cause a transition to another game state, be sure to use notify() to
-     * wake up the main thread.
+     * The main thread is event-driven. Each tick, it delivers the events
+     * in mInput to the current state, then runs the state's main() if an
+     * event asked for that or the state's blocking delay has passed. Then it
+     * parks until the next event or the next deadline, whichever comes
+     * first. The UI thread never takes mStateLock to deliver input; it posts
+     * to mInput instead.
      */
     public class RunGameThread extends Thread {
         /*================= Data =================*/
@@ -332,43 +596,96 @@ public class RunGameAct extends Activity {
             if (Util.mDebug > 1)
                 Log.w(this.getClass().getName(), "Starting RunGameThread...");
 
-            try {
-                while (true) {
-                    // Enter the state
-                    synchronized (mStateLock) {
-                        stateLog("onEnter", mState);
-                        mState.onEnter(mAcc);
-                    }
+            mInput.setConsumer(this);
+            final PerfStats perf = mStateFactory.getPerfStats();
+            Tracer.traceThisThread("game");
+            while (true) {
+                // Enter the state
+                Tracer.begin(Tracer.Span.LOCK_WAIT);
+                synchronized (mStateLock) {
+                    Tracer.end(Tracer.Span.LOCK_WAIT);
+                    Tracer.begin(Tracer.Span.LOCK_HOLD);
+                    stateLog("onEnter", mState);
+                    Tracer.begin(Tracer.Span.STATE_ENTER, mState);
+                    long start = PerfStats.now();
+                    mState.onEnter(mAcc);
+                    perf.recordState(mState, PerfStats.Phase.ENTER, start);
+                    Tracer.end(Tracer.Span.STATE_ENTER);
+                    Tracer.end(Tracer.Span.LOCK_HOLD);
+                }
 
-                    // Execute the state's main loop
-                    GameState next = null;
+                // Execute the state's main loop
+                GameState next = null;
+                stateLog("starting main", mState);
+                long deadline = TimerWheel.now();
+                while (true) {
+                    if (doCancellationPoint())
+                        return;
+                    Tracer.begin(Tracer.Span.LOCK_WAIT);
                     synchronized (mStateLock) {
-                        stateLog("starting main", mState);
-                        while (true) {
-                            if (doCancellationPoint())
-                                return;
+                        Tracer.end(Tracer.Span.LOCK_WAIT);
+                        Tracer.begin(Tracer.Span.LOCK_HOLD);
+                        boolean run = deliverInput();
+                        if ((deadline != 0) &&
+                            (TimerWheel.now() >= deadline))
+                            run = true;
+                        mStateFactory.getTimers().runExpired();
+                        if (run) {
+                            Tracer.begin(Tracer.Span.STATE_MAIN, mState);
+                            long start = PerfStats.now();
                             next = mState.main(mAcc);
-                            if (next != null)
+                            perf.recordState(mState, PerfStats.Phase.MAIN,
+                                             start);
+                            Tracer.end(Tracer.Span.STATE_MAIN);
+                            if (next != null) {
+                                Tracer.end(Tracer.Span.LOCK_HOLD);
                                 break;
+                            }
                             // Delay until the next call to main()
-                            // If getBlockingDelay == 0, then we delay until
-                            // someone calls notify() on mStateLock
-                            mStateLock.wait(mState.getBlockingDelay());
+                            // If getWakeDelay == 0, then we delay
+                            // until the user does something
+                            int delay = mState.getWakeDelay();
+                            if (delay == 0)
+                                deadline = 0;
+                            else
+                                deadline = TimerWheel.now() + delay;
                         }
-                        if (doCancellationPoint())
-                            return;
-                    }
-
-                    synchronized (mStateLock) {
-                        stateLog("onExit", mState);
-                        mState.onExit(mAcc);
-                        mState = next;
+                        Tracer.end(Tracer.Span.LOCK_HOLD);
                     }
+                    mInput.await(deadline);
+                }
+                if (doCancellationPoint())
+                    return;
+
+                Tracer.begin(Tracer.Span.LOCK_WAIT);
+                synchronized (mStateLock) {
+                    Tracer.end(Tracer.Span.LOCK_WAIT);
+                    Tracer.begin(Tracer.Span.LOCK_HOLD);
+                    stateLog("onExit", mState);
+                    Tracer.begin(Tracer.Span.STATE_EXIT, mState);
+                    long start = PerfStats.now();
+                    mState.onExit(mAcc);
+                    perf.recordState(mState, PerfStats.Phase.EXIT, start);
+                    Tracer.end(Tracer.Span.STATE_EXIT);
+                    mState = next;
+                    Tracer.end(Tracer.Span.LOCK_HOLD);
                 }
             }
-            catch (InterruptedException e) {
-                Log.e(getClass().getName(),
-                      "caught InterruptedException: quitting.");
+        }
+
+        /** Delivers all the waiting input to the current state.
+         *
+         * @return      true if any of it means we should run main()
+         */
+        private boolean deliverInput() {
+            assert (Thread.holdsLock(mStateLock));
+            boolean ret = false;
+            while (true) {
+                InputQueue.Event ev = mInput.poll();
+                if (ev == null)
+                    return ret;
+                if (ev.dispatch(mAcc, mState))
+                    ret = true;
             }
         }
 
@@ -385,22 +702,21 @@ public class RunGameAct extends Activity {
          * This function checks to see if someone has requested that the
          * main thread go to sleep or terminate itself.
          *
-         * In the event that someone has requested sleep, we sleep using
-         * wait().
+         * In the event that someone has requested sleep, we park until
+         * the request is withdrawn.
          * In the event that someone has requested termination, we return
          * true.
          *
          * @return      true if we should exit run(), false otherwise
-         * @throws InterruptedException
          */
-        private boolean doCancellationPoint() throws InterruptedException {
-            assert (Thread.holdsLock(mStateLock));
-            if (mStateController.getTerminateRequested())
-                return true;
-            if (mStateController.getStopRequested()) {
-                mStateLock.wait();
+        private boolean doCancellationPoint() {
+            while (true) {
+                if (mStateController.getTerminateRequested())
+                    return true;
+                if (! mStateController.getStopRequested())
+                    return false;
+                LockSupport.park();
             }
-            return false;
         }
 
         /*================= Lifecycle =================*/
@@ -420,17 +736,14 @@ public class RunGameAct extends Activity {
 
         /*================= Operations =================*/
         public void onClick(View view) {
+            Tracer.begin(Tracer.Span.ON_CLICK, this);
             switch (view.getId()) {
                 case R.id.done:
-                    synchronized (mStateLock) {
-                        if (mState.onButton(mAcc,
-                                GameState.GameButton.DONE)) {
-                            mStateLock.notify();
-                        }
-                    }
+                    mInput.postButton(GameState.GameButton.DONE);
                     dismiss();
                     break;
             }
+            Tracer.end(Tracer.Span.ON_CLICK);
         }
 
         /*================= Lifecycle =================*/
@@ -497,17 +810,14 @@ public class RunGameAct extends Activity {
 
         /*================= Operations =================*/
         public void onClick(View view) {
+            Tracer.begin(Tracer.Span.ON_CLICK, this);
             switch (view.getId()) {
                 case R.id.ok:
-                    synchronized (mStateLock) {
-                        if (mState.onButton(mAcc,
-                                GameState.GameButton.OK)) {
-                            mStateLock.notify();
-                        }
-                    }
+                    mInput.postButton(GameState.GameButton.OK);
                     dismiss();
                     break;
             }
+            Tracer.end(Tracer.Span.ON_CLICK);
         }
 
         /*================= Lifecycle =================*/
@@ -539,17 +849,14 @@ public class RunGameAct extends Activity {
 
         /*================= Operations =================*/
         public void onClick(View view) {
+            Tracer.begin(Tracer.Span.ON_CLICK, this);
             switch (view.getId()) {
                 case R.id.ok:
-                    synchronized (mStateLock) {
-                        if (mState.onButton(mAcc,
-                                GameState.GameButton.OK)) {
-                            mStateLock.notify();
-                        }
-                    }
+                    mInput.postButton(GameState.GameButton.OK);
                     dismiss();
                     break;
             }
+            Tracer.end(Tracer.Span.ON_CLICK);
         }
 
         /*================= Lifecycle =================*/
@@ -585,23 +892,66 @@ public class RunGameAct extends Activity {
     /*================= Operations =================*/
     /** Called from GameControlView to handle keystrokes */
     public boolean onKeyDown(int keyCode, KeyEvent event) {
-        synchronized (mStateLock) {
+        Tracer.begin(Tracer.Span.ON_KEY_DOWN);
+        try {
             switch(keyCode) {
                 case KeyEvent.KEYCODE_BACK:
                     showAreYouSureYouWantToQuit();
                     return true;
+                case KeyEvent.KEYCODE_P: {
+                    PerfStats perf = mStateFactory.getPerfStats();
+                    perf.setOverlayEnabled(! perf.isOverlayEnabled());
+                    return true;
+                }
+                case KeyEvent.KEYCODE_T:
+                    Tracer.setEnabled(! Tracer.isEnabled());
+                    new Util.DoToast(this, Tracer.isEnabled() ?
+                        "Tracing on" : "Tracing off").run();
+                    return true;
+                case KeyEvent.KEYCODE_D:
+                    dumpPerfStats();
+                    return true;
             }
+            return false;
+        }
+        finally {
+            Tracer.end(Tracer.Span.ON_KEY_DOWN);
+        }
+    }
+
+    /** Writes the timings for this game to PERF_STATS_FILE, and the
+     * trace to TRACE_FILE */
+    private void dumpPerfStats() {
+        File dir = getFilesDir();
+        File perfFile = new File(dir, PERF_STATS_FILE);
+        File traceFile = new File(dir, TRACE_FILE);
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(perfFile));
+            mStateFactory.getPerfStats().dump(out);
+            out.close();
+            out = new PrintWriter(new FileWriter(traceFile));
+            Tracer.export(out);
+            new Util.DoToast(this, "Wrote " + perfFile.getPath() +
+                             " and " + traceFile.getPath()).run();
+        }
+        catch (IOException e) {
+            Log.w(this.getClass().getName(),
+                  "dumpPerfStats: " + e.toString());
+        }
+        finally {
+            if (out != null)
+                out.close();
         }
-        return false;
     }
 
     /** Called from GameControlView to handle touch events */
     public boolean onTouchEvent(MotionEvent me) {
-        synchronized (mStateLock) {
-            if (mState.onTouchEvent(mAcc, me)) {
-                mStateLock.notify();
-            }
-        }
+        Tracer.begin(Tracer.Span.ON_TOUCH);
+        mInput.postTouch(me, mGameControlView.getTouchScaleX(),
+                         mGameControlView.getTouchScaleY(),
+                         mGameControlView.getCameraX());
+        Tracer.end(Tracer.Span.ON_TOUCH);
         return true;
     }
 
@@ -636,20 +986,109 @@ public class RunGameAct extends Activity {
      * @param firstRound  If true, create a new Cosmos.
      */
     public void startRound(boolean firstRound) {
-        Bundle smap =
-            getIntent().getBundleExtra(GameSetupAct.GAME_SETUP_BUNDLE);
-        ModelFactory fac = ModelFactory.fromBundle(smap);
+        ModelFactory fac = getModelFactory();
+        ModelFactory.RoundPlan plan = takeNextRound();
         if (firstRound) {
+            // Every phone in a network game has to play the same game
+            long seed = (mSession == null) ? Util.mRandom.nextLong() :
+                                             mSession.getSeed();
             mCosmos = Cosmos.fromInitial(fac.getNumRounds(),
                                          fac.getNumPlayers(),
-                                         fac.getStartingCash());
+                                         fac.getStartingCash(), seed);
+            plan = null;
         }
-        mModel = fac.createModel(mCosmos);
+        if (plan == null)
+            plan = fac.planRound(mCosmos.getPlanSeed(), getNextMapFile());
+        mModel = fac.createModel(mCosmos, plan);
+        if (mSession != null)
+            seatRemotePlayers();
         if (firstRound) {
-            mState = GameState.createInitialGameState();
+            mState = GameState.createInitialGameState(mStateFactory);
+        }
+    }
+
+    /** Gives the players on the other phones RemoteBrains, which get their
+     * moves from mSession */
+    private void seatRemotePlayers() {
+        Player players[] = mModel.getPlayers();
+        for (int i = 0; i < players.length; i++) {
+            if (mSession.isRemotePlayer(i)) {
+                RemoteBrain brain = new RemoteBrain();
+                brain.setListener(mSession);
+                players[i].setBrain(brain);
+            }
+        }
+    }
+
+    /** Starts planning the next round on a worker thread.
+     *
+     * The terrain, the player positions, and the decoded background are
+     * the slow parts of starting a round. None of them depend on what the
+     * players buy, so we work them out while the leaderboard and the
+     * weapon shop are up, and startRound just picks them up.
+     *
+     * The worker only gets the next round's plan seed, so it never
+     * touches anything the game thread is using, and plans exactly the
+     * round that startRound would have.
+     */
+    private void prefetchNextRound() {
+        if ((mNextRound != null) || (! mCosmos.moreRoundsRemaining()))
+            return;
+        final ModelFactory fac = getModelFactory();
+        final long seed = mCosmos.getNextPlanSeed();
+        final File mapFile = getNextMapFile();
+        mNextRound = new FutureTask < ModelFactory.RoundPlan >(
+            new Callable < ModelFactory.RoundPlan >() {
+                public ModelFactory.RoundPlan call() {
+                    ModelFactory.RoundPlan plan =
+                        fac.planRound(seed, mapFile);
+                    mGameControlView.preloadBackground(plan.getBackground());
+                    return plan;
+                }
+            });
+        Thread t = new Thread(mNextRound, "PrefetchRound");
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /** Returns the plan made by prefetchNextRound, waiting for it if it
+     * isn't done yet. Returns null if there isn't one, or it failed. */
+    private ModelFactory.RoundPlan takeNextRound() {
+        FutureTask < ModelFactory.RoundPlan > next = mNextRound;
+        mNextRound = null;
+        if (next == null)
+            return null;
+        try {
+            return next.get();
+        }
+        catch (Exception e) {
+            Log.e(this.getClass().getName(), "prefetching the next " +
+                  "round failed: " + e);
+            return null;
         }
     }
 
+    /** Returns the file the next round's terrain should go in, if the
+     * world is wide enough to need one: whichever of MAP_FILES the current
+     * round isn't using. */
+    private File getNextMapFile() {
+        String cur = (mModel == null) ? null :
+                        mModel.getTerrain().getStorePath();
+        File file = new File(getFilesDir(), MAP_FILES[0]);
+        if (file.getPath().equals(cur))
+            file = new File(getFilesDir(), MAP_FILES[1]);
+        return file;
+    }
+
+    private ModelFactory getModelFactory() {
+        LockstepSession session = mSession;
+        if (session != null)
+            return session.getModelFactory();
+        Bundle smap =
+            getIntent().getBundleExtra(GameSetupAct.GAME_SETUP_BUNDLE);
+        return ModelFactory.fromBundle(smap);
+    }
+
     public void continueRound() {
         mGameControlView.initialize(mModel.getBackground(),
                                    mModel.getForeground());
@@ -660,9 +1099,115 @@ public class RunGameAct extends Activity {
         finish();
     }
 
+    /** Returns true if we were started to host or join a network game */
+    private boolean isNetworkGame() {
+        return getIntent().getBooleanExtra(HOST_GAME, false) ||
+               (getIntent().getStringExtra(JOIN_ADDRESS) != null);
+    }
+
+    /** Hosts or joins a network game. The game starts once every phone
+     * has joined; see startNetworkGame. */
+    private void startSession() {
+        final SessionListener listener = new SessionListener();
+        final String address = getIntent().getStringExtra(JOIN_ADDRESS);
+        if (address == null) {
+            try {
+                mSession = LockstepSession.host(
+                    LockstepSession.DEFAULT_PORT, getModelFactory(),
+                    Util.mRandom.nextLong(), null, listener);
+            }
+            catch (IOException e) {
+                abandonNetworkGame("Can't host a game: " + e.getMessage());
+                return;
+            }
+            String local = getLocalAddress();
+            mAcc.showAlert("Waiting for the other players. They can join " +
+                           ((local == null) ? "this phone" : local) + ".");
+            return;
+        }
+
+        // Connecting blocks, so do it somewhere else.
+        mAcc.showToast("Joining " + address + "...");
+        new Thread("JoinGame") {
+            public void run() {
+                try {
+                    LockstepSession session = LockstepSession.join(address,
+                            LockstepSession.DEFAULT_PORT, null, listener);
+                    mSession = session;
+                    if (mDestroyed)
+                        session.close();
+                }
+                catch (final IOException e) {
+                    runOnUiThread(new Runnable() {
+                        public void run() {
+                            abandonNetworkGame("Can't join " + address +
+                                               ": " + e.getMessage());
+                        }
+                    });
+                }
+            }
+        }.start();
+    }
+
+    /** Starts a network game once every phone has joined.
+     * Must be called from the UI thread. */
+    private void startNetworkGame(LockstepSession session) {
+        synchronized (mStateLock) {
+            if (mDestroyed)
+                return;
+            mSession = session;
+            startRound(true);
+            continueRound();
+            mThread.getStateController().setInitializationComplete();
+        }
+    }
+
+    /** Tells the user that a network game couldn't start, and gives up */
+    private void abandonNetworkGame(String text) {
+        new Util.DoToast(this, text).run();
+        setResult(RESULT_GAME_OVER);
+        finish();
+    }
+
+    /** Returns this phone's address on the local network, or null if we
+     * can't tell */
+    private static String getLocalAddress() {
+        try {
+            Enumeration < NetworkInterface > ifs =
+                NetworkInterface.getNetworkInterfaces();
+            while ((ifs != null) && ifs.hasMoreElements()) {
+                Enumeration < InetAddress > addrs =
+                    ifs.nextElement().getInetAddresses();
+                while (addrs.hasMoreElements()) {
+                    InetAddress addr = addrs.nextElement();
+                    if ((addr instanceof Inet4Address) &&
+                        (! addr.isLoopbackAddress()))
+                        return addr.getHostAddress();
+                }
+            }
+        }
+        catch (SocketException e) {
+        }
+        return null;
+    }
+
+    /** Highlights or de-highlights the fire button.
+     * Must be called from the UI thread. */
+    private void changeFireButtonHighlight(boolean highlighted) {
+        int textColor;
+        if (highlighted)
+            textColor = Color.argb(0xff, 0xff, 0xff, 0xff);
+        else if (mModel.foregroundIsLight())
+            textColor = mXmlColors.getGameTextDark();
+        else
+            textColor = mXmlColors.getGameTextGrey();
+        mFireButton.setTextColor(textColor);
+    }
+
     /*================= Lifecycle =================*/
     @Override
     public void onCreate(Bundle map) {
+        Tracer.traceThisThread("UI");
         synchronized (mStateLock) {
             super.onCreate(map);
             mXmlColors = XmlColors.fromXml(getResources());
@@ -676,6 +1221,7 @@ public class RunGameAct extends Activity {
             ////////////////// Get pointers to widgets
             mGameControlView = (GameControlView)
                 findViewById(R.id.game_control_view);
+            mGameControlView.setPerfStats(mStateFactory.getPerfStats());
             mAngleText = (TextView)findViewById(R.id.angle_text);
             mArmoryLeftButton = (Button)findViewById(R.id.armory_left_button);
             mArmoryMainText = (TextView)findViewById(R.id.armory_main_text);
@@ -687,7 +1233,16 @@ public class RunGameAct extends Activity {
             mFireButton = (Button)findViewById(R.id.fire_button);
 
             ///////////////// Initialize game state
-            if (map == null) {
+            boolean networkGame = isNetworkGame();
+            if (networkGame) {
+                if (map != null) {
+                    // The connections went away with the old process.
+                    abandonNetworkGame("The network game was lost.");
+                    return;
+                }
+                startSession();
+            }
+            else if (map == null) {
                 startRound(true);
                 continueRound();
             }
@@ -695,51 +1250,35 @@ public class RunGameAct extends Activity {
                 // Decompress saved state
                 mCosmos = Cosmos.fromBundle(map);
                 mModel = Model.fromBundle(map);
-                mState = GameState.fromBundle(map);
+                mState = GameState.fromBundle(mStateFactory, map);
                 continueRound();
             }
 
             ////////////////// Initialize widgets
             mArmoryLeftButton.setOnClickListener(new OnClickListener() {
                 public void onClick(View arg0) {
-                    synchronized (mStateLock) {
-                        if (mState.onButton(mAcc,
-                                GameState.GameButton.ARMORY_LEFT)) {
-                            mStateLock.notify();
-                        }
-                    }
+                    Tracer.begin(Tracer.Span.ON_CLICK);
+                    mInput.postButton(GameState.GameButton.ARMORY_LEFT);
+                    Tracer.end(Tracer.Span.ON_CLICK);
                 }
             });
 
             mArmoryRightButton.setOnClickListener(new OnClickListener() {
                 public void onClick(View arg0) {
-                    synchronized (mStateLock) {
-                        if (mState.onButton(mAcc,
-                                GameState.GameButton.ARMORY_RIGHT)) {
-                            mStateLock.notify();
-                        }
-                    }
+                    Tracer.begin(Tracer.Span.ON_CLICK);
+                    mInput.postButton(GameState.GameButton.ARMORY_RIGHT);
+                    Tracer.end(Tracer.Span.ON_CLICK);
                 }
             });
 
             mFireButton.setOnTouchListener(new View.OnTouchListener() {
                 public boolean onTouch(View v, MotionEvent event) {
                     int act = event.getAction();
-                    if (act == MotionEvent.ACTION_DOWN) {
-                        synchronized (mStateLock) {
-                            if (mState.onButton(mAcc,
-                                    GameState.GameButton.PRESS_FIRE)) {
-                                mStateLock.notify();
-                            }
-                        }
-                    }
+                    if (act == MotionEvent.ACTION_DOWN)
+                        mInput.postButton(GameState.GameButton.PRESS_FIRE);
                     else if (act == MotionEvent.ACTION_UP) {
-                        synchronized (mStateLock) {
-                            if (mState.onButton(mAcc,
-                                    GameState.GameButton.RELEASE_FIRE)) {
-                                mStateLock.notify();
-                            }
-                        }
+                        mInput.postButton(
+                            GameState.GameButton.RELEASE_FIRE);
                     }
                     return true;
                 }
@@ -747,7 +1286,9 @@ public class RunGameAct extends Activity {
 
             mGameControlView.getHolder().
                 addCallback(mGameControlViewObserver);
-            mThread.getStateController().setInitializationComplete();
+            // A network game starts once everyone has joined.
+            if (! networkGame)
+                mThread.getStateController().setInitializationComplete();
         }
     }
 
@@ -755,24 +1296,18 @@ public class RunGameAct extends Activity {
     protected void onPause() {
         // The game is no longer in the foreground
         super.onPause();
-        synchronized (mStateLock) {
-            if (Util.mDebug > 1)
-                Log.w(this.getClass().getName(), "onPause called");
-            mThread.getStateController().changeStopRequested(true);
-            mStateLock.notify();
-        }
+        if (Util.mDebug > 1)
+            Log.w(this.getClass().getName(), "onPause called");
+        mThread.getStateController().changeStopRequested(true);
     }
 
     @Override
     public void onResume() {
         // The game is back in the foreground
         super.onResume();
-        synchronized (mStateLock) {
-            if (Util.mDebug > 1)
-                Log.w(this.getClass().getName(), "onResume called");
-            mThread.getStateController().changeStopRequested(false);
-            mStateLock.notify();
-        }
+        if (Util.mDebug > 1)
+            Log.w(this.getClass().getName(), "onResume called");
+        mThread.getStateController().changeStopRequested(false);
     }
 
     /**
@@ -785,19 +1320,33 @@ public class RunGameAct extends Activity {
     @Override
     protected void onSaveInstanceState(Bundle map) {
         super.onSaveInstanceState(map);
+        Tracer.begin(Tracer.Span.SAVE_STATE);
+        Tracer.begin(Tracer.Span.LOCK_WAIT);
         synchronized (mStateLock) {
+            Tracer.end(Tracer.Span.LOCK_WAIT);
+            Tracer.begin(Tracer.Span.LOCK_HOLD);
             if (Util.mDebug > 1)
                 Log.w(this.getClass().getName(),
                         "RunGameAct.onSaveInstanceState");
-            mCosmos.saveState(map);
-            mModel.saveState(map);
-            mState.saveState(map);
+            // We can't get back into a network game, so there's no point
+            // in saving one.
+            if (! isNetworkGame()) {
+                mCosmos.saveState(map);
+                mModel.saveState(map);
+                mState.saveState(map);
+            }
+            Tracer.end(Tracer.Span.LOCK_HOLD);
         }
+        Tracer.end(Tracer.Span.SAVE_STATE);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mDestroyed = true;
+        LockstepSession session = mSession;
+        if (session != null)
+            session.close();
         // note: GameControlViewObserver.surfaceDestroyed() cleans up the
         // thread-- so we don't have to do it here.
     }
@@ -805,8 +1354,10 @@ public class RunGameAct extends Activity {
     public RunGameAct() {
         super();
         mStateLock = new Object();
+        mStateFactory = new GameStateFactory(new PerfStats());
         mAcc = new RunGameActAccessor();
         mGameControlViewObserver = new GameControlViewObserver();
+        mInput = new InputQueue();
         mThread = new RunGameThread();
     }
 }
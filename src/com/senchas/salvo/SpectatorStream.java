@@ -0,0 +1,851 @@
+package com.senchas.salvo;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams a Match to any number of spectators.
+ *
+ * Frames
+ * ------
+ * Every time the match draws the screen, the stream encodes what changed
+ * since the last frame:
+ *     - the position of each projectile in flight
+ *     - the position and current radius of each explosion
+ *     - the position, life and turret angle of each player that changed
+ *     - runs of terrain columns that changed, with their new heights
+ * A ballistics frame is usually a few dozen bytes. Frames where nothing
+ * changed are not sent at all.
+ *
+ * We find out which columns changed from Terrain.columnsChanged (through
+ * Match.Observer.onColumnsChanged), and only look at those. So the cost
+ * of a frame doesn't depend on the width of the world. To tell which of
+ * those columns really are different, we keep a shadow copy of each
+ * chunk, made the first time something in it changes.
+ *
+ * Deltas only make sense if you have seen all the frames before them. So a
+ * new subscriber first gets a keyframe: every player, and the round's wind
+ * and scenery. Everyone gets a keyframe when a new round starts, too.
+ *
+ * If so much changed that a delta won't fit in MAX_FRAME_SIZE, we don't
+ * send it. Everyone gets a keyframe instead, and the terrain again after
+ * that, just as if a new round had started.
+ *
+ * A wide world has too much terrain to fit in one frame, or even in a
+ * subscriber's ring. So after the keyframe, the terrain follows in terrain
+ * frames, a slice at a time, whenever the subscriber's ring has room to
+ * spare. Each one holds the current heights of its slice, so it doesn't
+ * matter if deltas arrive in between.
+ *
+ * Wire format
+ * -----------
+ * Each frame is [length:2][type:1][payload], like LockstepSession's
+ * messages. All numbers are big-endian.
+ *
+ * FRAME_KEY: seq(4) curPlayer(1) wind(2) background(1) foreground(1)
+ *            width(4) numPlayers(1), then for each player: x(4) y(2)
+ *            life(2) angle(1) color(1)
+ *
+ * FRAME_DELTA: seq(4) numProjectiles(1), then x(4) y(2) each;
+ *              numExplosions(1), then x(4) y(2) radius(1) each;
+ *              numPlayers(1), then id(1) x(4) y(2) life(2) angle(1) each;
+ *              numRuns(1), then start(4) count(1) heights(2 * count) each
+ *
+ * FRAME_TERRAIN: seq(4) start(4) count(2) heights(2 * count)
+ *
+ * X coordinates take four bytes, since worlds can be wider than a short.
+ *
+ * Fan-out
+ * -------
+ * Each Subscriber has its own fixed-size ring of frame buffers. The game
+ * thread copies each frame into every ring and moves on; it never waits for
+ * a spectator. If a spectator falls so far behind that its ring is full, it
+ * loses that frame, and gets a keyframe as soon as there is room again.
+ *
+ * Threading
+ * ---------
+ * Frames are produced with the match's state lock held, on whichever thread
+ * is stepping the match. Each Subscriber is read by a single consumer thread.
+ */
+public class SpectatorStream implements Match.Observer {
+    /*================= Constants =================*/
+    public static final byte FRAME_KEY = 1;
+
+    public static final byte FRAME_DELTA = 2;
+
+    public static final byte FRAME_TERRAIN = 3;
+
+    /** The largest frame we will ever produce, including the header */
+    public static final int MAX_FRAME_SIZE = 2048;
+
+    /** How many frames a subscriber can fall behind by default */
+    public static final int DEFAULT_RING_SIZE = 32;
+
+    /** The longest run of terrain columns in one delta entry */
+    private static final int MAX_RUN = 255;
+
+    /** The sizes of the entries in a delta, not counting a run's
+     * heights */
+    private static final int PROJECTILE_SIZE = 6;
+    private static final int EXPLOSION_SIZE = 7;
+    private static final int PLAYER_SIZE = 10;
+    private static final int RUN_SIZE = 5;
+
+    /** The number of columns in one terrain frame */
+    private static final int TERRAIN_FRAME_COLUMNS = 960;
+
+    /** The size of mColumns */
+    private static final int SCRATCH_COLUMNS =
+        Math.max(TERRAIN_FRAME_COLUMNS, Terrain.CHUNK_SIZE);
+
+    /*================= Types =================*/
+    /** One spectator's queue of frames.
+     *
+     * This is a single-producer, single-consumer ring. The producer is the
+     * stream (with the state lock held); the consumer is whoever reads the
+     * frames out, probably to write them to a socket.
+     */
+    public static class Subscriber {
+        /*================= Data =================*/
+        private final byte mSlots[][];
+
+        private final int mLengths[];
+
+        /** The next frame to read. Only written by the consumer. */
+        private volatile long mHead;
+
+        /** The next slot to write. Only written by the producer. */
+        private volatile long mTail;
+
+        /** True if the next frame we send must be a keyframe. Only touched
+         * by the producer. */
+        private boolean mNeedsKeyframe;
+
+        /** The first terrain column this subscriber hasn't been sent since
+         * its last keyframe. Only touched by the producer. */
+        private int mTerrainSent;
+
+        /** The number of frames that didn't fit. Only written by the
+         * producer. */
+        private volatile long mNumDropped;
+
+        /** The consumer thread, if it is parked in take() */
+        private volatile Thread mWaiter;
+
+        /*================= Access =================*/
+        public long getNumDropped() {
+            return mNumDropped;
+        }
+
+        /*================= Consumer =================*/
+        /** Copies the oldest frame into dst.
+         *
+         * @return  the length of the frame, or 0 if there are no frames
+         */
+        public int poll(byte dst[]) {
+            long head = mHead;
+            if (head == mTail)
+                return 0;
+            int idx = (int)(head % mSlots.length);
+            int len = mLengths[idx];
+            System.arraycopy(mSlots[idx], 0, dst, 0, len);
+            mHead = head + 1;
+            return len;
+        }
+
+        /** Like poll(), but waits up to timeout milliseconds for a frame */
+        public int take(byte dst[], long timeout)
+                throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while (true) {
+                int len = poll(dst);
+                if (len != 0)
+                    return len;
+                long left = end - System.currentTimeMillis();
+                if (left <= 0)
+                    return 0;
+                mWaiter = Thread.currentThread();
+                if (mHead == mTail)
+                    LockSupport.parkNanos(left * 1000000L);
+                mWaiter = null;
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        }
+
+        /*================= Producer =================*/
+        /** Returns the number of empty slots in the ring */
+        private int getFree() {
+            return (int)(mSlots.length - (mTail - mHead));
+        }
+
+        /** Copies a frame into the ring.
+         *
+         * @return  false if the ring is full
+         */
+        private boolean offer(ByteBuffer frame) {
+            long tail = mTail;
+            if (tail - mHead >= mSlots.length)
+                return false;
+            int idx = (int)(tail % mSlots.length);
+            int len = frame.remaining();
+            frame.duplicate().get(mSlots[idx], 0, len);
+            mLengths[idx] = len;
+            mTail = tail + 1;
+            Thread waiter = mWaiter;
+            if (waiter != null)
+                LockSupport.unpark(waiter);
+            return true;
+        }
+
+        /*================= Lifecycle =================*/
+        private Subscriber(int ringSize) {
+            mSlots = new byte[ringSize][MAX_FRAME_SIZE];
+            mLengths = new int[ringSize];
+            mHead = 0;
+            mTail = 0;
+            mNeedsKeyframe = true;
+            mTerrainSent = 0;
+            mNumDropped = 0;
+        }
+    }
+
+    /** Rebuilds the state of a match from a stream of frames.
+     *
+     * This is what a spectator's display would draw from.
+     */
+    public static class Replica {
+        /*================= Data =================*/
+        private short mBoard[];
+
+        private int mNumPlayers;
+        private final int mPlayerX[];
+        private final int mPlayerY[];
+        private final int mPlayerLife[];
+        private final int mPlayerAngle[];
+        private final int mPlayerColor[];
+
+        private int mCurPlayerId;
+        private int mWind;
+        private int mBackground;
+        private int mForeground;
+
+        private int mNumProjectiles;
+        private final int mProjectileXY[];
+
+        private int mNumExplosions;
+        private final int mExplosionXYR[];
+
+        /** The sequence number of the last frame we applied */
+        private int mSeq;
+
+        /** True once we have seen a keyframe, and haven't missed anything
+         * since */
+        private boolean mSynced;
+
+        /*================= Access =================*/
+        public boolean isSynced() {
+            return mSynced;
+        }
+
+        /** Returns the terrain. Columns which haven't arrived yet are
+         * 0. */
+        public short[] getBoard() {
+            return mBoard;
+        }
+
+        public int getNumPlayers() {
+            return mNumPlayers;
+        }
+
+        public int getPlayerX(int i) {
+            return mPlayerX[i];
+        }
+
+        public int getPlayerY(int i) {
+            return mPlayerY[i];
+        }
+
+        public int getPlayerLife(int i) {
+            return mPlayerLife[i];
+        }
+
+        public int getPlayerAngle(int i) {
+            return mPlayerAngle[i];
+        }
+
+        public PlayerColor getPlayerColor(int i) {
+            return PlayerColor.values()[mPlayerColor[i]];
+        }
+
+        public int getCurPlayerId() {
+            return mCurPlayerId;
+        }
+
+        public int getWind() {
+            return mWind;
+        }
+
+        public Background getBackground() {
+            return Background.values()[mBackground];
+        }
+
+        public Foreground getForeground() {
+            return Foreground.values()[mForeground];
+        }
+
+        public int getNumProjectiles() {
+            return mNumProjectiles;
+        }
+
+        public int getProjectileX(int i) {
+            return mProjectileXY[2 * i];
+        }
+
+        public int getProjectileY(int i) {
+            return mProjectileXY[2 * i + 1];
+        }
+
+        public int getNumExplosions() {
+            return mNumExplosions;
+        }
+
+        public int getExplosionX(int i) {
+            return mExplosionXYR[3 * i];
+        }
+
+        public int getExplosionY(int i) {
+            return mExplosionXYR[3 * i + 1];
+        }
+
+        public int getExplosionRadius(int i) {
+            return mExplosionXYR[3 * i + 2];
+        }
+
+        /*================= Operations =================*/
+        /** Applies one frame.
+         *
+         * @return  false if the frame was a delta that we couldn't use
+         *          because we missed something. The replica stays out of
+         *          sync until the next keyframe.
+         */
+        public boolean apply(byte frame[], int len) {
+            ByteBuffer b = ByteBuffer.wrap(frame, 0, len);
+            b.getShort();
+            byte type = b.get();
+            int seq = b.getInt();
+            if (type == FRAME_KEY) {
+                applyKeyframe(b);
+                mSeq = seq;
+                mSynced = true;
+                return true;
+            }
+            else if (type == FRAME_DELTA) {
+                if ((! mSynced) || (seq != mSeq + 1)) {
+                    mSynced = false;
+                    return false;
+                }
+                applyDelta(b);
+                mSeq = seq;
+                return true;
+            }
+            else if (type == FRAME_TERRAIN) {
+                if ((! mSynced) || (seq != mSeq))
+                    return false;
+                int start = b.getInt();
+                int count = b.getShort() & 0xffff;
+                for (int i = 0; i < count; i++)
+                    mBoard[start + i] = b.getShort();
+                return true;
+            }
+            else {
+                throw new RuntimeException("Replica.apply: unknown frame " +
+                                           "type " + type);
+            }
+        }
+
+        private void applyKeyframe(ByteBuffer b) {
+            mCurPlayerId = b.get();
+            mWind = b.getShort();
+            mBackground = b.get();
+            mForeground = b.get();
+            int width = b.getInt();
+            if (mBoard.length != width)
+                mBoard = new short[width];
+            else
+                Arrays.fill(mBoard, (short)0);
+            mNumPlayers = b.get();
+            for (int i = 0; i < mNumPlayers; i++) {
+                mPlayerX[i] = b.getInt();
+                mPlayerY[i] = b.getShort();
+                mPlayerLife[i] = b.getShort();
+                mPlayerAngle[i] = b.get() & 0xff;
+                mPlayerColor[i] = b.get();
+            }
+            mNumProjectiles = 0;
+            mNumExplosions = 0;
+        }
+
+        private void applyDelta(ByteBuffer b) {
+            mNumProjectiles = b.get();
+            for (int i = 0; i < mNumProjectiles; i++) {
+                mProjectileXY[2 * i] = b.getInt();
+                mProjectileXY[2 * i + 1] = b.getShort();
+            }
+            mNumExplosions = b.get();
+            for (int i = 0; i < mNumExplosions; i++) {
+                mExplosionXYR[3 * i] = b.getInt();
+                mExplosionXYR[3 * i + 1] = b.getShort();
+                mExplosionXYR[3 * i + 2] = b.get() & 0xff;
+            }
+            int numPlayers = b.get();
+            for (int i = 0; i < numPlayers; i++) {
+                int id = b.get();
+                mPlayerX[id] = b.getInt();
+                mPlayerY[id] = b.getShort();
+                mPlayerLife[id] = b.getShort();
+                mPlayerAngle[id] = b.get() & 0xff;
+            }
+            int numRuns = b.get() & 0xff;
+            for (int i = 0; i < numRuns; i++) {
+                int start = b.getInt();
+                int count = b.get() & 0xff;
+                for (int j = 0; j < count; j++)
+                    mBoard[start + j] = b.getShort();
+            }
+        }
+
+        /*================= Lifecycle =================*/
+        public Replica() {
+            mBoard = new short[Terrain.MAX_X];
+            mPlayerX = new int[Model.MAX_PLAYERS];
+            mPlayerY = new int[Model.MAX_PLAYERS];
+            mPlayerLife = new int[Model.MAX_PLAYERS];
+            mPlayerAngle = new int[Model.MAX_PLAYERS];
+            mPlayerColor = new int[Model.MAX_PLAYERS];
+            mProjectileXY = new int[2 * 256];
+            mExplosionXYR = new int[3 * 256];
+            mSynced = false;
+        }
+    }
+
+    /*================= Data =================*/
+    private final CopyOnWriteArrayList < Subscriber > mSubscribers;
+
+    private final Match mMatch;
+
+    /** The model that our shadow copies describe */
+    private Model mModel;
+
+    /** The width of mModel's terrain */
+    private int mWidth;
+
+    /** The terrain as of the last frame we encoded, one array per chunk.
+     * A chunk which hasn't changed since the round started has none. */
+    private short mShadowChunks[][];
+
+    /** For each chunk, the first and last of its columns that changed
+     * since the last frame, counted from the start of the chunk. If none
+     * did, the first is CHUNK_SIZE and the last is -1. */
+    private int mDirtyFirst[];
+    private int mDirtyLast[];
+
+    /** The chunks between these two, inclusive, may have changed columns.
+     * If none do, mLastDirtyChunk is -1. */
+    private int mFirstDirtyChunk;
+    private int mLastDirtyChunk;
+
+    /** Heights copied out of the terrain */
+    private final short mColumns[];
+
+    /** Player state as of the last frame we encoded */
+    private final int mShadowPlayers[];
+
+    /** The sequence number of the last frame */
+    private int mSeq;
+
+    /** Scratch space for encoding frames */
+    private final ByteBuffer mDelta;
+    private final ByteBuffer mKey;
+    private final ByteBuffer mTerrainFrame;
+
+    /*================= Access =================*/
+    public int getNumSubscribers() {
+        return mSubscribers.size();
+    }
+
+    /*================= Operations =================*/
+    /** Adds a spectator. The first frame it gets is a keyframe.
+     *
+     * @param ringSize  how many frames the spectator can fall behind
+     */
+    public Subscriber subscribe(int ringSize) {
+        Subscriber sub = new Subscriber(ringSize);
+        synchronized (mMatch.getStateLock()) {
+            mSubscribers.add(sub);
+            // Don't make a late joiner wait for something to happen
+            if (mModel != null) {
+                encodeKeyframe();
+                if (sub.offer(mKey)) {
+                    sub.mNeedsKeyframe = false;
+                    sub.mTerrainSent = 0;
+                    sendTerrain(sub);
+                }
+            }
+        }
+        return sub;
+    }
+
+    public Subscriber subscribe() {
+        return subscribe(DEFAULT_RING_SIZE);
+    }
+
+    public void unsubscribe(Subscriber sub) {
+        mSubscribers.remove(sub);
+    }
+
+    /*================= Match.Observer =================*/
+    public void onMove(Match match, int playerId, int angle, int power,
+                       WeaponType weapon) {
+    }
+
+    public void onBallisticsFinished(Match match) {
+    }
+
+    public void onRoundStarted(Match match) {
+        startOver(match.getModel());
+    }
+
+    public void onTerrainChanged(Match match) {
+    }
+
+    public void onColumnsChanged(Match match, int first, int last) {
+        if (match.getModel() != mModel)
+            return;
+        int size = Terrain.CHUNK_SIZE;
+        int firstChunk = first / size;
+        int lastChunk = last / size;
+        for (int c = firstChunk; c <= lastChunk; c++) {
+            int base = c * size;
+            mDirtyFirst[c] = Math.min(mDirtyFirst[c],
+                                      Math.max(first, base) - base);
+            mDirtyLast[c] = Math.max(mDirtyLast[c],
+                                     Math.min(last, base + size - 1) - base);
+        }
+        mFirstDirtyChunk = Math.min(mFirstDirtyChunk, firstChunk);
+        mLastDirtyChunk = Math.max(mLastDirtyChunk, lastChunk);
+    }
+
+    public void onFrame(Match match, Projectile projectiles[],
+                        Explosion explosions[]) {
+        if (match.getModel() != mModel)
+            onRoundStarted(match);
+        boolean haveDelta = encodeDelta(projectiles, explosions);
+        boolean haveKey = false;
+        for (Subscriber sub : mSubscribers) {
+            if (sub.mNeedsKeyframe) {
+                if (! haveKey) {
+                    encodeKeyframe();
+                    haveKey = true;
+                }
+                if (sub.offer(mKey)) {
+                    sub.mNeedsKeyframe = false;
+                    sub.mTerrainSent = 0;
+                }
+                else if (haveDelta)
+                    sub.mNumDropped++;
+            }
+            else if (haveDelta) {
+                if (! sub.offer(mDelta)) {
+                    sub.mNumDropped++;
+                    sub.mNeedsKeyframe = true;
+                    continue;
+                }
+            }
+            if (! sub.mNeedsKeyframe)
+                sendTerrain(sub);
+        }
+    }
+
+    public void onCrashed(Match match, RuntimeException e) {
+    }
+
+    /** Sends a subscriber as much of the terrain as it hasn't seen yet.
+     *
+     * We always leave one slot free, so that a subscriber which isn't
+     * keeping up doesn't lose the next delta because of us.
+     */
+    private void sendTerrain(Subscriber sub) {
+        while ((sub.mTerrainSent < mWidth) &&
+               (sub.getFree() > 1)) {
+            encodeTerrain(sub.mTerrainSent);
+            sub.offer(mTerrainFrame);
+            sub.mTerrainSent += TERRAIN_FRAME_COLUMNS;
+        }
+    }
+
+    /*================= Encoding =================*/
+    /** Forgets what the subscribers have seen, so that they all get a
+     * keyframe and the terrain again */
+    private void startOver(Model model) {
+        resetShadow(model);
+        for (Subscriber sub : mSubscribers)
+            sub.mNeedsKeyframe = true;
+    }
+
+    private void resetShadow(Model model) {
+        mModel = model;
+        Terrain terrain = model.getTerrain();
+        mWidth = terrain.getWidth();
+        int numChunks = terrain.getNumChunks();
+        if ((mShadowChunks == null) || (mShadowChunks.length != numChunks)) {
+            mShadowChunks = new short[numChunks][];
+            mDirtyFirst = new int[numChunks];
+            mDirtyLast = new int[numChunks];
+        }
+        else {
+            Arrays.fill(mShadowChunks, null);
+        }
+        Arrays.fill(mDirtyFirst, Terrain.CHUNK_SIZE);
+        Arrays.fill(mDirtyLast, -1);
+        mFirstDirtyChunk = numChunks;
+        mLastDirtyChunk = -1;
+        Player players[] = model.getPlayers();
+        for (int i = 0; i < players.length; i++)
+            savePlayer(players[i], i);
+    }
+
+    private void savePlayer(Player p, int i) {
+        mShadowPlayers[4 * i] = p.getX();
+        mShadowPlayers[4 * i + 1] = p.getY();
+        mShadowPlayers[4 * i + 2] = p.getLife();
+        mShadowPlayers[4 * i + 3] = p.getAngleDeg();
+    }
+
+    private boolean playerChanged(Player p, int i) {
+        return ((mShadowPlayers[4 * i] != p.getX()) ||
+                (mShadowPlayers[4 * i + 1] != p.getY()) ||
+                (mShadowPlayers[4 * i + 2] != p.getLife()) ||
+                (mShadowPlayers[4 * i + 3] != p.getAngleDeg()));
+    }
+
+    /** Encodes the current state of the match into mKey */
+    private void encodeKeyframe() {
+        ByteBuffer b = mKey;
+        b.clear();
+        b.putShort((short)0).put(FRAME_KEY).putInt(mSeq);
+        b.put((byte)mModel.getCurPlayerId());
+        b.putShort((short)mModel.getWind());
+        b.put((byte)mModel.getBackground().ordinal());
+        b.put((byte)mModel.getForeground().ordinal());
+        b.putInt(mWidth);
+        Player players[] = mModel.getPlayers();
+        b.put((byte)players.length);
+        for (Player p : players) {
+            b.putInt(p.getX());
+            b.putShort((short)p.getY());
+            b.putShort((short)p.getLife());
+            b.put((byte)p.getAngleDeg());
+            b.put((byte)p.getBaseColor().ordinal());
+        }
+        b.putShort(0, (short)(b.position() - 2));
+        b.flip();
+    }
+
+    /** Encodes the terrain columns starting at 'start' into mTerrainFrame
+     */
+    private void encodeTerrain(int start) {
+        ByteBuffer b = mTerrainFrame;
+        b.clear();
+        b.putShort((short)0).put(FRAME_TERRAIN).putInt(mSeq);
+        int count = Math.min(TERRAIN_FRAME_COLUMNS, mWidth - start);
+        mModel.getTerrain().copyColumns(start, mColumns, count);
+        b.putInt(start);
+        b.putShort((short)count);
+        for (int i = 0; i < count; i++)
+            b.putShort(mColumns[i]);
+        b.putShort(0, (short)(b.position() - 2));
+        b.flip();
+    }
+
+    /** Encodes what changed since the last frame into mDelta.
+     *
+     * If it won't fit in one frame, we give up and start everyone over
+     * with a keyframe.
+     *
+     * @return  false if nothing changed, or if there was too much
+     */
+    private boolean encodeDelta(Projectile projectiles[],
+                                Explosion explosions[]) {
+        boolean changed = false;
+        ByteBuffer b = mDelta;
+        b.clear();
+        b.putShort((short)0).put(FRAME_DELTA).putInt(mSeq + 1);
+
+        int countPos = b.position();
+        int count = 0;
+        b.put((byte)0);
+        for (Projectile proj : projectiles) {
+            if (! proj.getInUse())
+                continue;
+            if (b.remaining() < PROJECTILE_SIZE)
+                return deltaOverflowed();
+            b.putInt((int)proj.getCurX());
+            b.putShort((short)proj.getCurY());
+            count++;
+        }
+        b.put(countPos, (byte)count);
+        changed |= (count > 0);
+
+        if (b.remaining() < 1)
+            return deltaOverflowed();
+        countPos = b.position();
+        count = 0;
+        b.put((byte)0);
+        for (Explosion expl : explosions) {
+            if (! expl.getInUse())
+                continue;
+            if (b.remaining() < EXPLOSION_SIZE)
+                return deltaOverflowed();
+            b.putInt(expl.getX());
+            b.putShort((short)expl.getY());
+            b.put((byte)expl.getCurExplosionSize());
+            count++;
+        }
+        b.put(countPos, (byte)count);
+        changed |= (count > 0);
+
+        if (b.remaining() < 1)
+            return deltaOverflowed();
+        countPos = b.position();
+        count = 0;
+        b.put((byte)0);
+        Player players[] = mModel.getPlayers();
+        for (int i = 0; i < players.length; i++) {
+            Player p = players[i];
+            if (! playerChanged(p, i))
+                continue;
+            if (b.remaining() < PLAYER_SIZE)
+                return deltaOverflowed();
+            savePlayer(p, i);
+            b.put((byte)i);
+            b.putInt(p.getX());
+            b.putShort((short)p.getY());
+            b.putShort((short)p.getLife());
+            b.put((byte)p.getAngleDeg());
+            count++;
+        }
+        b.put(countPos, (byte)count);
+        changed |= (count > 0);
+
+        if (b.remaining() < 1)
+            return deltaOverflowed();
+        countPos = b.position();
+        b.put((byte)0);
+        count = 0;
+        for (int c = mFirstDirtyChunk; c <= mLastDirtyChunk; c++) {
+            if (mDirtyLast[c] < 0)
+                continue;
+            int runs = encodeRuns(b, c, mDirtyFirst[c], mDirtyLast[c]);
+            // The count is only a byte, too
+            if ((runs < 0) || (count + runs > 255))
+                return deltaOverflowed();
+            count += runs;
+            mDirtyFirst[c] = Terrain.CHUNK_SIZE;
+            mDirtyLast[c] = -1;
+        }
+        mFirstDirtyChunk = mShadowChunks.length;
+        mLastDirtyChunk = -1;
+        b.put(countPos, (byte)count);
+        changed |= (count > 0);
+
+        if (! changed)
+            return false;
+        mSeq++;
+        b.putShort(0, (short)(b.position() - 2));
+        b.flip();
+        return true;
+    }
+
+    /** Called when a delta doesn't fit in a frame. The subscribers will
+     * have to start over from a keyframe. Since those don't depend on
+     * anything before them, it doesn't matter that the shadow is half
+     * updated; we throw it away.
+     *
+     * @return  false, for encodeDelta to return
+     */
+    private boolean deltaOverflowed() {
+        startOver(mModel);
+        return false;
+    }
+
+    /** Writes runs for the columns in [first, last] of chunk 'c' which
+     * are different from the shadow, and brings the shadow up to date.
+     * The first time a chunk changes, it has no shadow yet, so all of
+     * [first, last] is written.
+     *
+     * @return  the number of runs, or -1 if they didn't all fit in 'b'
+     */
+    private int encodeRuns(ByteBuffer b, int c, int first, int last) {
+        Terrain terrain = mModel.getTerrain();
+        int base = c * Terrain.CHUNK_SIZE;
+        short shadow[] = mShadowChunks[c];
+        boolean fresh = (shadow == null);
+        if (fresh) {
+            shadow = new short[Terrain.CHUNK_SIZE];
+            terrain.copyColumns(base, shadow, Terrain.CHUNK_SIZE);
+            mShadowChunks[c] = shadow;
+        }
+        short cur[] = mColumns;
+        terrain.copyColumns(base + first, cur, last - first + 1);
+
+        int count = 0;
+        int i = first;
+        while (i <= last) {
+            if ((! fresh) && (cur[i - first] == shadow[i])) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while ((i <= last) &&
+                   (fresh || (cur[i - first] != shadow[i])) &&
+                   (i - start < MAX_RUN)) {
+                i++;
+            }
+            if (b.remaining() < RUN_SIZE + (2 * (i - start)))
+                return -1;
+            b.putInt(base + start);
+            b.put((byte)(i - start));
+            for (int j = start; j < i; j++) {
+                shadow[j] = cur[j - first];
+                b.putShort(shadow[j]);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /*================= Lifecycle =================*/
+    /** Creates a stream for a match and starts watching it */
+    public SpectatorStream(Match match) {
+        mSubscribers = new CopyOnWriteArrayList < Subscriber >();
+        mMatch = match;
+        mModel = null;
+        mWidth = 0;
+        mShadowChunks = null;
+        mDirtyFirst = null;
+        mDirtyLast = null;
+        mColumns = new short[SCRATCH_COLUMNS];
+        mShadowPlayers = new int[4 * Model.MAX_PLAYERS];
+        mSeq = 0;
+        mDelta = ByteBuffer.allocate(MAX_FRAME_SIZE);
+        mKey = ByteBuffer.allocate(MAX_FRAME_SIZE);
+        mTerrainFrame = ByteBuffer.allocate(MAX_FRAME_SIZE);
+        synchronized (match.getStateLock()) {
+            resetShadow(match.getModel());
+            match.addObserver(this);
+        }
+    }
+}
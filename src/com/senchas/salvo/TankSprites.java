@@ -0,0 +1,176 @@
+package com.senchas.salvo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+/**
+ * Pre-rendered pictures of a tank body and aura.
+ *
+ * Instead of building paths and filling and stroking them every frame, we
+ * draw the shapes once, into ALPHA_8 bitmaps, and blit those. When an
+ * ALPHA_8 bitmap is drawn, the paint's color is used wherever the bitmap
+ * is opaque. So one set of masks serves every player, and the colors,
+ * including the alpha of a fading tank or a fading aura, are applied by
+ * the Paint at blit time. Damage, fading and aura changes never cause
+ * anything to be redrawn.
+ *
+ * The masks are made the first time they are needed, each with its own
+ * Canvas, and kept until clear() is called.
+ *
+ * Turret angles are whole degrees, so the sines and cosines come from a
+ * table.
+ *
+ * This class contains no locking. It is owned by the render thread.
+ */
+public class TankSprites {
+    /*================= Constants =================*/
+    /** Room around the body for the outline and antialiasing */
+    private static final int PAD = 2;
+
+    private static final int BODY_W = Player.PLAYER_X_SIZE + (2 * PAD);
+
+    private static final int BODY_H = Player.PLAYER_Y_SIZE + (2 * PAD);
+
+    /** Where the center of the tank is in the body sprite */
+    private static final int BODY_CX = BODY_W / 2;
+
+    private static final int BODY_CY = (Player.PLAYER_Y_SIZE / 2) + PAD;
+
+    /** cos and sin of each whole number of degrees the turret can point */
+    private static final float TURRET_COS[] =
+        new float[Player.MAX_TURRET_ANGLE + 1];
+
+    private static final float TURRET_SIN[] =
+        new float[Player.MAX_TURRET_ANGLE + 1];
+
+    static {
+        for (int d = 0; d <= Player.MAX_TURRET_ANGLE; d++) {
+            double rad = Math.toRadians(d);
+            TURRET_COS[d] = (float)Math.cos(rad);
+            TURRET_SIN[d] = (float)Math.sin(rad);
+        }
+    }
+
+    /*================= Static =================*/
+    public static float turretCos(int angleDeg) {
+        return TURRET_COS[angleDeg];
+    }
+
+    public static float turretSin(int angleDeg) {
+        return TURRET_SIN[angleDeg];
+    }
+
+    /*================= Data =================*/
+    private final int mAuraRadius;
+
+    /** The inside of the tank body, or null if we haven't made it yet */
+    private Bitmap mBodyMask;
+
+    /** The outline of the tank body */
+    private Bitmap mOutlineMask;
+
+    /** A filled circle */
+    private Bitmap mAuraMask;
+
+    /** Used to draw the masks */
+    private final Paint mPaint;
+
+    private final Path mPath;
+
+    /** Used to blit the masks. Its color is what they are drawn in. */
+    private final Paint mBlitPaint;
+
+    /*================= Operations =================*/
+    /** Draws a tank body, centered on (x, y) */
+    public void drawBody(Canvas canvas, int x, int y,
+                         int bodyColor, int outlineColor) {
+        if (mBodyMask == null)
+            createMasks();
+        mBlitPaint.setColor(bodyColor);
+        canvas.drawBitmap(mBodyMask, x - BODY_CX, y - BODY_CY, mBlitPaint);
+        mBlitPaint.setColor(outlineColor);
+        canvas.drawBitmap(mOutlineMask, x - BODY_CX, y - BODY_CY,
+                          mBlitPaint);
+    }
+
+    /** Draws an aura, centered on (x, y) */
+    public void drawAura(Canvas canvas, int x, int y, int auraColor) {
+        if (mAuraMask == null)
+            createMasks();
+        int half = mAuraRadius + 1;
+        mBlitPaint.setColor(auraColor);
+        canvas.drawBitmap(mAuraMask, x - half, y - half, mBlitPaint);
+    }
+
+    /** Throws away all of the sprites */
+    public void clear() {
+        if (mBodyMask != null) {
+            mBodyMask.recycle();
+            mOutlineMask.recycle();
+            mAuraMask.recycle();
+        }
+        mBodyMask = null;
+        mOutlineMask = null;
+        mAuraMask = null;
+    }
+
+    private void createMasks() {
+        mBodyMask = Bitmap.createBitmap(BODY_W, BODY_H,
+                                        Bitmap.Config.ALPHA_8);
+        mPaint.setStyle(Paint.Style.FILL);
+        renderBody(new Canvas(mBodyMask));
+
+        mOutlineMask = Bitmap.createBitmap(BODY_W, BODY_H,
+                                           Bitmap.Config.ALPHA_8);
+        mPaint.setStyle(Paint.Style.STROKE);
+        renderBody(new Canvas(mOutlineMask));
+
+        int size = (2 * mAuraRadius) + 2;
+        mAuraMask = Bitmap.createBitmap(size, size, Bitmap.Config.ALPHA_8);
+        mPaint.setStyle(Paint.Style.FILL);
+        new Canvas(mAuraMask).drawCircle(size / 2, size / 2,
+                                         mAuraRadius, mPaint);
+    }
+
+    /** Draws the body's shape with mPaint, which should be set to fill or
+     * to stroke */
+    private void renderBody(Canvas canvas) {
+        final int x = BODY_CX, y = BODY_CY;
+        final int sx = Player.PLAYER_X_SIZE;
+        final int sy = Player.PLAYER_Y_SIZE;
+        mPath.moveTo(x - (sx / 2), y);
+        mPath.lineTo(x - (sx / 4), y - (sy / 5.5f));
+        mPath.lineTo(x + (sx / 4), y - (sy / 5.5f));
+        mPath.lineTo(x + (sx / 2), y);
+        mPath.lineTo(x + ((sx * 3) / 10), y + (sy / 2));
+        mPath.lineTo(x - ((sx * 3) / 10), y + (sy / 2));
+        mPath.lineTo(x - (sx / 2), y);
+        canvas.drawPath(mPath, mPaint);
+        mPath.reset();
+
+        mPath.moveTo(x - (sx / 4), y - (sy / 5.5f));
+        mPath.lineTo(x - (sx / 4), y - (sy / 2f));
+        mPath.lineTo(x + (sx / 4), y - (sy / 2f));
+        mPath.lineTo(x + (sx / 4), y - (sy / 5.5f));
+        mPath.lineTo(x - (sx / 4), y - (sy / 5.5f));
+        canvas.drawPath(mPath, mPaint);
+        mPath.reset();
+    }
+
+    /*================= Lifecycle =================*/
+    public TankSprites(int auraRadius) {
+        mAuraRadius = auraRadius;
+        mBodyMask = null;
+        mOutlineMask = null;
+        mAuraMask = null;
+        mPaint = new Paint();
+        mPaint.setAntiAlias(true);
+        mPaint.setStrokeWidth(1);
+        mPaint.setColor(Color.WHITE);
+        mPath = new Path();
+        mBlitPaint = new Paint();
+    }
+}
@@ -2,6 +2,9 @@ package com.senchas.salvo;
 
 import android.os.Bundle;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Represents the game terrain.
  *
@@ -21,24 +24,61 @@ import android.os.Bundle;
  *        |_      _    _______   ___     ___ |
  *        |        ____             _____    |
  *  MAX_Y +----------------------------------+
- *        0                                MAX_X
+ *        0                                width
  *
- * X is measured from 0 to MAX_X. For each X value, there is an associated
- * height field value, measured in pixels.
+ * X is measured from 0 to getWidth(). For each X value, there is an
+ * associated height field value, measured in pixels.
 
  * The lowest point has Y = MAX_Y.
  * If a missile's Y coordinate is less than 0, it will not be visible
  * onscreen.
  *
+ * Chunks
+ * ------
+ * The world can be wider than the screen. MAX_X is the width of the screen,
+ * and also the width of the default world.
+ *
+ * The height field is stored in chunks of CHUNK_SIZE columns. A chunk is
+ * only filled in, by the ChunkSource, the first time somebody looks at it.
+ * So a huge world only costs memory and time for the parts of it that are
+ * actually used. Each chunk has its own TerrainIndex.
+ *
+ * Caves
+ * -----
+ * A height field can't have tunnels or overhangs. If enableCaves() is
+ * called, each chunk also gets a TerrainBitmap, which records every solid
+ * pixel. Explosions carve holes in the bitmap instead of pushing the
+ * column down, and projectiles and falling players look at the bitmap.
+ * The height field still holds the top surface of each column, so the
+ * code that only cares about the surface (like the AI) doesn't change.
+ *
+ * If the ChunkSource is also a ChunkStore, such as a MappedTerrainFile,
+ * changes are written back to it as they happen. Then the store holds the
+ * terrain, and we only keep a few chunks around, as a cache.
+ *
+ * Anyone who changes the terrain with setVal() must call columnsChanged()
+ * afterwards.
  */
 public class Terrain {
     /*================= Constants =================*/
-    /** The highest X coordinate */
+    /** The width of the screen, and of the default world */
     public static final int MAX_X = 480;
 
     /** The highest displayable Y coordinate */
     public static final int MAX_Y = 320;
 
+    /** The number of columns in each chunk */
+    public static final int CHUNK_SIZE = MAX_X;
+
+    /** The widest world we support */
+    public static final int MAX_WORLD_WIDTH = 100 * MAX_X;
+
+    /** The most chunks we keep loaded from a ChunkStore */
+    private static final int MAX_RESIDENT_CHUNKS = 8;
+
+    /** saveState() copies a ChunkStore to its path plus this */
+    private static final String SAVED_SUFFIX = ".saved";
+
     /** The space between the left wall and the leftmost player.
      *  Also the space between the right wall and the rightmost player.
      */
@@ -54,26 +94,242 @@ public class Terrain {
 
     public static final int TERRAIN_ANGLE_DELTA = 10;
 
+    /*================= Types =================*/
+    /** Fills in chunks of terrain the first time they are needed */
+    public interface ChunkSource {
+        /** Fills in 'out' (CHUNK_SIZE columns) with the heights for chunk
+         * 'index'. The result must depend only on the index, so that
+         * every peer in a network game gets the same terrain. */
+        public void loadChunk(int index, short out[]);
+
+        /** Returns an ID which can be used to recreate this source with
+         * TerrainFactory.getChunkSource() */
+        public int getSourceId();
+
+        /** Returns the seed this source was created with */
+        public long getSeed();
+    }
+
+    /** A ChunkSource which holds the terrain, edits and all */
+    public interface ChunkStore extends ChunkSource {
+        /** Writes columns [first, last] of chunk 'index' back to the
+         * store */
+        public void storeColumns(int index, short chunk[], int first,
+                                 int last);
+
+        /** Makes sure everything that has been stored is saved */
+        public void flush();
+
+        /** Returns the path the store can be reopened from */
+        public String getPath();
+
+        /** Copies everything that has been stored to 'dest' */
+        public void snapshot(File dest) throws IOException;
+    }
+
+    /** Hears about changes to the terrain */
+    public interface Listener {
+        /** Called by columnsChanged(), with the columns clipped to the
+         * board */
+        public void onColumnsChanged(Terrain terrain, int first, int last);
+    }
+
     /*================= Data =================*/
     public static class MyVars {
-        /** The playing field */
+        /** The width of the world. 0 means MAX_X. */
+        public int mWidth;
+
+        /** Recreates the ChunkSource. See ChunkSource.getSourceId() */
+        public int mSourceId;
+        public long mSeed;
+
+        /** The chunks which have been loaded */
+        public int mLoadedChunks[];
+
+        /** The contents of the loaded chunks, one after the other. If
+         * mLoadedChunks is null, this is chunk 0. */
         public short mBoard[];
+
+        /** If the terrain lives in a MappedTerrainFile, its path. Then
+         * mBoard is null, and the terrain as it was when the state was
+         * saved is in a copy of the file, at this path plus
+         * SAVED_SUFFIX. */
+        public String mStorePath;
+
+        /** If mStorePath is set, the chunks which have been edited */
+        public int mEditedChunks[];
+
+        /** True if the terrain has caves */
+        public boolean mCaves;
+
+        /** The chunks whose bitmaps were saved, and their bits, one after
+         * the other. Only edited chunks are saved; the others are just
+         * their height fields. */
+        public int mCaveChunks[];
+        public long mCaveBits[];
     }
-    private MyVars mV;
+
+    private final int mWidth;
+
+    /** The chunks, or null for chunks which haven't been loaded */
+    private final short mChunks[][];
+
+    /** Range queries over each chunk */
+    private final TerrainIndex mIndexes[];
+
+    /** True for chunks which have been changed since they were loaded */
+    private final boolean mEdited[];
+
+    /** Where unloaded chunks come from */
+    private final ChunkSource mSource;
+
+    /** The bitmap for each loaded chunk, or null if there are no caves */
+    private TerrainBitmap mBitmaps[];
+
+    /** mSource, if it is a ChunkStore. Otherwise null. */
+    private final ChunkStore mStore;
+
+    /** If mStore is set, the chunks we have loaded, oldest first. We
+     * forget the oldest one when we need room for another. */
+    private final int mResident[];
+    private int mNumResident;
+
+    /** Told about every call to columnsChanged(), or null */
+    private Listener mListener;
 
     /*================= Access =================*/
-    public short[] getBoard() {
-        return mV.mBoard;
+    /** Returns the width of the world */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getNumChunks() {
+        return mChunks.length;
+    }
+
+    /** Returns where the chunks come from */
+    public ChunkSource getChunkSource() {
+        return mSource;
+    }
+
+    /** Returns the path of the ChunkStore the terrain lives in, or null
+     * if it lives on the heap */
+    public String getStorePath() {
+        return (mStore == null) ? null : mStore.getPath();
+    }
+
+    /** Returns true if the terrain can have caves and overhangs */
+    public boolean hasCaves() {
+        return (mBitmaps != null);
+    }
+
+    /** Returns the height at x, which must be in [0, getWidth()).
+     * This is the top surface. If there are caves, there may be empty
+     * space further down. */
+    public short getVal(int x) {
+        return getChunk(x / CHUNK_SIZE)[x % CHUNK_SIZE];
     }
 
     public short safeGetVal(int x) {
-        short h[] = mV.mBoard;
         if (x < 0)
-            return h[0];
-        else if (x >= h.length)
-            return h[h.length - 1];
+            return getVal(0);
+        else if (x >= mWidth)
+            return getVal(mWidth - 1);
         else
-            return h[x];
+            return getVal(x);
+    }
+
+    /** Returns true if the pixel at (x, y) is solid. x must be in
+     * [0, getWidth()). */
+    public boolean isSolid(int x, int y) {
+        if (mBitmaps == null)
+            return (y >= getVal(x));
+        int c = x / CHUNK_SIZE;
+        return getBitmap(c).isSolid(x % CHUNK_SIZE, y);
+    }
+
+    /** Returns the first solid y in column x which is at or below y.
+     * That is where something at y would come to rest if it fell. */
+    public int getFirstSolidBelow(int x, int y) {
+        if (mBitmaps == null)
+            return Math.max(y, getVal(x));
+        int c = x / CHUNK_SIZE;
+        return getBitmap(c).getFirstSolid(x % CHUNK_SIZE, y);
+    }
+
+    /** Returns true if anything in column x between yTop and yBottom
+     * (inclusive) is solid. In a plain height field, everything below the
+     * surface is solid, so only yBottom matters. */
+    public boolean isSolidBetween(int x, int yTop, int yBottom) {
+        if (mBitmaps == null)
+            return (yBottom >= getVal(x));
+        int c = x / CHUNK_SIZE;
+        return getBitmap(c).anySolid(x % CHUNK_SIZE, yTop, yBottom);
+    }
+
+    /** Copies the bitmap for 'len' columns starting at column 'start'
+     * into 'out', starting at column 0. Only for terrain with caves. */
+    public void copyBitmap(int start, TerrainBitmap out, int len) {
+        int i = 0;
+        while (i < len) {
+            int x = start + i;
+            int c = x / CHUNK_SIZE;
+            int off = x % CHUNK_SIZE;
+            int n = Math.min(len - i, CHUNK_SIZE - off);
+            out.copyColumns(getBitmap(c), off, i, n);
+            i += n;
+        }
+    }
+
+    /** Copies 'len' heights starting at column 'start' into 'out' */
+    public void copyColumns(int start, short out[], int len) {
+        int i = 0;
+        while (i < len) {
+            int x = start + i;
+            int c = x / CHUNK_SIZE;
+            int off = x % CHUNK_SIZE;
+            int n = Math.min(len - i, CHUNK_SIZE - off);
+            System.arraycopy(getChunk(c), off, out, i, n);
+            i += n;
+        }
+    }
+
+    /** Returns the highest point (the smallest Y) in [a, b], inclusive.
+     * Both ends must be on the board. */
+    public int getHighestPoint(int a, int b) {
+        int ret = Short.MAX_VALUE;
+        for (int c = a / CHUNK_SIZE; c <= b / CHUNK_SIZE; c++) {
+            int base = c * CHUNK_SIZE;
+            ret = Math.min(ret, getIndex(c).getMin(
+                Math.max(a, base) - base,
+                Math.min(b, base + CHUNK_SIZE - 1) - base));
+        }
+        return ret;
+    }
+
+    /** Returns a Y which is at or above the highest point in [a, b],
+     * inclusive. This is cheaper than getHighestPoint, but less exact.
+     * Both ends must be on the board. */
+    public int getHighestPointBound(int a, int b) {
+        int ca = a / CHUNK_SIZE, cb = b / CHUNK_SIZE;
+        if (ca == cb) {
+            int base = ca * CHUNK_SIZE;
+            return getIndex(ca).getMinBound(a - base, b - base);
+        }
+        return getHighestPoint(a, b);
+    }
+
+    /** Returns the lowest point (the largest Y) in [a, b], inclusive.
+     * Both ends must be on the board. */
+    public int getLowestPoint(int a, int b) {
+        int ret = Short.MIN_VALUE;
+        for (int c = a / CHUNK_SIZE; c <= b / CHUNK_SIZE; c++) {
+            int base = c * CHUNK_SIZE;
+            ret = Math.max(ret, getIndex(c).getMax(
+                Math.max(a, base) - base,
+                Math.min(b, base + CHUNK_SIZE - 1) - base));
+        }
+        return ret;
     }
 
     /** Gets the average value of the samples between A and B, inclusive.
@@ -86,8 +342,18 @@ public class Terrain {
             throw new RuntimeException("getAverageValue: must have a <= b");
         }
         int acc = 0;
-        for (int i = a; i <= b; i++) {
-            acc += safeGetVal(i);
+        if (a < 0)
+            acc += (Math.min(b, -1) - a + 1) * getVal(0);
+        if (b >= mWidth)
+            acc += (b - Math.max(a, mWidth) + 1) * getVal(mWidth - 1);
+        int lo = Math.max(a, 0);
+        int hi = Math.min(b, mWidth - 1);
+        for (int c = lo / CHUNK_SIZE; (lo <= hi) && (c <= hi / CHUNK_SIZE);
+                 c++) {
+            int base = c * CHUNK_SIZE;
+            acc += getIndex(c).getSum(
+                Math.max(lo, base) - base,
+                Math.min(hi, base + CHUNK_SIZE - 1) - base);
         }
         float ret = acc;
         return ret / (b - a);
@@ -107,7 +373,7 @@ public class Terrain {
     public float getTerrainAngle(int x) {
         float y0 = getAverageValue(x - TERRAIN_ANGLE_DELTA, x);
         float y1 = getAverageValue(x, x + TERRAIN_ANGLE_DELTA);
-        return (float)Math.atan2(y1 - y0, TERRAIN_ANGLE_DELTA * 2);
+        return (float)StrictMath.atan2(y1 - y0, TERRAIN_ANGLE_DELTA * 2);
     }
 
     /** Given an x value, returns true if a tangent line drawn at that X
@@ -125,31 +391,334 @@ public class Terrain {
      * just decide arbitrarily.
      */
     public boolean hasDownwardTangent(int x) {
-        for (int n = 1; x + n < MAX_X; n++) {
-            int diff = safeGetVal(x) - safeGetVal(x + n);
-            if (diff > 0)
-                return false;
-            else if (diff < 0)
-                return true;
+        int y = safeGetVal(x);
+        int from = Math.max(x + 1, 0);
+        for (int c = from / CHUNK_SIZE; c < mChunks.length; c++) {
+            int base = c * CHUNK_SIZE;
+            int next = getIndex(c).findDifferent(
+                Math.max(from, base) - base, y);
+            if (next != -1)
+                return (y < getChunk(c)[next]);
         }
         return false; // corner case
     }
 
+    /** Folds the terrain into a checksum.
+     *
+     * Only chunks which have been edited count. Every peer generates the
+     * same untouched chunks, but they may not all have loaded the same
+     * ones, since that depends on what they have drawn.
+     */
+    public int updateChecksum(int h) {
+        h = (h ^ mWidth) * 0x01000193;
+        for (int c = 0; c < mChunks.length; c++) {
+            if (! mEdited[c])
+                continue;
+            h = (h ^ c) * 0x01000193;
+            short chunk[] = getChunk(c);
+            for (int i = 0; i < chunk.length; i++)
+                h = (h ^ chunk[i]) * 0x01000193;
+            if (mBitmaps != null) {
+                long bits[] = mBitmaps[c].getBits();
+                for (int i = 0; i < bits.length; i++) {
+                    h = (h ^ (int)bits[i]) * 0x01000193;
+                    h = (h ^ (int)(bits[i] >>> 32)) * 0x01000193;
+                }
+            }
+        }
+        return h;
+    }
+
+    private short[] getChunk(int c) {
+        short chunk[] = mChunks[c];
+        if (chunk == null)
+            chunk = loadChunk(c);
+        return chunk;
+    }
+
+    private TerrainBitmap getBitmap(int c) {
+        if (mChunks[c] == null)
+            loadChunk(c);
+        return mBitmaps[c];
+    }
+
+    private TerrainIndex getIndex(int c) {
+        if (mChunks[c] == null)
+            loadChunk(c);
+        return mIndexes[c];
+    }
+
     /*================= Operations =================*/
+    /** Changes the height at x, which must be in [0, getWidth()).
+     * Call columnsChanged() when you are done. */
+    public void setVal(int x, int val) {
+        int c = x / CHUNK_SIZE;
+        short chunk[] = getChunk(c);
+        chunk[x % CHUNK_SIZE] = (short)val;
+        // Write through right away, so that the chunk can be dropped at
+        // any time
+        if (mStore != null)
+            mStore.storeColumns(c, chunk, x % CHUNK_SIZE, x % CHUNK_SIZE);
+    }
+
+    /** Clears column x from yTop to yBottom, inclusive. Only for terrain
+     * with caves. Call columnsChanged() when you are done. */
+    public void carve(int x, int yTop, int yBottom) {
+        int c = x / CHUNK_SIZE;
+        TerrainBitmap bitmap = getBitmap(c);
+        bitmap.carve(x % CHUNK_SIZE, yTop, yBottom);
+        setVal(x, bitmap.getFirstSolid(x % CHUNK_SIZE, 0));
+    }
+
+    /** Turns on caves. Every column starts out solid below the surface.
+     * Call this before anything edits the terrain. */
+    public void enableCaves() {
+        if (mBitmaps != null)
+            return;
+        mBitmaps = new TerrainBitmap[mChunks.length];
+        for (int c = 0; c < mChunks.length; c++) {
+            if (mChunks[c] != null)
+                mBitmaps[c] = new TerrainBitmap(mChunks[c]);
+        }
+    }
+
+    /** Sets the listener. There can only be one at a time. */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /** Must be called after changing columns [first, last] */
+    public void columnsChanged(int first, int last) {
+        first = Math.max(first, 0);
+        last = Math.min(last, mWidth - 1);
+        if ((mListener != null) && (first <= last))
+            mListener.onColumnsChanged(this, first, last);
+        for (int c = first / CHUNK_SIZE; (first <= last) &&
+                 (c <= last / CHUNK_SIZE); c++) {
+            int base = c * CHUNK_SIZE;
+            getIndex(c).columnsChanged(
+                Math.max(first, base) - base,
+                Math.min(last, base + CHUNK_SIZE - 1) - base);
+            mEdited[c] = true;
+        }
+    }
+
+    private short[] loadChunk(int c) {
+        short chunk[] = null;
+        TerrainIndex index = null;
+        if ((mStore != null) && (mBitmaps == null)) {
+            // Everything has been written through, so we can just drop
+            // the oldest chunk and reuse its array. The store doesn't
+            // hold bitmaps, so we can't do this if there are caves.
+            // The index is built over the array, so it goes along with
+            // it.
+            if (mNumResident == mResident.length) {
+                int oldest = mResident[0];
+                chunk = mChunks[oldest];
+                index = mIndexes[oldest];
+                mChunks[oldest] = null;
+                mIndexes[oldest] = null;
+                System.arraycopy(mResident, 1, mResident, 0,
+                                 mNumResident - 1);
+                mNumResident--;
+            }
+            mResident[mNumResident++] = c;
+        }
+        if (chunk == null)
+            chunk = new short[CHUNK_SIZE];
+        mSource.loadChunk(c, chunk);
+        installChunk(c, chunk, index);
+        return chunk;
+    }
+
+    /** Puts 'chunk' in slot c. If 'index' is not null, it is an index
+     * over the same array, which we rebuild rather than making a new
+     * one. */
+    private void installChunk(int c, short chunk[], TerrainIndex index) {
+        mChunks[c] = chunk;
+        if (index == null)
+            index = new TerrainIndex(chunk);
+        else
+            index.rebuild();
+        mIndexes[c] = index;
+        if (mBitmaps != null)
+            mBitmaps[c] = new TerrainBitmap(chunk);
+    }
 
     /*================= Save State =================*/
     public void saveState(Bundle map) {
-        AutoPack.autoPack(map, AutoPack.EMPTY_STRING, mV);
+        MyVars v = new MyVars();
+        v.mWidth = mWidth;
+        v.mSourceId = mSource.getSourceId();
+        v.mSeed = mSource.getSeed();
+        if (mBitmaps != null)
+            saveCaves(v);
+        if (mStore != null) {
+            // The store already has everything. But the game goes on
+            // writing to it after this, so we save a copy of it as it is
+            // now, to match everything else in the Bundle.
+            //
+            // The copy has to be made before we return, on whatever
+            // thread is saving us, or it wouldn't match. That's cheap
+            // enough: even MAX_WORLD_WIDTH is under 96 KB of heights, and
+            // the kernel copies them with transferTo.
+            String path = mStore.getPath();
+            try {
+                mStore.snapshot(new File(path + SAVED_SUFFIX));
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Terrain.saveState: can't " +
+                    "copy " + path + ": " + e.toString());
+            }
+            v.mStorePath = path;
+            int numEdited = 0;
+            for (boolean e : mEdited) {
+                if (e)
+                    numEdited++;
+            }
+            v.mEditedChunks = new int[numEdited];
+            int i = 0;
+            for (int c = 0; c < mEdited.length; c++) {
+                if (mEdited[c])
+                    v.mEditedChunks[i++] = c;
+            }
+            AutoPack.autoPack(map, AutoPack.EMPTY_STRING, v);
+            return;
+        }
+        int numLoaded = 0;
+        for (short chunk[] : mChunks) {
+            if (chunk != null)
+                numLoaded++;
+        }
+        v.mLoadedChunks = new int[numLoaded];
+        v.mBoard = new short[numLoaded * CHUNK_SIZE];
+        int i = 0;
+        for (int c = 0; c < mChunks.length; c++) {
+            if (mChunks[c] == null)
+                continue;
+            v.mLoadedChunks[i] = c;
+            System.arraycopy(mChunks[c], 0, v.mBoard, i * CHUNK_SIZE,
+                             CHUNK_SIZE);
+            i++;
+        }
+        AutoPack.autoPack(map, AutoPack.EMPTY_STRING, v);
+    }
+
+    private void saveCaves(MyVars v) {
+        v.mCaves = true;
+        int numEdited = 0;
+        for (boolean e : mEdited) {
+            if (e)
+                numEdited++;
+        }
+        int words = CHUNK_SIZE * TerrainBitmap.WORDS_PER_COLUMN;
+        v.mCaveChunks = new int[numEdited];
+        v.mCaveBits = new long[numEdited * words];
+        int i = 0;
+        for (int c = 0; c < mEdited.length; c++) {
+            if (! mEdited[c])
+                continue;
+            v.mCaveChunks[i] = c;
+            System.arraycopy(getBitmap(c).getBits(), 0, v.mCaveBits,
+                             i * words, words);
+            i++;
+        }
     }
 
     /*================= Lifecycle =================*/
     public static Terrain fromBundle(Bundle map) {
         MyVars v = (MyVars) AutoPack.
             autoUnpack(map, AutoPack.EMPTY_STRING, MyVars.class);
-        return new Terrain(v);
+        ChunkSource source;
+        if (v.mStorePath != null) {
+            // Put back the copy that saveState made, then carry on with
+            // the original
+            File file = new File(v.mStorePath);
+            try {
+                MappedTerrainFile saved = MappedTerrainFile.open(
+                    new File(v.mStorePath + SAVED_SUFFIX));
+                try {
+                    saved.snapshot(file);
+                }
+                finally {
+                    saved.close();
+                }
+                source = MappedTerrainFile.open(file);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Terrain.fromBundle: can't " +
+                    "reopen " + v.mStorePath + ": " + e.toString());
+            }
+        }
+        else {
+            source = TerrainFactory.getChunkSource(v.mSourceId, v.mSeed);
+        }
+        return new Terrain(v, source);
+    }
+
+    /** Creates a terrain from saved data. Chunks which weren't saved come
+     * from 'source'. */
+    public Terrain(MyVars v, ChunkSource source) {
+        int width = (v.mWidth == 0) ? MAX_X : v.mWidth;
+        int numChunks = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        mWidth = numChunks * CHUNK_SIZE;
+        mChunks = new short[numChunks][];
+        mIndexes = new TerrainIndex[numChunks];
+        mEdited = new boolean[numChunks];
+        mBitmaps = null;
+        mSource = source;
+        if (source instanceof ChunkStore) {
+            mStore = (ChunkStore)source;
+            mResident = new int[MAX_RESIDENT_CHUNKS];
+        }
+        else {
+            mStore = null;
+            mResident = null;
+        }
+        mNumResident = 0;
+        mListener = null;
+        if (v.mEditedChunks != null) {
+            for (int c : v.mEditedChunks)
+                mEdited[c] = true;
+        }
+        if (v.mBoard != null) {
+            if (v.mLoadedChunks == null) {
+                installChunk(0, v.mBoard, null);
+            }
+            else {
+                for (int i = 0; i < v.mLoadedChunks.length; i++) {
+                    short chunk[] = new short[CHUNK_SIZE];
+                    System.arraycopy(v.mBoard, i * CHUNK_SIZE, chunk, 0,
+                                     CHUNK_SIZE);
+                    installChunk(v.mLoadedChunks[i], chunk, null);
+                }
+            }
+            // We don't know what was edited before the save, so count
+            // everything we have.
+            for (int c = 0; c < numChunks; c++)
+                mEdited[c] = (mChunks[c] != null);
+        }
+        if (v.mCaves) {
+            enableCaves();
+            if (v.mCaveChunks != null) {
+                int words = CHUNK_SIZE * TerrainBitmap.WORDS_PER_COLUMN;
+                for (int i = 0; i < v.mCaveChunks.length; i++) {
+                    getBitmap(v.mCaveChunks[i]).setBits(v.mCaveBits,
+                                                        i * words);
+                }
+            }
+        }
     }
 
-    public Terrain(MyVars v) {
-        mV = v;
-    };
+    /** Creates a terrain whose chunks all come from 'source'. The width
+     * is rounded up to a whole number of chunks. */
+    public Terrain(int width, ChunkSource source) {
+        this(newVars(width), source);
+    }
+
+    private static MyVars newVars(int width) {
+        MyVars v = new MyVars();
+        v.mWidth = width;
+        return v;
+    }
 }
@@ -0,0 +1,170 @@
+package com.senchas.salvo;
+
+/**
+ * A chunk of terrain stored as one bit per pixel.
+ *
+ * The normal height field can only say where the ground starts in each
+ * column; everything below that is solid. That can't describe a tunnel or
+ * an overhang. A TerrainBitmap can. Each column is MAX_Y bits, packed into
+ * WORDS_PER_COLUMN longs. Bit (y % 64) of word (y / 64) is set if the pixel
+ * at y is solid.
+ *
+ * Each column also has a summary: bit w of mNonEmpty[x] is set if word w of
+ * the column has any solid pixels. So finding the first solid pixel at or
+ * below some y looks at the summary, then at one word.
+ *
+ * Carving a span out of a column clears whole words at a time, so a big
+ * crater costs about the same as a small one.
+ *
+ * Y increases downwards, as usual. Anything at or below MAX_Y counts as
+ * solid, and anything above 0 counts as empty.
+ *
+ * This class contains no locking.
+ */
+public class TerrainBitmap {
+    /*================= Constants =================*/
+    public static final int WORDS_PER_COLUMN = (Terrain.MAX_Y + 63) >> 6;
+
+    /*================= Data =================*/
+    private final long mBits[];
+
+    private final byte mNonEmpty[];
+
+    /*================= Access =================*/
+    /** Returns true if the pixel at (x, y) is solid */
+    public boolean isSolid(int x, int y) {
+        if (y < 0)
+            return false;
+        if (y >= Terrain.MAX_Y)
+            return true;
+        return (mBits[(x * WORDS_PER_COLUMN) + (y >> 6)] &
+                (1L << (y & 63))) != 0;
+    }
+
+    /** Returns the first solid y in column x which is at or below y.
+     * Returns MAX_Y if there isn't one. */
+    public int getFirstSolid(int x, int y) {
+        if (y < 0)
+            y = 0;
+        if (y >= Terrain.MAX_Y)
+            return y;
+        int base = x * WORDS_PER_COLUMN;
+        int w = y >> 6;
+        long word = mBits[base + w] & (-1L << (y & 63));
+        if (word != 0)
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        int rest = mNonEmpty[x] & (-1 << (w + 1));
+        if (rest == 0)
+            return Terrain.MAX_Y;
+        w = Integer.numberOfTrailingZeros(rest);
+        return (w << 6) + Long.numberOfTrailingZeros(mBits[base + w]);
+    }
+
+    /** Returns the first empty y in column x which is at or below y.
+     * Returns MAX_Y if there isn't one. */
+    public int getFirstEmpty(int x, int y) {
+        if (y < 0)
+            return y;
+        if (y >= Terrain.MAX_Y)
+            return Terrain.MAX_Y;
+        int base = x * WORDS_PER_COLUMN;
+        for (int w = y >> 6; w < WORDS_PER_COLUMN; w++) {
+            long word = ~mBits[base + w];
+            if (w == (y >> 6))
+                word &= (-1L << (y & 63));
+            if (word != 0) {
+                int ret = (w << 6) + Long.numberOfTrailingZeros(word);
+                return Math.min(ret, Terrain.MAX_Y);
+            }
+        }
+        return Terrain.MAX_Y;
+    }
+
+    /** Returns true if any pixel in column x between yTop and yBottom
+     * (inclusive) is solid */
+    public boolean anySolid(int x, int yTop, int yBottom) {
+        if (yTop > yBottom)
+            return false;
+        return (getFirstSolid(x, yTop) <= yBottom);
+    }
+
+    /** Returns the bits, for saving */
+    public long[] getBits() {
+        return mBits;
+    }
+
+    /*================= Operations =================*/
+    /** Makes column x solid from height h down, and empty above */
+    public void fillColumn(int x, int h) {
+        int base = x * WORDS_PER_COLUMN;
+        for (int w = 0; w < WORDS_PER_COLUMN; w++)
+            mBits[base + w] = 0;
+        setSpan(x, Math.max(h, 0), Terrain.MAX_Y - 1, true);
+    }
+
+    /** Clears the pixels in column x from yTop to yBottom, inclusive */
+    public void carve(int x, int yTop, int yBottom) {
+        setSpan(x, Math.max(yTop, 0),
+                Math.min(yBottom, Terrain.MAX_Y - 1), false);
+    }
+
+    /** Copies columns [srcX, srcX + len) of src to columns
+     * [x, x + len) of this bitmap */
+    public void copyColumns(TerrainBitmap src, int srcX, int x, int len) {
+        System.arraycopy(src.mBits, srcX * WORDS_PER_COLUMN,
+                         mBits, x * WORDS_PER_COLUMN,
+                         len * WORDS_PER_COLUMN);
+        System.arraycopy(src.mNonEmpty, srcX, mNonEmpty, x, len);
+    }
+
+    /** Replaces all of the bits */
+    public void setBits(long bits[], int off) {
+        System.arraycopy(bits, off, mBits, 0, mBits.length);
+        for (int x = 0; x < mNonEmpty.length; x++)
+            updateSummary(x);
+    }
+
+    private void setSpan(int x, int yTop, int yBottom, boolean solid) {
+        if (yTop > yBottom)
+            return;
+        int base = x * WORDS_PER_COLUMN;
+        int wTop = yTop >> 6, wBottom = yBottom >> 6;
+        for (int w = wTop; w <= wBottom; w++) {
+            long mask = -1L;
+            if (w == wTop)
+                mask &= (-1L << (yTop & 63));
+            if (w == wBottom)
+                mask &= (-1L >>> (63 - (yBottom & 63)));
+            if (solid)
+                mBits[base + w] |= mask;
+            else
+                mBits[base + w] &= ~mask;
+        }
+        updateSummary(x);
+    }
+
+    private void updateSummary(int x) {
+        int base = x * WORDS_PER_COLUMN;
+        int s = 0;
+        for (int w = 0; w < WORDS_PER_COLUMN; w++) {
+            if (mBits[base + w] != 0)
+                s |= (1 << w);
+        }
+        mNonEmpty[x] = (byte)s;
+    }
+
+    /*================= Lifecycle =================*/
+    /** Creates an empty bitmap 'width' columns wide */
+    public TerrainBitmap(int width) {
+        mBits = new long[width * WORDS_PER_COLUMN];
+        mNonEmpty = new byte[width];
+    }
+
+    /** Creates a bitmap for a height field. Everything below the surface
+     * is solid. */
+    public TerrainBitmap(short heights[]) {
+        this(heights.length);
+        for (int x = 0; x < heights.length; x++)
+            fillColumn(x, heights[x]);
+    }
+}
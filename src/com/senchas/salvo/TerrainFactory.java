@@ -1,5 +1,11 @@
 package com.senchas.salvo;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import android.util.Log;
+
 /**
  * Creates a Terrain
  *
@@ -11,7 +17,9 @@ public enum TerrainFactory {
     Flat(new FlatStrat()),
     Jagged(new JaggedStrat()),
     Hilly(new HillyStrat()),
-    Rolling(new RollingStrat());
+    Rolling(new RollingStrat()),
+    Noise(new NoiseStrat()),
+    Fractal(new FractalStrat());
 
     /*================= Static =================*/
     /** Return a random elevation
@@ -19,58 +27,105 @@ public enum TerrainFactory {
      * @param bot    Minimum percentage from the bottom
      * @param top    Maximum percentage from the bottom
      */
-    private static short randElevation(float bot, float top) {
-        int rand = Util.mRandom.nextInt((int)(Terrain.MAX_Y * (top - bot)));
+    private static short randElevation(Random random,
+                                       float bot, float top) {
+        int rand = random.nextInt((int)(Terrain.MAX_Y * (top - bot)));
         int midRand = (int)(rand + (bot * Terrain.MAX_Y));
         return (short)(Terrain.MAX_Y - midRand);
     }
 
     /*================= Types =================*/
     private interface TerrainStrategy {
-        public abstract Terrain toTerrain();
+        /** Fills in one chunk (Terrain.CHUNK_SIZE columns) of terrain */
+        public abstract void fillChunk(Random random, short h[]);
+    }
+
+    /** A strategy where each column depends only on the seed and the
+     * column's x coordinate.
+     *
+     * These don't need their chunks stitched together, and any range of
+     * columns can be generated on its own. */
+    private interface ColumnStrategy extends TerrainStrategy {
+        /** Fills in out[off, off + len) with columns
+         * [startX, startX + len) of the world with the given seed */
+        public abstract void fillColumns(long seed, int startX,
+                                         short out[], int off, int len);
+    }
+
+    /** A ColumnStrategy which erodes whatever shape it generates.
+     *
+     * Erosion has to see the neighbors of each column. So we generate
+     * ERODE_PASSES extra columns on either side of the range, erode the
+     * lot, and keep the middle. Each column still only depends on its
+     * seed and its x.
+     */
+    private static abstract class ErodedStrat implements ColumnStrategy {
+        /*================= Constants =================*/
+        private static final int ERODE_PASSES = 8;
+
+        private static final int TALUS = 4;
+
+        /*================= Operations =================*/
+        /** Returns the height of column x, before erosion */
+        protected abstract int getRawHeight(long seed, int x);
+
+        public void fillChunk(Random random, short h[]) {
+            fillColumns(random.nextLong(), 0, h, 0, h.length);
+        }
+
+        public void fillColumns(long seed, int startX,
+                                short out[], int off, int len) {
+            int n = len + (2 * ERODE_PASSES);
+            short raw[] = new short[n];
+            short tmp[] = new short[n];
+            for (int i = 0; i < n; i++)
+                raw[i] = (short)getRawHeight(seed, startX - ERODE_PASSES + i);
+            ColumnNoise.erode(raw, tmp, n, ERODE_PASSES, TALUS);
+            System.arraycopy(raw, ERODE_PASSES, out, off, len);
+        }
+    }
+
+    public static class NoiseStrat extends ErodedStrat {
+        protected int getRawHeight(long seed, int x) {
+            return ColumnNoise.valueNoise(seed, x, 8, 6,
+                                          (Terrain.MAX_Y * 2) / 5);
+        }
+    }
+
+    public static class FractalStrat extends ErodedStrat {
+        protected int getRawHeight(long seed, int x) {
+            return ColumnNoise.midpoint(seed, x, 8,
+                                        Terrain.MAX_Y / 3, 10);
+        }
     }
 
     public static class TriangularStrat implements TerrainStrategy {
-        public Terrain toTerrain() {
-            short h[] = new short[Terrain.MAX_X];
+        public void fillChunk(Random random, short h[]) {
             for (int i = 0; i < Terrain.MAX_X; i++) {
                 h[i] = (short)((Terrain.MAX_Y * i) / Terrain.MAX_X);
             }
-            Terrain.MyVars v = new Terrain.MyVars();
-            v.mBoard = h;
-            return new Terrain(v);
         }
     }
 
     public static class FlatStrat implements TerrainStrategy {
-        public Terrain toTerrain() {
-            short[] h = new short[Terrain.MAX_X];
-            short e = randElevation(0.4f, 0.6f);
+        public void fillChunk(Random random, short h[]) {
+            short e = randElevation(random, 0.4f, 0.6f);
             for (int i = 0; i < Terrain.MAX_X; i++)
                 h[i] = e;
-            Terrain.MyVars v = new Terrain.MyVars();
-            v.mBoard = h;
-            return new Terrain(v);
         }
     }
 
     public static class JaggedStrat implements TerrainStrategy {
-        public Terrain toTerrain() {
-            short[] h = getRandomHeights();
-            h = movingWindow(h, 3);
-            Terrain.MyVars v = new Terrain.MyVars();
-            v.mBoard = h;
-            return new Terrain(v);
+        public void fillChunk(Random random, short h[]) {
+            short[] r = getRandomHeights(random);
+            System.arraycopy(movingWindow(r, 3), 0, h, 0, h.length);
         }
     }
 
     public static class HillyStrat implements TerrainStrategy {
-        public Terrain toTerrain() {
-            short[] h = getRandomHeights();
-            h = movingWindow(h, 10);
-            Terrain.MyVars v = new Terrain.MyVars();
-            v.mBoard = h;
-            return new Terrain(v);
+        public void fillChunk(Random random, short h[]) {
+            short[] r = getRandomHeights(random);
+            System.arraycopy(movingWindow(r, 10), 0, h, 0, h.length);
         }
     }
 
@@ -138,13 +193,18 @@ public enum TerrainFactory {
         }
 
         /** Finds the spline which includes x.
-         *  This could be optimized a bit more through binary search or
-         *  something. */
+         *  The splines are evenly spaced, so we can work out which one it
+         *  is. Rounding might put us one off, so we check the neighbors
+         *  too. */
         private Spline getSpline(int x) {
-            for (Spline spline: mSplines) {
-                float sx = spline.getX();
+            int guess = (int)Math.floor((x - mSplines[0].getX()) /
+                                        splineXSize());
+            for (int i = guess - 1; i <= guess + 1; i++) {
+                if ((i < 0) || (i >= mSplines.length))
+                    continue;
+                float sx = mSplines[i].getX();
                 if ((x >= sx) && (x < (sx + splineXSize())))
-                    return spline;
+                    return mSplines[i];
             }
             throw new RuntimeException("getStartingSpline: can't find a " +
                 "spline which includes x = " + x);
@@ -180,40 +240,117 @@ public enum TerrainFactory {
     }
 
     public static class RollingStrat implements TerrainStrategy {
-        public Terrain toTerrain() {
-            short[] h = new short[Terrain.MAX_X];
+        public void fillChunk(Random random, short h[]) {
             short[] controlPoints = new short[5];
-            controlPoints[0] = randElevation(0f, 1f);
+            controlPoints[0] = randElevation(random, 0f, 1f);
             for (int i = 0; i < controlPoints.length - 1; i++)
-                controlPoints[i] = randElevation(0.1f, 0.8f);
-            controlPoints[controlPoints.length - 1] = randElevation(0f, 1f);
+                controlPoints[i] = randElevation(random, 0.1f, 0.8f);
+            controlPoints[controlPoints.length - 1] =
+                randElevation(random, 0f, 1f);
 
             SplineSet splines = new SplineSet(Terrain.MAX_X, controlPoints);
             for (int i = 0; i < h.length; i++)
                 h[i] = splines.getVal(i);
-            Terrain.MyVars v = new Terrain.MyVars();
-            v.mBoard = h;
-            return new Terrain(v);
+        }
+    }
+
+    /** Generates the chunks of a world which is wider than the screen.
+     *
+     * Each chunk gets its own Random, seeded from the world's seed and the
+     * chunk's index, so chunks can be generated in any order. The height
+     * at each boundary between chunks is picked the same way, and each
+     * chunk is tilted to meet the boundaries on either side of it. That
+     * way there are no cliffs where the chunks join.
+     *
+     * A ColumnStrategy doesn't need any of that. Its columns already line
+     * up, so we just ask it for the right range.
+     *
+     * loadChunk may be called from several threads at once.
+     */
+    private static class ChunkGenerator implements Terrain.ChunkSource {
+        /*================= Constants =================*/
+        private static final long EDGE_SALT = 0x5deece66dL;
+
+        /*================= Data =================*/
+        private final TerrainFactory mFactory;
+
+        private final long mSeed;
+
+        /*================= Access =================*/
+        public int getSourceId() {
+            return mFactory.ordinal();
+        }
+
+        public long getSeed() {
+            return mSeed;
+        }
+
+        /*================= Operations =================*/
+        public void loadChunk(int index, short out[]) {
+            if (mFactory.mStrat instanceof ColumnStrategy) {
+                ((ColumnStrategy)mFactory.mStrat).fillColumns(mSeed,
+                    index * Terrain.CHUNK_SIZE, out, 0, out.length);
+                return;
+            }
+            Random random = new Random(mixSeed(mSeed, index));
+            mFactory.mStrat.fillChunk(random, out);
+
+            int n = out.length;
+            int dl = getEdgeHeight(index) - out[0];
+            int dr = getEdgeHeight(index + 1) - out[n - 1];
+            for (int i = 0; i < n; i++) {
+                int y = out[i] + dl + (((dr - dl) * i) / (n - 1));
+                out[i] = (short)Math.max(0, Math.min(Terrain.MAX_Y, y));
+            }
+        }
+
+        /** Returns the height of the terrain at the left edge of chunk
+         * 'index' */
+        private short getEdgeHeight(int index) {
+            Random random = new Random(mixSeed(mSeed ^ EDGE_SALT, index));
+            return randElevation(random, 0.2f, 0.7f);
+        }
+
+        /*================= Lifecycle =================*/
+        public ChunkGenerator(TerrainFactory factory, long seed) {
+            mFactory = factory;
+            mSeed = seed;
         }
     }
 
     /*================= Utility =================*/
-    private static short[] getRandomHeights() {
+    /** Combines a seed and an index into a new seed */
+    private static long mixSeed(long seed, int index) {
+        long z = seed + ((index + 1) * 0x9e3779b97f4a7c15L);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static short[] getRandomHeights(Random random) {
         short[] h = new short[Terrain.MAX_X];
         for (int i = 0; i < Terrain.MAX_X; i++) {
-            h[i] = (short)Util.mRandom.nextInt(Terrain.MAX_Y);
+            h[i] = (short)random.nextInt(Terrain.MAX_Y);
         }
         return h;
     }
 
+    /** Averages each height with the windowSize - 1 heights after it,
+     * wrapping around at the end.
+     *
+     * We keep a running sum, adding the height that comes into the window
+     * and taking away the one that leaves, so the window size doesn't
+     * matter. The sum is an int; a short would overflow for big windows.
+     */
     private static short[] movingWindow(short[] input, int windowSize) {
         short[] h = new short[input.length];
+        int acc = 0;
+        for (int j = 0; j < windowSize; ++j)
+            acc += input[j % Terrain.MAX_X];
         for (int i = 0; i < Terrain.MAX_X; i++) {
-            short acc = 0;
-            for (int j = 0; j < windowSize; ++j) {
-                acc += input[(i + j) % Terrain.MAX_X];
-            }
             h[i] = (short)(acc / windowSize);
+            acc -= input[i];
+            acc += input[(i + windowSize) % Terrain.MAX_X];
         }
         return h;
     }
@@ -222,8 +359,65 @@ public enum TerrainFactory {
     private final TerrainStrategy mStrat;
 
     /*================= Access =================*/
-    public Terrain createTerrain() {
-        return mStrat.toTerrain();
+    /** Creates a terrain which is one screen wide */
+    public Terrain createTerrain(Random random) {
+        return createTerrain(random, Terrain.MAX_X);
+    }
+
+    /** Creates a terrain which is 'width' columns wide.
+     *
+     * A one-screen terrain is generated right away, from 'random'. The
+     * chunks of a wider terrain are generated when they are first needed.
+     */
+    public Terrain createTerrain(Random random, int width) {
+        if (width <= Terrain.MAX_X) {
+            short h[] = new short[Terrain.MAX_X];
+            mStrat.fillChunk(random, h);
+            Terrain.MyVars v = new Terrain.MyVars();
+            v.mWidth = Terrain.MAX_X;
+            v.mBoard = h;
+            return new Terrain(v, new ChunkGenerator(this, 0));
+        }
+        return new Terrain(width, new ChunkGenerator(this, random.nextLong()));
+    }
+
+    /** Pre-generates a terrain which is 'width' columns wide into 'file',
+     * and returns a terrain backed by that file.
+     *
+     * Use this for maps too big to keep on the heap. Only a few chunks are
+     * kept in memory, and edits go straight to the file.
+     *
+     * This takes as much from 'random' as createTerrain does for a wide
+     * world, and makes the same terrain.
+     */
+    public Terrain createMappedTerrain(Random random, int width, File file) {
+        return createMappedTerrain(new ChunkGenerator(this,
+                                        random.nextLong()), width, file);
+    }
+
+    /** Pre-generates the terrain that 'source' makes into 'file', and
+     * returns a terrain backed by that file.
+     *
+     * If the file can't be written, the terrain is kept on the heap
+     * instead. It is the same terrain either way.
+     */
+    public static Terrain createMappedTerrain(Terrain.ChunkSource source,
+                                              int width, File file) {
+        try {
+            MappedTerrainFile store =
+                MappedTerrainFile.create(file, source, width);
+            return new Terrain(store.getWidth(), store);
+        }
+        catch (IOException e) {
+            Log.w("TerrainFactory", "can't create " + file + ": " +
+                  e.toString());
+            return new Terrain(width, source);
+        }
+    }
+
+    /** Recreates the ChunkSource with the given ID and seed */
+    public static Terrain.ChunkSource getChunkSource(int id, long seed) {
+        return new ChunkGenerator(values()[id], seed);
     }
 
     public String toString() {
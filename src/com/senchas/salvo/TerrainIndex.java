@@ -0,0 +1,191 @@
+package com.senchas.salvo;
+
+/**
+ * Answers range queries about the terrain height field.
+ *
+ * The index keeps two structures over the board:
+ *
+ * - A segment tree holding the minimum and maximum of every
+ *   power-of-two-aligned range of columns. This gives the min or max over
+ *   any range in O(log n), and finds the next column which differs from a
+ *   given height in O(log n).
+ *
+ * - The levels of the segment tree also form a mip-map style pyramid.
+ *   Level k holds the min and max of each aligned block of 2^k columns.
+ *   Any range of columns fits in at most two adjacent blocks at some level,
+ *   which gives a conservative bound on its min in O(1). That's good enough
+ *   for a broad phase test.
+ *
+ * - Prefix sums, which give the sum over any range in O(1). After an edit,
+ *   the prefix sums to the right of the leftmost changed column are stale.
+ *   They are patched up lazily, the next time somebody asks for a sum that
+ *   needs them.
+ *
+ * Whoever changes the board must call columnsChanged(). Updating k columns
+ * costs O(k log n).
+ *
+ * Remember that Y increases downwards. So getMin() returns the highest
+ * point of the terrain, and getMax() the lowest.
+ *
+ * This class contains no locking.
+ */
+public class TerrainIndex {
+    /*================= Data =================*/
+    /** The board we are indexing */
+    private final short mBoard[];
+
+    /** The number of leaves in the segment tree. A power of two. */
+    private final int mLeaves;
+
+    /** mMin[node] is the smallest height under node. The root is node 1.
+     * The children of node i are 2i and 2i+1. The leaves start at
+     * mLeaves. */
+    private final short mMin[];
+
+    /** mMax[node] is the largest height under node */
+    private final short mMax[];
+
+    /** mPrefix[i] is the sum of the first i columns */
+    private final int mPrefix[];
+
+    /** mPrefix is valid up to and including this index */
+    private int mPrefixValid;
+
+    /*================= Access =================*/
+    /** Returns the smallest height in [a, b]. Both ends must be on the
+     * board. */
+    public int getMin(int a, int b) {
+        int ret = Short.MAX_VALUE;
+        for (int lo = a + mLeaves, hi = b + mLeaves + 1; lo < hi;
+                 lo >>= 1, hi >>= 1) {
+            if ((lo & 1) != 0)
+                ret = Math.min(ret, mMin[lo++]);
+            if ((hi & 1) != 0)
+                ret = Math.min(ret, mMin[--hi]);
+        }
+        return ret;
+    }
+
+    /** Returns a value which is no bigger than the smallest height in
+     * [a, b], in O(1). Both ends must be on the board.
+     *
+     * We find the pyramid level whose blocks are big enough that [a, b]
+     * spans at most two of them, and take the min of those blocks. */
+    public int getMinBound(int a, int b) {
+        int level = 32 - Integer.numberOfLeadingZeros(b - a);
+        short l = mMin[(mLeaves + a) >> level];
+        short r = mMin[(mLeaves + b) >> level];
+        return (l < r) ? l : r;
+    }
+
+    /** Returns the largest height in [a, b]. Both ends must be on the
+     * board. */
+    public int getMax(int a, int b) {
+        int ret = Short.MIN_VALUE;
+        for (int lo = a + mLeaves, hi = b + mLeaves + 1; lo < hi;
+                 lo >>= 1, hi >>= 1) {
+            if ((lo & 1) != 0)
+                ret = Math.max(ret, mMax[lo++]);
+            if ((hi & 1) != 0)
+                ret = Math.max(ret, mMax[--hi]);
+        }
+        return ret;
+    }
+
+    /** Returns the sum of the heights in [a, b]. Both ends must be on the
+     * board. */
+    public int getSum(int a, int b) {
+        if (mPrefixValid <= b + 1) {
+            for (int i = mPrefixValid; i <= b; i++)
+                mPrefix[i + 1] = mPrefix[i] + mBoard[i];
+            mPrefixValid = b + 1;
+        }
+        return mPrefix[b + 1] - mPrefix[a];
+    }
+
+    /** Returns the first column at or after 'from' whose height isn't
+     * 'height', or -1 if there is no such column. */
+    public int findDifferent(int from, int height) {
+        if (from >= mBoard.length)
+            return -1;
+        return findDifferent(1, 0, mLeaves, from, height);
+    }
+
+    private int findDifferent(int node, int lo, int hi, int from,
+                              int height) {
+        if ((hi <= from) || (lo >= mBoard.length))
+            return -1;
+        if ((mMin[node] == height) && (mMax[node] == height))
+            return -1;
+        if (hi - lo == 1)
+            return lo;
+        int mid = (lo + hi) >> 1;
+        int ret = findDifferent(2 * node, lo, mid, from, height);
+        if (ret != -1)
+            return ret;
+        return findDifferent(2 * node + 1, mid, hi, from, height);
+    }
+
+    /*================= Operations =================*/
+    /** Updates the index after columns [first, last] of the board have
+     * changed. */
+    public void columnsChanged(int first, int last) {
+        first = Math.max(first, 0);
+        last = Math.min(last, mBoard.length - 1);
+        if (first > last)
+            return;
+        for (int i = first; i <= last; i++) {
+            mMin[mLeaves + i] = mBoard[i];
+            mMax[mLeaves + i] = mBoard[i];
+        }
+        // Walk up the tree, one level at a time
+        int lo = (mLeaves + first) >> 1;
+        int hi = (mLeaves + last) >> 1;
+        while (lo >= 1) {
+            for (int node = lo; node <= hi; node++)
+                pull(node);
+            lo >>= 1;
+            hi >>= 1;
+        }
+        if (first < mPrefixValid)
+            mPrefixValid = first;
+    }
+
+    /** Recomputes the whole index */
+    public void rebuild() {
+        for (int i = 0; i < mLeaves; i++) {
+            if (i < mBoard.length) {
+                mMin[mLeaves + i] = mBoard[i];
+                mMax[mLeaves + i] = mBoard[i];
+            }
+            else {
+                mMin[mLeaves + i] = Short.MAX_VALUE;
+                mMax[mLeaves + i] = Short.MIN_VALUE;
+            }
+        }
+        for (int node = mLeaves - 1; node >= 1; node--)
+            pull(node);
+        mPrefixValid = 0;
+    }
+
+    private void pull(int node) {
+        short l = mMin[2 * node], r = mMin[2 * node + 1];
+        mMin[node] = (l < r) ? l : r;
+        l = mMax[2 * node];
+        r = mMax[2 * node + 1];
+        mMax[node] = (l > r) ? l : r;
+    }
+
+    /*================= Lifecycle =================*/
+    public TerrainIndex(short board[]) {
+        mBoard = board;
+        int leaves = 1;
+        while (leaves < board.length)
+            leaves <<= 1;
+        mLeaves = leaves;
+        mMin = new short[2 * leaves];
+        mMax = new short[2 * leaves];
+        mPrefix = new int[board.length + 1];
+        rebuild();
+    }
+}
@@ -0,0 +1,124 @@
+package com.senchas.salvo;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Generates many chunks of terrain at once, spread over all of the cores.
+ * Other terrain work that splits up nicely can use runAll().
+ *
+ * Each chunk only depends on the ChunkSource and the chunk's index, so a
+ * range of chunks can be split up any way we like and the answer is the
+ * same. We cut the range into one piece per core, hand all but the last
+ * piece to a shared thread pool, do the last piece on the calling thread,
+ * and wait for the rest.
+ *
+ * A range smaller than MIN_CHUNKS_PER_TASK per core isn't worth the
+ * trouble, and is generated on the calling thread.
+ *
+ * The pool is created the first time it's needed, and its threads are
+ * daemons, so they never keep the process alive.
+ */
+public class TerrainPipeline {
+    /*================= Constants =================*/
+    private static final int MIN_CHUNKS_PER_TASK = 2;
+
+    /*================= Static =================*/
+    private static ExecutorService sPool;
+
+    private static int sNumThreads;
+
+    /*================= Operations =================*/
+    /** Fills 'out', starting at 'off', with chunks
+     * [first, first + count) from 'source'. 'out' must have room for
+     * count * CHUNK_SIZE columns. */
+    public static void loadChunks(final Terrain.ChunkSource source,
+                                  final int first, final int count,
+                                  final short out[], final int off) {
+        int numTasks = Math.min(getNumThreads(),
+                                count / MIN_CHUNKS_PER_TASK);
+        if (numTasks <= 1) {
+            loadRange(source, first, count, out, off);
+            return;
+        }
+        Runnable tasks[] = new Runnable[numTasks];
+        int start = 0;
+        for (int t = 0; t < numTasks; t++) {
+            final int s = start;
+            final int end = (int)(((long)count * (t + 1)) / numTasks);
+            tasks[t] = new Runnable() {
+                public void run() {
+                    loadRange(source, first + s, end - s, out,
+                              off + (s * Terrain.CHUNK_SIZE));
+                }
+            };
+            start = end;
+        }
+        runAll(tasks);
+    }
+
+    /** Runs all of 'tasks', spread over the cores, and waits for them to
+     * finish. The last task runs on the calling thread. If any task
+     * throws, so do we, once they have all stopped. */
+    public static void runAll(Runnable tasks[]) {
+        if (tasks.length == 0)
+            return;
+        ExecutorService pool = getPool();
+        Future<?> futures[] = new Future<?>[tasks.length - 1];
+        for (int t = 0; t < futures.length; t++)
+            futures[t] = pool.submit(tasks[t]);
+        RuntimeException err = null;
+        try {
+            tasks[tasks.length - 1].run();
+        }
+        catch (RuntimeException e) {
+            err = e;
+        }
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            }
+            catch (Exception e) {
+                if (err == null)
+                    err = new RuntimeException("error generating terrain", e);
+            }
+        }
+        if (err != null)
+            throw err;
+    }
+
+    private static void loadRange(Terrain.ChunkSource source, int first,
+                                  int count, short out[], int off) {
+        short chunk[] = new short[Terrain.CHUNK_SIZE];
+        for (int c = 0; c < count; c++) {
+            source.loadChunk(first + c, chunk);
+            System.arraycopy(chunk, 0, out,
+                             off + (c * Terrain.CHUNK_SIZE),
+                             Terrain.CHUNK_SIZE);
+        }
+    }
+
+    /*================= Access =================*/
+    private static synchronized int getNumThreads() {
+        if (sNumThreads == 0)
+            sNumThreads = Runtime.getRuntime().availableProcessors();
+        return sNumThreads;
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(getNumThreads(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "TerrainPipeline");
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+        }
+        return sPool;
+    }
+}
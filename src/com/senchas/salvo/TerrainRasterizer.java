@@ -0,0 +1,201 @@
+package com.senchas.salvo;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+ * Draws the terrain straight into an array of pixels.
+ *
+ * We keep the whole playfield (MAX_X by MAX_Y) as ARGB ints, along with the
+ * height each column had when we last drew it. When a new board comes in,
+ * we only look at the columns whose height changed, and only at the pixels
+ * between the old height and the new one. If the column went down, those
+ * pixels get the sky from the background image; if it went up, they get
+ * ground. Then just the rectangle we touched is copied into the bitmap
+ * with setPixels.
+ *
+ * Ground pixels come from a pattern: PATTERN_WIDTH columns by MAX_Y rows,
+ * repeated across the screen. A solid fill, a gradient and a texture are
+ * all the same lookup, so they all cost the same.
+ *
+ * Terrain with caves can't be drawn from heights alone. Then every column
+ * is redrawn from the TerrainBitmap, one solid run at a time.
+ *
+ * This class contains no locking. It is owned by the render thread.
+ */
+public class TerrainRasterizer {
+    /*================= Constants =================*/
+    private static final int W = Terrain.MAX_X;
+
+    private static final int H = Terrain.MAX_Y;
+
+    /** Width of the ground pattern. Must be a power of two. */
+    public static final int PATTERN_WIDTH = 16;
+
+    /*================= Types =================*/
+    public static enum GroundStyle {
+        /** Every ground pixel is the foreground color */
+        SOLID,
+
+        /** The ground gets darker towards the bottom of the screen */
+        GRADIENT,
+
+        /** The foreground color, speckled a little lighter and darker */
+        TEXTURED
+    }
+
+    /*================= Data =================*/
+    /** The pixels of the playfield, row by row */
+    private final int mPixels[];
+
+    /** The pixels of the background image */
+    private final int mSky[];
+
+    /** The ground pattern. Pixel (x, y) is at
+     * (y * PATTERN_WIDTH) + (x % PATTERN_WIDTH). */
+    private final int mGround[];
+
+    /** The height of each column in mPixels. H means no ground, and -1
+     * means the column doesn't match any height. */
+    private final short mDrawn[];
+
+    /** The part of mPixels that has changed since the last upload */
+    private int mDirtyLeft, mDirtyRight, mDirtyTop, mDirtyBottom;
+
+    /*================= Operations =================*/
+    /** Starts over with a new background image and ground. The whole
+     * playfield will be uploaded next time. */
+    public void setScenery(Bitmap background, int groundColor,
+                           GroundStyle style) {
+        background.getPixels(mSky, 0, W, 0, 0, W, H);
+        System.arraycopy(mSky, 0, mPixels, 0, W * H);
+        for (int x = 0; x < W; x++)
+            mDrawn[x] = (short)H;
+        makePattern(groundColor, style);
+        markDirty(0, W - 1, 0, H - 1);
+    }
+
+    /** Brings the pixels up to date with a height field */
+    public void drawBoard(short board[]) {
+        for (int x = 0; x < W; x++) {
+            int y = Math.max(0, Math.min(H, board[x]));
+            int old = mDrawn[x];
+            if (y == old)
+                continue;
+            if (old < 0) {
+                fillSky(x, 0, y);
+                fillGround(x, y, H);
+                markDirty(x, x, 0, H - 1);
+            }
+            else {
+                if (y > old)
+                    fillSky(x, old, y);
+                else
+                    fillGround(x, y, old);
+                markDirty(x, x, Math.min(y, old), Math.max(y, old) - 1);
+            }
+            mDrawn[x] = (short)y;
+        }
+    }
+
+    /** Redraws every column from a bitmap of the terrain */
+    public void drawBitmap(TerrainBitmap bitmap) {
+        for (int x = 0; x < W; x++) {
+            fillSky(x, 0, H);
+            int y = bitmap.getFirstSolid(x, 0);
+            while (y < H) {
+                int end = bitmap.getFirstEmpty(x, y);
+                fillGround(x, y, end);
+                y = bitmap.getFirstSolid(x, end);
+            }
+            // The column no longer matches any height, so drawBoard will
+            // redraw all of it.
+            mDrawn[x] = -1;
+        }
+        markDirty(0, W - 1, 0, H - 1);
+    }
+
+    /** Copies whatever changed into 'dest', which must be W by H */
+    public void upload(Bitmap dest) {
+        if (mDirtyLeft > mDirtyRight)
+            return;
+        int w = mDirtyRight - mDirtyLeft + 1;
+        int h = mDirtyBottom - mDirtyTop + 1;
+        dest.setPixels(mPixels, (mDirtyTop * W) + mDirtyLeft, W,
+                       mDirtyLeft, mDirtyTop, w, h);
+        mDirtyLeft = W;
+        mDirtyRight = -1;
+        mDirtyTop = H;
+        mDirtyBottom = -1;
+    }
+
+    /** Fills rows [top, bottom) of column x with sky */
+    private void fillSky(int x, int top, int bottom) {
+        top = Math.max(top, 0);
+        for (int i = (top * W) + x, end = bottom * W; i < end; i += W)
+            mPixels[i] = mSky[i];
+    }
+
+    /** Fills rows [top, bottom) of column x with ground */
+    private void fillGround(int x, int top, int bottom) {
+        top = Math.max(top, 0);
+        int p = (top * PATTERN_WIDTH) + (x & (PATTERN_WIDTH - 1));
+        for (int i = (top * W) + x, end = bottom * W; i < end; i += W) {
+            mPixels[i] = mGround[p];
+            p += PATTERN_WIDTH;
+        }
+    }
+
+    private void markDirty(int left, int right, int top, int bottom) {
+        mDirtyLeft = Math.min(mDirtyLeft, left);
+        mDirtyRight = Math.max(mDirtyRight, right);
+        mDirtyTop = Math.min(mDirtyTop, Math.max(top, 0));
+        mDirtyBottom = Math.max(mDirtyBottom, bottom);
+    }
+
+    private void makePattern(int color, GroundStyle style) {
+        int r = Color.red(color), g = Color.green(color),
+            b = Color.blue(color);
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < PATTERN_WIDTH; x++) {
+                // shade is in 256ths
+                int shade;
+                switch (style) {
+                    case GRADIENT:
+                        shade = 256 - ((y * 96) / H);
+                        break;
+                    case TEXTURED: {
+                        int n = ((x * 73) ^ (y * 151) ^ ((x * y) * 31)) & 31;
+                        shade = 240 + n;
+                        break;
+                    }
+                    default:
+                        shade = 256;
+                        break;
+                }
+                mGround[(y * PATTERN_WIDTH) + x] =
+                    Color.argb(0xff, shadeComponent(r, shade),
+                               shadeComponent(g, shade),
+                               shadeComponent(b, shade));
+            }
+        }
+    }
+
+    private static int shadeComponent(int c, int shade) {
+        return Math.min(255, (c * shade) >> 8);
+    }
+
+    /*================= Lifecycle =================*/
+    public TerrainRasterizer() {
+        mPixels = new int[W * H];
+        mSky = new int[W * H];
+        mGround = new int[PATTERN_WIDTH * H];
+        mDrawn = new short[W];
+        for (int x = 0; x < W; x++)
+            mDrawn[x] = (short)H;
+        mDirtyLeft = W;
+        mDirtyRight = -1;
+        mDirtyTop = H;
+        mDirtyBottom = -1;
+    }
+}
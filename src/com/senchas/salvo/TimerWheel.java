@@ -0,0 +1,376 @@
+package com.senchas.salvo;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps track of when the GameStates next need to run.
+ *
+ * Purpose
+ * -------
+ * Animated states used to ask to be woken up every millisecond, and then
+ * check the clock to see whether anything was due. Now they register
+ * Timers and Tweens here instead. The game loop runs the expired ones, and
+ * sleeps until the next deadline (see GameState.getWakeDelay).
+ *
+ *     - A Timer expires once, at a deadline. The state checks isExpired()
+ *       in main().
+ *
+ *     - A Tween runs for a given duration. It wakes the game loop once per
+ *       FRAME_INTERVAL, so the state can draw the next frame of the
+ *       animation, and expires when the duration is over.
+ *
+ *     - A Ticker goes off every period, until it is cancelled. It keeps a
+ *       fixed rate: if the game loop is late, the ticks it missed are
+ *       counted rather than the schedule slipping. The state takes the
+ *       ticks in main().
+ *
+ * All times come from now(), which is a monotonic clock. Setting the
+ * date on the phone doesn't make the timers fire early or late.
+ *
+ * Implementation
+ * --------------
+ * This is a hashed timer wheel. Time is divided into ticks of TICK
+ * milliseconds. A timer goes into the slot for its tick, modulo NUM_SLOTS,
+ * along with the number of full turns of the wheel left before it is due.
+ * Scheduling and cancelling are O(1). Running the expired timers only looks
+ * at the slots for the ticks that have passed.
+ *
+ * Timers are owned by the states, and reused. Nothing here allocates.
+ *
+ * Locking
+ * -------
+ * Everything here is called with the state lock held.
+ */
+public class TimerWheel {
+    /*================= Constants =================*/
+    /** How often a Tween wakes us up, in milliseconds */
+    public static final int FRAME_INTERVAL = 16;
+
+    /** The length of a tick, in milliseconds */
+    private static final int TICK = 4;
+
+    private static final int NUM_SLOTS = 64;
+
+    private static final int SLOT_MASK = NUM_SLOTS - 1;
+
+    /** Returned by getDelay() when nothing is scheduled */
+    public static final int NO_DEADLINE = -1;
+
+    /*================= Types =================*/
+    /** Something which expires at a deadline */
+    public static class Timer {
+        /*================= Data =================*/
+        private long mDeadline;
+
+        /** The number of full turns of the wheel to wait */
+        private int mRounds;
+
+        private Timer mPrev;
+
+        private Timer mNext;
+
+        /** True if this timer is in the wheel */
+        private boolean mPending;
+
+        private boolean mExpired;
+
+        /*================= Access =================*/
+        /** Returns true if the timer is waiting to expire */
+        public boolean isPending() {
+            return mPending;
+        }
+
+        /** Returns true if the timer has expired since it was last
+         * scheduled */
+        public boolean isExpired() {
+            return mExpired;
+        }
+
+        /*================= Operations =================*/
+        /** Called when the deadline has passed.
+         *
+         * @return  true if the timer is done, false if it has rescheduled
+         *          itself
+         */
+        protected boolean onDeadline(TimerWheel wheel, long now) {
+            return true;
+        }
+
+        /** Forgets that the timer expired */
+        public void reset() {
+            mExpired = false;
+        }
+    }
+
+    /** An animation that lasts for a fixed amount of time */
+    public static class Tween extends Timer {
+        /*================= Data =================*/
+        private long mStartTime;
+
+        private int mDuration;
+
+        /*================= Access =================*/
+        /** Returns how long the tween has been running, in milliseconds */
+        public long getElapsed() {
+            return now() - mStartTime;
+        }
+
+        public int getDuration() {
+            return mDuration;
+        }
+
+        /** Returns how far along the tween is, from 0 to 100 */
+        public int getPercent() {
+            if (isExpired())
+                return 100;
+            long d = getElapsed();
+            if (d >= mDuration)
+                return 100;
+            else if (d <= 0)
+                return 0;
+            else
+                return (int)((d * 100) / mDuration);
+        }
+
+        /** Returns true if the tween has started and not been reset */
+        public boolean isStarted() {
+            return (isPending() || isExpired());
+        }
+
+        /*================= Operations =================*/
+        @Override
+        protected boolean onDeadline(TimerWheel wheel, long now) {
+            long left = mStartTime + mDuration - now;
+            if (left <= 0)
+                return true;
+            wheel.insert(this, now + Math.min(left, FRAME_INTERVAL));
+            return false;
+        }
+    }
+
+    /** Something which goes off every period, at a fixed rate */
+    public static class Ticker extends Timer {
+        /*================= Data =================*/
+        private int mPeriod;
+
+        /** When the next tick is due */
+        private long mNextTick;
+
+        /** The ticks which have gone off since takeTicks() was called */
+        private int mTicks;
+
+        /*================= Operations =================*/
+        /** Returns the number of ticks which have gone off since the last
+         * call, and forgets them. */
+        public int takeTicks() {
+            int ret = mTicks;
+            mTicks = 0;
+            return ret;
+        }
+
+        @Override
+        protected boolean onDeadline(TimerWheel wheel, long now) {
+            int n = 1 + (int)((now - mNextTick) / mPeriod);
+            mTicks += n;
+            mNextTick += (long)n * mPeriod;
+            wheel.insert(this, mNextTick);
+            return false;
+        }
+    }
+
+    /*================= Static =================*/
+    /** Returns the current time, in milliseconds. This is the clock that
+     * all the timers use. It only ever goes forwards. */
+    public static long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    /*================= Data =================*/
+    /** The first timer in each slot */
+    private final Timer mSlots[];
+
+    /** The tick we have processed up to. We have left every tick before
+     * this one. */
+    private long mCurTick;
+
+    /** The number of timers in the wheel */
+    private int mNumPending;
+
+    /** Timers which have expired during the current call to runExpired */
+    private Timer mExpiredList;
+
+    /*================= Access =================*/
+    /** Returns the number of milliseconds until the next deadline, or
+     * NO_DEADLINE if nothing is scheduled. */
+    public int getDelay() {
+        if (mNumPending == 0)
+            return NO_DEADLINE;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < NUM_SLOTS; i++) {
+            for (Timer t = mSlots[i]; t != null; t = t.mNext) {
+                if (t.mDeadline < min)
+                    min = t.mDeadline;
+            }
+        }
+        long d = min - now();
+        if (d <= 0)
+            return 0;
+        return (int)Math.min(d, Integer.MAX_VALUE);
+    }
+
+    /*================= Operations =================*/
+    /** Schedules a timer to expire after delay milliseconds. If it was
+     * already scheduled, the old deadline is forgotten. */
+    public void schedule(Timer t, long delay) {
+        cancel(t);
+        t.mExpired = false;
+        insert(t, now() + delay);
+    }
+
+    /** Starts a tween which lasts for duration milliseconds */
+    public void startTween(Tween t, int duration) {
+        cancel(t);
+        t.reset();
+        t.mStartTime = now();
+        t.mDuration = duration;
+        insert(t, t.mStartTime + Math.min(duration, FRAME_INTERVAL));
+    }
+
+    /** Starts a ticker which goes off every 'period' milliseconds. The
+     * first tick is one period from now. */
+    public void startTicker(Ticker t, int period) {
+        cancel(t);
+        t.reset();
+        t.mPeriod = period;
+        t.mTicks = 0;
+        t.mNextTick = now() + period;
+        insert(t, t.mNextTick);
+    }
+
+    /** Takes a timer out of the wheel. It is not marked expired. */
+    public void cancel(Timer t) {
+        if (! t.mPending)
+            return;
+        if (t.mPrev != null)
+            t.mPrev.mNext = t.mNext;
+        else
+            mSlots[(int)((t.mDeadline / TICK) & SLOT_MASK)] = t.mNext;
+        if (t.mNext != null)
+            t.mNext.mPrev = t.mPrev;
+        t.mPrev = null;
+        t.mNext = null;
+        t.mPending = false;
+        mNumPending--;
+    }
+
+    /** Expires all the timers whose deadlines have passed. */
+    public void runExpired() {
+        if (mNumPending == 0) {
+            mCurTick = now() / TICK;
+            return;
+        }
+        long now = now();
+        long nowTick = now / TICK;
+        if (nowTick - mCurTick >= NUM_SLOTS) {
+            // We've been asleep for more than a whole turn of the wheel.
+            // Rather than walking through every tick we missed, rebuild.
+            rehash(now, nowTick);
+        }
+        else {
+            for (long tick = mCurTick; tick <= nowTick; tick++)
+                scanSlot(tick, tick < nowTick, now);
+            mCurTick = nowTick;
+        }
+
+        // Tell the expired timers. Tweens may put themselves back in.
+        while (mExpiredList != null) {
+            Timer t = mExpiredList;
+            mExpiredList = t.mNext;
+            t.mNext = null;
+            if (t.onDeadline(this, now))
+                t.mExpired = true;
+        }
+    }
+
+    /** Looks at the timers in a slot.
+     *
+     * @param tick      The tick we are looking at
+     * @param leaving   True if this tick is over. Timers in this slot
+     *                  which are due on a later turn of the wheel get one
+     *                  turn closer.
+     */
+    private void scanSlot(long tick, boolean leaving, long now) {
+        Timer t = mSlots[(int)(tick & SLOT_MASK)];
+        while (t != null) {
+            Timer next = t.mNext;
+            if (t.mRounds == 0) {
+                if (t.mDeadline <= now)
+                    expire(t);
+            }
+            else if (leaving) {
+                t.mRounds--;
+            }
+            t = next;
+        }
+    }
+
+    private void rehash(long now, long nowTick) {
+        Timer all = null;
+        for (int i = 0; i < NUM_SLOTS; i++) {
+            Timer t = mSlots[i];
+            while (t != null) {
+                Timer next = t.mNext;
+                t.mNext = all;
+                all = t;
+                t = next;
+            }
+            mSlots[i] = null;
+        }
+        mNumPending = 0;
+        mCurTick = nowTick;
+        while (all != null) {
+            Timer t = all;
+            all = t.mNext;
+            t.mPrev = null;
+            t.mNext = null;
+            t.mPending = false;
+            if (t.mDeadline <= now) {
+                t.mNext = mExpiredList;
+                mExpiredList = t;
+            }
+            else
+                insert(t, t.mDeadline);
+        }
+    }
+
+    /** Moves a timer from the wheel to mExpiredList */
+    private void expire(Timer t) {
+        cancel(t);
+        t.mNext = mExpiredList;
+        mExpiredList = t;
+    }
+
+    private void insert(Timer t, long deadline) {
+        long tick = deadline / TICK;
+        if (tick < mCurTick)
+            tick = mCurTick;
+        t.mDeadline = Math.max(deadline, tick * TICK);
+        t.mRounds = (int)((tick - mCurTick) / NUM_SLOTS);
+        int slot = (int)(tick & SLOT_MASK);
+        t.mPrev = null;
+        t.mNext = mSlots[slot];
+        if (t.mNext != null)
+            t.mNext.mPrev = t;
+        mSlots[slot] = t;
+        t.mPending = true;
+        mNumPending++;
+    }
+
+    /*================= Lifecycle =================*/
+    public TimerWheel() {
+        mSlots = new Timer[NUM_SLOTS];
+        mCurTick = now() / TICK;
+        mNumPending = 0;
+        mExpiredList = null;
+    }
+}
@@ -0,0 +1,321 @@
+package com.senchas.salvo;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Records what threads are doing, for viewing in Chrome's trace viewer.
+ *
+ * A thread that wants to be traced calls traceThisThread() once. The first
+ * time it records an event with tracing switched on, it gets a Ring of its
+ * own. Threads that never asked, like the MatchServer's workers, record
+ * nothing and never get a Ring. So a Ring only ever has one writer, and
+ * recording needs no locks: it is a check of the global switch, a
+ * ThreadLocal lookup, a System.nanoTime(), and three array writes. When
+ * tracing is off, it is just the check. So the calls can stay in release
+ * builds, and tracing can be switched on while the game is running.
+ *
+ * A Ring holds the last CAPACITY begin and end events. Older events are
+ * overwritten.
+ *
+ * export() writes every Ring in the Chrome Trace Event format: a JSON
+ * object with a "traceEvents" array of "B" and "E" events, plus a
+ * "thread_name" event per Ring. Load it in chrome://tracing.
+ *
+ * Locking
+ * -------
+ * The list of rings is guarded by sRings. A Ring may be exported while it
+ * is being written. Anything its owner might have overwritten during the
+ * export is left out.
+ */
+public class Tracer {
+    /*================= Constants =================*/
+    /** How many events a Ring holds. Must be a power of two. */
+    public static final int CAPACITY = 4096;
+
+    private static final int MASK = CAPACITY - 1;
+
+    /** How many Rings we keep. When there are more, we forget the oldest
+     * one whose thread has finished, or failing that the oldest. */
+    private static final int MAX_RINGS = 8;
+
+    /** Set in an event's code if it is an end, rather than a begin */
+    private static final int END = 0x1;
+
+    /*================= Types =================*/
+    /** The things we trace */
+    public static enum Span {
+        STATE_ENTER("onEnter"),
+        STATE_MAIN("main"),
+        STATE_EXIT("onExit"),
+        LOCK_WAIT("wait for mStateLock"),
+        LOCK_HOLD("hold mStateLock"),
+        DRAW_SCREEN("drawScreen"),
+        CACHE_TERRAIN("cacheTerrain"),
+        AI_MOVE("makeMove"),
+        ON_CLICK("onClick"),
+        ON_KEY_DOWN("onKeyDown"),
+        ON_TOUCH("onTouchEvent"),
+        SAVE_STATE("onSaveInstanceState");
+
+        /*================= Data =================*/
+        private final String mName;
+
+        /*================= Access =================*/
+        public String getName() {
+            return mName;
+        }
+
+        /*================= Lifecycle =================*/
+        private Span(String name) {
+            mName = name;
+        }
+    }
+
+    /** The events of one thread */
+    private static class Ring {
+        /*================= Data =================*/
+        private final String mName;
+
+        /** The thread that writes to this Ring. Weak, because a finished
+         * thread may still hold on to a lot. */
+        private final WeakReference < Thread > mOwner;
+
+        /** The thread ID in the exported trace */
+        private final int mTid;
+
+        private final long mTimes[];
+
+        /** (span ordinal << 1), plus END */
+        private final int mCodes[];
+
+        /** The class whose name is added to the span's name, or null. We
+         * keep the class rather than the object, so that a trace never
+         * holds on to an Activity or a GameState. */
+        private final Class < ? > mDetails[];
+
+        /** How many events have ever been recorded. The next one goes in
+         * mNext & MASK. */
+        private volatile int mNext;
+
+        /*================= Access =================*/
+        /** Returns true if the thread that writes to us has finished */
+        private boolean isOrphaned() {
+            Thread owner = mOwner.get();
+            return (owner == null) || (! owner.isAlive());
+        }
+
+        /*================= Operations =================*/
+        private void add(int code, Class < ? > detail) {
+            int n = mNext;
+            int i = n & MASK;
+            mTimes[i] = System.nanoTime();
+            mCodes[i] = code;
+            mDetails[i] = detail;
+            // Publish the event only once it is all there
+            mNext = n + 1;
+        }
+
+        /** Writes this ring's events. 'first' is true if nothing has been
+         * written to the traceEvents array yet. Returns the new value of
+         * 'first'. */
+        private boolean export(PrintWriter out, boolean first) {
+            first = writeEvent(out, first, "thread_name", 'M', -1);
+            out.print(",\"args\":{\"name\":\"");
+            out.print(mName);
+            out.print("\"}}");
+
+            int end = mNext;
+            int start = Math.max(0, end - CAPACITY);
+            int depth = 0;
+            Span spans[] = Span.values();
+            for (int n = start; n < end; n++) {
+                int i = n & MASK;
+                long time = mTimes[i];
+                int code = mCodes[i];
+                Class < ? > detail = mDetails[i];
+                // If our owner has lapped us, this event may be half
+                // overwritten, so we skip it. Then we can't trust the
+                // nesting either, so any ends that follow are dropped
+                // until there is a new begin.
+                if (mNext - CAPACITY > n) {
+                    depth = 0;
+                    continue;
+                }
+                if ((code & END) != 0) {
+                    // Its begin was overwritten before we got here
+                    if (depth == 0)
+                        continue;
+                    depth--;
+                    writeEvent(out, false, null, 'E', time);
+                    out.print('}');
+                }
+                else {
+                    depth++;
+                    String name = spans[code >> 1].getName();
+                    if (detail != null) {
+                        name = name + " " + detail.getSimpleName();
+                    }
+                    writeEvent(out, false, name, 'B', time);
+                    out.print('}');
+                }
+            }
+            return first;
+        }
+
+        /** Writes the start of an event, up to but not including the
+         * closing brace. Leaves out "ts" if 'time' is negative, and "name"
+         * if 'name' is null. Returns false. */
+        private boolean writeEvent(PrintWriter out, boolean first,
+                                   String name, char ph, long time) {
+            if (! first)
+                out.print(',');
+            out.print("\n{");
+            if (name != null) {
+                out.print("\"name\":\"");
+                out.print(name);
+                out.print("\",");
+            }
+            out.print("\"ph\":\"");
+            out.print(ph);
+            out.print("\",\"pid\":1,\"tid\":");
+            out.print(mTid);
+            if (time >= 0) {
+                // microseconds, since the class was loaded
+                long ns = time - sStartNanos;
+                out.print(",\"ts\":");
+                out.print(ns / 1000);
+                out.print('.');
+                long frac = ns % 1000;
+                if (frac < 100)
+                    out.print('0');
+                if (frac < 10)
+                    out.print('0');
+                out.print(frac);
+            }
+            return false;
+        }
+
+        /*================= Lifecycle =================*/
+        private Ring(String name, int tid, Thread owner) {
+            mName = name;
+            mTid = tid;
+            mOwner = new WeakReference < Thread >(owner);
+            mTimes = new long[CAPACITY];
+            mCodes = new int[CAPACITY];
+            mDetails = new Class < ? >[CAPACITY];
+            mNext = 0;
+        }
+    }
+
+    /*================= Static =================*/
+    private static volatile boolean sEnabled = false;
+
+    private static final long sStartNanos = System.nanoTime();
+
+    private static final LinkedList < Ring > sRings =
+        new LinkedList < Ring >();
+
+    private static int sNextTid = 1;
+
+    /** What we know about a thread that has asked to be traced */
+    private static class ThreadTrace {
+        /*================= Data =================*/
+        private String mName;
+
+        /** The thread's Ring, or null until it first records an event */
+        private Ring mRing;
+    }
+
+    private static final ThreadLocal < ThreadTrace > sThreads =
+        new ThreadLocal < ThreadTrace >();
+
+    /** Asks for the calling thread to be traced, under 'name'. Nothing is
+     * allocated until the thread records an event with tracing on. */
+    public static void traceThisThread(String name) {
+        ThreadTrace t = sThreads.get();
+        if (t == null) {
+            t = new ThreadTrace();
+            sThreads.set(t);
+        }
+        t.mName = name;
+    }
+
+    public static void begin(Span span) {
+        if (sEnabled)
+            record(span.ordinal() << 1, null);
+    }
+
+    /** Begins a span whose name includes the class of 'detail' */
+    public static void begin(Span span, Object detail) {
+        if (sEnabled)
+            record(span.ordinal() << 1, detail.getClass());
+    }
+
+    public static void end(Span span) {
+        if (sEnabled)
+            record((span.ordinal() << 1) | END, null);
+    }
+
+    /** Adds an event to the calling thread's Ring, if it is traced */
+    private static void record(int code, Class < ? > detail) {
+        ThreadTrace t = sThreads.get();
+        if (t == null)
+            return;
+        Ring r = t.mRing;
+        if (r == null) {
+            r = newRing(t.mName);
+            t.mRing = r;
+        }
+        r.add(code, detail);
+    }
+
+    /** Returns a new Ring for the calling thread */
+    private static Ring newRing(String name) {
+        synchronized (sRings) {
+            Ring ret = new Ring(name, sNextTid++, Thread.currentThread());
+            if (sRings.size() == MAX_RINGS)
+                forgetOneRing();
+            sRings.add(ret);
+            return ret;
+        }
+    }
+
+    /** Forgets the oldest Ring whose thread has finished, or the oldest
+     * Ring if they are all still being written. Called with sRings
+     * locked. */
+    private static void forgetOneRing() {
+        for (Iterator < Ring > i = sRings.iterator(); i.hasNext(); ) {
+            if (i.next().isOrphaned()) {
+                i.remove();
+                return;
+            }
+        }
+        sRings.removeFirst();
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /** Turns tracing on or off everywhere */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /** Writes everything in every Ring, as Chrome Trace Event JSON */
+    public static void export(PrintWriter out) {
+        Ring rings[];
+        synchronized (sRings) {
+            rings = sRings.toArray(new Ring[sRings.size()]);
+        }
+        out.print("{\"traceEvents\":[");
+        boolean first = true;
+        for (Ring r : rings)
+            first = r.export(out, first);
+        out.println("\n]}");
+        out.flush();
+    }
+}
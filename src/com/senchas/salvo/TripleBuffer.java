@@ -0,0 +1,81 @@
+package com.senchas.salvo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes frames from one producer thread to one consumer thread without
+ * locks.
+ *
+ * There are three buffers. The producer owns the "back" buffer and fills
+ * it in. The consumer owns the "front" buffer and reads from it. The third
+ * buffer sits in the middle. When the producer is done with a frame, it
+ * swaps its back buffer with the middle one. When the consumer wants a new
+ * frame, it swaps its front buffer with the middle one, if there is
+ * anything new there.
+ *
+ * Neither side ever waits for the other. If the producer is faster, frames
+ * that the consumer never got to are simply overwritten. If the consumer is
+ * faster, it keeps the frame it has.
+ *
+ * This class contains no locking.
+ */
+public class TripleBuffer < T > {
+    /*================= Constants =================*/
+    /** Set in mMiddle when the middle buffer holds a frame that the
+     * consumer hasn't seen */
+    private static final int FRESH = 0x4;
+
+    private static final int INDEX_MASK = 0x3;
+
+    /*================= Data =================*/
+    private final Object mBuffers[];
+
+    /** The producer's buffer. Only touched by the producer. */
+    private int mBack;
+
+    /** The consumer's buffer. Only touched by the consumer. */
+    private int mFront;
+
+    /** The index of the middle buffer, plus FRESH */
+    private final AtomicInteger mMiddle;
+
+    /*================= Producer =================*/
+    /** Returns the buffer to fill in */
+    @SuppressWarnings("unchecked")
+    public T getBack() {
+        return (T)mBuffers[mBack];
+    }
+
+    /** Hands the back buffer over to the consumer. Afterwards, getBack()
+     * returns a different buffer, whose contents are stale. */
+    public void publish() {
+        int old = mMiddle.getAndSet(mBack | FRESH);
+        mBack = old & INDEX_MASK;
+    }
+
+    /*================= Consumer =================*/
+    /** Returns the newest frame, or null if nothing has been published
+     * since the last call. */
+    @SuppressWarnings("unchecked")
+    public T takeFront() {
+        if ((mMiddle.get() & FRESH) == 0)
+            return null;
+        int old = mMiddle.getAndSet(mFront);
+        mFront = old & INDEX_MASK;
+        return (T)mBuffers[mFront];
+    }
+
+    /** Returns the frame which was last returned by takeFront() */
+    @SuppressWarnings("unchecked")
+    public T getFront() {
+        return (T)mBuffers[mFront];
+    }
+
+    /*================= Lifecycle =================*/
+    public TripleBuffer(T a, T b, T c) {
+        mBuffers = new Object[] { a, b, c };
+        mBack = 0;
+        mMiddle = new AtomicInteger(1);
+        mFront = 2;
+    }
+}
@@ -2,7 +2,9 @@ package com.senchas.salvo;
 
 import java.util.Random;
 
+import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.view.Gravity;
 import android.widget.Toast;
 
@@ -30,6 +32,33 @@ public abstract class Util {
         }
     }
 
+    /** Runnable that creates a dialog box and displays it */
+    public static class DoDialog implements Runnable {
+        private Context mContext;
+        private String mString;
+
+        /*================= Operations =================*/
+        public void run() {
+            AlertDialog.Builder b = new AlertDialog.Builder(mContext);
+
+            b.setMessage(mString);
+            b.setCancelable(true);
+            b.setPositiveButton("OK",
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog,
+                                        int whichButton) {
+                    }
+                });
+            b.show();
+        }
+
+        /*================= Lifecycle =================*/
+        public DoDialog(Context context, String string) {
+            mContext = context;
+            mString = string;
+        }
+    }
+
     public static class Pair {
         public int yLower;
         public int yUpper;
@@ -75,15 +104,8 @@ public abstract class Util {
         //   y = y0 +  | r^2 - (x-x0)^2
         //          - \|
         //
-
-        float tmp = (radius * radius) - ((x - x0) * (x - x0));
-        if (tmp < 0) {
-            out.yLower = out.yUpper = 0;
-        }
-        else {
-            out.yLower = (int)(y0 + (float)Math.sqrt(tmp));
-            out.yUpper = (int)(y0 - (float)Math.sqrt(tmp));
-        }
+        // The square roots are looked up in a precomputed table.
+        CircleStencil.get(radius).getSpan(x0, y0, x, out);
     }
 
     /** Given an input range [inMin, inMax], an output range
@@ -104,6 +126,9 @@ public abstract class Util {
     }
 
     /*================= Data =================*/
-    /** A source of random numbers. */
-    public static Random mRandom = new Random();
+    /** A source of random numbers for things that happen outside of a game,
+     * like picking default player names in the setup screens.
+     *
+     * Code that runs inside a game should use Cosmos.getRandom() instead. */
+    public static final Random mRandom = new Random();
 }
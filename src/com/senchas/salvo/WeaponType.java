@@ -271,6 +271,7 @@ public enum WeaponType {
         private final int mRadius;
         private final int mColor;
         private final int mFullDamage;
+        private final CircleStencil mStencil;
 
         /*================= Access =================*/
         public int getRadius() {
@@ -285,11 +286,17 @@ public enum WeaponType {
             return mFullDamage;
         }
 
+        /** Returns the shape of the explosion */
+        public CircleStencil getStencil() {
+            return mStencil;
+        }
+
         /*================= Lifecycle =================*/
         public ExplosionAttributes(int radius, int color, int fullDamage) {
             mRadius = radius;
             mColor = color;
             mFullDamage = fullDamage;
+            mStencil = CircleStencil.get(radius);
         }
     }
 
@@ -543,6 +550,14 @@ public enum WeaponType {
         return mExplosionAttributes;
     }
 
+    /** Returns the shape of this weapon's explosion, or null if it
+     * doesn't explode */
+    public CircleStencil getStencil() {
+        if (mExplosionAttributes == null)
+            return null;
+        return mExplosionAttributes.getStencil();
+    }
+
     public String getDescription() {
         return mDescription;
     }
@@ -578,7 +593,8 @@ public enum WeaponType {
             }
             case EXPLODE: {
                 Explosion expl = ball.newExplosion();
-                expl.initialize(x, y, mExplosionAttributes, ball.getPerp());
+                expl.initialize(ball.getGame(), x, y,
+                                mExplosionAttributes, ball.getPerp());
                 break;
             }
             case MAKE_ROLLER: {
@@ -623,8 +639,10 @@ public enum WeaponType {
                 for (int i = 0; i < numFragments; i++) {
                     float launchAngle =
                         (float)(Math.PI - terrainAngle -((i+1) * fragAngle));
-                    float deltaX = init_power * (float)Math.cos(launchAngle);
-                    float deltaY = -init_power * (float)Math.sin(launchAngle);
+                    float deltaX =
+                        init_power * (float)StrictMath.cos(launchAngle);
+                    float deltaY =
+                        -init_power * (float)StrictMath.sin(launchAngle);
                     Projectile proj = ball.newProjectile();
                     proj.initialize(x, y, deltaX, deltaY,
                                     model.getWind(), clusterType, 8);
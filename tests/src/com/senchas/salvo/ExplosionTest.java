@@ -0,0 +1,175 @@
+package com.senchas.salvo;
+
+import junit.framework.TestCase;
+
+import com.senchas.salvo.WeaponType.ExplosionAttributes;
+
+/**
+ * Checks the circle stencils, and the terrain index behind the queries,
+ * against the per-pixel loops that they replaced.
+ */
+public class ExplosionTest extends TestCase {
+    /*================= Constants =================*/
+    /** The radii of the weapons, the projectile, and some that aren't
+     * cached */
+    private static final int RADII[] = { 0, 1, 4, 15, 22, 24, 30, 35, 36,
+                                         40, 45, 63, 64, 100 };
+
+    /*================= Static =================*/
+    /** The old Util.circAt, which took a square root per column */
+    private static void oldCircAt(int x0, int y0, int radius, int x,
+                                  Util.Pair out) {
+        float tmp = (radius * radius) - ((x - x0) * (x - x0));
+        if (tmp < 0) {
+            out.yLower = out.yUpper = 0;
+        }
+        else {
+            out.yLower = (int)(y0 + (float)Math.sqrt(tmp));
+            out.yUpper = (int)(y0 - (float)Math.sqrt(tmp));
+        }
+    }
+
+    /** The old Explosion.editTerrain, on a plain board */
+    private static void oldEditTerrain(short board[], int x0, int y0,
+                                       int radius) {
+        Util.Pair pair = new Util.Pair();
+        for (int slice = Math.max(0, x0 - radius);
+                 slice < Math.min(x0 + radius, board.length);
+                 slice++) {
+            oldCircAt(x0, y0, radius, slice, pair);
+            if (pair.yLower == 0)
+                continue;
+            if (pair.yLower < board[slice])
+                continue;
+            if (pair.yUpper > board[slice]) {
+                board[slice] += (pair.yLower - pair.yUpper);
+                continue;
+            }
+            board[slice] += (pair.yLower - board[slice]);
+            if (board[slice] > Terrain.MAX_Y)
+                board[slice] = Terrain.MAX_Y;
+        }
+    }
+
+    /** The old Terrain.getAverageValue, one column at a time */
+    private static float oldAverage(short board[], int a, int b) {
+        int acc = 0;
+        for (int i = a; i <= b; i++)
+            acc += board[Math.max(0, Math.min(board.length - 1, i))];
+        float ret = acc;
+        return ret / (b - a);
+    }
+
+    /** The old Terrain.hasDownwardTangent, one column at a time */
+    private static boolean oldHasDownwardTangent(short board[], int x) {
+        int y = board[Math.max(0, Math.min(board.length - 1, x))];
+        for (int n = 1; x + n < board.length; n++) {
+            int diff = y - board[x + n];
+            if (diff > 0)
+                return false;
+            else if (diff < 0)
+                return true;
+        }
+        return false;
+    }
+
+    /** Checks the terrain's range queries around [a, b] against loops
+     * over 'board' */
+    private static void checkQueries(Terrain terrain, short board[],
+                                     int a, int b, String where) {
+        int w = board.length;
+        a = Math.max(0, a);
+        b = Math.min(w - 1, b);
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int x = a; x <= b; x++) {
+            min = Math.min(min, board[x]);
+            max = Math.max(max, board[x]);
+        }
+        assertEquals(where + ": highest", min,
+                     terrain.getHighestPoint(a, b));
+        assertEquals(where + ": lowest", max,
+                     terrain.getLowestPoint(a, b));
+        // Averages may run off either end of the board
+        for (int x = a - 3; x <= b + 3; x += 7) {
+            assertEquals(where + ": average at " + x,
+                         oldAverage(board, x - 5, x + 5),
+                         terrain.getAverageValue(x - 5, x + 5));
+        }
+        for (int x = a; x <= b; x++) {
+            assertEquals(where + ": tangent at " + x,
+                         oldHasDownwardTangent(board, x),
+                         terrain.hasDownwardTangent(x));
+        }
+    }
+
+    /*================= Tests =================*/
+    public void testStencilSpansMatchOldFloatCode() {
+        Util.Pair expected = new Util.Pair();
+        Util.Pair actual = new Util.Pair();
+        for (int r : RADII) {
+            CircleStencil stencil = CircleStencil.get(r);
+            assertEquals(r, stencil.getRadius());
+            // The old code truncated towards zero, so it only agrees for
+            // circles that don't poke out of the top of the world.
+            int ys[] = { r, r + 1, 100, Terrain.MAX_Y };
+            for (int y0 : ys) {
+                for (int x = 200 - r - 2; x <= 200 + r + 2; x++) {
+                    oldCircAt(200, y0, r, x, expected);
+                    stencil.getSpan(200, y0, x, actual);
+                    String where = "r=" + r + " y0=" + y0 + " x=" + x;
+                    assertEquals(where, expected.yLower, actual.yLower);
+                    assertEquals(where, expected.yUpper, actual.yUpper);
+                    if (stencil.covers(x - 200)) {
+                        assertEquals(where, expected.yLower,
+                                     stencil.getLower(200, y0, x));
+                        assertEquals(where, expected.yUpper,
+                                     stencil.getUpper(200, y0, x));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testExplosionsCarveLikeTheOldLoop() {
+        Match match = new Match(MatchTest.createSettings(), 99);
+        match.startRound(true);
+        Terrain terrain = match.getModel().getTerrain();
+        int w = terrain.getWidth();
+        short board[] = new short[w];
+        for (int x = 0; x < w; x++)
+            board[x] = terrain.getVal(x);
+        checkQueries(terrain, board, 0, w - 1, "before");
+
+        Explosion explosion = new Explosion();
+        for (int r : RADII) {
+            if (r == 0)
+                continue;
+            ExplosionAttributes attr = new ExplosionAttributes(r, 0, 0);
+            // The world's edges, just inside them, and the middle
+            int xs[] = { 0, 1, r - 1, w / 2, w - r, w - 2, w - 1 };
+            for (int x : xs) {
+                // In the air, on the surface, underground, and at the
+                // bottom of the world
+                int surface = board[Math.max(0, Math.min(w - 1, x))];
+                int ys[] = { Math.max(r, surface - r - 5),
+                             Math.max(r, surface),
+                             Math.max(r, surface + r + 5),
+                             Terrain.MAX_Y - 1 };
+                for (int y : ys) {
+                    explosion.initialize(match, x, y, attr,
+                                         Player.INVALID_PLAYER_ID);
+                    explosion.editTerrain(match);
+                    oldEditTerrain(board, x, y, r);
+                    String where = "r=" + r + " at (" + x + ", " + y + ")";
+                    for (int i = 0; i < w; i++) {
+                        assertEquals(where + ": column " + i,
+                                     board[i], terrain.getVal(i));
+                    }
+                    checkQueries(terrain, board, x - r - 10, x + r + 10,
+                                 where);
+                }
+            }
+        }
+        checkQueries(terrain, board, 0, w - 1, "after");
+    }
+}
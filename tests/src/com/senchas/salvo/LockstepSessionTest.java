@@ -0,0 +1,172 @@
+package com.senchas.salvo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.senchas.salvo.Brain.RemoteBrain;
+
+/**
+ * Plays networked matches between a host and a client over 127.0.0.1.
+ */
+public class LockstepSessionTest extends TestCase {
+    /*================= Constants =================*/
+    /** How long a match may take, in milliseconds */
+    private static final long TIMEOUT = 300000;
+
+    /** How long it may take everyone to connect, in milliseconds */
+    private static final long CONNECT_TIMEOUT = 10000;
+
+    /** The host plays the first seat */
+    private static final int HOST_PLAYER = 0;
+
+    /*================= Types =================*/
+    /** Plays the local seat with a LoopbackClient, and counts desyncs */
+    private static class TestListener implements LockstepSession.Listener {
+        /*================= Data =================*/
+        public final CountDownLatch mReady = new CountDownLatch(1);
+
+        public final CountDownLatch mDesynced = new CountDownLatch(1);
+
+        public volatile boolean mDisconnected = false;
+
+        /*================= Operations =================*/
+        public void onMatchReady(LockstepSession session, Match match) {
+            LoopbackClient.fillSeat(match, session.getLocalPlayerId(),
+                                    BrainFactory.HARD);
+            mReady.countDown();
+        }
+
+        public void onDesync(LockstepSession session, int turn) {
+            mDesynced.countDown();
+        }
+
+        public void onDisconnected(LockstepSession session) {
+            mDisconnected = true;
+        }
+    }
+
+    /** Plays the host's moves a little differently than the host did */
+    private static class TamperingListener extends TestListener {
+        public void onMatchReady(final LockstepSession session,
+                                 Match match) {
+            super.onMatchReady(session, match);
+            match.getSeat(HOST_PLAYER).setListener(
+                new RemoteBrain.Listener() {
+                    public void onMoveRequested(final RemoteBrain brain,
+                                                GameHost game,
+                                                int playerId) {
+                        session.onMoveRequested(new RemoteBrain() {
+                            public boolean submitMove(int angle, int power,
+                                                      WeaponType weapon) {
+                                return brain.submitMove(bend(angle),
+                                                        power, weapon);
+                            }
+                        }, game, playerId);
+                    }
+                });
+        }
+
+        private static int bend(int angle) {
+            if (angle + 20 <= Player.MAX_TURRET_ANGLE)
+                return angle + 20;
+            else
+                return angle - 20;
+        }
+    }
+
+    /*================= Static =================*/
+    /** Returns the settings for a short match with two seats */
+    private static ModelFactory createSettings() {
+        ModelFactory fac = ModelFactory.fromSettings(TerrainFactory.Rolling,
+                                false, (short)1, (short)1000,
+                                Terrain.MAX_X, false, false, false);
+        fac.addPlayerFactory("ann", BrainFactory.HUMAN,
+                             PlayerColor.values()[0], (short)10);
+        fac.addPlayerFactory("bob", BrainFactory.HUMAN,
+                             PlayerColor.values()[1], (short)10);
+        return fac;
+    }
+
+    /*================= Data =================*/
+    private MatchServer mHostServer;
+    private MatchServer mClientServer;
+    private LockstepSession mHost;
+    private LockstepSession mClient;
+
+    /*================= Operations =================*/
+    /** Hosts a match, joins it, and waits until both sides are ready */
+    private void connect(TestListener hostListener,
+                         TestListener clientListener) throws Exception {
+        mHost = LockstepSession.host(0, createSettings(), 1234,
+                                     mHostServer, hostListener);
+        mClient = LockstepSession.join("127.0.0.1", mHost.getPort(),
+                                       mClientServer, clientListener);
+        assertTrue("the host never started",
+            hostListener.mReady.await(CONNECT_TIMEOUT,
+                                      TimeUnit.MILLISECONDS));
+        assertTrue("the client never started",
+            clientListener.mReady.await(CONNECT_TIMEOUT,
+                                        TimeUnit.MILLISECONDS));
+        assertEquals(HOST_PLAYER, mHost.getLocalPlayerId());
+        assertEquals(1, mClient.getLocalPlayerId());
+    }
+
+    private static int finish(Match match, String who)
+            throws InterruptedException {
+        assertTrue(who + "'s match didn't finish",
+                   match.waitUntilFinished(TIMEOUT));
+        synchronized (match.getStateLock()) {
+            assertNull(who + "'s match crashed", match.getCrash());
+            return match.getModel().getChecksum();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHostServer = new MatchServer(1, 1);
+        mClientServer = new MatchServer(1, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mClient != null)
+            mClient.close();
+        if (mHost != null)
+            mHost.close();
+        mClientServer.shutdown();
+        mHostServer.shutdown();
+        super.tearDown();
+    }
+
+    /*================= Tests =================*/
+    public void testPeersPlayTheSameMatch() throws Exception {
+        TestListener hostListener = new TestListener();
+        TestListener clientListener = new TestListener();
+        connect(hostListener, clientListener);
+
+        int hostSum = finish(mHost.getMatch(), "host");
+        int clientSum = finish(mClient.getMatch(), "client");
+        assertEquals("checksums at the end", hostSum, clientSum);
+        assertEquals("the host saw a desync",
+                     1, hostListener.mDesynced.getCount());
+        assertEquals("the client saw a desync",
+                     1, clientListener.mDesynced.getCount());
+        assertFalse(hostListener.mDisconnected);
+        assertFalse(clientListener.mDisconnected);
+    }
+
+    public void testChangedMoveIsNoticed() throws Exception {
+        TestListener hostListener = new TestListener();
+        TestListener clientListener = new TamperingListener();
+        connect(hostListener, clientListener);
+
+        assertTrue("the host never noticed",
+            hostListener.mDesynced.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue("the client was never told",
+            clientListener.mDesynced.await(CONNECT_TIMEOUT,
+                                           TimeUnit.MILLISECONDS));
+    }
+}
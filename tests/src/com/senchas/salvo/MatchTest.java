@@ -0,0 +1,61 @@
+package com.senchas.salvo;
+
+import junit.framework.TestCase;
+
+/**
+ * Plays headless matches with LoopbackClients in the seats.
+ */
+public class MatchTest extends TestCase {
+    /*================= Constants =================*/
+    /** How long a match may take, in milliseconds */
+    private static final long TIMEOUT = 300000;
+
+    /*================= Static =================*/
+    /** Returns the settings for a short match with one seat. The players
+     * start with very little life, so that it is over quickly. */
+    static ModelFactory createSettings() {
+        ModelFactory fac = ModelFactory.fromSettings(TerrainFactory.Rolling,
+                                false, (short)1, (short)1000,
+                                Terrain.MAX_X, false, false, false);
+        fac.addPlayerFactory("ann", BrainFactory.HUMAN,
+                             PlayerColor.values()[0], (short)10);
+        fac.addPlayerFactory("bob", BrainFactory.HARD,
+                             PlayerColor.values()[1], (short)10);
+        return fac;
+    }
+
+    /** Plays some matches with the same seed to the end, side by side,
+     * and returns their checksums */
+    private static int[] playMatches(long seed, int numMatches)
+            throws InterruptedException {
+        MatchServer server = new MatchServer(numMatches, 1);
+        try {
+            Match matches[] = new Match[numMatches];
+            for (int i = 0; i < numMatches; i++) {
+                matches[i] = new Match(createSettings(), seed);
+                LoopbackClient.fillSeats(matches[i], BrainFactory.MEDIUM);
+                server.addMatch(matches[i]);
+            }
+            int ret[] = new int[numMatches];
+            for (int i = 0; i < numMatches; i++) {
+                Match match = matches[i];
+                assertTrue("match " + i + " didn't finish",
+                           match.waitUntilFinished(TIMEOUT));
+                synchronized (match.getStateLock()) {
+                    assertNull("match " + i + " crashed", match.getCrash());
+                    ret[i] = match.getModel().getChecksum();
+                }
+            }
+            return ret;
+        }
+        finally {
+            server.shutdown();
+        }
+    }
+
+    /*================= Tests =================*/
+    public void testSameSeedPlaysTheSame() throws InterruptedException {
+        int sums[] = playMatches(1234, 2);
+        assertEquals("checksums of two runs", sums[0], sums[1]);
+    }
+}
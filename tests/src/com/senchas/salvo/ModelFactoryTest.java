@@ -0,0 +1,63 @@
+package com.senchas.salvo;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a round comes out the same however it was planned.
+ */
+public class ModelFactoryTest extends TestCase {
+    /*================= Static =================*/
+    private static Cosmos createCosmos(ModelFactory fac, long seed) {
+        return Cosmos.fromInitial(fac.getNumRounds(), fac.getNumPlayers(),
+                                  fac.getStartingCash(), seed);
+    }
+
+    /** Plans the second round while the first is still going, the way
+     * RunGameAct does while the leaderboard is up, and returns its
+     * checksum */
+    private static int planAhead(ModelFactory fac, long seed) {
+        Cosmos cosmos = createCosmos(fac, seed);
+        fac.createModel(cosmos);
+        ModelFactory.RoundPlan plan =
+            fac.planRound(cosmos.getNextPlanSeed(), null);
+        cosmos.nextRound();
+        return fac.createModel(cosmos, plan).getChecksum();
+    }
+
+    /** Plans the second round once it has started, and returns its
+     * checksum */
+    private static int planOnTheSpot(ModelFactory fac, long seed) {
+        Cosmos cosmos = createCosmos(fac, seed);
+        fac.createModel(cosmos);
+        cosmos.nextRound();
+        return fac.createModel(cosmos,
+            fac.planRound(cosmos.getPlanSeed(), null)).getChecksum();
+    }
+
+    /** Lets a Match plan the second round, and returns its checksum */
+    private static int planLikeAMatch(ModelFactory fac, long seed) {
+        Cosmos cosmos = createCosmos(fac, seed);
+        fac.createModel(cosmos);
+        cosmos.nextRound();
+        return fac.createModel(cosmos).getChecksum();
+    }
+
+    /*================= Tests =================*/
+    public void testPlanningAheadMakesTheSameRound() {
+        ModelFactory fac = MatchTest.createSettings();
+        fac.modifyRandomPlayerPlacement(true);
+        for (long seed = 1; seed <= 3; seed++) {
+            int sum = planOnTheSpot(fac, seed);
+            assertEquals("seed " + seed + ", planned ahead",
+                         sum, planAhead(fac, seed));
+            assertEquals("seed " + seed + ", planned by a Match",
+                         sum, planLikeAMatch(fac, seed));
+        }
+    }
+
+    public void testPlanningAheadMakesTheSameFairMap() {
+        ModelFactory fac = MatchTest.createSettings();
+        fac.setFairMaps(true);
+        assertEquals(planOnTheSpot(fac, 42), planAhead(fac, 42));
+    }
+}
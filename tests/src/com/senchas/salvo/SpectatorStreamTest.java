@@ -0,0 +1,100 @@
+package com.senchas.salvo;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds frames from a SpectatorStream to a Replica.
+ */
+public class SpectatorStreamTest extends TestCase {
+    /*================= Constants =================*/
+    /** Wide enough that changing every column can't fit in one delta */
+    private static final int WIDTH = 4 * Terrain.MAX_X;
+
+    /*================= Static =================*/
+    private static Match createMatch() {
+        ModelFactory fac = ModelFactory.fromSettings(TerrainFactory.Rolling,
+                                false, (short)1, (short)1000,
+                                WIDTH, false, false, false);
+        fac.addPlayerFactory("ann", BrainFactory.HUMAN,
+                             PlayerColor.values()[0], (short)10);
+        fac.addPlayerFactory("bob", BrainFactory.HARD,
+                             PlayerColor.values()[1], (short)10);
+        Match match = new Match(fac, 7);
+        match.startRound(true);
+        return match;
+    }
+
+    /** Applies every frame waiting for 'sub' to 'replica', and returns how
+     * many there were of each type */
+    private static int[] drain(SpectatorStream.Subscriber sub,
+                               SpectatorStream.Replica replica) {
+        int ret[] = new int[4];
+        byte buf[] = new byte[SpectatorStream.MAX_FRAME_SIZE];
+        int len;
+        while ((len = sub.poll(buf)) != 0) {
+            assertTrue(len <= SpectatorStream.MAX_FRAME_SIZE);
+            ret[buf[2]]++;
+            assertTrue("frame type " + buf[2], replica.apply(buf, len));
+        }
+        return ret;
+    }
+
+    private static void assertSameBoard(Match match,
+                                        SpectatorStream.Replica replica) {
+        Terrain terrain = match.getModel().getTerrain();
+        short board[] = new short[terrain.getWidth()];
+        terrain.copyColumns(0, board, board.length);
+        assertTrue(Arrays.equals(board, replica.getBoard()));
+    }
+
+    /*================= Tests =================*/
+    public void testSmallChangeIsADelta() {
+        Match match = createMatch();
+        SpectatorStream stream = new SpectatorStream(match);
+        SpectatorStream.Subscriber sub = stream.subscribe();
+        SpectatorStream.Replica replica = new SpectatorStream.Replica();
+        drain(sub, replica);
+        assertSameBoard(match, replica);
+
+        Terrain terrain = match.getModel().getTerrain();
+        for (int x = 100; x < 110; x++)
+            terrain.setVal(x, terrain.getVal(x) + 3);
+        stream.onColumnsChanged(match, 100, 109);
+        stream.onFrame(match, new Projectile[0], new Explosion[0]);
+        int frames[] = drain(sub, replica);
+        assertEquals(1, frames[SpectatorStream.FRAME_DELTA]);
+        assertEquals(0, frames[SpectatorStream.FRAME_KEY]);
+        assertSameBoard(match, replica);
+    }
+
+    public void testHugeChangeFallsBackToAKeyframe() {
+        Match match = createMatch();
+        SpectatorStream stream = new SpectatorStream(match);
+        SpectatorStream.Subscriber sub = stream.subscribe();
+        SpectatorStream.Replica replica = new SpectatorStream.Replica();
+        drain(sub, replica);
+
+        // Every other column, so that each one is a run of its own
+        Terrain terrain = match.getModel().getTerrain();
+        for (int x = 0; x < WIDTH; x += 2)
+            terrain.setVal(x, terrain.getVal(x) + 1);
+        stream.onColumnsChanged(match, 0, WIDTH - 1);
+        stream.onFrame(match, new Projectile[0], new Explosion[0]);
+        int frames[] = drain(sub, replica);
+        assertEquals(0, frames[SpectatorStream.FRAME_DELTA]);
+        assertEquals(1, frames[SpectatorStream.FRAME_KEY]);
+        assertTrue(replica.isSynced());
+        assertSameBoard(match, replica);
+        assertEquals(0, sub.getNumDropped());
+
+        // Deltas carry on from the keyframe
+        terrain.setVal(5, terrain.getVal(5) + 1);
+        stream.onColumnsChanged(match, 5, 5);
+        stream.onFrame(match, new Projectile[0], new Explosion[0]);
+        frames = drain(sub, replica);
+        assertEquals(1, frames[SpectatorStream.FRAME_DELTA]);
+        assertSameBoard(match, replica);
+    }
+}
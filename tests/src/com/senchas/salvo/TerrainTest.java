@@ -0,0 +1,81 @@
+package com.senchas.salvo;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks a terrain which lives in a MappedTerrainFile against one on the
+ * heap.
+ */
+public class TerrainTest extends TestCase {
+    /*================= Constants =================*/
+    /** More chunks than a mapped terrain keeps loaded at once */
+    private static final int NUM_CHUNKS = 12;
+
+    private static final int WIDTH = NUM_CHUNKS * Terrain.CHUNK_SIZE;
+
+    /*================= Data =================*/
+    private File mFile;
+
+    private MappedTerrainFile mStore;
+
+    /*================= Operations =================*/
+    /** Checks every chunk's range queries against 'board' */
+    private static void checkChunks(Terrain terrain, short board[],
+                                    String where) {
+        for (int c = 0; c < NUM_CHUNKS; c++) {
+            int a = c * Terrain.CHUNK_SIZE;
+            int b = a + Terrain.CHUNK_SIZE - 1;
+            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, sum = 0;
+            for (int x = a; x <= b; x++) {
+                min = Math.min(min, board[x]);
+                max = Math.max(max, board[x]);
+                sum += board[x];
+            }
+            String what = where + ", chunk " + c;
+            assertEquals(what, min, terrain.getHighestPoint(a, b));
+            assertEquals(what, max, terrain.getLowestPoint(a, b));
+            assertEquals(what, (float)sum / (b - a),
+                         terrain.getAverageValue(a, b));
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("terrain", ".map");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mStore != null)
+            mStore.close();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /*================= Tests =================*/
+    public void testReloadedChunksAreIndexed() throws Exception {
+        Terrain.ChunkSource source = TerrainFactory.getChunkSource(
+            TerrainFactory.Rolling.ordinal(), 5);
+        mStore = MappedTerrainFile.create(mFile, source, WIDTH);
+        Terrain terrain = new Terrain(mStore.getWidth(), mStore);
+        Terrain heap = new Terrain(WIDTH, source);
+        short board[] = new short[WIDTH];
+        heap.copyColumns(0, board, WIDTH);
+        checkChunks(terrain, board, "as generated");
+
+        // Dig a pit in every chunk, so that each of them is evicted and
+        // reloaded with different heights than it was first indexed with
+        for (int pass = 1; pass <= 2; pass++) {
+            for (int c = 0; c < NUM_CHUNKS; c++) {
+                int x = c * Terrain.CHUNK_SIZE + 17 * pass;
+                board[x] = (short)(Terrain.MAX_Y - pass);
+                terrain.setVal(x, board[x]);
+                terrain.columnsChanged(x, x);
+            }
+            checkChunks(terrain, board, "pass " + pass);
+        }
+    }
+}